@@ -5,6 +5,8 @@ object GenMarkers{
     val markers:Map<String,String> = linkedMapOf(
             Pair("//-WLOCK", """lock.writeLock().lock(); try{"""),
             Pair("//-WUNLOCK", """}finally{lock.writeLock().unlock();}"""),
+            Pair("//-RLOCK", """lock.readLock().lock(); try{"""),
+            Pair("//-RUNLOCK", """}finally{lock.readLock().unlock();}"""),
             Pair("//-newRWLOCK", """java.util.concurrent.locks.ReadWriteLock lock = new java.util.concurrent.locks.ReentrantReadWriteLock();""")
     )
 
@@ -99,4 +99,11 @@ public class DBException extends RuntimeException {
             super("Record was not preallocated");
         }
     }
-}
\ No newline at end of file
+
+    public static class Interrupted extends DBException {
+
+        public Interrupted(InterruptedException e) {
+            super("Thread interrupted", e);
+        }
+    }
+}
@@ -1,10 +1,47 @@
 package org.mapdb.cli;
 
 import org.jetbrains.annotations.NotNull;
+import org.mapdb.db.DB;
+import org.mapdb.io.DataOutput2ByteArray;
+import org.mapdb.util.Exporter;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/** exports named collection into file, usage: {@code -d dbFile -o outputFile -n name} */
 public class Export {
 
     public static void main(@NotNull String[] arrayOf) {
+        File dbFile = null;
+        File outFile = null;
+        String name = null;
+        for(int i=0; i<arrayOf.length-1; i+=2){
+            switch (arrayOf[i]){
+                case "-d": dbFile = new File(arrayOf[i+1]); break;
+                case "-o": outFile = new File(arrayOf[i+1]); break;
+                case "-n": name = arrayOf[i+1]; break;
+                default: throw new IllegalArgumentException("Unknown argument: "+arrayOf[i]);
+            }
+        }
+        if(dbFile==null || outFile==null || name==null)
+            throw new IllegalArgumentException("Usage: -d dbFile -o outputFile -n name");
 
+        DB db = DB.Maker.appendFile(dbFile).make();
+        try{
+            Object c = db.get(name);
+            if(!(c instanceof Exporter))
+                throw new IllegalArgumentException("Collection does not exist or can not be exported: "+name);
+            DataOutput2ByteArray out = new DataOutput2ByteArray();
+            ((Exporter) c).exportToDataOutput2(out);
+            try(FileOutputStream fout = new FileOutputStream(outFile)){
+                fout.write(out.copyBytes());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            db.close();
+        }
     }
 }
@@ -1,10 +1,53 @@
 package org.mapdb.cli;
 
 import org.jetbrains.annotations.NotNull;
+import org.mapdb.db.DB;
+import org.mapdb.io.DataInput2ByteArray;
+import org.mapdb.queue.LinkedFIFOQueue;
+import org.mapdb.ser.Serializer;
+import org.mapdb.ser.SerializerUtils;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+
+/** imports file created by {@link Export} into new named collection, usage: {@code -d dbFile -i inputFile -n name} */
 public class Import {
 
     public static void main(@NotNull String[] args) {
+        File dbFile = null;
+        File inFile = null;
+        String name = null;
+        for(int i=0; i<args.length-1; i+=2){
+            switch (args[i]){
+                case "-d": dbFile = new File(args[i+1]); break;
+                case "-i": inFile = new File(args[i+1]); break;
+                case "-n": name = args[i+1]; break;
+                default: throw new IllegalArgumentException("Unknown argument: "+args[i]);
+            }
+        }
+        if(dbFile==null || inFile==null || name==null)
+            throw new IllegalArgumentException("Usage: -d dbFile -i inputFile -n name");
+
+        byte[] data;
+        try {
+            data = Files.readAllBytes(inFile.toPath());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        //header contains collection type and serializer
+        DataInput2ByteArray header = new DataInput2ByteArray(data);
+        String type = header.readUTF();
+        Serializer ser = SerializerUtils.serializerForClassName(header.readUTF());
+        if(!LinkedFIFOQueue.TYPE.equals(type))
+            throw new IllegalArgumentException("Unknown collection type: "+type);
 
+        DB db = DB.Maker.appendFile(dbFile).make();
+        try{
+            db.queue(name, ser).importFromDataInput2(new DataInput2ByteArray(data)).make();
+        }finally {
+            db.close();
+        }
     }
 }
@@ -1,14 +1,55 @@
 package org.mapdb.db;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.mapdb.DBException;
+import org.mapdb.io.DataInput2;
+import org.mapdb.io.DataOutput2;
+import org.mapdb.queue.LinkedFIFOQueue;
+import org.mapdb.ser.Serializer;
+import org.mapdb.ser.SerializerUtils;
+import org.mapdb.store.AppendStore;
 import org.mapdb.store.HeapBufStore;
+import org.mapdb.store.Recids;
 import org.mapdb.store.Store;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 public class DB {
     private final Store store;
 
+    /** name catalog is stored in {@link Recids#RECID_NAME_PARAMS}, keys are in form {@code name#param} */
+    private static final Serializer<SortedMap<String,String>> CATALOG_SER = new Serializer<SortedMap<String,String>>() {
+        @Override
+        public void serialize(@NotNull DataOutput2 out, @NotNull SortedMap<String, String> catalog) {
+            out.writePackedInt(catalog.size());
+            for(Map.Entry<String,String> e:catalog.entrySet()){
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue());
+            }
+        }
+
+        @Override
+        public SortedMap<String, String> deserialize(@NotNull DataInput2 input) {
+            SortedMap<String,String> catalog = new TreeMap<>();
+            for(int size = input.readPackedInt(); size>0; size--)
+                catalog.put(input.readUTF(), input.readUTF());
+            return catalog;
+        }
+
+        @Override
+        public @Nullable Class serializedType() {
+            return SortedMap.class;
+        }
+    };
+
+    /** opened collections, so the same instance is returned for the same name */
+    private final Map<String,Object> collections = new HashMap<>();
+
     public DB(Store store) {
         this.store = store;
     }
@@ -18,7 +59,102 @@ public class DB {
     }
 
     public void close() {
+        store.close();
+    }
 
+    protected synchronized SortedMap<String,String> catalog(){
+        try {
+            return store.get(Recids.RECID_NAME_PARAMS, CATALOG_SER);
+        }catch (DBException.RecordNotFound e){
+            SortedMap<String,String> catalog = new TreeMap<>();
+            long recid = store.put(catalog, CATALOG_SER);
+            if(recid!=Recids.RECID_NAME_PARAMS)
+                throw new DBException.WrongConfig("Name catalog could not be created, store is not empty");
+            return catalog;
+        }
+    }
+
+    protected synchronized void catalogPut(SortedMap<String,String> params){
+        SortedMap<String,String> catalog = catalog();
+        catalog.putAll(params);
+        store.update(Recids.RECID_NAME_PARAMS, CATALOG_SER, catalog);
+    }
+
+    /** returns existing named collection, or null if it does not exist */
+    @Nullable
+    public synchronized Object get(@NotNull String name){
+        Object c = collections.get(name);
+        if(c!=null)
+            return c;
+        SortedMap<String,String> catalog = catalog();
+        String type = catalog.get(name+"#type");
+        if(type==null)
+            return null;
+        Serializer ser = SerializerUtils.serializerForClassName(catalog.get(name+"#serializer"));
+        if(LinkedFIFOQueue.TYPE.equals(type))
+            return queue(name, ser).make();
+        throw new DBException.WrongConfig("Unknown collection type: "+type);
+    }
+
+    @NotNull
+    public <E> QueueMaker<E> queue(@NotNull String name, @NotNull Serializer<E> serializer){
+        return new QueueMaker<>(name, serializer);
+    }
+
+    public class QueueMaker<E> {
+        private final String name;
+        private final Serializer<E> serializer;
+        @Nullable private DataInput2 importInput = null;
+
+        protected QueueMaker(String name, Serializer<E> serializer) {
+            this.name = name;
+            this.serializer = serializer;
+        }
+
+        /** fills new queue with data from {@link org.mapdb.util.Exporter}, fails if queue already exists */
+        @NotNull
+        public QueueMaker<E> importFromDataInput2(@NotNull DataInput2 input){
+            this.importInput = input;
+            return this;
+        }
+
+        @NotNull
+        public LinkedFIFOQueue<E> make(){
+            synchronized (DB.this){
+                SortedMap<String,String> catalog = catalog();
+                String type = catalog.get(name+"#type");
+                if(type!=null){
+                    if(importInput!=null)
+                        throw new DBException.WrongConfig("Can not import, collection already exists: "+name);
+                    if(!LinkedFIFOQueue.TYPE.equals(type))
+                        throw new DBException.WrongConfig("Collection is not queue: "+name);
+                    if(!serializer.getClass().getName().equals(catalog.get(name+"#serializer")))
+                        throw new DBException.WrongSerializer();
+
+                    Object c = collections.get(name);
+                    if(c==null){
+                        c = new LinkedFIFOQueue.Maker<>(store,
+                                Long.parseLong(catalog.get(name+"#head")),
+                                Long.parseLong(catalog.get(name+"#tail")),
+                                serializer).make();
+                        collections.put(name, c);
+                    }
+                    return (LinkedFIFOQueue<E>) c;
+                }
+
+                LinkedFIFOQueue<E> q = LinkedFIFOQueue.Maker.newQueue(store, serializer).make();
+                SortedMap<String,String> params = new TreeMap<>();
+                params.put(name+"#type", LinkedFIFOQueue.TYPE);
+                params.put(name+"#serializer", serializer.getClass().getName());
+                params.put(name+"#head", Long.toString(q.getHeadRecid()));
+                params.put(name+"#tail", Long.toString(q.getTailRecid()));
+                catalogPut(params);
+                if(importInput!=null)
+                    q.importFromDataInput2(importInput);
+                collections.put(name, q);
+                return q;
+            }
+        }
     }
 
     public static class Maker {
@@ -31,7 +167,7 @@ public class DB {
 
         @NotNull
         public static Maker appendFile(@NotNull File f) {
-            return null;
+            return new Maker(new AppendStore(f));
         }
 
         @NotNull
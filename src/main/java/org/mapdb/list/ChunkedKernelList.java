@@ -0,0 +1,393 @@
+package org.mapdb.list;
+
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.mapdb.ser.LongArraySerializer;
+import org.mapdb.ser.Serializer;
+import org.mapdb.store.Store;
+
+import java.util.*;
+
+/**
+ * List where elements are stored in separate records, similar to {@link KernelList}.
+ * Kernel with element recids is split into pages of fixed max size, so large lists do not rewrite whole kernel.
+ *
+ * Root record is {@code long[]} in form {@code [pageSize, pageRecid0, pageEnd0, pageRecid1, pageEnd1, ..., tailPageRecid]},
+ * where page end is number of elements in this page and all previous pages. Tail page has no end in root,
+ * so appending into tail page does not modify root.
+ *
+ * {@code get} reads root and single page, {@code add} updates only tail page.
+ * Insert and remove modify single page, page is split when it overflows and merged with neighbour when it is mostly empty.
+ *
+ * Root is flat and it is read on every access, so number of pages is limited by {@link #MAX_PAGES}
+ * (16 bytes of root per page). With default page size that is 16M elements if pages are full,
+ * merge keeps pages at least quarter full. Modification which would need more pages fails with {@link IllegalStateException}.
+ */
+public class ChunkedKernelList<E>
+        extends AbstractList<E>
+        implements List<E>, RandomAccess {
+
+    public static final int DEFAULT_PAGE_SIZE = 1024;
+
+    /** max number of pages, root has 256KB at this size */
+    public static final int MAX_PAGES = 16*1024;
+
+    /** Serializer of root, it has its own instance so root can be enabled in {@link org.mapdb.store.InstanceCache}. */
+    public static final Serializer<long[]> ROOT_SER = new LongArraySerializer();
+
+    /** Serializer of kernel pages. Page array is never modified once it is stored. */
+    public static final Serializer<long[]> PAGE_SER = new LongArraySerializer();
+
+    private final Store kernelStore;
+    private final Store entryStore;
+    private final long recid;
+    private final Serializer<E> ser;
+
+    public ChunkedKernelList(Store kernelStore, Store entryStore, long recid, Serializer<E> ser) {
+        this.kernelStore = kernelStore;
+        this.entryStore = entryStore;
+        this.recid = recid;
+        this.ser = ser;
+    }
+
+
+    public static class Maker<E> {
+        private final Store store;
+
+        private Store entryStore = null;
+        private final Serializer<E> ser;
+        private final long recid;
+
+        public Maker(Store store, long recid, Serializer<E> ser) {
+            this.store = store;
+            this.entryStore = store;
+            this.recid = recid;
+            this.ser = ser;
+        }
+
+        public static <E> ChunkedKernelList.Maker<E> newList(Store store, Serializer<E> ser) {
+            return newList(store, ser, DEFAULT_PAGE_SIZE);
+        }
+
+        /** page size is stored in root, it can not be changed later */
+        public static <E> ChunkedKernelList.Maker<E> newList(Store store, Serializer<E> ser, int pageSize) {
+            if(pageSize<2)
+                throw new IllegalArgumentException("pageSize must be at least 2");
+            long pageRecid = store.put(new long[]{}, PAGE_SER);
+            long recid = store.put(new long[]{pageSize, pageRecid}, ROOT_SER);
+            return new ChunkedKernelList.Maker<>(store, recid, ser);
+        }
+
+        public Maker<E> entryStore(Store store){
+            this.entryStore = store;
+            return this;
+        }
+
+        public ChunkedKernelList<E> make(){
+            return new ChunkedKernelList<E>(store, entryStore, recid, ser);
+        }
+    }
+
+    public long getRecid(){
+        return recid;
+    }
+
+    protected static int pageCount(long[] root){
+        return root.length/2;
+    }
+
+    protected static long pageRecid(long[] root, int page){
+        return root[1+2*page];
+    }
+
+    /** number of elements in all pages before given page */
+    protected static long pageStart(long[] root, int page){
+        return page==0 ? 0 : root[2*page];
+    }
+
+    /** returns page which contains element at given index, or tail page if index is beyond end */
+    protected static int findPage(long[] root, long index){
+        int lo = 0;
+        int hi = pageCount(root)-1;
+        while(lo<hi){
+            int mid = (lo+hi+1)>>>1;
+            if(pageStart(root, mid)<=index)
+                lo = mid;
+            else
+                hi = mid-1;
+        }
+        return lo;
+    }
+
+    /** max number of pages, root must also fit into single record */
+    protected int maxPages(){
+        return (int) Math.min(MAX_PAGES, (kernelStore.maxRecordSize()-8L)/16);
+    }
+
+    /** fails if list would need more pages than root can hold, called before any modification */
+    protected void checkPages(long[] root, int newPages){
+        if(newPages>0 && pageCount(root)+newPages>maxPages())
+            throw new IllegalStateException("List is full, it can not have more than "+maxPages()+" pages");
+    }
+
+    /** number of new pages after page with given size is split */
+    protected static int splitPages(long[] root, int pageLength){
+        int pageSize = (int) root[0];
+        return pageLength<=pageSize ? 0 : (pageLength+pageSize-1)/pageSize-1;
+    }
+
+    protected long[] getRoot(){
+        return kernelStore.get(recid, ROOT_SER);
+    }
+
+    protected long[] getPage(long[] root, int page){
+        return kernelStore.get(pageRecid(root, page), PAGE_SER);
+    }
+
+    @Override
+    public E get(int index) {
+        return entryStore.get(entryRecid(index), ser);
+    }
+
+    protected long entryRecid(int index){
+        if(index<0)
+            throw new IndexOutOfBoundsException("Index: "+index);
+        long[] root = getRoot();
+        int p = findPage(root, index);
+        long[] page = getPage(root, p);
+        int pos = (int) (index-pageStart(root, p));
+        if(pos>=page.length)
+            throw new IndexOutOfBoundsException("Index: "+index);
+        return page[pos];
+    }
+
+    @Override
+    public int size() {
+        long[] root = getRoot();
+        int tail = pageCount(root)-1;
+        return (int) (pageStart(root, tail)+getPage(root, tail).length);
+    }
+
+    @Override
+    public boolean add(E e) {
+        long[] root = getRoot();
+        int tail = pageCount(root)-1;
+        long[] page = getPage(root, tail);
+        if(page.length>=root[0])
+            checkPages(root, 1);
+        long newRecid = entryStore.put(e, ser);
+        if(page.length<root[0]){
+            long[] page2 = Arrays.copyOf(page, page.length+1);
+            page2[page.length] = newRecid;
+            kernelStore.update(pageRecid(root, tail), PAGE_SER, page2);
+        }else{
+            //tail page is full, start new one
+            long[] root2 = Arrays.copyOf(root, root.length+2);
+            root2[root.length] = pageStart(root, tail)+page.length;
+            root2[root.length+1] = kernelStore.put(new long[]{newRecid}, PAGE_SER);
+            kernelStore.update(recid, ROOT_SER, root2);
+        }
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void add(int index, E e) {
+        if(index<0)
+            throw new IndexOutOfBoundsException("Index: "+index);
+        long[] root = getRoot();
+        int p = findPage(root, index);
+        long[] page = getPage(root, p);
+        int pos = (int) (index-pageStart(root, p));
+        if(pos>page.length)
+            throw new IndexOutOfBoundsException("Index: "+index);
+        checkPages(root, splitPages(root, page.length+1));
+
+        long[] page2 = new long[page.length+1];
+        System.arraycopy(page, 0, page2, 0, pos);
+        System.arraycopy(page, pos, page2, pos+1, page.length-pos);
+        page2[pos] = entryStore.put(e, ser);
+        storePage(root, p, page2);
+        modCount++;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+        if(c.isEmpty())
+            return false;
+        long[] root = getRoot();
+        int pageSize = (int) root[0];
+        int tail = pageCount(root)-1;
+        long[] page = getPage(root, tail);
+        int overflow = c.size()-(pageSize-page.length);
+        checkPages(root, overflow<=0 ? 0 : (overflow+pageSize-1)/pageSize);
+
+        long[] newRecids = entryStore.putAll(c, ser);
+
+        //fill tail page, rest goes into new full pages
+        int fill = Math.min(newRecids.length, pageSize-page.length);
+        if(fill>0) {
+            long[] page2 = Arrays.copyOf(page, page.length+fill);
+            System.arraycopy(newRecids, 0, page2, page.length, fill);
+            kernelStore.update(pageRecid(root, tail), PAGE_SER, page2);
+        }
+        if(fill<newRecids.length){
+            LongArrayList root2 = LongArrayList.newListWith(root);
+            long end = pageStart(root, tail)+page.length+fill;
+            for(int pos=fill; pos<newRecids.length; pos+=pageSize){
+                long[] page2 = Arrays.copyOfRange(newRecids, pos, Math.min(newRecids.length, pos+pageSize));
+                root2.add(end);
+                root2.add(kernelStore.put(page2, PAGE_SER));
+                end += page2.length;
+            }
+            kernelStore.update(recid, ROOT_SER, root2.toArray());
+        }
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends E> c) {
+        if(index<0)
+            throw new IndexOutOfBoundsException("Index: "+index);
+        long[] root = getRoot();
+        int p = findPage(root, index);
+        long[] page = getPage(root, p);
+        int pos = (int) (index-pageStart(root, p));
+        if(pos>page.length)
+            throw new IndexOutOfBoundsException("Index: "+index);
+        if(p==pageCount(root)-1 && pos==page.length)
+            return addAll(c);
+        checkPages(root, splitPages(root, page.length+c.size()));
+
+        long[] newRecids = entryStore.putAll(c, ser);
+        if(newRecids.length==0)
+            return false;
+        long[] page2 = new long[page.length+newRecids.length];
+        System.arraycopy(page, 0, page2, 0, pos);
+        System.arraycopy(newRecids, 0, page2, pos, newRecids.length);
+        System.arraycopy(page, pos, page2, pos+newRecids.length, page.length-pos);
+        storePage(root, p, page2);
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public E remove(int index) {
+        if(index<0)
+            throw new IndexOutOfBoundsException("Index: "+index);
+        long[] root = getRoot();
+        int p = findPage(root, index);
+        long[] page = getPage(root, p);
+        int pos = (int) (index-pageStart(root, p));
+        if(pos>=page.length)
+            throw new IndexOutOfBoundsException("Index: "+index);
+
+        long[] page2 = new long[page.length-1];
+        System.arraycopy(page, 0, page2, 0, pos);
+        System.arraycopy(page, pos+1, page2, pos, page2.length-pos);
+        //page is stored first, so failure does not leave page with deleted entry
+        storePage(root, p, page2);
+        modCount++;
+        return entryStore.getAndDelete(page[pos], ser);
+    }
+
+    @Override
+    public E set(int index, E element) {
+        return entryStore.getAndUpdate(entryRecid(index), ser, element);
+    }
+
+    @Override
+    public void clear() {
+        long[] root = getRoot();
+        for(int p=0; p<pageCount(root); p++){
+            entryStore.deleteAll(getPage(root, p), ser);
+            if(p>0)
+                kernelStore.delete(pageRecid(root, p), PAGE_SER);
+        }
+        kernelStore.update(pageRecid(root, 0), PAGE_SER, new long[]{});
+        kernelStore.update(recid, ROOT_SER, new long[]{root[0], pageRecid(root, 0)});
+        modCount++;
+    }
+
+    /**
+     * Stores modified page. Overflowing page is split into several pages, empty page is deleted
+     * and mostly empty page is merged with its neighbour. Root is updated if page boundaries changed.
+     */
+    protected void storePage(long[] root, int p, long[] page) {
+        int pageSize = (int) root[0];
+        int count = pageCount(root);
+        boolean tail = p==count-1;
+
+        LongArrayList recids = new LongArrayList(count+1);
+        LongArrayList sizes = new LongArrayList(count+1);
+        for(int i=0; i<count; i++){
+            recids.add(pageRecid(root, i));
+            sizes.add(i==count-1 ? 0 : pageStart(root, i+1)-pageStart(root, i));
+        }
+        long pageRecid = recids.get(p);
+
+        if(page.length>pageSize){
+            //split into pages of similar size, so following inserts do not split again
+            int chunks = (page.length+pageSize-1)/pageSize;
+            int from = 0;
+            for(int i=0; i<chunks; i++){
+                int to = (int) ((long)page.length*(i+1)/chunks);
+                long[] chunk = Arrays.copyOfRange(page, from, to);
+                if(i==0){
+                    kernelStore.update(pageRecid, PAGE_SER, chunk);
+                    sizes.set(p, chunk.length);
+                }else{
+                    recids.addAtIndex(p+i, kernelStore.put(chunk, PAGE_SER));
+                    sizes.addAtIndex(p+i, chunk.length);
+                }
+                from = to;
+            }
+        }else if(page.length==0 && count>1){
+            kernelStore.delete(pageRecid, PAGE_SER);
+            recids.removeAtIndex(p);
+            sizes.removeAtIndex(p);
+        }else if(page.length<pageSize/4 && count>1){
+            //merge with neighbour if it fits into single page
+            long[] next = p+1<count ? getPage(root, p+1) : null;
+            long[] prev = p>0 ? getPage(root, p-1) : null;
+            if(next!=null && next.length+page.length<=pageSize){
+                long[] merged = Arrays.copyOf(page, page.length+next.length);
+                System.arraycopy(next, 0, merged, page.length, next.length);
+                kernelStore.update(pageRecid, PAGE_SER, merged);
+                kernelStore.delete(recids.get(p+1), PAGE_SER);
+                sizes.set(p, merged.length);
+                recids.removeAtIndex(p+1);
+                sizes.removeAtIndex(p+1);
+            }else if(prev!=null && prev.length+page.length<=pageSize){
+                long[] merged = Arrays.copyOf(prev, prev.length+page.length);
+                System.arraycopy(page, 0, merged, prev.length, page.length);
+                kernelStore.update(recids.get(p-1), PAGE_SER, merged);
+                kernelStore.delete(pageRecid, PAGE_SER);
+                sizes.set(p-1, merged.length);
+                recids.removeAtIndex(p);
+                sizes.removeAtIndex(p);
+            }else{
+                kernelStore.update(pageRecid, PAGE_SER, page);
+                sizes.set(p, page.length);
+            }
+        }else{
+            kernelStore.update(pageRecid, PAGE_SER, page);
+            if(tail)
+                return; //page boundaries did not change
+            sizes.set(p, page.length);
+        }
+
+        long[] root2 = new long[recids.size()*2];
+        root2[0] = pageSize;
+        long end = 0;
+        for(int i=0; i<recids.size(); i++){
+            root2[1+2*i] = recids.get(i);
+            if(i<recids.size()-1){
+                end += sizes.get(i);
+                root2[2+2*i] = end;
+            }
+        }
+        kernelStore.update(recid, ROOT_SER, root2);
+    }
+
+}
@@ -1,7 +1,7 @@
 package org.mapdb.list;
 
+import org.mapdb.ser.LongArraySerializer;
 import org.mapdb.ser.Serializer;
-import org.mapdb.ser.Serializers;
 import org.mapdb.store.Store;
 
 import java.util.*;
@@ -10,7 +10,11 @@ public class KernelList<E>
         extends AbstractList<E>
         implements List<E>, RandomAccess {
 
-    private static final Serializer<long[]> KERNEL_SER = Serializers.LONG_ARRAY;
+    /**
+     * Serializer of kernel, it has its own instance so kernels can be enabled in {@link org.mapdb.store.InstanceCache}.
+     * Kernel array is never modified once it is stored.
+     */
+    public static final Serializer<long[]> KERNEL_SER = new LongArraySerializer();
 
     private final Store kernelStore;
     private final Store entryStore;
@@ -93,14 +97,10 @@ public class KernelList<E>
     @Override
     public boolean addAll(Collection<? extends E> c) {
         long[] kernel = getKernel();
+        long[] newRecids = entryStore.putAll(c, ser);
         int pos = kernel.length;
-        kernel = Arrays.copyOf(kernel, kernel.length+c.size());
-        for(E e:c){
-            long newRecid = entryStore.put(e, ser);
-            kernel[pos++] = newRecid;
-        }
-        if(pos!=kernel.length)
-            throw new ConcurrentModificationException();
+        kernel = Arrays.copyOf(kernel, kernel.length+newRecids.length);
+        System.arraycopy(newRecids, 0, kernel, pos, newRecids.length);
         storeKernel(kernel);
         return true;
     }
@@ -110,17 +110,12 @@ public class KernelList<E>
         long[] kernel = getKernel();
         if(index<0 || index>kernel.length)
             throw new IndexOutOfBoundsException();
-        int csize = c.size();
+        long[] newRecids = entryStore.putAll(c, ser);
+        int csize = newRecids.length;
         long[] kernel2 = Arrays.copyOf(kernel, kernel.length+csize);
         System.arraycopy(kernel, index, kernel2, index+csize, kernel.length-index);
         kernel=null; //release memory for GC
-        int pos = index;
-        for(E e:c){
-            long newRecid = entryStore.put(e, ser);
-            kernel2[pos++] = newRecid;
-        }
-        if(pos!=csize+index)
-            throw new ConcurrentModificationException();
+        System.arraycopy(newRecids, 0, kernel2, index, csize);
         storeKernel(kernel2);
         return true;
     }
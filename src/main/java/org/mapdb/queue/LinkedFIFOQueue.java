@@ -0,0 +1,632 @@
+package org.mapdb.queue;
+
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.mapdb.DBException;
+import org.mapdb.io.DataInput2;
+import org.mapdb.io.DataOutput2;
+import org.mapdb.io.DataOutput2ByteArray;
+import org.mapdb.record.Atomic;
+import org.mapdb.ser.Serializer;
+import org.mapdb.ser.Serializers;
+import org.mapdb.store.Store;
+import org.mapdb.util.Exporter;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persistent FIFO {@link BlockingQueue} stored in {@link Store}. It is linked list of nodes,
+ * each node holds one or more elements and recid of next node.
+ *
+ * Head record holds recid of first node, tail record holds recid of preallocated record for next node.
+ * Producers write into preallocated record and move tail, consumers delete first node and move head.
+ * They use separate locks (like {@link java.util.concurrent.LinkedBlockingQueue}) and separate records,
+ * so they do not block each other. If store is not thread safe, single lock is used.
+ *
+ * {@link #addAll(Collection)} and {@link #drainTo(Collection)} handle many elements with few store calls.
+ * Number of elements is kept in memory, it is counted when queue is opened.
+ * Iterator returns snapshot of queue.
+ */
+public class LinkedFIFOQueue<E> extends AbstractQueue<E> implements BlockingQueue<E>, Exporter {
+
+    /** max number of elements in single node, larger batches are split into more nodes */
+    public static final int MAX_NODE_SIZE = 64;
+
+    /** collection type in name catalog and in exported data */
+    public static final String TYPE = "queue";
+
+    public static class Maker<E> {
+        private final Store store;
+        private final long headRecid;
+        private final long tailRecid;
+        private final Serializer<E> ser;
+        private int capacity = Integer.MAX_VALUE;
+
+        public Maker(Store store, long headRecid, long tailRecid, Serializer<E> ser) {
+            this.store = store;
+            this.headRecid = headRecid;
+            this.tailRecid = tailRecid;
+            this.ser = ser;
+        }
+
+        public static <E> Maker<E> newQueue(Store store, Serializer<E> ser) {
+            long next = store.preallocate();
+            long headRecid = store.put(next, Serializers.LONG);
+            long tailRecid = store.put(next, Serializers.LONG);
+            return new Maker<>(store, headRecid, tailRecid, ser);
+        }
+
+        /** capacity is not persisted */
+        public Maker<E> capacity(int capacity){
+            if(capacity<=0)
+                throw new IllegalArgumentException();
+            this.capacity = capacity;
+            return this;
+        }
+
+        public LinkedFIFOQueue<E> make(){
+            return new LinkedFIFOQueue<>(store, headRecid, tailRecid, ser, capacity);
+        }
+    }
+
+    /** node of linked list, next node might not be written yet */
+    static final class Node {
+        final long next;
+        final Object[] values;
+        /** number of elements already taken from this node, those are not serialized */
+        final int start;
+
+        Node(long next, Object[] values, int start) {
+            this.next = next;
+            this.values = values;
+            this.start = start;
+        }
+
+        int size(){
+            return values.length-start;
+        }
+    }
+
+    private final Store store;
+    private final Serializer<E> ser;
+    /** recid of first node */
+    private final Atomic.Long head;
+    /** recid of preallocated record, where next node will be written */
+    private final Atomic.Long tail;
+    private final int capacity;
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    /** deserialized first node, so take does not deserialize it again, guarded by take lock */
+    private Node headNode = null;
+    private long headNodeRecid = 0L;
+
+    private final ReentrantLock takeLock = new ReentrantLock();
+    private final Condition notEmpty = takeLock.newCondition();
+    private final ReentrantLock putLock;
+    private final Condition notFull;
+
+    private final Serializer<Node> nodeSer = new Serializer<Node>() {
+        @Override
+        public void serialize(@NotNull DataOutput2 out, @NotNull Node node) {
+            out.writePackedLong(node.next);
+            out.writePackedInt(node.size());
+            for(int i=node.start; i<node.values.length; i++)
+                ser.serialize(out, (E) node.values[i]);
+        }
+
+        @Override
+        public Node deserialize(@NotNull DataInput2 input) {
+            long next = input.readPackedLong();
+            Object[] values = new Object[input.readPackedInt()];
+            for(int i=0; i<values.length; i++)
+                values[i] = ser.deserialize(input);
+            return new Node(next, values, 0);
+        }
+
+        @Override
+        public @Nullable Class serializedType() {
+            return Node.class;
+        }
+    };
+
+    public LinkedFIFOQueue(Store store, long headRecid, long tailRecid, Serializer<E> ser, int capacity) {
+        if(capacity<=0)
+            throw new IllegalArgumentException();
+        this.store = store;
+        this.ser = ser;
+        this.head = new Atomic.Long(store, headRecid);
+        this.tail = new Atomic.Long(store, tailRecid);
+        this.capacity = capacity;
+        this.putLock = store.isThreadSafe() ? new ReentrantLock() : takeLock;
+        this.notFull = putLock.newCondition();
+
+        int size = 0;
+        for(long recid=head.get(), end=tail.get(); recid!=end; ){
+            Node n = store.get(recid, nodeSer);
+            size += n.size();
+            recid = n.next;
+        }
+        count.set(size);
+    }
+
+    public long getHeadRecid(){
+        return head.getRecid();
+    }
+
+    public long getTailRecid(){
+        return tail.getRecid();
+    }
+
+    private void signalNotEmpty(){
+        takeLock.lock();
+        try{
+            notEmpty.signal();
+        }finally {
+            takeLock.unlock();
+        }
+    }
+
+    private void signalNotFull(){
+        putLock.lock();
+        try{
+            notFull.signal();
+        }finally {
+            putLock.unlock();
+        }
+    }
+
+    /** writes elements at end of queue, must hold put lock */
+    private void enqueue(Object[] values, int from, int to){
+        int nodeCount = (to-from+MAX_NODE_SIZE-1)/MAX_NODE_SIZE;
+        long[] next = new long[nodeCount];
+        store.preallocate(next);
+        //nodes are written from last to first, tail record is written last,
+        //so if serialization fails, queue stays unchanged and tail record stays preallocated
+        for(int i=nodeCount-1; i>=0; i--){
+            int start = from+i*MAX_NODE_SIZE;
+            Object[] nodeValues = Arrays.copyOfRange(values, start, Math.min(to, start+MAX_NODE_SIZE));
+            long recid = i==0 ? tail.get() : next[i-1];
+            store.preallocatePut(recid, nodeSer, new Node(next[i], nodeValues, 0));
+        }
+        tail.set(next[nodeCount-1]);
+    }
+
+    /** returns node from cache or store, must hold take lock */
+    private Node node(long recid){
+        if(headNode==null || headNodeRecid!=recid){
+            headNode = store.get(recid, nodeSer);
+            headNodeRecid = recid;
+        }
+        return headNode;
+    }
+
+    /** removes first element, must hold take lock and queue must not be empty */
+    private E dequeue(){
+        while(true){
+            long recid = head.get();
+            Node n = node(recid);
+            if(n.size()<=1){
+                //head is moved first, crash before delete leaves orphan record, not dangling head
+                head.set(n.next);
+                headNode = null;
+                store.delete(recid, nodeSer);
+                if(n.size()==0)
+                    continue; //all elements were removed by remove(Object)
+            }else{
+                headNode = new Node(n.next, n.values, n.start+1);
+                store.update(recid, nodeSer, headNode);
+            }
+            return (E) n.values[n.start];
+        }
+    }
+
+    private void fullyLock(){
+        putLock.lock();
+        takeLock.lock();
+    }
+
+    private void fullyUnlock(){
+        takeLock.unlock();
+        putLock.unlock();
+    }
+
+    @Override
+    public int size() {
+        return count.get();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - count.get();
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        if(e==null)
+            throw new NullPointerException();
+        int c;
+        putLock.lockInterruptibly();
+        try{
+            while(count.get()==capacity)
+                notFull.await();
+            enqueue(new Object[]{e}, 0, 1);
+            c = count.getAndIncrement();
+            if(c+1<capacity)
+                notFull.signal();
+        }finally {
+            putLock.unlock();
+        }
+        if(c==0)
+            signalNotEmpty();
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        if(e==null)
+            throw new NullPointerException();
+        long nanos = unit.toNanos(timeout);
+        int c;
+        putLock.lockInterruptibly();
+        try{
+            while(count.get()==capacity){
+                if(nanos<=0L)
+                    return false;
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(new Object[]{e}, 0, 1);
+            c = count.getAndIncrement();
+            if(c+1<capacity)
+                notFull.signal();
+        }finally {
+            putLock.unlock();
+        }
+        if(c==0)
+            signalNotEmpty();
+        return true;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if(e==null)
+            throw new NullPointerException();
+        if(count.get()==capacity)
+            return false;
+        int c = -1;
+        putLock.lock();
+        try{
+            if(count.get()<capacity){
+                enqueue(new Object[]{e}, 0, 1);
+                c = count.getAndIncrement();
+                if(c+1<capacity)
+                    notFull.signal();
+            }
+        }finally {
+            putLock.unlock();
+        }
+        if(c==0)
+            signalNotEmpty();
+        return c>=0;
+    }
+
+    /** elements are written in batches, if queue does not have space for all elements, it adds what fits and throws exception */
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+        if(c==this)
+            throw new IllegalArgumentException();
+        Object[] values = c.toArray();
+        for(Object value:values){
+            if(value==null)
+                throw new NullPointerException();
+        }
+        if(values.length==0)
+            return false;
+        int added;
+        int oldCount;
+        putLock.lock();
+        try{
+            added = Math.min(values.length, capacity-count.get());
+            if(added>0)
+                enqueue(values, 0, added);
+            oldCount = count.getAndAdd(added);
+            if(oldCount+added<capacity)
+                notFull.signal();
+        }finally {
+            putLock.unlock();
+        }
+        if(oldCount==0 && added>0)
+            signalNotEmpty();
+        if(added<values.length)
+            throw new IllegalStateException("Queue full");
+        return true;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E x;
+        int c;
+        takeLock.lockInterruptibly();
+        try{
+            while(count.get()==0)
+                notEmpty.await();
+            x = dequeue();
+            c = count.getAndDecrement();
+            if(c>1)
+                notEmpty.signal();
+        }finally {
+            takeLock.unlock();
+        }
+        if(c==capacity)
+            signalNotFull();
+        return x;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E x;
+        int c;
+        long nanos = unit.toNanos(timeout);
+        takeLock.lockInterruptibly();
+        try{
+            while(count.get()==0){
+                if(nanos<=0L)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            x = dequeue();
+            c = count.getAndDecrement();
+            if(c>1)
+                notEmpty.signal();
+        }finally {
+            takeLock.unlock();
+        }
+        if(c==capacity)
+            signalNotFull();
+        return x;
+    }
+
+    @Override
+    public E poll() {
+        if(count.get()==0)
+            return null;
+        E x = null;
+        int c = -1;
+        takeLock.lock();
+        try{
+            if(count.get()>0){
+                x = dequeue();
+                c = count.getAndDecrement();
+                if(c>1)
+                    notEmpty.signal();
+            }
+        }finally {
+            takeLock.unlock();
+        }
+        if(c==capacity)
+            signalNotFull();
+        return x;
+    }
+
+    @Override
+    public E peek() {
+        if(count.get()==0)
+            return null;
+        takeLock.lock();
+        try{
+            if(count.get()==0)
+                return null;
+            for(long recid=head.get(); ; ){
+                Node n = node(recid);
+                if(n.size()>0)
+                    return (E) n.values[n.start];
+                recid = n.next;
+            }
+        }finally {
+            takeLock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /** removed nodes are deleted with single store call */
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if(c==null)
+            throw new NullPointerException();
+        if(c==this)
+            throw new IllegalArgumentException();
+        if(maxElements<=0)
+            return 0;
+        List<E> drained = new ArrayList<>();
+        int oldCount;
+        takeLock.lock();
+        try{
+            int n = Math.min(maxElements, count.get());
+            LongArrayList deleted = new LongArrayList();
+            long recid = head.get();
+            while(drained.size()<n){
+                Node node = node(recid);
+                int take = Math.min(node.size(), n-drained.size());
+                for(int i=0; i<take; i++)
+                    drained.add((E) node.values[node.start+i]);
+                if(take==node.size()){
+                    deleted.add(recid);
+                    recid = node.next;
+                }else{
+                    headNode = new Node(node.next, node.values, node.start+take);
+                    store.update(recid, nodeSer, headNode);
+                }
+            }
+            //head is moved before nodes are deleted, recids of deleted nodes might be reused
+            head.set(recid);
+            if(headNodeRecid!=recid)
+                headNode = null;
+            if(!deleted.isEmpty())
+                store.deleteAll(deleted.toArray(), nodeSer);
+            oldCount = count.getAndAdd(-n);
+        }finally {
+            takeLock.unlock();
+        }
+        if(oldCount==capacity && !drained.isEmpty())
+            signalNotFull();
+        c.addAll(drained);
+        return drained.size();
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if(o==null)
+            return false;
+        fullyLock();
+        try{
+            for(long recid=head.get(), end=tail.get(); recid!=end; ){
+                Node n = store.get(recid, nodeSer);
+                for(int i=0; i<n.values.length; i++){
+                    if(!o.equals(n.values[i]))
+                        continue;
+                    //node might become empty, it is deleted when it reaches head
+                    Object[] values = new Object[n.values.length-1];
+                    System.arraycopy(n.values, 0, values, 0, i);
+                    System.arraycopy(n.values, i+1, values, i, values.length-i);
+                    store.update(recid, nodeSer, new Node(n.next, values, 0));
+                    headNode = null;
+                    if(count.getAndDecrement()==capacity)
+                        notFull.signal();
+                    return true;
+                }
+                recid = n.next;
+            }
+            return false;
+        }finally {
+            fullyUnlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if(o==null)
+            return false;
+        for(Object e:toArray()){
+            if(o.equals(e))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void clear() {
+        fullyLock();
+        try{
+            LongArrayList deleted = new LongArrayList();
+            long end = tail.get();
+            for(long recid=head.get(); recid!=end; recid = store.get(recid, nodeSer).next)
+                deleted.add(recid);
+            if(!deleted.isEmpty())
+                store.deleteAll(deleted.toArray(), nodeSer);
+            head.set(end);
+            headNode = null;
+            if(count.getAndSet(0)==capacity)
+                notFull.signal();
+        }finally {
+            fullyUnlock();
+        }
+    }
+
+    @Override
+    public Object[] toArray() {
+        fullyLock();
+        try{
+            Object[] ret = new Object[count.get()];
+            int pos = 0;
+            for(long recid=head.get(), end=tail.get(); recid!=end; ){
+                Node n = store.get(recid, nodeSer);
+                System.arraycopy(n.values, 0, ret, pos, n.values.length);
+                pos += n.values.length;
+                recid = n.next;
+            }
+            return ret;
+        }finally {
+            fullyUnlock();
+        }
+    }
+
+    @Override
+    public <T> T[] toArray(T[] a) {
+        Object[] values = toArray();
+        if(a.length<values.length)
+            a = (T[]) java.lang.reflect.Array.newInstance(a.getClass().getComponentType(), values.length);
+        System.arraycopy(values, 0, a, 0, values.length);
+        if(a.length>values.length)
+            a[values.length] = null;
+        return a;
+    }
+
+    /** iterates over snapshot of queue, {@link Iterator#remove()} removes first equal element */
+    @NotNull
+    @Override
+    public Iterator<E> iterator() {
+        final Object[] values = toArray();
+        return new Iterator<E>() {
+            int pos = 0;
+            boolean removable = false;
+
+            @Override
+            public boolean hasNext() {
+                return pos<values.length;
+            }
+
+            @Override
+            public E next() {
+                if(pos>=values.length)
+                    throw new NoSuchElementException();
+                removable = true;
+                return (E) values[pos++];
+            }
+
+            @Override
+            public void remove() {
+                if(!removable)
+                    throw new IllegalStateException();
+                removable = false;
+                LinkedFIFOQueue.this.remove(values[pos-1]);
+            }
+        };
+    }
+
+    /** exported data start with collection type and serializer class, so they can be imported without configuration */
+    @Override
+    public void exportToDataOutput2(@NotNull DataOutput2ByteArray output) {
+        Object[] values = toArray();
+        output.writeUTF(TYPE);
+        output.writeUTF(ser.getClass().getName());
+        output.writePackedInt(values.length);
+        for(Object value:values)
+            ser.serialize(output, (E) value);
+    }
+
+    /** adds elements exported by {@link #exportToDataOutput2(DataOutput2ByteArray)} */
+    public void importFromDataInput2(@NotNull DataInput2 input){
+        if(!TYPE.equals(input.readUTF()))
+            throw new DBException.WrongConfig("exported data are not queue");
+        if(!ser.getClass().getName().equals(input.readUTF()))
+            throw new DBException.WrongSerializer();
+        int size = input.readPackedInt();
+        List<E> batch = new ArrayList<>();
+        for(int i=0; i<size; i++){
+            batch.add(ser.deserialize(input));
+            if(batch.size()==MAX_NODE_SIZE*16 || i==size-1){
+                addAll(batch);
+                batch.clear();
+            }
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package org.mapdb.ser;
 
+import org.mapdb.DBException;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.Date;
@@ -54,6 +58,25 @@ public final class SerializerUtils {
         return SERIALIZER_FOR_CLASS.get(clazz);
     }
 
+    /**
+     * Returns serializer for its class name, used to reopen collections from name catalog.
+     * Instances from {@link Serializers} are reused, other serializers need public no-arg constructor.
+     */
+    public static <R> Serializer<R> serializerForClassName(String className){
+        try {
+            for(Field f:Serializers.class.getFields()){
+                if(!Modifier.isStatic(f.getModifiers()) || !Serializer.class.isAssignableFrom(f.getType()))
+                    continue;
+                Object ser = f.get(null);
+                if(ser!=null && ser.getClass().getName().equals(className))
+                    return (Serializer<R>) ser;
+            }
+            return (Serializer<R>) Class.forName(className).getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new DBException.WrongConfig("Could not instantiate serializer: "+className);
+        }
+    }
+
     public static int compareInt(int x, int y) {
         return (x < y) ? -1 : ((x == y) ? 0 : 1);
     }
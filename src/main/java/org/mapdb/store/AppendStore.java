@@ -0,0 +1,1000 @@
+package org.mapdb.store;
+
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
+import org.eclipse.collections.impl.map.mutable.primitive.LongLongHashMap;
+import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+import org.jetbrains.annotations.NotNull;
+import org.mapdb.DBException;
+import org.mapdb.io.DataIO;
+import org.mapdb.io.DataInput2ByteArray;
+import org.mapdb.ser.Serializer;
+import org.mapdb.ser.Serializers;
+import org.mapdb.util.IO;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Log-structured store. All modifications are appended sequentially at end of log, which is split into segment files.
+ * Segments are never modified once written, so log can be replicated by shipping files.
+ *
+ * Index which maps recids to log locations and record sizes is kept on heap. It is periodically saved into index
+ * snapshot file, on open the snapshot is loaded and only the log written after the snapshot is replayed.
+ * Index is split into parts, snapshot shares the parts with live index while it is written into file,
+ * and writers copy shared part before they modify it.
+ *
+ * Background thread rewrites segments with small ratio of live records: live records are appended at end of log,
+ * new index snapshot is saved and old segment file is deleted.
+ *
+ * {@link #commit()} syncs the log, all records written before commit become durable.
+ */
+public class AppendStore implements Store {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64*1024*1024;
+    public static final long DEFAULT_SNAPSHOT_SIZE = 16*1024*1024;
+    public static final long DEFAULT_GC_INTERVAL = 1000;
+    public static final double DEFAULT_GC_LIVE_RATIO = 0.5;
+
+    protected static final long SEGMENT_MAGIC = 0x4D61704442536567L;
+    protected static final long INDEX_MAGIC = 0x4D61704442496479L;
+
+    /** segment starts with magic and segment number */
+    protected static final int SEGMENT_HEAD = 16;
+    /** record starts with recid, size and checksum */
+    protected static final int REC_HEAD = 16;
+    protected static final int SIZE_PREALLOC = -1;
+    protected static final int SIZE_DELETED = -2;
+
+    /** location is segment number in upper bits and offset within segment */
+    protected static final int OFFSET_BITS = 40;
+    protected static final long OFFSET_MASK = (1L<<OFFSET_BITS)-1;
+    /** location of preallocated record, segment offset is never zero */
+    protected static final long LOC_PREALLOC = 0L;
+    protected static final long LOC_NONE = -1L;
+
+    protected final File file;
+    protected final long segmentSize;
+    protected final long snapshotSize;
+    protected final double gcLiveRatio;
+
+    protected final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** number of index parts, recid selects part by its lowest bits */
+    protected static final int INDEX_PARTS = 256;
+
+    /**
+     * Part of index. It is shared with index snapshot while the snapshot is saved,
+     * shared part is copied before it is modified.
+     */
+    protected static final class IndexPart{
+        /** maps recid to record location */
+        final LongLongHashMap locs;
+        /** record sizes, so live bytes of replaced record are released without reading log */
+        final LongIntHashMap sizes;
+        /** true if part is referenced by snapshot which is being saved, access requires write lock */
+        boolean shared = false;
+
+        IndexPart(){
+            locs = new LongLongHashMap();
+            sizes = new LongIntHashMap();
+        }
+
+        IndexPart(IndexPart p){
+            locs = new LongLongHashMap(p.locs);
+            sizes = new LongIntHashMap(p.sizes);
+        }
+    }
+
+    protected final IndexPart[] index = new IndexPart[INDEX_PARTS];
+    protected final RecidAllocator recids = new RecidAllocator();
+
+    /** open segment files */
+    protected final LongObjectHashMap<FileChannel> segments = new LongObjectHashMap<>();
+    /** bytes used by live records in each segment */
+    protected final LongLongHashMap segmentLive = new LongLongHashMap();
+
+    /** segment where log is appended */
+    protected long segment;
+    protected FileChannel channel;
+    protected long segmentEnd;
+
+    /** log bytes written since last index snapshot */
+    protected volatile long snapshotLag;
+    /** first segment which is not covered by last index snapshot */
+    protected volatile long snapshotSegment;
+
+    /** serializes index snapshots and segment rewrites */
+    protected final Object snapshotLock = new Object();
+    protected final Object gcLock = new Object();
+    protected final Thread gc;
+    protected volatile boolean gcStop = false;
+    protected volatile boolean closed = false;
+
+    public AppendStore(File file) {
+        this(file, DEFAULT_SEGMENT_SIZE, DEFAULT_SNAPSHOT_SIZE, DEFAULT_GC_INTERVAL, DEFAULT_GC_LIVE_RATIO);
+    }
+
+    /**
+     * @param file index snapshot file, segment files are named after this file with numeric suffix
+     * @param segmentSize new segment is started when current segment gets larger
+     * @param snapshotSize index snapshot is saved when log grows by this size since last snapshot
+     * @param gcInterval interval in milliseconds between background snapshots and segment rewrites,
+     *                   zero disables background thread and snapshot is saved in {@link #commit()}
+     * @param gcLiveRatio segment is rewritten when ratio of its live records drops bellow this value
+     */
+    public AppendStore(File file, long segmentSize, long snapshotSize, long gcInterval, double gcLiveRatio) {
+        this.file = file;
+        this.segmentSize = segmentSize;
+        this.snapshotSize = snapshotSize;
+        this.gcLiveRatio = gcLiveRatio;
+        for(int i=0;i<INDEX_PARTS;i++)
+            index[i] = new IndexPart();
+
+        lock.writeLock().lock();
+        try{
+            replay();
+        }finally {
+            lock.writeLock().unlock();
+        }
+
+        if(gcInterval>0){
+            gc = new Thread(() -> {
+                while(!gcStop){
+                    synchronized (gcLock){
+                        try {
+                            gcLock.wait(gcInterval);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if(gcStop)
+                        return;
+                    if(snapshotLag>snapshotSize)
+                        snapshot();
+                    gc(gcLiveRatio);
+                }
+            }, "MapDB append GC");
+            gc.setDaemon(true);
+            gc.start();
+        }else{
+            gc = null;
+        }
+    }
+
+    protected File segmentFile(long segment){
+        return new File(file.getPath()+"."+segment);
+    }
+
+    protected static long location(long segment, long offset){
+        return (segment<<OFFSET_BITS) | offset;
+    }
+
+    protected static long locSegment(long loc){
+        return loc>>>OFFSET_BITS;
+    }
+
+    protected static long locOffset(long loc){
+        return loc & OFFSET_MASK;
+    }
+
+    protected IndexPart part(long recid){
+        return index[(int) (recid & (INDEX_PARTS-1))];
+    }
+
+    protected long indexGet(long recid){
+        return part(recid).locs.getIfAbsent(recid, LOC_NONE);
+    }
+
+    /** updates location and size of record, releases live bytes of its previous location */
+    protected void indexPut(long recid, long loc, int size){
+        assert(lock.isWriteLockedByCurrentThread());
+        final int i = (int) (recid & (INDEX_PARTS-1));
+        IndexPart p = index[i];
+        if(p.shared){
+            //snapshot is being saved from this part
+            p = new IndexPart(p);
+            index[i] = p;
+        }
+        long old = p.locs.getIfAbsent(recid, LOC_NONE);
+        if(old!=LOC_NONE && old!=LOC_PREALLOC)
+            segmentLive.addToValue(locSegment(old), -(REC_HEAD+p.sizes.get(recid)));
+        if(size==SIZE_DELETED){
+            p.locs.remove(recid);
+            p.sizes.remove(recid);
+        }else if(size==SIZE_PREALLOC){
+            p.locs.put(recid, LOC_PREALLOC);
+            p.sizes.remove(recid);
+        }else{
+            p.locs.put(recid, loc);
+            p.sizes.put(recid, size);
+        }
+    }
+
+    /** sorted recids of all records, including preallocated */
+    protected long[] indexRecids(){
+        LongArrayList ret = new LongArrayList();
+        for(IndexPart p:index)
+            ret.addAll(p.locs.keySet());
+        long[] all = ret.toArray();
+        Arrays.sort(all);
+        return all;
+    }
+
+    protected static int checksum(long recid, int size, byte[] data){
+        CRC32 crc = new CRC32();
+        byte[] head = new byte[12];
+        DataIO.putLong(head, 0, recid);
+        DataIO.putInt(head, 8, size);
+        crc.update(head);
+        if(data!=null)
+            crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    protected static void readFully(FileChannel ch, ByteBuffer b, long offset) throws IOException {
+        while(b.remaining()>0){
+            int read = ch.read(b, offset);
+            if(read<0)
+                throw new EOFException();
+            offset+=read;
+        }
+        b.flip();
+    }
+
+    protected FileChannel openSegment(long segment, boolean create) throws IOException {
+        FileChannel ch = create ?
+                FileChannel.open(segmentFile(segment).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING):
+                FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(segment, ch);
+        return ch;
+    }
+
+    /** loads index snapshot and replays log written after it */
+    protected void replay(){
+        try {
+            long tailSegment = 1;
+            long tailOffset = SEGMENT_HEAD;
+            long[] allocator = new long[]{0L};
+
+            if(file.exists() && file.length()>0) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                    if (IO.readLong(in) != INDEX_MAGIC)
+                        throw new DBException.DataCorruption("wrong index snapshot header");
+                    tailSegment = IO.readLong(in);
+                    tailOffset = IO.readLong(in);
+                    int segCount = IO.readInt(in);
+                    for (int i = 0; i < segCount; i++) {
+                        long seg = IO.readLong(in);
+                        segmentLive.put(seg, IO.readLong(in));
+                        if (seg < tailSegment)
+                            openSegment(seg, false);
+                    }
+                    allocator = new long[IO.readInt(in)];
+                    for (int i = 0; i < allocator.length; i++)
+                        allocator[i] = IO.readLong(in);
+                    long indexSize = IO.readLong(in);
+                    for (long i = 0; i < indexSize; i++) {
+                        long recid = IO.readLong(in);
+                        long loc = IO.readLong(in);
+                        int size = IO.readInt(in);
+                        part(recid).locs.put(recid, loc);
+                        if(loc!=LOC_PREALLOC)
+                            part(recid).sizes.put(recid, size);
+                    }
+                }
+            }
+            snapshotSegment = tailSegment;
+            deleteOrphans(tailSegment);
+
+            long maxRecid = allocator[0];
+            LongHashSet free = new LongHashSet();
+            for(int i=1;i<allocator.length;i++)
+                free.add(allocator[i]);
+
+            long seg = tailSegment;
+            long offset = tailOffset;
+            while(segmentFile(seg).exists()){
+                FileChannel ch = openSegment(seg, false);
+                long size = ch.size();
+                boolean last = !segmentFile(seg+1).exists();
+                ByteBuffer head = ByteBuffer.allocate(REC_HEAD);
+                while(offset+REC_HEAD<=size){
+                    head.clear();
+                    readFully(ch, head, offset);
+                    long recid = head.getLong();
+                    int recSize = head.getInt();
+                    int crc = head.getInt();
+                    if(recid<=0 || recSize<SIZE_DELETED || offset+REC_HEAD+Math.max(0, recSize)>size)
+                        break;
+                    byte[] data = null;
+                    if(recSize>=0){
+                        ByteBuffer b = ByteBuffer.allocate(recSize);
+                        readFully(ch, b, offset+REC_HEAD);
+                        data = b.array();
+                    }
+                    if(crc!=checksum(recid, recSize, data))
+                        break;
+
+                    maxRecid = Math.max(maxRecid, recid);
+                    indexPut(recid, location(seg, offset), recSize);
+                    if(recSize==SIZE_DELETED){
+                        free.add(recid);
+                    }else{
+                        free.remove(recid);
+                        if(recSize>=0)
+                            segmentLive.addToValue(seg, REC_HEAD+recSize);
+                    }
+                    offset += REC_HEAD+Math.max(0, recSize);
+                }
+                if(offset<size){
+                    if(!last)
+                        throw new DBException.DataCorruption("broken record in log segment "+seg);
+                    //incomplete write, was not synced
+                    ch.truncate(offset);
+                }
+                snapshotLag += offset;
+                segment = seg;
+                channel = ch;
+                segmentEnd = offset;
+                seg++;
+                offset = SEGMENT_HEAD;
+            }
+
+            if(channel==null)
+                startSegment(tailSegment);
+
+            long[] snapshot = new long[free.size()+1];
+            snapshot[0] = maxRecid;
+            System.arraycopy(free.toArray(), 0, snapshot, 1, free.size());
+            recids.restore(snapshot);
+        }catch(IOException e){
+            throw new IOError(e);
+        }
+    }
+
+    /**
+     * Deletes segment files which are not referenced by index snapshot. Those are left by crash after
+     * {@link #gc(double)} saved new snapshot, but before it deleted rewritten segments.
+     */
+    protected void deleteOrphans(long tailSegment){
+        //snapshot which was not finished
+        new File(file.getPath()+".tmp").delete();
+
+        File[] files = file.getAbsoluteFile().getParentFile().listFiles();
+        if(files==null)
+            return;
+        String prefix = file.getName()+".";
+        for(File f:files){
+            String name = f.getName();
+            if(!name.startsWith(prefix))
+                continue;
+            long seg;
+            try{
+                seg = Long.parseLong(name.substring(prefix.length()));
+            }catch(NumberFormatException e){
+                continue;
+            }
+            if(seg<tailSegment && !segmentLive.containsKey(seg))
+                f.delete();
+        }
+    }
+
+    protected void startSegment(long seg) throws IOException {
+        channel = openSegment(seg, true);
+        segment = seg;
+        ByteBuffer b = ByteBuffer.allocate(SEGMENT_HEAD);
+        b.putLong(SEGMENT_MAGIC).putLong(seg).flip();
+        while(b.remaining()>0)
+            channel.write(b, SEGMENT_HEAD-b.remaining());
+        segmentEnd = SEGMENT_HEAD;
+        segmentLive.getIfAbsentPut(seg, 0L);
+    }
+
+    /** appends record at end of log, returns its location */
+    protected long append(long recid, int size, byte[] data){
+        assert(lock.isWriteLockedByCurrentThread());
+        try {
+            if(segmentEnd>=segmentSize){
+                //finished segments are synced, so only last segment can contain incomplete writes
+                channel.force(false);
+                startSegment(segment+1);
+            }
+            int dataSize = Math.max(0, size);
+            ByteBuffer b = ByteBuffer.allocate(REC_HEAD+dataSize);
+            b.putLong(recid).putInt(size).putInt(checksum(recid, size, data));
+            if(data!=null)
+                b.put(data);
+            b.flip();
+            long offset = segmentEnd;
+            while(b.remaining()>0)
+                segmentEnd += channel.write(b, segmentEnd);
+            snapshotLag += REC_HEAD+dataSize;
+            if(size>=0)
+                segmentLive.addToValue(segment, REC_HEAD+dataSize);
+            return location(segment, offset);
+        }catch(IOException e){
+            throw new IOError(e);
+        }
+    }
+
+    protected byte[] read(long recid, long loc){
+        long seg = locSegment(loc);
+        FileChannel ch = segments.get(seg);
+        if(ch==null)
+            throw new DBException.DataCorruption("log segment not found: "+seg);
+        try {
+            ByteBuffer head = ByteBuffer.allocate(REC_HEAD);
+            readFully(ch, head, locOffset(loc));
+            long recid2 = head.getLong();
+            int size = head.getInt();
+            int crc = head.getInt();
+            if(recid2!=recid || size<0)
+                throw new DBException.DataCorruption("wrong record header in log");
+            ByteBuffer b = ByteBuffer.allocate(size);
+            readFully(ch, b, locOffset(loc)+REC_HEAD);
+            byte[] data = b.array();
+            if(crc!=checksum(recid, size, data))
+                throw new DBException.DataCorruption("record checksum does not match");
+            return data;
+        }catch(IOException e){
+            throw new IOError(e);
+        }
+    }
+
+    protected long checkExists(long recid){
+        long loc = indexGet(recid);
+        if(loc==LOC_NONE)
+            throw new DBException.RecordNotFound();
+        if(loc==LOC_PREALLOC)
+            throw new DBException.PreallocRecordAccess();
+        return loc;
+    }
+
+    protected void checkOpen(){
+        if(closed)
+            throw new DBException.StoreClosed();
+    }
+
+    protected void write(long recid, int size, byte[] data){
+        assert(lock.isWriteLockedByCurrentThread());
+        long loc = append(recid, size, data);
+        indexPut(recid, loc, size);
+    }
+
+    protected static <R> byte[] serialize(Serializer<R> serializer, R record){
+        if(record == null)
+            throw new NullPointerException();
+        return Serializers.serializeToByteArray(record, serializer);
+    }
+
+    protected static <R> R deser(Serializer<R> serializer, byte[] data){
+        return serializer.deserialize(new DataInput2ByteArray(data));
+    }
+
+    @Override
+    public long preallocate() {
+        lock.writeLock().lock();
+        try{
+            checkOpen();
+            long recid = recids.allocate();
+            write(recid, SIZE_PREALLOC, null);
+            return recid;
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public <R> void preallocatePut(long recid, @NotNull Serializer<R> serializer, @NotNull R record) {
+        byte[] data = serialize(serializer, record);
+        lock.writeLock().lock();
+        try{
+            checkOpen();
+            if(indexGet(recid)!=LOC_PREALLOC)
+                throw new DBException.RecordNotPreallocated();
+            write(recid, data.length, data);
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public <R> @NotNull long put(@NotNull R record, @NotNull Serializer<R> serializer) {
+        byte[] data = serialize(serializer, record);
+        lock.writeLock().lock();
+        try{
+            checkOpen();
+            long recid = recids.allocate();
+            write(recid, data.length, data);
+            return recid;
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public <R> void update(long recid, @NotNull Serializer<R> serializer, @NotNull R updatedRecord) {
+        byte[] data = serialize(serializer, updatedRecord);
+        lock.writeLock().lock();
+        try{
+            checkOpen();
+            checkExists(recid);
+            write(recid, data.length, data);
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public <R> @NotNull R getAndUpdate(long recid, @NotNull Serializer<R> serializer, @NotNull R updatedRecord) {
+        byte[] data = serialize(serializer, updatedRecord);
+        byte[] old;
+        lock.writeLock().lock();
+        try{
+            checkOpen();
+            old = read(recid, checkExists(recid));
+            write(recid, data.length, data);
+        }finally {
+            lock.writeLock().unlock();
+        }
+        return deser(serializer, old);
+    }
+
+    @Override
+    public <R> @NotNull R updateAndGet(long recid, @NotNull Serializer<R> serializer, @NotNull Transform<R> t) {
+        lock.writeLock().lock();
+        try{
+            checkOpen();
+            R rec = t.transform(deser(serializer, read(recid, checkExists(recid))));
+            byte[] data = serialize(serializer, rec);
+            write(recid, data.length, data);
+            return rec;
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public <R> @NotNull R getAndUpdateAtomic(long recid, @NotNull Serializer<R> serializer, @NotNull Transform<R> t) {
+        lock.writeLock().lock();
+        try{
+            checkOpen();
+            R old = deser(serializer, read(recid, checkExists(recid)));
+            byte[] data = serialize(serializer, t.transform(old));
+            write(recid, data.length, data);
+            return old;
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public <R> void updateAtomic(long recid, @NotNull Serializer<R> serializer, @NotNull Transform<R> r) {
+        updateAndGet(recid, serializer, r);
+    }
+
+    @Override
+    public <R> boolean compareAndUpdate(long recid, @NotNull Serializer<R> serializer, @NotNull R expectedOldRecord, @NotNull R updatedRecord) {
+        lock.writeLock().lock();
+        try{
+            checkOpen();
+            R old = deser(serializer, read(recid, checkExists(recid)));
+            if(!serializer.equals(old, expectedOldRecord))
+                return false;
+            byte[] data = serialize(serializer, updatedRecord);
+            write(recid, data.length, data);
+            return true;
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public <R> boolean compareAndDelete(long recid, @NotNull Serializer<R> serializer, @NotNull R expectedOldRecord) {
+        lock.writeLock().lock();
+        try{
+            checkOpen();
+            R old = deser(serializer, read(recid, checkExists(recid)));
+            if(!serializer.equals(old, expectedOldRecord))
+                return false;
+            delete2(recid);
+            return true;
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    protected void delete2(long recid){
+        write(recid, SIZE_DELETED, null);
+        recids.release(recid);
+    }
+
+    @Override
+    public <R> void delete(long recid, @NotNull Serializer<R> serializer) {
+        lock.writeLock().lock();
+        try{
+            checkOpen();
+            checkExists(recid);
+            delete2(recid);
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public <R> @NotNull R getAndDelete(long recid, @NotNull Serializer<R> serializer) {
+        byte[] old;
+        lock.writeLock().lock();
+        try{
+            checkOpen();
+            old = read(recid, checkExists(recid));
+            delete2(recid);
+        }finally {
+            lock.writeLock().unlock();
+        }
+        return deser(serializer, old);
+    }
+
+    @Override
+    public <K> @NotNull K get(long recid, @NotNull Serializer<K> ser) {
+        byte[] data;
+        lock.readLock().lock();
+        try{
+            checkOpen();
+            data = read(recid, checkExists(recid));
+        }finally {
+            lock.readLock().unlock();
+        }
+        return deser(ser, data);
+    }
+
+    @Override
+    public void getAll(@NotNull GetAllCallback callback) {
+        lock.readLock().lock();
+        try{
+            checkOpen();
+            for(long recid:indexRecids()){
+                long loc = indexGet(recid);
+                if(loc!=LOC_PREALLOC)
+                    callback.takeOne(recid, read(recid, loc));
+            }
+        }finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    protected void readRange(long from, long until, ReadAllCallback callback) {
+        lock.readLock().lock();
+        try{
+            checkOpen();
+            for(long recid=from; recid<until; recid++){
+                long loc = indexGet(recid);
+                if(loc!=LOC_NONE && loc!=LOC_PREALLOC)
+                    callback.takeOne(recid, ByteBuffer.wrap(read(recid, loc)).asReadOnlyBuffer());
+            }
+        }finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public <R> @NotNull Spliterator<R> spliterator(@NotNull RecordMapper<R> mapper) {
+        return new RecidSpliterator<>(this::readRange, 1, recids.getMaxRecid()+1, mapper);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        lock.readLock().lock();
+        try{
+            for(IndexPart p:index)
+                if(!p.locs.isEmpty())
+                    return false;
+            return true;
+        }finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** reads all records in parallel, checks their checksums and live bytes in each segment */
+    @Override
+    public VerifyResult verifyIntegrity() {
+        VerifyResult ret = new VerifyResult();
+        lock.readLock().lock();
+        try{
+            checkOpen();
+            //scanning threads only read, writers are blocked by read lock
+            long[] all = indexRecids();
+            LongLongHashMap live = new LongLongHashMap();
+            Arrays.stream(all).parallel().forEach(recid -> {
+                long loc = indexGet(recid);
+                if(loc==LOC_PREALLOC)
+                    return;
+                int size;
+                try {
+                    size = read(recid, loc).length;
+                }catch(DBException e){
+                    ret.error(recid, e.getMessage());
+                    return;
+                }
+                ret.record(size);
+                if(size!=part(recid).sizes.get(recid))
+                    ret.error(recid, "size in index does not match log");
+                synchronized (live){
+                    live.addToValue(locSegment(loc), REC_HEAD+size);
+                }
+            });
+            segmentLive.forEachKeyValue((seg, bytes) -> {
+                if(live.get(seg)!=bytes)
+                    ret.error("segment "+seg+" has "+bytes+" live bytes, but records have "+live.get(seg));
+            });
+        }finally {
+            lock.readLock().unlock();
+        }
+        return ret;
+    }
+
+    /** syncs log */
+    @Override
+    public void commit() {
+        FileChannel ch;
+        lock.readLock().lock();
+        try{
+            checkOpen();
+            ch = channel;
+        }finally {
+            lock.readLock().unlock();
+        }
+        try {
+            ch.force(false);
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+        if(gc==null && snapshotLag>snapshotSize)
+            snapshot();
+    }
+
+    /** saves index snapshot, and rewrites all segments which contain any garbage */
+    @Override
+    public void compact() {
+        snapshot();
+        gc(1.0);
+    }
+
+    /**
+     * Saves index snapshot, so log written before this point does not have to be replayed on reopen.
+     */
+    public void snapshot(){
+        synchronized (snapshotLock){
+            IndexPart[] index2;
+            LongLongHashMap live2;
+            long[] allocator;
+            long tailSegment, tailOffset;
+            FileChannel ch;
+            lock.writeLock().lock();
+            try{
+                if(closed)
+                    return;
+                index2 = shareIndex();
+                live2 = new LongLongHashMap(segmentLive);
+                allocator = recids.snapshot();
+                tailSegment = segment;
+                tailOffset = segmentEnd;
+                ch = channel;
+                snapshotLag = 0;
+            }finally {
+                lock.writeLock().unlock();
+            }
+            saveSnapshot(ch, index2, live2, allocator, tailSegment, tailOffset);
+        }
+    }
+
+    /** returns parts of index for snapshot, those are copied by writers until snapshot is saved */
+    protected IndexPart[] shareIndex(){
+        assert(lock.isWriteLockedByCurrentThread());
+        for(IndexPart p:index)
+            p.shared = true;
+        return index.clone();
+    }
+
+    /** parts which were not copied while snapshot was saved, can be modified in place again */
+    protected void unshareIndex(IndexPart[] index2){
+        lock.writeLock().lock();
+        try{
+            for(int i=0;i<INDEX_PARTS;i++){
+                if(index[i]==index2[i])
+                    index[i].shared = false;
+            }
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** writes snapshot into file, it is called without lock, shared index parts are not modified */
+    protected void saveSnapshot(FileChannel ch, IndexPart[] index2, LongLongHashMap live2, long[] allocator,
+                                long tailSegment, long tailOffset){
+        try {
+            saveSnapshot2(ch, index2, live2, allocator, tailSegment, tailOffset);
+        }finally {
+            unshareIndex(index2);
+        }
+    }
+
+    protected void saveSnapshot2(FileChannel ch, IndexPart[] index2, LongLongHashMap live2, long[] allocator,
+                                long tailSegment, long tailOffset){
+        try {
+            //snapshot refers to log, it must be durable first
+            ch.force(false);
+
+            File tmp = new File(file.getPath()+".tmp");
+            try(FileOutputStream fout = new FileOutputStream(tmp)){
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout));
+                IO.writeLong(out, INDEX_MAGIC);
+                IO.writeLong(out, tailSegment);
+                IO.writeLong(out, tailOffset);
+                IO.writeInt(out, live2.size());
+                for(long seg:live2.keySet().toSortedArray()) {
+                    IO.writeLong(out, seg);
+                    IO.writeLong(out, live2.get(seg));
+                }
+                IO.writeInt(out, allocator.length);
+                for(long recid:allocator)
+                    IO.writeLong(out, recid);
+                long indexSize = 0;
+                for(IndexPart p:index2)
+                    indexSize += p.locs.size();
+                IO.writeLong(out, indexSize);
+                for(IndexPart p:index2) {
+                    for (long recid : p.locs.keySet().toSortedArray()) {
+                        IO.writeLong(out, recid);
+                        IO.writeLong(out, p.locs.get(recid));
+                        IO.writeInt(out, p.sizes.get(recid));
+                    }
+                }
+                out.flush();
+                fout.getFD().sync();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            snapshotSegment = tailSegment;
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+    }
+
+    /**
+     * Rewrites segments covered by last index snapshot, if ratio of their live records is bellow given value.
+     * Live records are appended at end of log and old segment files are deleted.
+     */
+    protected void gc(double liveRatio){
+        synchronized (snapshotLock){
+            LongHashSet rewrite = new LongHashSet();
+            LongArrayList moved = new LongArrayList();
+            lock.readLock().lock();
+            try{
+                if(closed)
+                    return;
+                for(long seg:segments.keySet().toArray()){
+                    if(seg>=snapshotSegment || seg==segment)
+                        continue;
+                    long size = segments.get(seg).size()-SEGMENT_HEAD;
+                    if(segmentLive.get(seg) < liveRatio*size || size==0)
+                        rewrite.add(seg);
+                }
+                if(rewrite.isEmpty())
+                    return;
+                for(IndexPart p:index) {
+                    p.locs.forEachKeyValue((recid, loc) -> {
+                        if (loc != LOC_PREALLOC && rewrite.contains(locSegment(loc)))
+                            moved.add(recid);
+                    });
+                }
+            } catch (IOException e) {
+                throw new IOError(e);
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            //move live records, in small batches so writers are not blocked for long
+            for(int pos=0; pos<moved.size(); pos+=1024){
+                lock.writeLock().lock();
+                try{
+                    if(closed)
+                        return;
+                    for(int i=pos; i<Math.min(moved.size(), pos+1024); i++){
+                        long recid = moved.get(i);
+                        long loc = indexGet(recid);
+                        if(loc==LOC_NONE || loc==LOC_PREALLOC || !rewrite.contains(locSegment(loc)))
+                            continue; //modified in meantime
+                        byte[] data = read(recid, loc);
+                        write(recid, data.length, data);
+                    }
+                }finally {
+                    lock.writeLock().unlock();
+                }
+            }
+
+            //new snapshot does not refer to old segments, those can be deleted
+            IndexPart[] index2;
+            LongLongHashMap live2;
+            long[] allocator;
+            long tailSegment, tailOffset;
+            FileChannel ch;
+            lock.writeLock().lock();
+            try{
+                if(closed)
+                    return;
+                for(long seg:rewrite.toArray())
+                    segmentLive.remove(seg);
+                index2 = shareIndex();
+                live2 = new LongLongHashMap(segmentLive);
+                allocator = recids.snapshot();
+                tailSegment = segment;
+                tailOffset = segmentEnd;
+                ch = channel;
+                snapshotLag = 0;
+            }finally {
+                lock.writeLock().unlock();
+            }
+            saveSnapshot(ch, index2, live2, allocator, tailSegment, tailOffset);
+
+            lock.writeLock().lock();
+            try{
+                for(long seg:rewrite.toArray()){
+                    segments.remove(seg).close();
+                    segmentFile(seg).delete();
+                }
+            } catch (IOException e) {
+                throw new IOError(e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if(closed)
+            return;
+        if(gc!=null){
+            gcStop = true;
+            synchronized (gcLock){
+                gcLock.notifyAll();
+            }
+            try {
+                gc.join();
+            } catch (InterruptedException e) {
+                throw new DBException.Interrupted(e);
+            }
+        }
+        //save index, so log does not have to be replayed on reopen
+        snapshot();
+        synchronized (snapshotLock) {
+            lock.writeLock().lock();
+            try {
+                closed = true;
+                for (FileChannel ch : segments)
+                    ch.close();
+                segments.clear();
+            } catch (IOException e) {
+                throw new IOError(e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+}
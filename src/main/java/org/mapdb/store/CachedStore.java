@@ -0,0 +1,842 @@
+package org.mapdb.store;
+
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.jetbrains.annotations.NotNull;
+import org.mapdb.DBException;
+import org.mapdb.io.DataInput2ByteArray;
+import org.mapdb.ser.Serializer;
+import org.mapdb.ser.Serializers;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Store which caches serialized records read from wrapped {@link Store}. Cache size is bounded in bytes.
+ *
+ * Eviction uses W-TinyLFU policy. New records enter small LRU window, records evicted from window compete with
+ * victim of main segmented LRU, and the one which was accessed less often according to frequency sketch is evicted.
+ *
+ * Cached data can be stored off-heap in direct buffers, so large cache does not increase GC pauses.
+ * Off-heap memory is bounded by cache size rounded up to 1MB pages.
+ *
+ * Cache hits do not take global lock, those are recorded in lossy read buffers and replayed into eviction policy
+ * in batches.
+ *
+ * Records are read from wrapped store with {@link Serializers#BYTE_ARRAY_NOSIZE}, so wrapped store must keep records
+ * in serialized form. Modifications are passed to wrapped store, and cached record is invalidated.
+ * Cache misses and modifications of the same recid are serialized by lock stripes, so stale record is never cached.
+ */
+public class CachedStore implements Store {
+
+    public static final long DEFAULT_CACHE_SIZE = 32*1024*1024;
+
+    protected static final int STRIPES = 64;
+
+    /** size overhead of single cache entry, used for on-heap entries */
+    protected static final int ENTRY_OVERHEAD = 64;
+
+    protected static final class Node{
+        final long recid;
+        final int size;
+        final int weight;
+        /** on-heap data */
+        byte[] data;
+        /** off-heap data */
+        long address;
+        /** off-heap slot was released, modified under slab lock */
+        boolean released;
+        byte queue;
+        Node prev, next;
+
+        Node(long recid, int size, int weight) {
+            this.recid = recid;
+            this.size = size;
+            this.weight = weight;
+        }
+    }
+
+    protected static final byte WINDOW = 0;
+    protected static final byte PROBATION = 1;
+    protected static final byte PROTECTED = 2;
+    /** node was removed from cache */
+    protected static final byte REMOVED = 3;
+
+    /** intrusive LRU list, head is least recently used */
+    protected static final class Queue{
+        Node head, tail;
+        long weight;
+
+        void add(Node n){
+            n.prev = tail;
+            n.next = null;
+            if(tail==null)
+                head = n;
+            else
+                tail.next = n;
+            tail = n;
+            weight += n.weight;
+        }
+
+        void remove(Node n){
+            if(n.prev==null)
+                head = n.next;
+            else
+                n.prev.next = n.next;
+            if(n.next==null)
+                tail = n.prev;
+            else
+                n.next.prev = n.prev;
+            n.prev = null;
+            n.next = null;
+            weight -= n.weight;
+        }
+    }
+
+    /**
+     * Count-min sketch with 4-bit counters, four counters in single long. Counters are halved
+     * after number of increments reaches sample size, so old popularity fades away.
+     */
+    protected static final class FrequencySketch{
+        static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        static final long RESET_MASK = 0x7777777777777777L;
+
+        final long[] table;
+        final int mask;
+        final int sampleSize;
+        int size;
+
+        FrequencySketch(long maxEntries){
+            int len = (int) Math.min(1<<24, Long.highestOneBit(Math.max(64, maxEntries)-1)<<1);
+            table = new long[len];
+            mask = len-1;
+            sampleSize = 10*len;
+        }
+
+        int frequency(long recid){
+            int ret = Integer.MAX_VALUE;
+            int start = (spread(recid) & 3) << 2;
+            for(int i=0;i<4;i++){
+                int index = indexOf(recid, i);
+                int count = (int) ((table[index] >>> ((start+i)<<2)) & 0xF);
+                ret = Math.min(ret, count);
+            }
+            return ret;
+        }
+
+        void increment(long recid){
+            int start = (spread(recid) & 3) << 2;
+            boolean added = false;
+            for(int i=0;i<4;i++){
+                int index = indexOf(recid, i);
+                int offset = (start+i)<<2;
+                long m = 0xFL << offset;
+                if((table[index] & m) != m){
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if(added && ++size>=sampleSize)
+                reset();
+        }
+
+        void reset(){
+            for(int i=0;i<table.length;i++)
+                table[i] = (table[i]>>>1) & RESET_MASK;
+            size /= 2;
+        }
+
+        int indexOf(long recid, int i){
+            long h = (recid + SEEDS[i]) * SEEDS[i];
+            h += h>>>32;
+            return ((int)h) & mask;
+        }
+
+        static int spread(long recid){
+            long h = recid * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h>>>32));
+        }
+    }
+
+    /**
+     * Off-heap space allocated in slots with power-of-two sizes. Space is split into 1MB pages, number of pages
+     * is bounded by cache size. Each page holds slots of single size, once all its slots are released,
+     * page returns into shared pool and can be reused for other size. Pages are allocated on demand.
+     * <p>
+     * Pages are modified under write lock. Readers copy data optimistically and retry under read lock
+     * if pages were modified in meantime.
+     */
+    protected static final class Slab{
+        static final int PAGE_SHIFT = 20;
+        static final int PAGE_SIZE = 1<<PAGE_SHIFT;
+        static final int MIN_SHIFT = 4;
+        static final int MAX_SIZE = PAGE_SIZE;
+
+        final StampedLock lock = new StampedLock();
+        final ByteBuffer[] pages;
+        /** size class of page, -1 if page is empty */
+        final int[] pageClass;
+        /** number of used slots in page */
+        final int[] pageUsed;
+        /** bitmap of used slots in page */
+        final long[][] pageSlots;
+        /** pages with free slots, one list for each size class */
+        final IntArrayList[] partial = new IntArrayList[PAGE_SHIFT-MIN_SHIFT+1];
+        /** empty pages, shared by all size classes */
+        final IntArrayList empty = new IntArrayList();
+        /** number of pages allocated so far */
+        int allocated = 0;
+
+        Slab(long maxSize){
+            int count = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (maxSize+PAGE_SIZE-1)>>>PAGE_SHIFT));
+            pages = new ByteBuffer[count];
+            pageClass = new int[count];
+            pageUsed = new int[count];
+            pageSlots = new long[count][];
+            for(int i=0;i<partial.length;i++)
+                partial[i] = new IntArrayList();
+        }
+
+        static int sizeClass(int size){
+            int shift = 32-Integer.numberOfLeadingZeros(Math.max(size, 1<<MIN_SHIFT)-1);
+            return shift-MIN_SHIFT;
+        }
+
+        static int slotSize(int size){
+            return 1<<(sizeClass(size)+MIN_SHIFT);
+        }
+
+        static int slotCount(int cls){
+            return PAGE_SIZE>>>(cls+MIN_SHIFT);
+        }
+
+        /** stores data in free slot, returns its address or -1 if all pages are used */
+        long put(byte[] data){
+            final int cls = sizeClass(data.length);
+            final IntArrayList p = partial[cls];
+            long stamp = lock.writeLock();
+            try{
+                if(p.isEmpty()){
+                    int page;
+                    if(!empty.isEmpty()){
+                        page = empty.removeAtIndex(empty.size()-1);
+                    }else if(allocated<pages.length){
+                        page = allocated++;
+                        pages[page] = ByteBuffer.allocateDirect(PAGE_SIZE);
+                    }else{
+                        return -1L;
+                    }
+                    final int slotCount = slotCount(cls);
+                    long[] slots = new long[(slotCount+63)/64];
+                    if(slotCount<64)
+                        slots[0] = -1L<<slotCount; //slots after end of page are never free
+                    pageClass[page] = cls;
+                    pageUsed[page] = 0;
+                    pageSlots[page] = slots;
+                    p.add(page);
+                }
+
+                final int page = p.getLast();
+                final long[] slots = pageSlots[page];
+                int slot = 0;
+                for(int i=0;i<slots.length;i++){
+                    if(slots[i]!=-1L){
+                        int bit = Long.numberOfTrailingZeros(~slots[i]);
+                        slots[i] |= 1L<<bit;
+                        slot = i*64+bit;
+                        break;
+                    }
+                }
+                if(++pageUsed[page]==slotCount(cls))
+                    p.removeAtIndex(p.size()-1);
+
+                final long address = (((long)page)<<PAGE_SHIFT) | (((long)slot)<<(cls+MIN_SHIFT));
+                ByteBuffer b = pages[page].duplicate();
+                b.position(slot<<(cls+MIN_SHIFT));
+                b.put(data);
+                return address;
+            }finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void release(Node n){
+            long stamp = lock.writeLock();
+            try{
+                n.released = true;
+                final int page = (int) (n.address>>>PAGE_SHIFT);
+                final int cls = pageClass[page];
+                final int slot = (int) ((n.address&(PAGE_SIZE-1))>>>(cls+MIN_SHIFT));
+                pageSlots[page][slot>>>6] &= ~(1L<<slot);
+                if(pageUsed[page]--==slotCount(cls))
+                    partial[cls].add(page);
+                if(pageUsed[page]==0){
+                    //return page into shared pool
+                    partial[cls].remove(page);
+                    pageClass[page] = -1;
+                    pageSlots[page] = null;
+                    empty.add(page);
+                }
+            }finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /** returns copy of data, or null if node was released */
+        byte[] get(Node n){
+            long stamp = lock.tryOptimisticRead();
+            if(stamp!=0){
+                try{
+                    boolean released = n.released;
+                    byte[] ret = copy(n.address, n.size);
+                    if(lock.validate(stamp))
+                        return released ? null : ret;
+                }catch(RuntimeException e){
+                    //pages were modified while copying, retry under lock
+                }
+            }
+            stamp = lock.readLock();
+            try{
+                return n.released ? null : copy(n.address, n.size);
+            }finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private byte[] copy(long address, int size){
+            ByteBuffer b = pages[(int) (address>>>PAGE_SHIFT)].duplicate();
+            b.position((int) (address&(PAGE_SIZE-1)));
+            byte[] ret = new byte[size];
+            b.get(ret);
+            return ret;
+        }
+
+        /**
+         * Drops all pages. Direct memory is returned once buffers are garbage collected, buffers are not released
+         * explicitly, since optimistic reader might still be copying from them.
+         */
+        void close(){
+            long stamp = lock.writeLock();
+            try{
+                Arrays.fill(pages, null);
+                Arrays.fill(pageSlots, null);
+                empty.clear();
+                for(IntArrayList p:partial)
+                    p.clear();
+                //no more pages are allocated
+                allocated = pages.length;
+            }finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Lossy buffer of cache hits. Readers record hits without taking {@link #lock}, hits are replayed into
+     * eviction policy under lock, once buffer fills up. Hits are dropped if buffer is full or contended.
+     */
+    protected static final class ReadBuffer{
+        static final int SIZE = 32;
+
+        final AtomicReferenceArray<Node> buffer = new AtomicReferenceArray<>(SIZE);
+        final AtomicLong writeCount = new AtomicLong();
+        /** modified under {@link #lock} */
+        volatile long readCount;
+
+        /** records hit, returns true if buffer should be drained */
+        boolean offer(Node n){
+            final long tail = writeCount.get();
+            final long size = tail-readCount;
+            if(size>=SIZE)
+                return true;
+            if(writeCount.compareAndSet(tail, tail+1))
+                buffer.lazySet((int) (tail&(SIZE-1)), n);
+            return size+1>=SIZE/2;
+        }
+    }
+
+    protected final Store store;
+    protected final long maxSize;
+    protected final long windowMax;
+    protected final long protectedMax;
+
+    /** guards cache structures */
+    protected final ReentrantLock lock = new ReentrantLock();
+    /** serializes cache misses with modifications of the same recid */
+    protected final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    /** modified under lock, read without lock on cache hit */
+    protected final ConcurrentHashMap<Long,Node> nodes = new ConcurrentHashMap<>();
+    protected final Queue window = new Queue();
+    protected final Queue probation = new Queue();
+    protected final Queue protect = new Queue();
+    protected final FrequencySketch sketch;
+    /** null if cache is on-heap */
+    protected final Slab slab;
+    /** selected by thread id, number of buffers is power of two */
+    protected final ReadBuffer[] readBuffers;
+    /** access requires lock */
+    protected boolean closed = false;
+
+    protected final AtomicLong hits = new AtomicLong();
+    protected final AtomicLong misses = new AtomicLong();
+    protected final AtomicLong evictions = new AtomicLong();
+
+    public CachedStore(Store store) {
+        this(store, DEFAULT_CACHE_SIZE, false);
+    }
+
+    /**
+     * @param store wrapped store
+     * @param maxSize max size of cached data in bytes
+     * @param offHeap store cached data in direct buffers
+     */
+    public CachedStore(Store store, long maxSize, boolean offHeap) {
+        if(maxSize<=0)
+            throw new DBException.WrongConfig("cache size must be positive");
+        this.store = store;
+        this.maxSize = maxSize;
+        this.windowMax = Math.max(1, maxSize/100);
+        this.protectedMax = (maxSize-windowMax)*8/10;
+        this.sketch = new FrequencySketch(maxSize/ENTRY_OVERHEAD);
+        this.slab = offHeap ? new Slab(maxSize) : null;
+        for(int i=0;i<STRIPES;i++)
+            stripes[i] = new ReentrantLock();
+        int buffers = Integer.highestOneBit(Math.min(64, Runtime.getRuntime().availableProcessors())*2-1);
+        readBuffers = new ReadBuffer[buffers];
+        for(int i=0;i<buffers;i++)
+            readBuffers[i] = new ReadBuffer();
+    }
+
+    protected ReentrantLock stripe(long recid){
+        return stripes[FrequencySketch.spread(recid) & (STRIPES-1)];
+    }
+
+    /** returns cached record, or null */
+    protected byte[] cacheGet(long recid){
+        Node n = nodes.get(recid);
+        if(n==null)
+            return null;
+        byte[] data = slab==null ? n.data : slab.get(n);
+        if(data==null)
+            return null; //evicted in meantime
+        ReadBuffer b = readBuffers[((int) Thread.currentThread().getId()) & (readBuffers.length-1)];
+        if(b.offer(n) && lock.tryLock()){
+            try{
+                drainReadBuffers();
+            }finally {
+                lock.unlock();
+            }
+        }
+        return data;
+    }
+
+    /** replays recorded hits into eviction policy, must hold lock */
+    protected void drainReadBuffers(){
+        for(ReadBuffer b:readBuffers){
+            final long tail = b.writeCount.get();
+            long head = b.readCount;
+            for(; head<tail; head++){
+                int i = (int) (head&(ReadBuffer.SIZE-1));
+                Node n = b.buffer.get(i);
+                if(n==null)
+                    break; //slot was taken, but hit is not written yet
+                b.buffer.lazySet(i, null);
+                onHit(n);
+            }
+            b.readCount = head;
+        }
+    }
+
+    protected void onHit(Node n){
+        if(n.queue==REMOVED)
+            return;
+        sketch.increment(n.recid);
+        if(n.queue==WINDOW){
+            window.remove(n);
+            window.add(n);
+        }else if(n.queue==PROBATION){
+            probation.remove(n);
+            n.queue = PROTECTED;
+            protect.add(n);
+            while(protect.weight>protectedMax){
+                Node demoted = protect.head;
+                protect.remove(demoted);
+                demoted.queue = PROBATION;
+                probation.add(demoted);
+            }
+        }else{
+            protect.remove(n);
+            protect.add(n);
+        }
+    }
+
+    protected void cachePut(long recid, byte[] data){
+        int weight = slab==null ? data.length+ENTRY_OVERHEAD : Slab.slotSize(data.length);
+        if(weight>maxSize || (slab!=null && data.length>Slab.MAX_SIZE))
+            return; //too large to cache
+        lock.lock();
+        try{
+            if(closed || nodes.containsKey(recid))
+                return;
+            drainReadBuffers();
+            sketch.increment(recid);
+            Node n = new Node(recid, data.length, weight);
+            if(slab==null){
+                n.data = data;
+            }else{
+                long address;
+                while((address = slab.put(data))<0){
+                    //all pages are used, evict until slot or page is released
+                    if(nodes.isEmpty())
+                        return;
+                    evictOne();
+                }
+                n.address = address;
+            }
+            nodes.put(recid, n);
+            n.queue = WINDOW;
+            window.add(n);
+
+            //records evicted from window become candidates in probation queue
+            while(window.weight>windowMax){
+                Node c = window.head;
+                window.remove(c);
+                c.queue = PROBATION;
+                probation.add(c);
+            }
+            evict();
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    protected void evict(){
+        while(window.weight+probation.weight+protect.weight>maxSize)
+            evictOne();
+    }
+
+    protected void evictOne(){
+        Node victim = probation.head;
+        Node candidate = probation.tail;
+        if(victim==null) {
+            victim = protect.head!=null ? protect.head : window.head;
+        }else if(victim!=candidate && sketch.frequency(candidate.recid)<=sketch.frequency(victim.recid)){
+            victim = candidate;
+        }
+        remove(victim);
+        evictions.incrementAndGet();
+    }
+
+    protected void remove(Node n){
+        nodes.remove(n.recid);
+        if(n.queue==WINDOW)
+            window.remove(n);
+        else if(n.queue==PROBATION)
+            probation.remove(n);
+        else
+            protect.remove(n);
+        n.queue = REMOVED;
+        if(slab!=null)
+            slab.release(n);
+    }
+
+    protected void invalidate(long recid){
+        lock.lock();
+        try{
+            Node n = nodes.get(recid);
+            if(n!=null)
+                remove(n);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHitCount(){
+        return hits.get();
+    }
+
+    public long getMissCount(){
+        return misses.get();
+    }
+
+    public long getEvictionCount(){
+        return evictions.get();
+    }
+
+    /** ratio of reads served from cache, between 0 and 1 */
+    public double getHitRate(){
+        long hit = hits.get();
+        long total = hit+misses.get();
+        return total==0 ? 0D : 1D*hit/total;
+    }
+
+    /** size of cached data in bytes */
+    public long getCacheSize(){
+        lock.lock();
+        try{
+            return window.weight+probation.weight+protect.weight;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    protected static <R> R deser(Serializer<R> serializer, byte[] data){
+        return serializer.deserialize(new DataInput2ByteArray(data));
+    }
+
+    @Override
+    public <K> @NotNull K get(long recid, @NotNull Serializer<K> ser) {
+        byte[] data = cacheGet(recid);
+        if(data!=null){
+            hits.incrementAndGet();
+            return deser(ser, data);
+        }
+        misses.incrementAndGet();
+        ReentrantLock s = stripe(recid);
+        s.lock();
+        try{
+            data = store.get(recid, Serializers.BYTE_ARRAY_NOSIZE);
+            cachePut(recid, data);
+        }finally {
+            s.unlock();
+        }
+        return deser(ser, data);
+    }
+
+    @Override
+    public long preallocate() {
+        return store.preallocate();
+    }
+
+    @Override
+    public void preallocate(long[] recids) {
+        store.preallocate(recids);
+    }
+
+    @Override
+    public <R> void preallocatePut(long recid, @NotNull Serializer<R> serializer, @NotNull R record) {
+        ReentrantLock s = stripe(recid);
+        s.lock();
+        try{
+            store.preallocatePut(recid, serializer, record);
+            invalidate(recid);
+        }finally {
+            s.unlock();
+        }
+    }
+
+    @Override
+    public <R> @NotNull long put(@NotNull R record, @NotNull Serializer<R> serializer) {
+        return store.put(record, serializer);
+    }
+
+    @Override
+    public <R> long[] putAll(@NotNull Collection<? extends R> records, @NotNull Serializer<R> serializer) {
+        return store.putAll(records, serializer);
+    }
+
+    @Override
+    public <R> void update(long recid, @NotNull Serializer<R> serializer, @NotNull R updatedRecord) {
+        ReentrantLock s = stripe(recid);
+        s.lock();
+        try{
+            store.update(recid, serializer, updatedRecord);
+            invalidate(recid);
+        }finally {
+            s.unlock();
+        }
+    }
+
+    @Override
+    public <R> @NotNull R getAndUpdate(long recid, @NotNull Serializer<R> serializer, @NotNull R updatedRecord) {
+        ReentrantLock s = stripe(recid);
+        s.lock();
+        try{
+            R ret = store.getAndUpdate(recid, serializer, updatedRecord);
+            invalidate(recid);
+            return ret;
+        }finally {
+            s.unlock();
+        }
+    }
+
+    @Override
+    public <R> @NotNull R updateAndGet(long recid, @NotNull Serializer<R> serializer, @NotNull Transform<R> t) {
+        ReentrantLock s = stripe(recid);
+        s.lock();
+        try{
+            R ret = store.updateAndGet(recid, serializer, t);
+            invalidate(recid);
+            return ret;
+        }finally {
+            s.unlock();
+        }
+    }
+
+    @Override
+    public <R> @NotNull R getAndUpdateAtomic(long recid, @NotNull Serializer<R> serializer, @NotNull Transform<R> t) {
+        ReentrantLock s = stripe(recid);
+        s.lock();
+        try{
+            R ret = store.getAndUpdateAtomic(recid, serializer, t);
+            invalidate(recid);
+            return ret;
+        }finally {
+            s.unlock();
+        }
+    }
+
+    @Override
+    public <R> void updateAtomic(long recid, @NotNull Serializer<R> serializer, @NotNull Transform<R> r) {
+        ReentrantLock s = stripe(recid);
+        s.lock();
+        try{
+            store.updateAtomic(recid, serializer, r);
+            invalidate(recid);
+        }finally {
+            s.unlock();
+        }
+    }
+
+    @Override
+    public <R> boolean compareAndUpdate(long recid, @NotNull Serializer<R> serializer, @NotNull R expectedOldRecord, @NotNull R updatedRecord) {
+        ReentrantLock s = stripe(recid);
+        s.lock();
+        try{
+            boolean ret = store.compareAndUpdate(recid, serializer, expectedOldRecord, updatedRecord);
+            if(ret)
+                invalidate(recid);
+            return ret;
+        }finally {
+            s.unlock();
+        }
+    }
+
+    @Override
+    public <R> boolean compareAndDelete(long recid, @NotNull Serializer<R> serializer, @NotNull R expectedOldRecord) {
+        ReentrantLock s = stripe(recid);
+        s.lock();
+        try{
+            boolean ret = store.compareAndDelete(recid, serializer, expectedOldRecord);
+            if(ret)
+                invalidate(recid);
+            return ret;
+        }finally {
+            s.unlock();
+        }
+    }
+
+    @Override
+    public <R> void delete(long recid, @NotNull Serializer<R> serializer) {
+        ReentrantLock s = stripe(recid);
+        s.lock();
+        try{
+            store.delete(recid, serializer);
+            invalidate(recid);
+        }finally {
+            s.unlock();
+        }
+    }
+
+    @Override
+    public <R> @NotNull R getAndDelete(long recid, @NotNull Serializer<R> serializer) {
+        ReentrantLock s = stripe(recid);
+        s.lock();
+        try{
+            R ret = store.getAndDelete(recid, serializer);
+            invalidate(recid);
+            return ret;
+        }finally {
+            s.unlock();
+        }
+    }
+
+    @Override
+    public void getAll(@NotNull GetAllCallback callback) {
+        store.getAll(callback);
+    }
+
+    @Override
+    public <R> R read(long recid, @NotNull RecordReader<R> reader) {
+        return store.read(recid, reader);
+    }
+
+    @Override
+    public void readAll(@NotNull ReadAllCallback callback) {
+        store.readAll(callback);
+    }
+
+    @Override
+    public <R> @NotNull Spliterator<R> spliterator(@NotNull RecordMapper<R> mapper) {
+        return store.spliterator(mapper);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return store.isEmpty();
+    }
+
+    @Override
+    public void verify() {
+        store.verify();
+    }
+
+    @Override
+    public VerifyResult verifyIntegrity() {
+        return store.verifyIntegrity();
+    }
+
+    @Override
+    public void commit() {
+        store.commit();
+    }
+
+    @Override
+    public void compact() {
+        store.compact();
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return store.isThreadSafe();
+    }
+
+    @Override
+    public int maxRecordSize() {
+        return store.maxRecordSize();
+    }
+
+    /** removes all records from cache */
+    public void clearCache(){
+        lock.lock();
+        try{
+            for(Node n:new ArrayList<>(nodes.values()))
+                remove(n);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try{
+            for(Node n:new ArrayList<>(nodes.values()))
+                remove(n);
+            closed = true;
+            if(slab!=null)
+                slab.close();
+        }finally {
+            lock.unlock();
+        }
+        store.close();
+    }
+}
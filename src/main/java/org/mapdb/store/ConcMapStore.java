@@ -3,31 +3,42 @@ package org.mapdb.store;
 import org.jetbrains.annotations.NotNull;
 import org.mapdb.DBException;
 import org.mapdb.ser.Serializer;
+import org.mapdb.ser.Serializers;
 import org.mapdb.util.MonoRef;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.ByteBuffer;
+import java.util.Map;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.atomic.AtomicLong;
 
 public class ConcMapStore implements Store{
 
     private static final Object PREALLOCATED = 1293091239012L;
 
-    private final ConcurrentNavigableMap<Long, Object> m;
-    private final ConcurrentLinkedQueue<Long> freeRecids = new ConcurrentLinkedQueue<>();
+    /** record instance with serializer it was stored with, serializer is used to produce binary form in {@link #read(long, RecordReader)} */
+    private static final class Rec{
+        final Object val;
+        final Serializer ser;
+
+        Rec(Object val, Serializer ser) {
+            this.val = val;
+            this.ser = ser;
+        }
 
-    private final AtomicLong maxRecid = new AtomicLong(0);
+        byte[] serialize(){
+            return Serializers.serializeToByteArray(val, ser);
+        }
+    }
+
+    private final ConcurrentNavigableMap<Long, Object> m;
+    private final RecidAllocator recids = new RecidAllocator();
 
     public ConcMapStore() {
         this.m = new ConcurrentSkipListMap<>();
     }
 
     private long allocateRecid(){
-        Long recid = freeRecids.poll();
-        if(recid!=null)
-            return recid;
-        return maxRecid.incrementAndGet();
+        return recids.allocate();
     }
 
     @Override
@@ -40,7 +51,7 @@ public class ConcMapStore implements Store{
 
     @Override
     public <R> void preallocatePut(long recid, @NotNull Serializer<R> serializer, @NotNull R record) {
-        boolean updated = m.replace(recid, PREALLOCATED, record);
+        boolean updated = m.replace(recid, PREALLOCATED, new Rec(record, serializer));
         if(!updated)
             throw new DBException.RecordNotPreallocated();
     }
@@ -48,39 +59,46 @@ public class ConcMapStore implements Store{
     @Override
     public <R> @NotNull long put(@NotNull R record, @NotNull Serializer<R> serializer) {
         long recid = allocateRecid();
-        Object old = m.putIfAbsent(recid, record);
+        Object old = m.putIfAbsent(recid, new Rec(record, serializer));
         assert(old==null);
         return recid;
     }
 
     @Override
     public <R> void update(long recid, @NotNull Serializer<R> serializer, @NotNull R updatedRecord) {
-        Object old = m.computeIfPresent(recid, (recid2, oldVal) ->{
-            if(oldVal == PREALLOCATED)
-                throw new DBException.PreallocRecordAccess();
-            return updatedRecord;
-        });
-        if(old==null)
-            throw new DBException.RecordNotFound();
+        getAndUpdate(recid, serializer, updatedRecord);
     }
 
     @Override
     public <R> @NotNull R getAndUpdate(long recid, @NotNull Serializer<R> serializer, @NotNull R updatedRecord) {
-        Object old = m.computeIfPresent(recid, (recid2, oldVal) ->{
+        MonoRef oldVal2 = new MonoRef();
+        Object newVal = m.computeIfPresent(recid, (recid2, oldVal) ->{
             if(oldVal == PREALLOCATED)
                 throw new DBException.PreallocRecordAccess();
-            return updatedRecord;
+            oldVal2.ref = ((Rec)oldVal).val;
+            return new Rec(updatedRecord, serializer);
         });
-        if(old==null)
+        if(newVal==null)
             throw new DBException.RecordNotFound();
-        return (R) old;
+        return (R) oldVal2.ref;
     }
 
+    /** records are kept as instances, there is nothing to verify */
     @Override
     public void verify() {
 
     }
 
+    @Override
+    public VerifyResult verifyIntegrity() {
+        VerifyResult ret = new VerifyResult();
+        for(Object o:m.values()){
+            if(o!=PREALLOCATED)
+                ret.record(0);
+        }
+        return ret;
+    }
+
     @Override
     public void commit() {
 
@@ -102,11 +120,11 @@ public class ConcMapStore implements Store{
             if(oldVal == PREALLOCATED)
                 throw new DBException.PreallocRecordAccess();
 
-            return t.transform((R) oldVal);
+            return new Rec(t.transform((R) ((Rec)oldVal).val), serializer);
         });
         if(newVal == null)
             throw new DBException.RecordNotFound();
-        return (R) newVal;
+        return (R) ((Rec)newVal).val;
     }
 
     @Override
@@ -116,14 +134,15 @@ public class ConcMapStore implements Store{
 
     @Override
     public <R> boolean compareAndUpdate(long recid, @NotNull Serializer<R> serializer, @NotNull R expectedOldRecord, @NotNull R updatedRecord) {
+        Rec updated = new Rec(updatedRecord, serializer);
         Object ret = m.computeIfPresent(recid, (recid2, oldVal) -> {
             if (oldVal == PREALLOCATED)
                 throw new DBException.PreallocRecordAccess();
-            return serializer.equals(expectedOldRecord, (R) oldVal) ? updatedRecord : oldVal;
+            return serializer.equals(expectedOldRecord, (R) ((Rec)oldVal).val) ? updated : oldVal;
         });
         if(ret == null)
             throw new DBException.RecordNotFound();
-        return ret == updatedRecord;
+        return ret == updated;
     }
 
     @Override
@@ -132,7 +151,7 @@ public class ConcMapStore implements Store{
         Object ret = m.computeIfPresent(recid, (recid2, oldVal) -> {
             if (oldVal == PREALLOCATED)
                 throw new DBException.PreallocRecordAccess();
-            if(!serializer.equals(expectedOldRecord, (R) oldVal)){
+            if(!serializer.equals(expectedOldRecord, (R) ((Rec)oldVal).val)){
                 return oldVal;
             }
             deleted.ref = true;
@@ -141,6 +160,8 @@ public class ConcMapStore implements Store{
         });
         if(ret == null && !deleted.ref)
             throw new DBException.RecordNotFound();
+        if(deleted.ref)
+            recids.release(recid);
         return deleted.ref;
     }
 
@@ -160,8 +181,8 @@ public class ConcMapStore implements Store{
         });
         if(oldVal2.ref==null)
             throw new DBException.RecordNotFound();
-        freeRecids.add(recid);
-        return (R) oldVal2.ref;
+        recids.release(recid);
+        return (R) ((Rec)oldVal2.ref).val;
     }
 
     @Override
@@ -170,9 +191,9 @@ public class ConcMapStore implements Store{
         Object newVal =  m.computeIfPresent(recid, (recid2, oldVal) ->{
             if(oldVal == PREALLOCATED)
                 throw new DBException.PreallocRecordAccess();
-            oldVal2.ref = oldVal;
+            oldVal2.ref = ((Rec)oldVal).val;
 
-            return t.transform((R) oldVal);
+            return new Rec(t.transform((R) oldVal2.ref), serializer);
         });
         if(newVal == null)
             throw new DBException.RecordNotFound();
@@ -181,12 +202,16 @@ public class ConcMapStore implements Store{
 
     @Override
     public <K> @NotNull K get(long recid, @NotNull Serializer<K> ser) {
+        return (K) rec(recid).val;
+    }
+
+    private Rec rec(long recid){
         Object old = m.get(recid);
         if(old==null)
             throw new DBException.RecordNotFound();
         if(old==PREALLOCATED)
             throw new DBException.PreallocRecordAccess();
-        return (K) old;
+        return (Rec) old;
     }
 
     @Override
@@ -194,9 +219,23 @@ public class ConcMapStore implements Store{
 
     }
 
+    /** records are not stored in binary form, so this serializes each record; map is sorted so recids come in ascending order */
     @Override
     public void getAll(@NotNull GetAllCallback callback) {
-        throw new UnsupportedOperationException();
+        for(Map.Entry<Long,Object> e:m.entrySet()){
+            if(e.getValue()!=PREALLOCATED)
+                callback.takeOne(e.getKey(), ((Rec)e.getValue()).serialize());
+        }
+    }
+
+    @Override
+    public <R> R read(long recid, @NotNull RecordReader<R> reader) {
+        return reader.read(ByteBuffer.wrap(rec(recid).serialize()).asReadOnlyBuffer());
+    }
+
+    @Override
+    public void readAll(@NotNull ReadAllCallback callback) {
+        getAll((recid, data) -> callback.takeOne(recid, ByteBuffer.wrap(data).asReadOnlyBuffer()));
     }
 
 
@@ -0,0 +1,537 @@
+package org.mapdb.store;
+
+import org.jetbrains.annotations.NotNull;
+import org.mapdb.DBException;
+import org.mapdb.io.DataInput2ByteBuffer;
+import org.mapdb.io.DataOutput2ByteArray;
+import org.mapdb.ser.Serializer;
+
+import java.nio.ByteBuffer;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Serialize-on-write variant of {@link ConcMapStore}. Records are serialized on every write,
+ * so store never shares instances with its callers.
+ *
+ * Serialized records are stored off-heap in direct buffers (chunks). Chunk space is allocated by bumping pointer,
+ * record is never modified in place. Location of each record is in lock-free table of primitive {@code long} pointers.
+ * Recids are dense, so table is indexed directly by recid and grows in pages.
+ *
+ * All modifications compare-and-swap pointer in table, space used by old record is released after successful swap.
+ * Chunk is released when all its records are gone. Reader which still holds released chunk can finish reading,
+ * its data are never overwritten. {@link #compact()} moves records out of sparse chunks, so they can be released.
+ */
+public class ConcMapStoreBinary implements Store {
+
+    protected static final int CHUNK_SIZE = 1<<20;
+
+    protected static final int TABLE_PAGE_SHIFT = 10;
+    protected static final int TABLE_PAGE_SIZE = 1<<TABLE_PAGE_SHIFT;
+    protected static final int TABLE_PAGE_MASK = TABLE_PAGE_SIZE-1;
+
+    /** chunks with smaller ratio of live bytes are evacuated by {@link #compact()} */
+    protected static final double COMPACT_LIVE_RATIO = 0.5;
+
+    /** pointer of preallocated record, zero pointer means there is no record */
+    protected static final long PREALLOC = -1L;
+
+    protected static final class Chunk{
+        final int id;
+        final ByteBuffer buf;
+
+        /** allocation pointer, it grows beyond capacity once chunk is full */
+        final AtomicLong tail = new AtomicLong();
+
+        /** bytes used by live records, including space reserved by unfinished allocations */
+        final AtomicLong live = new AtomicLong();
+
+        Chunk(int id, int size) {
+            this.id = id;
+            this.buf = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    protected final RecidAllocator recids = new RecidAllocator();
+
+    /** maps recid to pointer, pointer is chunk id and offset within chunk */
+    private volatile AtomicLongArray[] table = new AtomicLongArray[0];
+
+    /** chunks by id, released chunks are null. Chunk ids are not reused */
+    private volatile AtomicReferenceArray<Chunk> chunks = new AtomicReferenceArray<>(16);
+    /** chunk 0 is never used, so pointer is never zero */
+    private int chunkCount = 1;
+
+    private final AtomicReference<Chunk> current = new AtomicReference<>();
+
+    /** guards table growth and chunk creation and release */
+    private final Object growLock = new Object();
+
+    private final AtomicLong recordCount = new AtomicLong();
+
+    protected static long pointer(int chunkId, int offset){
+        return (((long)chunkId)<<32) | offset;
+    }
+
+    private Chunk newChunk(int size){
+        synchronized (growLock){
+            int id = chunkCount++;
+            if(id>=chunks.length()){
+                AtomicReferenceArray<Chunk> chunks2 = new AtomicReferenceArray<>(chunks.length()*2);
+                for(int i=0;i<chunks.length();i++)
+                    chunks2.set(i, chunks.get(i));
+                chunks = chunks2;
+            }
+            Chunk c = new Chunk(id, size);
+            chunks.set(id, c);
+            return c;
+        }
+    }
+
+    private void releaseChunk(Chunk c){
+        synchronized (growLock){
+            chunks.set(c.id, null);
+        }
+    }
+
+    private void releaseSpace(Chunk c, long len){
+        if(c.live.addAndGet(-len)==0 && c.tail.get()>=c.buf.capacity())
+            releaseChunk(c);
+    }
+
+    /** stores serialized record in off-heap space, returns its pointer */
+    protected long write(byte[] b, int size){
+        int len = size+4;
+        if(len>CHUNK_SIZE){
+            //large record gets its own chunk
+            Chunk c = newChunk(len);
+            c.live.set(len);
+            c.tail.set(len);
+            ByteBuffer bb = c.buf.duplicate();
+            bb.putInt(size);
+            bb.put(b, 0, size);
+            return pointer(c.id, 0);
+        }
+
+        for(;;){
+            Chunk c = current.get();
+            if(c!=null){
+                //reserve live space first, so chunk can not be released while data are written
+                c.live.addAndGet(len);
+                long pos = c.tail.getAndAdd(len);
+                if(pos+len<=c.buf.capacity()){
+                    ByteBuffer bb = c.buf.duplicate();
+                    bb.position((int) pos);
+                    bb.putInt(size);
+                    bb.put(b, 0, size);
+                    return pointer(c.id, (int) pos);
+                }
+                //chunk is full
+                releaseSpace(c, len);
+            }
+            Chunk c2 = newChunk(CHUNK_SIZE);
+            if(!current.compareAndSet(c, c2))
+                releaseChunk(c2);
+        }
+    }
+
+    /** releases space used by record, pointer must be already removed from table */
+    protected void free(long pointer){
+        Chunk c = chunks.get((int) (pointer>>>32));
+        int size = c.buf.getInt((int) pointer);
+        releaseSpace(c, size+4);
+    }
+
+    /** returns buffer with record data, or null if pointer is stale and chunk was already released */
+    protected ByteBuffer read(long pointer){
+        Chunk c = chunks.get((int) (pointer>>>32));
+        if(c==null)
+            return null;
+        ByteBuffer bb = c.buf.duplicate();
+        int offset = (int) pointer;
+        int size = bb.getInt(offset);
+        bb.position(offset+4);
+        bb.limit(offset+4+size);
+        return bb;
+    }
+
+    protected <R> long write(Serializer<R> serializer, R record){
+        if(record == null)
+            throw new NullPointerException();
+        DataOutput2ByteArray out = new DataOutput2ByteArray();
+        serializer.serialize(out, record);
+        return write(out.buf, out.pos);
+    }
+
+    protected static <R> R deser(Serializer<R> serializer, ByteBuffer bb){
+        return serializer.deserialize(new DataInput2ByteBuffer(bb));
+    }
+
+    private AtomicLongArray tablePage(long recid){
+        AtomicLongArray[] t = table;
+        long page = recid>>>TABLE_PAGE_SHIFT;
+        if(recid<=0 || page>=t.length)
+            return null;
+        return t[(int) page];
+    }
+
+    private void ensureTable(long recid){
+        int page = (int) (recid>>>TABLE_PAGE_SHIFT);
+        if(page<table.length)
+            return;
+        synchronized (growLock){
+            AtomicLongArray[] t = table;
+            if(page<t.length)
+                return;
+            AtomicLongArray[] t2 = new AtomicLongArray[Math.max(page+1, t.length*2)];
+            System.arraycopy(t, 0, t2, 0, t.length);
+            for(int i=t.length;i<t2.length;i++)
+                t2[i] = new AtomicLongArray(TABLE_PAGE_SIZE);
+            table = t2;
+        }
+    }
+
+    /** returns pointer of existing record */
+    private long pointerExisting(long recid){
+        AtomicLongArray page = tablePage(recid);
+        if(page==null)
+            throw new DBException.RecordNotFound();
+        long pointer = page.get((int) (recid & TABLE_PAGE_MASK));
+        if(pointer==0)
+            throw new DBException.RecordNotFound();
+        if(pointer==PREALLOC)
+            throw new DBException.PreallocRecordAccess();
+        return pointer;
+    }
+
+    private boolean cas(long recid, long expected, long pointer){
+        return tablePage(recid).compareAndSet((int) (recid & TABLE_PAGE_MASK), expected, pointer);
+    }
+
+    private long allocateRecid(long pointer){
+        long recid = recids.allocate();
+        ensureTable(recid);
+        tablePage(recid).set((int) (recid & TABLE_PAGE_MASK), pointer);
+        recordCount.incrementAndGet();
+        return recid;
+    }
+
+    private void releaseRecid(long recid, long pointer){
+        free(pointer);
+        recids.release(recid);
+        recordCount.decrementAndGet();
+    }
+
+    @Override
+    public long preallocate() {
+        return allocateRecid(PREALLOC);
+    }
+
+    @Override
+    public <R> void preallocatePut(long recid, @NotNull Serializer<R> serializer, @NotNull R record) {
+        AtomicLongArray page = tablePage(recid);
+        if(page==null)
+            throw new DBException.RecordNotPreallocated();
+        long pointer = write(serializer, record);
+        if(!page.compareAndSet((int) (recid & TABLE_PAGE_MASK), PREALLOC, pointer)) {
+            free(pointer);
+            throw new DBException.RecordNotPreallocated();
+        }
+    }
+
+    @Override
+    public <R> @NotNull long put(@NotNull R record, @NotNull Serializer<R> serializer) {
+        return allocateRecid(write(serializer, record));
+    }
+
+    @Override
+    public <R> void update(long recid, @NotNull Serializer<R> serializer, @NotNull R updatedRecord) {
+        getAndUpdate2(recid, serializer, updatedRecord);
+    }
+
+    @Override
+    public <R> @NotNull R getAndUpdate(long recid, @NotNull Serializer<R> serializer, @NotNull R updatedRecord) {
+        ByteBuffer old = getAndUpdate2(recid, serializer, updatedRecord);
+        return deser(serializer, old);
+    }
+
+    /** replaces record, returns old data */
+    private <R> ByteBuffer getAndUpdate2(long recid, Serializer<R> serializer, R updatedRecord){
+        pointerExisting(recid);
+        long newPointer = write(serializer, updatedRecord);
+        try {
+            for (;;) {
+                long pointer = pointerExisting(recid);
+                ByteBuffer old = read(pointer);
+                if (old != null && cas(recid, pointer, newPointer)) {
+                    free(pointer);
+                    return old;
+                }
+            }
+        }catch(DBException e){
+            //record was deleted concurrently
+            free(newPointer);
+            throw e;
+        }
+    }
+
+    private <R> R transform(long recid, Serializer<R> serializer, Transform<R> t, boolean returnOld){
+        for(;;){
+            long pointer = pointerExisting(recid);
+            ByteBuffer old = read(pointer);
+            if(old==null)
+                continue;
+            R oldRec = deser(serializer, old);
+            R newRec = t.transform(oldRec);
+            long newPointer = write(serializer, newRec);
+            if(cas(recid, pointer, newPointer)){
+                free(pointer);
+                return returnOld ? oldRec : newRec;
+            }
+            free(newPointer);
+        }
+    }
+
+    @Override
+    public <R> @NotNull R updateAndGet(long recid, @NotNull Serializer<R> serializer, @NotNull Transform<R> t) {
+        return transform(recid, serializer, t, false);
+    }
+
+    @Override
+    public <R> @NotNull R getAndUpdateAtomic(long recid, @NotNull Serializer<R> serializer, @NotNull Transform<R> t) {
+        return transform(recid, serializer, t, true);
+    }
+
+    @Override
+    public <R> void updateAtomic(long recid, @NotNull Serializer<R> serializer, @NotNull Transform<R> r) {
+        transform(recid, serializer, r, false);
+    }
+
+    @Override
+    public <R> boolean compareAndUpdate(long recid, @NotNull Serializer<R> serializer, @NotNull R expectedOldRecord, @NotNull R updatedRecord) {
+        long newPointer = 0;
+        try {
+            for (;;) {
+                long pointer = pointerExisting(recid);
+                ByteBuffer old = read(pointer);
+                if (old == null)
+                    continue;
+                if (!serializer.equals(expectedOldRecord, deser(serializer, old))) {
+                    if (newPointer != 0)
+                        free(newPointer);
+                    return false;
+                }
+                if (newPointer == 0)
+                    newPointer = write(serializer, updatedRecord);
+                if (cas(recid, pointer, newPointer)) {
+                    free(pointer);
+                    return true;
+                }
+            }
+        }catch(DBException e){
+            if(newPointer!=0)
+                free(newPointer);
+            throw e;
+        }
+    }
+
+    @Override
+    public <R> boolean compareAndDelete(long recid, @NotNull Serializer<R> serializer, @NotNull R expectedOldRecord) {
+        for(;;){
+            long pointer = pointerExisting(recid);
+            ByteBuffer old = read(pointer);
+            if(old==null)
+                continue;
+            if(!serializer.equals(expectedOldRecord, deser(serializer, old)))
+                return false;
+            if(cas(recid, pointer, 0L)){
+                releaseRecid(recid, pointer);
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public <R> void delete(long recid, @NotNull Serializer<R> serializer) {
+        for(;;){
+            long pointer = pointerExisting(recid);
+            if(cas(recid, pointer, 0L)){
+                releaseRecid(recid, pointer);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public <R> @NotNull R getAndDelete(long recid, @NotNull Serializer<R> serializer) {
+        for(;;){
+            long pointer = pointerExisting(recid);
+            ByteBuffer old = read(pointer);
+            if(old!=null && cas(recid, pointer, 0L)){
+                releaseRecid(recid, pointer);
+                return deser(serializer, old);
+            }
+        }
+    }
+
+    @Override
+    public <K> @NotNull K get(long recid, @NotNull Serializer<K> ser) {
+        for(;;){
+            ByteBuffer b = read(pointerExisting(recid));
+            if(b!=null)
+                return deser(ser, b);
+        }
+    }
+
+    @Override
+    public void getAll(@NotNull GetAllCallback callback) {
+        long maxRecid = recids.getMaxRecid();
+        for(long recid=1; recid<=maxRecid; recid++){
+            AtomicLongArray page = tablePage(recid);
+            if(page==null)
+                break;
+            ByteBuffer b;
+            do {
+                long pointer = page.get((int) (recid & TABLE_PAGE_MASK));
+                if (pointer == 0 || pointer == PREALLOC) {
+                    b = null;
+                    break;
+                }
+                b = read(pointer);
+            }while(b==null);
+
+            if(b!=null){
+                byte[] data = new byte[b.remaining()];
+                b.get(data);
+                callback.takeOne(recid, data);
+            }
+        }
+    }
+
+    @Override
+    public void readAll(@NotNull ReadAllCallback callback) {
+        readRange(1, recids.getMaxRecid()+1, callback);
+    }
+
+    protected void readRange(long from, long until, ReadAllCallback callback) {
+        for(long recid=from; recid<until; recid++){
+            AtomicLongArray page = tablePage(recid);
+            if(page==null)
+                break;
+            ByteBuffer b;
+            do {
+                long pointer = page.get((int) (recid & TABLE_PAGE_MASK));
+                if (pointer == 0 || pointer == PREALLOC) {
+                    b = null;
+                    break;
+                }
+                b = read(pointer);
+            }while(b==null);
+
+            if(b!=null)
+                callback.takeOne(recid, b.slice().asReadOnlyBuffer());
+        }
+    }
+
+    @Override
+    public <R> @NotNull Spliterator<R> spliterator(@NotNull RecordMapper<R> mapper) {
+        return new RecidSpliterator<>(this::readRange, 1, recids.getMaxRecid()+1, mapper);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return recordCount.get()==0;
+    }
+
+    @Override
+    public void commit() {
+
+    }
+
+    /**
+     * Relocates live records from chunks which are less than {@link #COMPACT_LIVE_RATIO} full, so those chunks are released.
+     * Current chunk is retired first, so it can be compacted as well.
+     * After compaction every chunk is either more than half full, or was filled by this compaction or later writes.
+     * Records are moved with compare-and-swap, so it runs concurrently with other operations.
+     */
+    @Override
+    public void compact() {
+        Chunk cur = current.get();
+        if(cur!=null && current.compareAndSet(cur, null)){
+            //no more allocations in retired chunk
+            cur.tail.addAndGet(CHUNK_SIZE);
+            releaseSpace(cur, 0);
+        }
+
+        AtomicReferenceArray<Chunk> chunks = this.chunks;
+        boolean[] sparse = new boolean[chunks.length()];
+        boolean any = false;
+        for(int id=0; id<sparse.length; id++){
+            Chunk c = chunks.get(id);
+            if(c!=null && c!=current.get() && c.live.get() < c.buf.capacity()*COMPACT_LIVE_RATIO) {
+                sparse[id] = true;
+                any = true;
+            }
+        }
+        if(!any)
+            return;
+
+        long maxRecid = recids.getMaxRecid();
+        for(long recid=1; recid<=maxRecid; recid++){
+            AtomicLongArray page = tablePage(recid);
+            if(page==null)
+                break;
+            int pos = (int) (recid & TABLE_PAGE_MASK);
+            for(;;) {
+                long pointer = page.get(pos);
+                if (pointer == 0 || pointer == PREALLOC)
+                    break;
+                int chunkId = (int) (pointer >>> 32);
+                if (chunkId >= sparse.length || !sparse[chunkId])
+                    break;
+                ByteBuffer b = read(pointer);
+                if (b == null)
+                    continue;
+                byte[] data = new byte[b.remaining()];
+                b.get(data);
+                long newPointer = write(data, data.length);
+                if (page.compareAndSet(pos, pointer, newPointer)) {
+                    free(pointer);
+                    break;
+                }
+                //record was modified concurrently, try again
+                free(newPointer);
+            }
+        }
+    }
+
+    /** number of bytes allocated in chunks, including free space */
+    protected long allocatedSize(){
+        AtomicReferenceArray<Chunk> chunks = this.chunks;
+        long ret = 0;
+        for(int id=0; id<chunks.length(); id++){
+            Chunk c = chunks.get(id);
+            if(c!=null)
+                ret += c.buf.capacity();
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        //direct buffers are released by GC
+        synchronized (growLock){
+            table = new AtomicLongArray[0];
+            chunks = new AtomicReferenceArray<>(16);
+            current.set(null);
+        }
+    }
+}
@@ -1,17 +1,80 @@
 package org.mapdb.store;
 
+import org.eclipse.collections.api.block.procedure.primitive.LongObjectProcedure;
+import org.eclipse.collections.api.block.procedure.primitive.LongProcedure;
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.eclipse.collections.impl.map.mutable.primitive.LongLongHashMap;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+import org.mapdb.DBException;
+import org.mapdb.store.legacy.Store2;
+import org.mapdb.store.legacy.Volume;
 import org.mapdb.util.IO;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
 
+/**
+ * {@link HeapBufStore} persisted into append-only log, which is memory mapped.
+ *
+ * {@link #commit()} appends records modified since last commit as single frame. Frame payload is synced
+ * before frame header is written, so after crash the log is replayed until last complete frame.
+ * Frame checksum covers its payload. Reopen verifies checksums and scans record headers,
+ * records are not loaded on heap, but read from mapped log on demand until they are modified.
+ * Readers hold read lock while they access mapped log, so log is not rewritten and unmapped under them.
+ *
+ * Log is rewritten into new file once it grows over twice its size after last rewrite.
+ */
 public class FileHeapBufStore extends HeapBufStore{
 
+    /** log starts with magic header followed by reserved long */
+    protected static final long LOG_MAGIC = 0x4D61704442486C67L;
+    protected static final long LOG_START = 16;
+
+    /** frame starts with payload size and checksum of its position, size and payload */
+    protected static final int FRAME_HEAD = 16;
+    protected static final long FRAME_MAGIC = 0x5A3C96E1F00DCAFEL;
+
+    /** record in frame starts with recid and size, record data are padded to 8 bytes */
+    protected static final int REC_HEAD = 16;
+    protected static final long SIZE_PREALLOC = -1;
+    protected static final long SIZE_DELETED = -2;
+
+    protected static final int CHUNK_SIZE = 1<<Store2.VOLUME_CHUNK_SHIFT;
+
+    /** log is not rewritten while it is smaller than this */
+    public static final long DEFAULT_COMPACT_MIN_SIZE = 16*1024*1024;
+
     protected final File file;
+    protected final long compactMinSize;
 
     //-newRWLOCK
 
+    protected Volume log;
+    /** end of last complete frame, next frame is appended here */
+    protected long logEnd;
+    /** log size after last rewrite */
+    protected long logCompacted;
+
+    /** records which are not loaded on heap, maps recid to offset of record header in log */
+    protected final LongLongHashMap mapped = new LongLongHashMap();
+    /** recids modified since last commit */
+    protected final LongHashSet dirty = new LongHashSet();
+
     public FileHeapBufStore(File file) {
+        this(file, DEFAULT_COMPACT_MIN_SIZE);
+    }
+
+    /**
+     * @param file log file
+     * @param compactMinSize log is rewritten when it grows over twice of this size, or twice of its size after last rewrite
+     */
+    public FileHeapBufStore(File file, long compactMinSize) {
         this.file = file;
+        this.compactMinSize = compactMinSize;
 
         //-WLOCK
         reload();
@@ -22,71 +85,428 @@ public class FileHeapBufStore extends HeapBufStore{
         //-AWLOCKED
         clear();
 
-        try(DataInputStream is = new DataInputStream(new FileInputStream(file))) {
+        boolean empty;
+        try {
+            empty = isEmptyFile(file);
+            if(!empty && readMagic(file)!=LOG_MAGIC){
+                //older format with single snapshot, convert it into log
+                readSnapshot(file, recids, records::put);
+                rewrite();
+                return;
+            }
+        } catch (DBException.DataCorruption e) {
+            clear();
+            throw e;
+        } catch (IOException e) {
+            clear();
+            throw new IOError(e);
+        }
+
+        final long fileSize = file.length();
+        log = openLog(file);
+        if(empty){
+            createLog(log);
+            logEnd = LOG_START;
+            logCompacted = LOG_START;
+            return;
+        }
+
+        //replay frames, record data are not loaded
+        long[] maxRecid = new long[]{0L};
+        long offset = replay(log, fileSize, pos->{
+            long recid = log.getLong(pos);
+            long recSize = log.getLong(pos+8);
+            maxRecid[0] = Math.max(maxRecid[0], recid);
+            if(recSize>=0){
+                mapped.put(recid, pos);
+                records.remove(recid);
+            }else if(recSize==SIZE_PREALLOC){
+                mapped.remove(recid);
+                records.put(recid, PREALLOC_RECORD);
+            }else{
+                mapped.remove(recid);
+                records.remove(recid);
+            }
+        });
+        logEnd = offset;
+        logCompacted = offset;
+
+        //recids reserved by threads were never written into log, so all unused recids are free
+        recids.restoreFromUsed(maxRecid[0], allRecids());
+    }
+
+    protected static long readMagic(File file) throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")){
+            return raf.length()<8 ? 0L : raf.readLong();
+        }
+    }
+
+    /** new log is mapped and filled with zeroes before magic header is written, such file is treated as new store */
+    protected static boolean isEmptyFile(File file) throws IOException {
+        if(!file.exists() || file.length()==0)
+            return true;
+        if(readMagic(file)!=0L)
+            return false;
+        try(InputStream is = new BufferedInputStream(new FileInputStream(file))){
+            for(int b=is.read(); b!=-1; b=is.read()){
+                if(b!=0)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    protected static void createLog(Volume log){
+        log.ensureAvailable(LOG_START+FRAME_HEAD);
+        log.putLong(0, LOG_MAGIC);
+        log.sync();
+    }
+
+    /** replays complete frames, passes offset of each record header to consumer, returns end of last complete frame */
+    protected static long replay(Volume log, long fileSize, LongProcedure consumer){
+        long offset = LOG_START;
+        while(offset+FRAME_HEAD<=fileSize){
+            long size = log.getLong(offset);
+            if(size<=0 || (size&7)!=0 || offset+FRAME_HEAD+size>fileSize
+                    || log.getLong(offset+8)!=frameChecksum(log, offset, size))
+                break; //incomplete frame, end of log
+
+            long pos = offset+FRAME_HEAD;
+            final long end = pos+size;
+            while(pos<end){
+                consumer.value(pos);
+                pos += REC_HEAD+roundUp8(Math.max(0, log.getLong(pos+8)));
+            }
+            offset = end;
+        }
+        return offset;
+    }
+
+    /**
+     * appends records as single frame, returns offset after frame.
+     * Payload is synced before frame header is written, so frame becomes valid only once it is complete.
+     */
+    protected static long appendFrame(Volume log, long frame, long[] recids, byte[][] data){
+        long size = 0;
+        for(byte[] b:data)
+            size += recordSize(b);
+
+        long pos = frame+FRAME_HEAD;
+        //space for terminator after this frame
+        log.ensureAvailable(pos+size+FRAME_HEAD);
+        for(int i=0;i<recids.length;i++)
+            pos = writeRecord(log, pos, recids[i], data[i]);
+        assert(pos==frame+FRAME_HEAD+size);
+
+        //terminate log after this frame, so stale data after incomplete frame are never replayed
+        log.putLong(pos, 0L);
+        log.putLong(pos+8, 0L);
+        log.sync();
+        //frame becomes valid once its header is written
+        log.putLong(frame, size);
+        log.putLong(frame+8, frameChecksum(log, frame, size));
+        log.sync();
+        return pos;
+    }
+
+    protected static Volume openLog(File file){
+        return new Volume.MappedFileVol(file, false, 0L, Store2.VOLUME_CHUNK_SHIFT, 0);
+    }
+
+    protected static long frameChecksum(Volume vol, long offset, long size){
+        CRC32 crc = new CRC32();
+        long pos = offset+FRAME_HEAD;
+        final long end = pos+size;
+        while(pos<end){
+            int len = (int) Math.min(end-pos, CHUNK_SIZE - (pos & (CHUNK_SIZE-1)));
+            crc.update(vol.getByteBuffer(pos, len));
+            pos+=len;
+        }
+        return FRAME_MAGIC ^ Long.rotateLeft(size, 17) ^ offset ^ (crc.getValue()<<32);
+    }
+
+    protected static long roundUp8(long size){
+        return (size+7) & ~7L;
+    }
+
+    /** volume chunks are not continuous, so data are copied one chunk at time */
+    protected static void putBytes(Volume vol, long offset, byte[] b){
+        int pos = 0;
+        while(pos<b.length){
+            int len = (int) Math.min(b.length-pos, CHUNK_SIZE - ((offset+pos) & (CHUNK_SIZE-1)));
+            vol.putData(offset+pos, b, pos, len);
+            pos+=len;
+        }
+    }
+
+    protected static byte[] getBytes(Volume vol, long offset, int size){
+        byte[] b = new byte[size];
+        int pos = 0;
+        while(pos<size){
+            int len = (int) Math.min(size-pos, CHUNK_SIZE - ((offset+pos) & (CHUNK_SIZE-1)));
+            vol.getDataInput(offset+pos, len).readFully(b, pos, len);
+            pos+=len;
+        }
+        return b;
+    }
+
+    /** writes record into log, returns offset after record */
+    protected static long writeRecord(Volume vol, long pos, long recid, byte[] b){
+        long size = b==null? SIZE_DELETED : b==PREALLOC_RECORD ? SIZE_PREALLOC : b.length;
+        vol.putLong(pos, recid);
+        vol.putLong(pos+8, size);
+        if(size>0)
+            putBytes(vol, pos+REC_HEAD, b);
+        return pos+REC_HEAD+roundUp8(Math.max(0,size));
+    }
+
+    protected static long recordSize(byte[] b){
+        return REC_HEAD + (b==null || b==PREALLOC_RECORD ? 0 : roundUp8(b.length));
+    }
+
+    @Override
+    protected byte[] recordGet(long recid) {
+        byte[] b = records.get(recid);
+        if(b==null){
+            long offset = mapped.getIfAbsent(recid, 0L);
+            if(offset!=0L)
+                b = getBytes(log, offset+REC_HEAD, (int) log.getLong(offset+8));
+        }
+        return b;
+    }
+
+    @Override
+    protected void recordModified(long recid) {
+        mapped.remove(recid);
+        dirty.add(recid);
+    }
+
+    /** sorted recids of all records, including preallocated */
+    protected long[] allRecids(){
+        long[] a = records.keySet().toArray();
+        long[] b = mapped.keySet().toArray();
+        long[] ret = Arrays.copyOf(a, a.length+b.length);
+        System.arraycopy(b, 0, ret, a.length, b.length);
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    @Override
+    public void getAll(GetAllCallback callback) {
+        //-RLOCK
+        for(long recid:allRecids()){
+            byte[] b = recordGet(recid);
+            if(b!=PREALLOC_RECORD)
+                callback.takeOne(recid, b);
+        }
+        //-RUNLOCK
+    }
+
+    /** returns record data, records in log are not copied if they do not cross chunk boundary */
+    protected ByteBuffer recordBuffer(long recid){
+        if(!records.containsKey(recid)){
+            long offset = mapped.getIfAbsent(recid, 0L);
+            if(offset!=0L){
+                int size = (int) log.getLong(offset+8);
+                long start = offset+REC_HEAD;
+                if(size>0 && (start>>>Store2.VOLUME_CHUNK_SHIFT) == ((start+size-1)>>>Store2.VOLUME_CHUNK_SHIFT))
+                    return log.getByteBuffer(start, size);
+            }
+        }
+        byte[] b = recordGet(recid);
+        if(b==PREALLOC_RECORD)
+            throw new DBException.PreallocRecordAccess();
+        if(b==null)
+            throw new DBException.RecordNotFound();
+        return ByteBuffer.wrap(b).asReadOnlyBuffer();
+    }
+
+    @Override
+    public <R> R read(long recid, RecordReader<R> reader) {
+        //-RLOCK
+        return reader.read(recordBuffer(recid));
+        //-RUNLOCK
+    }
+
+    @Override
+    public void readAll(ReadAllCallback callback) {
+        //-RLOCK
+        for(long recid:allRecids()){
+            if(records.get(recid)!=PREALLOC_RECORD)
+                callback.takeOne(recid, recordBuffer(recid));
+        }
+        //-RUNLOCK
+    }
+
+    @Override
+    protected void readRange(long from, long until, ReadAllCallback callback) {
+        //-RLOCK
+        for(long recid=from; recid<until; recid++){
+            byte[] b = records.get(recid);
+            if(b==PREALLOC_RECORD || (b==null && !mapped.containsKey(recid)))
+                continue;
+            callback.takeOne(recid, recordBuffer(recid));
+        }
+        //-RUNLOCK
+    }
+
+    @Override
+    public boolean isEmpty() {
+        //-RLOCK
+        return records.isEmpty() && mapped.isEmpty();
+        //-RUNLOCK
+    }
+
+    /** appends records modified since last commit into log */
+    @Override
+    public void commit() {
+        //-WLOCK
+        commit2();
+        //-WUNLOCK
+    }
+
+    protected void commit2(){
+        //-AWLOCKED
+        if(dirty.isEmpty())
+            return;
+        long[] recids = dirty.toSortedArray();
+        byte[][] data = new byte[recids.length][];
+        for(int i=0;i<recids.length;i++)
+            data[i] = records.get(recids[i]);
+
+        logEnd = appendFrame(log, logEnd, recids, data);
+        dirty.clear();
+
+        if(logEnd>2*Math.max(logCompacted, compactMinSize))
+            rewrite();
+    }
+
+    /** writes all records into new log, and replaces current log with it */
+    protected void rewrite(){
+        //-AWLOCKED
+        File tmp = new File(file.getPath()+".compact");
+        tmp.delete();
+        Volume vol = openLog(tmp);
+
+        LongLongHashMap mapped2 = new LongLongHashMap();
+        long pos = LOG_START+FRAME_HEAD;
+        for(long recid:allRecids()){
+            byte[] b = recordGet(recid);
+            vol.ensureAvailable(pos+recordSize(b)+FRAME_HEAD);
+            if(mapped.containsKey(recid))
+                mapped2.put(recid, pos);
+            pos = writeRecord(vol, pos, recid, b);
+        }
+
+        vol.ensureAvailable(pos+FRAME_HEAD);
+        vol.putLong(0, LOG_MAGIC);
+        vol.putLong(pos, 0L);
+        vol.putLong(pos+8, 0L);
+        long size = pos-LOG_START-FRAME_HEAD;
+        if(size>0) {
+            vol.sync();
+            vol.putLong(LOG_START, size);
+            vol.putLong(LOG_START + 8, frameChecksum(vol, LOG_START, size));
+        }
+        vol.sync();
+        vol.close();
+
+        if(log!=null)
+            log.close();
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+        log = openLog(file);
+
+        mapped.clear();
+        mapped.putAll(mapped2);
+        dirty.clear();
+        logEnd = pos;
+        logCompacted = pos;
+    }
+
+    /**
+     * reads file written by older version, it contains single snapshot of all records.
+     * Records are passed to consumer and allocator state is restored.
+     * File without log magic header, which is not valid snapshot, throws {@link DBException.DataCorruption}
+     */
+    protected static void readSnapshot(File file, RecidAllocator recids, LongObjectProcedure<byte[]> consumer) throws IOException {
+        try(DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
             long maxRecid = 0;
+            LongArrayList used = new LongArrayList();
 
             //load records
             long recCount = IO.readLong(is);
+            if(recCount<0 || recCount>file.length())
+                throw new DBException.DataCorruption("Wrong log header in "+file);
             for(long i=0;i<recCount;i++){
                 long recid = IO.readLong(is);
                 int size = IO.readInt(is);
+                if(recid<=0 || size<-1 || size>file.length())
+                    throw new DBException.DataCorruption("Wrong log header in "+file);
                 byte[] b = size==-1?
                         PREALLOC_RECORD :
                         IO.readByteArray(is, size);
-                records.put(recid, b);
+                consumer.value(recid, b);
+                used.add(recid);
                 maxRecid = Math.max(maxRecid, recid);
             }
 
             //restore free recids
-            for(long recid=0;recid<maxRecid;recid++){
-                if(!records.containsKey(recid)){
-                    freeRecids.add(recid);
-                }
+            long[] snapshot = readRecids(is);
+            if(snapshot!=null && (snapshot.length==0 || snapshot[0]<maxRecid || is.read()!=-1))
+                throw new DBException.DataCorruption("Wrong log header in "+file);
+            if(snapshot!=null) {
+                recids.restore(snapshot);
+            }else{
+                //older format without allocator state, rebuild it from used recids
+                recids.restoreFromUsed(maxRecid, used.toArray());
             }
-
-        } catch (FileNotFoundException e) {
-            return;
-        } catch (IOException e) {
-            clear();
-            throw new IOError(e);
+        } catch (EOFException e) {
+            throw new DBException.DataCorruption("Wrong log header in "+file);
         }
     }
 
-    protected void save() {
-        //-ARLOCKED
-        try( DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
-            IO.writeLong(out, records.size());
-
-            records.forEachKeyValue((recid, buf) ->{
-                try {
-                    IO.writeLong(out, recid);
-                    int size = buf==PREALLOC_RECORD? -1 : buf.length;
-                    IO.writeInt(out, size);
-                    if(size>0)
-                        IO.writeByteArray(out, buf);
-                }catch(IOException e){
-                    throw new IOError(e);
-                }
-            });
+    /** allocator state is stored after records, it is missing in files written by older versions */
+    static long[] readRecids(DataInputStream is) throws IOException {
+        if(is.read()==-1)
+            return null;
+        int size = IO.readInt(is);
+        if(size<0)
+            throw new DBException.DataCorruption("Wrong recid snapshot size");
+        long[] ret = new long[size];
+        for(int i=0;i<size;i++)
+            ret[i] = IO.readLong(is);
+        return ret;
+    }
 
-            out.flush();
-        } catch (FileNotFoundException e) {
-            throw new IOError(e); //file could not be created
-        } catch (IOException e) {
-            throw new IOError(e);
-        }
+    @Override
+    public void compact() {
+        //-WLOCK
+        records.compact();
+        commit2();
+        rewrite();
+        //-WUNLOCK
     }
+
     public void close() {
         //-WLOCK
-        save();
+        if(log==null)
+            return;
+        commit2();
+        log.close();
+        log = null;
         //-WUNLOCK
     }
 
     private void clear() {
         //-AWLOCK
-        freeRecids.clear();
-        freeRecids.trimToSize();
+        recids.clear();
         records.clear();
         records.compact();
+        mapped.clear();
+        dirty.clear();
     }
 }
@@ -0,0 +1,256 @@
+package org.mapdb.store;
+
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+import org.mapdb.DBException;
+import org.mapdb.store.legacy.Volume;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * File backed variant of {@link HeapBufStoreSegmented}, it uses the same append-only log as {@link FileHeapBufStore}.
+ *
+ * All records are kept on heap. {@link #commit()} locks all segments only while it collects records modified
+ * since last commit, the frame is appended and synced under separate log lock.
+ * Log is rewritten into new file once it grows over twice its size after last rewrite.
+ * File with single snapshot written by older version is converted into log on open.
+ */
+public class FileHeapBufStoreSegmented extends HeapBufStoreSegmented {
+
+    protected final File file;
+    protected final long compactMinSize;
+
+    /** guards log, frames are appended in the same order as their records were collected */
+    protected final ReentrantLock logLock = new ReentrantLock();
+
+    protected Volume log;
+    /** end of last complete frame, next frame is appended here */
+    protected long logEnd;
+    /** log size after last rewrite */
+    protected long logCompacted;
+
+    /** recids modified since last commit, one set for each segment, guarded by segment lock */
+    protected final LongHashSet[] dirty;
+
+    public FileHeapBufStoreSegmented(File file) {
+        this(file, DEFAULT_SEGMENT_COUNT);
+    }
+
+    public FileHeapBufStoreSegmented(File file, int segmentCount) {
+        this(file, segmentCount, FileHeapBufStore.DEFAULT_COMPACT_MIN_SIZE);
+    }
+
+    /**
+     * @param file log file
+     * @param segmentCount number of segments
+     * @param compactMinSize log is rewritten when it grows over twice of this size, or twice of its size after last rewrite
+     */
+    public FileHeapBufStoreSegmented(File file, int segmentCount, long compactMinSize) {
+        super(segmentCount);
+        this.file = file;
+        this.compactMinSize = compactMinSize;
+        dirty = new LongHashSet[segments.length];
+        for(int i=0;i<dirty.length;i++)
+            dirty[i] = new LongHashSet();
+
+        logLock.lock();
+        lockAllWrite();
+        try {
+            reload();
+        }finally {
+            unlockAllWrite();
+            logLock.unlock();
+        }
+    }
+
+    protected void reload() {
+        clear();
+
+        boolean empty;
+        try {
+            empty = FileHeapBufStore.isEmptyFile(file);
+            if(!empty && FileHeapBufStore.readMagic(file)!=FileHeapBufStore.LOG_MAGIC){
+                //older format with single snapshot, convert it into log
+                FileHeapBufStore.readSnapshot(file, recids, (recid, b) -> segment(recid).records.put(recid, b));
+                LongObjectHashMap<byte[]> all = LongObjectHashMap.newMap();
+                for(Segment s:segments)
+                    all.putAll(s.records);
+                rewrite(all);
+                return;
+            }
+        } catch (DBException.DataCorruption e) {
+            clear();
+            throw e;
+        } catch (IOException e) {
+            clear();
+            throw new IOError(e);
+        }
+
+        final long fileSize = file.length();
+        log = FileHeapBufStore.openLog(file);
+        if(empty){
+            FileHeapBufStore.createLog(log);
+            logEnd = FileHeapBufStore.LOG_START;
+            logCompacted = FileHeapBufStore.LOG_START;
+            return;
+        }
+
+        //replay frames, records are loaded on heap
+        long[] maxRecid = new long[]{0L};
+        long offset = FileHeapBufStore.replay(log, fileSize, pos->{
+            long recid = log.getLong(pos);
+            long recSize = log.getLong(pos+8);
+            maxRecid[0] = Math.max(maxRecid[0], recid);
+            LongObjectHashMap<byte[]> records = segment(recid).records;
+            if(recSize>=0)
+                records.put(recid, FileHeapBufStore.getBytes(log, pos+FileHeapBufStore.REC_HEAD, (int) recSize));
+            else if(recSize==FileHeapBufStore.SIZE_PREALLOC)
+                records.put(recid, PREALLOC_RECORD);
+            else
+                records.remove(recid);
+        });
+        logEnd = offset;
+        logCompacted = offset;
+
+        //recids reserved by threads were never written into log, so all unused recids are free
+        LongArrayList used = new LongArrayList();
+        for(Segment s:segments)
+            used.addAll(s.records.keySet());
+        recids.restoreFromUsed(maxRecid[0], used.toArray());
+    }
+
+    @Override
+    protected void recordModified(long recid) {
+        dirty[segmentIndex(recid)].add(recid);
+    }
+
+    /** appends records modified since last commit into log */
+    @Override
+    public void commit() {
+        logLock.lock();
+        try {
+            commit2();
+        }finally {
+            logLock.unlock();
+        }
+    }
+
+    protected void commit2(){
+        //all segments are locked, so frame contains consistent snapshot
+        LongObjectHashMap<byte[]> modified = LongObjectHashMap.newMap();
+        lockAllWrite();
+        try {
+            for(int i=0;i<segments.length;i++){
+                LongObjectHashMap<byte[]> records = segments[i].records;
+                dirty[i].forEach(recid -> modified.put(recid, records.get(recid)));
+                dirty[i].clear();
+            }
+        }finally {
+            unlockAllWrite();
+        }
+        if(modified.isEmpty())
+            return;
+
+        long[] recids = modified.keySet().toSortedArray();
+        byte[][] data = new byte[recids.length][];
+        for(int i=0;i<recids.length;i++)
+            data[i] = modified.get(recids[i]);
+
+        try {
+            logEnd = FileHeapBufStore.appendFrame(log, logEnd, recids, data);
+        }catch (RuntimeException | Error e){
+            //frame was not written, records are written by next commit
+            lockAllWrite();
+            try {
+                for(long recid:recids)
+                    dirty[segmentIndex(recid)].add(recid);
+            }finally {
+                unlockAllWrite();
+            }
+            throw e;
+        }
+
+        if(logEnd>2*Math.max(logCompacted, compactMinSize))
+            rewrite(allRecords());
+    }
+
+    /** takes snapshot of all records, including preallocated */
+    protected LongObjectHashMap<byte[]> allRecords(){
+        LongObjectHashMap<byte[]> all = LongObjectHashMap.newMap();
+        lockAllWrite();
+        try {
+            for(Segment s:segments)
+                all.putAll(s.records);
+        }finally {
+            unlockAllWrite();
+        }
+        return all;
+    }
+
+    /** writes records into new log, and replaces current log with it */
+    protected void rewrite(LongObjectHashMap<byte[]> all){
+        File tmp = new File(file.getPath()+".compact");
+        tmp.delete();
+        Volume vol = FileHeapBufStore.openLog(tmp);
+        FileHeapBufStore.createLog(vol);
+
+        long[] recids = all.keySet().toSortedArray();
+        byte[][] data = new byte[recids.length][];
+        for(int i=0;i<recids.length;i++)
+            data[i] = all.get(recids[i]);
+        long end = recids.length==0 ?
+                FileHeapBufStore.LOG_START :
+                FileHeapBufStore.appendFrame(vol, FileHeapBufStore.LOG_START, recids, data);
+        vol.close();
+
+        if(log!=null)
+            log.close();
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+        log = FileHeapBufStore.openLog(file);
+        logEnd = end;
+        logCompacted = end;
+    }
+
+    @Override
+    public void compact() {
+        super.compact();
+        logLock.lock();
+        try {
+            commit2();
+            rewrite(allRecords());
+        }finally {
+            logLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        logLock.lock();
+        try {
+            if(log==null)
+                return;
+            commit2();
+            log.close();
+            log = null;
+        }finally {
+            logLock.unlock();
+        }
+    }
+
+    private void clear() {
+        for(int i=0;i<segments.length;i++) {
+            segments[i].records.clear();
+            segments[i].records.compact();
+            dirty[i].clear();
+        }
+        recids.clear();
+    }
+}
@@ -1,13 +1,19 @@
 package org.mapdb.store;
 
-import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
 import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.mapdb.DBException;
 import org.mapdb.io.DataInput2ByteArray;
 import org.mapdb.ser.Serializer;
 import org.mapdb.ser.Serializers;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Spliterator;
+
 public class HeapBufStore implements Store {
 
     protected static final byte[] PREALLOC_RECORD = new byte[]{1,2,4};
@@ -16,10 +22,18 @@ public class HeapBufStore implements Store {
 
     protected final LongObjectHashMap<byte[]> records = LongObjectHashMap.newMap();
 
-    protected final LongArrayList freeRecids = new LongArrayList();
+    protected final RecidAllocator recids = new RecidAllocator();
 
+    /** compresses stored records, null if compression is disabled */
+    protected final RecordCompression compression;
 
-    protected long maxRecid = 0L;
+    public HeapBufStore() {
+        this(null);
+    }
+
+    public HeapBufStore(@Nullable RecordCompression compression) {
+        this.compression = compression;
+    }
 
     @Override
     public long preallocate() {
@@ -32,25 +46,33 @@ public class HeapBufStore implements Store {
     public <R> void preallocatePut(long recid, @NotNull Serializer<R> serializer, @NotNull R record) {
         byte[] data = serialize(serializer, record);
         //-WLOCK
-        byte[] old = records.get(recid);
+        byte[] old = recordGet(recid);
         if(old==null)
             throw new DBException.RecordNotPreallocated();
         if(old!=PREALLOC_RECORD)
             throw new DBException.RecordNotPreallocated();
         records.put(recid, data);
+        recordModified(recid);
         //-WUNLOCK
     }
 
     protected long preallocate2(){
         //-AWLOCKED
-        long recid =
-                freeRecids.isEmpty()?
-                    ++maxRecid :
-                    freeRecids.removeAtIndex(freeRecids.size()-1);
+        long recid = recids.allocate();
         records.put(recid, PREALLOC_RECORD);
+        recordModified(recid);
         return recid;
     }
 
+    /** returns record data or null. Subclasses can keep some records outside of `records` map */
+    protected byte[] recordGet(long recid){
+        return records.get(recid);
+    }
+
+    /** called after record was inserted, updated or deleted, while write lock is held */
+    protected void recordModified(long recid){
+    }
+
     @Override
     public <K> long put(K record, Serializer<K> serializer) {
         byte[] data = serialize(serializer, record);
@@ -61,10 +83,95 @@ public class HeapBufStore implements Store {
         //-WUNLOCK
     }
 
+    @Override
+    public void preallocate(long[] ids) {
+        //-WLOCK
+        for(int i=0;i<ids.length;i++)
+            ids[i] = preallocate2();
+        //-WUNLOCK
+    }
+
+    @Override
+    public <R> long[] putAll(Collection<? extends R> values, Serializer<R> serializer) {
+        byte[][] data = new byte[values.size()][];
+        int i = 0;
+        for(R value:values)
+            data[i++] = serialize(serializer, value);
+        if(i!=data.length)
+            throw new ConcurrentModificationException();
+        long[] ret = new long[data.length];
+        //-WLOCK
+        for(i=0;i<data.length;i++){
+            long recid = preallocate2();
+            records.put(recid, data[i]);
+            ret[i] = recid;
+        }
+        return ret;
+        //-WUNLOCK
+    }
+
+    @Override
+    public <R> void getAll(long[] ids, Serializer<R> serializer, Object[] into) {
+        byte[][] data = new byte[ids.length][];
+        //-RLOCK
+        for(int i=0;i<ids.length;i++)
+            data[i] = checkExists(ids[i]);
+        //-RUNLOCK
+        for(int i=0;i<ids.length;i++)
+            into[i] = deser(serializer, data[i]);
+    }
+
+    @Override
+    public <R> void updateAll(long[] ids, Serializer<R> serializer, List<? extends R> values) {
+        if(ids.length!=values.size())
+            throw new IllegalArgumentException("number of recids and records differs");
+        byte[][] data = new byte[ids.length][];
+        for(int i=0;i<ids.length;i++)
+            data[i] = serialize(serializer, values.get(i));
+        //-WLOCK
+        for(long recid:ids)
+            checkExists(recid);
+        for(int i=0;i<ids.length;i++){
+            records.put(ids[i], data[i]);
+            recordModified(ids[i]);
+        }
+        //-WUNLOCK
+    }
+
+    @Override
+    public <R> void preallocatePutAll(long[] ids, Serializer<R> serializer, List<? extends R> values) {
+        if(ids.length!=values.size())
+            throw new IllegalArgumentException("number of recids and records differs");
+        byte[][] data = new byte[ids.length][];
+        for(int i=0;i<ids.length;i++)
+            data[i] = serialize(serializer, values.get(i));
+        //-WLOCK
+        for(long recid:ids){
+            if(recordGet(recid)!=PREALLOC_RECORD)
+                throw new DBException.RecordNotPreallocated();
+        }
+        for(int i=0;i<ids.length;i++){
+            records.put(ids[i], data[i]);
+            recordModified(ids[i]);
+        }
+        //-WUNLOCK
+    }
+
+    @Override
+    public <R> void deleteAll(long[] ids, Serializer<R> serializer) {
+        //-WLOCK
+        for(long recid:ids)
+            checkExists(recid);
+        for(long recid:ids)
+            delete2(recid);
+        //-WUNLOCK
+    }
+
     protected <K> byte[] serialize(Serializer<K> serializer, K record) {
         if(record == null)
             throw new NullPointerException();
-        return Serializers.serializeToByteArray(record, serializer);
+        byte[] data = Serializers.serializeToByteArray(record, serializer);
+        return compression==null ? data : compression.compress(data);
     }
 
     protected <E> E deser(Serializer<E> ser, byte[] value){
@@ -72,12 +179,21 @@ public class HeapBufStore implements Store {
             throw new DBException.PreallocRecordAccess();
         if(value == null)
             throw new DBException.RecordNotFound();
-        return ser.deserialize(new DataInput2ByteArray(value));
+        return ser.deserialize(new DataInput2ByteArray(recordData(value)));
+    }
+
+    /** returns serialized record from its stored form */
+    protected byte[] recordData(byte[] stored){
+        return compression==null ? stored : compression.decompress(stored);
+    }
+
+    protected ByteBuffer wrapRecord(byte[] stored){
+        return ByteBuffer.wrap(recordData(stored)).asReadOnlyBuffer();
     }
 
 
     private byte[] checkExists(long recid) {
-        byte[] old = records.get(recid);
+        byte[] old = recordGet(recid);
         if(old == PREALLOC_RECORD)
             throw new DBException.PreallocRecordAccess();
         if(old == null)
@@ -93,6 +209,7 @@ public class HeapBufStore implements Store {
         //-WLOCK
         checkExists(recid);
         records.put(recid, newData);
+        recordModified(recid);
         //-WUNLOCK
     }
 
@@ -100,13 +217,12 @@ public class HeapBufStore implements Store {
     @Override
     public <R> void updateAtomic(long recid, Serializer<R> serializer, Transform<R> r) {
         //-WLOCK
-        checkExists(recid);
-
-        R oldRec = deser(serializer, records.get(recid));
+        R oldRec = deser(serializer, checkExists(recid));
         R newRec = r.transform(oldRec);
         byte[] newVal = serialize(serializer, newRec);
 
         records.put(recid, newVal);
+        recordModified(recid);
         //-WUNLOCK
     }
 
@@ -120,6 +236,7 @@ public class HeapBufStore implements Store {
             return false;
         b = serialize(serializer, updatedRecord);
         records.put(recid, b);
+        recordModified(recid);
         return true;
         //-WUNLOCK
     }
@@ -145,15 +262,15 @@ public class HeapBufStore implements Store {
 
     protected void delete2(long recid) {
         //-ARLOCKED
-        byte[] buf = records.removeKey(recid);
+        byte[] buf = recordGet(recid);
         if(buf == null)
             throw new DBException.RecordNotFound();
-        if(buf == PREALLOC_RECORD) {
-            records.put(recid, PREALLOC_RECORD);
+        if(buf == PREALLOC_RECORD)
             throw new DBException.PreallocRecordAccess();
-        }
 
-        freeRecids.add(recid);
+        records.remove(recid);
+        recordModified(recid);
+        recids.release(recid);
     }
 
     @Override
@@ -171,7 +288,7 @@ public class HeapBufStore implements Store {
         if(recid<=0)
             throw new DBException.RecordNotFound();
         byte[] buf = null;
-        //--RLOCK
+        //-RLOCK
         buf = checkExists(recid);
         //-RUNLOCK
 
@@ -181,32 +298,64 @@ public class HeapBufStore implements Store {
 
     @Override
     public void getAll(GetAllCallback callback) {
-        //--RLOCK
+        //-RLOCK
         records.forEachKeyValue(
                 (recid, buf) -> {
                     if (buf != PREALLOC_RECORD)
-                        callback.takeOne(recid, buf);
+                        callback.takeOne(recid, recordData(buf));
                 });
         //-RUNLOCK
     }
 
+    @Override
+    public <R> R read(long recid, RecordReader<R> reader) {
+        byte[] data;
+        //-RLOCK
+        data = checkExists(recid);
+        //-RUNLOCK
+        // stored arrays are never modified, so they can be wrapped without copy
+        return reader.read(wrapRecord(data));
+    }
 
     @Override
-    public boolean isEmpty() {
+    public void readAll(ReadAllCallback callback) {
         //-RLOCK
-        return records.isEmpty();
+        records.forEachKeyValue(
+                (recid, buf) -> {
+                    if (buf != PREALLOC_RECORD)
+                        callback.takeOne(recid, wrapRecord(buf));
+                });
+        //-RUNLOCK
+    }
+
+    protected void readRange(long from, long until, ReadAllCallback callback) {
+        //-RLOCK
+        for(long recid=from; recid<until; recid++){
+            byte[] buf = records.get(recid);
+            if(buf!=null && buf!=PREALLOC_RECORD)
+                callback.takeOne(recid, wrapRecord(buf));
+        }
         //-RUNLOCK
     }
 
     @Override
-    public void close() {
+    public <R> Spliterator<R> spliterator(RecordMapper<R> mapper) {
+        return new RecidSpliterator<>(this::readRange, 1, recids.getMaxRecid()+1, mapper);
     }
 
 
     @Override
-    public void verify() {
+    public boolean isEmpty() {
+        //-RLOCK
+        return records.isEmpty();
+        //-RUNLOCK
     }
 
+    @Override
+    public void close() {
+    }
+
+
     @Override
     public void commit() {
 
@@ -216,7 +365,6 @@ public class HeapBufStore implements Store {
     public void compact() {
         //-WLOCK
         records.compact();
-        freeRecids.trimToSize();
         //-WUNLOCK
     }
 
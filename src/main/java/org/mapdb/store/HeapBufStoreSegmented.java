@@ -0,0 +1,373 @@
+package org.mapdb.store;
+
+import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.mapdb.DBException;
+import org.mapdb.io.DataIO;
+import org.mapdb.io.DataInput2ByteArray;
+import org.mapdb.ser.Serializer;
+import org.mapdb.ser.Serializers;
+
+import java.nio.ByteBuffer;
+import java.util.Spliterator;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Thread safe variant of {@link HeapBufStore}. Records are split into segments, recid is hashed to find its segment.
+ * Each segment has its own lock and recids are allocated by lock-free {@link RecidAllocator},
+ * so writes into different recids do not have to wait for single global lock.
+ */
+public class HeapBufStoreSegmented implements Store {
+
+    protected static final byte[] PREALLOC_RECORD = HeapBufStore.PREALLOC_RECORD;
+
+    public static final int DEFAULT_SEGMENT_COUNT = 16;
+
+    protected static final class Segment{
+        protected final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        protected final LongObjectHashMap<byte[]> records = LongObjectHashMap.newMap();
+    }
+
+    protected final Segment[] segments;
+    protected final int segmentMask;
+
+    protected final RecidAllocator recids = new RecidAllocator();
+
+    /** compresses stored records, null if compression is disabled */
+    protected final RecordCompression compression;
+
+    public HeapBufStoreSegmented() {
+        this(DEFAULT_SEGMENT_COUNT);
+    }
+
+    public HeapBufStoreSegmented(int segmentCount) {
+        this(segmentCount, null);
+    }
+
+    public HeapBufStoreSegmented(int segmentCount, @Nullable RecordCompression compression) {
+        this.compression = compression;
+        if(segmentCount<=0)
+            throw new IllegalArgumentException("segmentCount must be positive");
+        segmentCount = DataIO.nextPowTwo(segmentCount);
+        segments = new Segment[segmentCount];
+        for(int i=0;i<segmentCount;i++){
+            segments[i] = new Segment();
+        }
+        segmentMask = segmentCount-1;
+    }
+
+    protected int segmentIndex(long recid){
+        return DataIO.longHash(recid) & segmentMask;
+    }
+
+    protected Segment segment(long recid){
+        return segments[segmentIndex(recid)];
+    }
+
+    /** called after record was inserted, updated or deleted, while segment write lock is held */
+    protected void recordModified(long recid){
+    }
+
+    /** Allocates new recid and inserts given record under it. */
+    protected long allocate(byte[] data){
+        long recid = recids.allocate();
+        Segment s = segment(recid);
+        Lock lock = s.lock.writeLock();
+        lock.lock();
+        try{
+            s.records.put(recid, data);
+            recordModified(recid);
+        }finally {
+            lock.unlock();
+        }
+        return recid;
+    }
+
+    @Override
+    public long preallocate() {
+        return allocate(PREALLOC_RECORD);
+    }
+
+    @Override
+    public <R> void preallocatePut(long recid, @NotNull Serializer<R> serializer, @NotNull R record) {
+        byte[] data = serialize(serializer, record);
+        Segment s = segment(recid);
+        Lock lock = s.lock.writeLock();
+        lock.lock();
+        try {
+            byte[] old = s.records.get(recid);
+            if (old != PREALLOC_RECORD)
+                throw new DBException.RecordNotPreallocated();
+            s.records.put(recid, data);
+            recordModified(recid);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <K> long put(K record, Serializer<K> serializer) {
+        byte[] data = serialize(serializer, record);
+        return allocate(data);
+    }
+
+    protected <K> byte[] serialize(Serializer<K> serializer, K record) {
+        if(record == null)
+            throw new NullPointerException();
+        byte[] data = Serializers.serializeToByteArray(record, serializer);
+        return compression==null ? data : compression.compress(data);
+    }
+
+    protected <E> E deser(Serializer<E> ser, byte[] value){
+        if(value == PREALLOC_RECORD)
+            throw new DBException.PreallocRecordAccess();
+        if(value == null)
+            throw new DBException.RecordNotFound();
+        return ser.deserialize(new DataInput2ByteArray(recordData(value)));
+    }
+
+    /** returns serialized record from its stored form */
+    protected byte[] recordData(byte[] stored){
+        return compression==null ? stored : compression.decompress(stored);
+    }
+
+    protected ByteBuffer wrapRecord(byte[] stored){
+        return ByteBuffer.wrap(recordData(stored)).asReadOnlyBuffer();
+    }
+
+    private static byte[] checkExists(Segment s, long recid) {
+        byte[] old = s.records.get(recid);
+        if(old == PREALLOC_RECORD)
+            throw new DBException.PreallocRecordAccess();
+        if(old == null)
+            throw new DBException.RecordNotFound();
+        return old;
+    }
+
+    @Override
+    public <K> void update(long recid, Serializer<K> serializer, K updatedRecord) {
+        byte[] newData = serialize(serializer, updatedRecord);
+        Segment s = segment(recid);
+        Lock lock = s.lock.writeLock();
+        lock.lock();
+        try {
+            checkExists(s, recid);
+            s.records.put(recid, newData);
+            recordModified(recid);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> void updateAtomic(long recid, Serializer<R> serializer, Transform<R> r) {
+        Segment s = segment(recid);
+        Lock lock = s.lock.writeLock();
+        lock.lock();
+        try {
+            R oldRec = deser(serializer, checkExists(s, recid));
+            R newRec = r.transform(oldRec);
+            s.records.put(recid, serialize(serializer, newRec));
+            recordModified(recid);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> boolean compareAndUpdate(long recid, Serializer<R> serializer, R expectedOldRecord, R updatedRecord) {
+        Segment s = segment(recid);
+        Lock lock = s.lock.writeLock();
+        lock.lock();
+        try {
+            R rec = deser(serializer, checkExists(s, recid));
+            if (!serializer.equals(rec, expectedOldRecord))
+                return false;
+            s.records.put(recid, serialize(serializer, updatedRecord));
+            recordModified(recid);
+            return true;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> boolean compareAndDelete(long recid, Serializer<R> serializer, R expectedOldRecord) {
+        Segment s = segment(recid);
+        Lock lock = s.lock.writeLock();
+        lock.lock();
+        try {
+            R rec = deser(serializer, checkExists(s, recid));
+            if (!serializer.equals(rec, expectedOldRecord))
+                return false;
+            delete2(s, recid);
+            return true;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> void delete(long recid, Serializer<R> serializer) {
+        Segment s = segment(recid);
+        Lock lock = s.lock.writeLock();
+        lock.lock();
+        try {
+            checkExists(s, recid);
+            delete2(s, recid);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    protected void delete2(Segment s, long recid) {
+        s.records.removeKey(recid);
+        recordModified(recid);
+        recids.release(recid);
+    }
+
+    @Override
+    public <R> R getAndDelete(long recid, Serializer<R> serializer) {
+        byte[] buf;
+        Segment s = segment(recid);
+        Lock lock = s.lock.writeLock();
+        lock.lock();
+        try {
+            buf = checkExists(s, recid);
+            delete2(s, recid);
+        }finally {
+            lock.unlock();
+        }
+        return deser(serializer, buf);
+    }
+
+    @Override
+    public <K> K get(long recid, Serializer<K> ser) {
+        if(recid<=0)
+            throw new DBException.RecordNotFound();
+        byte[] buf;
+        Segment s = segment(recid);
+        Lock lock = s.lock.readLock();
+        lock.lock();
+        try {
+            buf = checkExists(s, recid);
+        }finally {
+            lock.unlock();
+        }
+        return deser(ser, buf);
+    }
+
+    @Override
+    public <R> R read(long recid, RecordReader<R> reader) {
+        if(recid<=0)
+            throw new DBException.RecordNotFound();
+        byte[] buf;
+        Segment s = segment(recid);
+        Lock lock = s.lock.readLock();
+        lock.lock();
+        try {
+            buf = checkExists(s, recid);
+        }finally {
+            lock.unlock();
+        }
+        return reader.read(wrapRecord(buf));
+    }
+
+    @Override
+    public void getAll(GetAllCallback callback) {
+        //take snapshot of all segments, records are immutable so buffers can be shared
+        LongObjectHashMap<byte[]> all = LongObjectHashMap.newMap();
+        for(Segment s:segments){
+            Lock lock = s.lock.readLock();
+            lock.lock();
+            try {
+                s.records.forEachKeyValue((recid, buf) -> {
+                    if (buf != PREALLOC_RECORD)
+                        all.put(recid, buf);
+                });
+            }finally {
+                lock.unlock();
+            }
+        }
+
+        for(long recid:all.keySet().toSortedArray()){
+            callback.takeOne(recid, recordData(all.get(recid)));
+        }
+    }
+
+    protected void readRange(long from, long until, ReadAllCallback callback) {
+        for(long recid=from; recid<until; recid++){
+            byte[] buf;
+            Segment s = segment(recid);
+            Lock lock = s.lock.readLock();
+            lock.lock();
+            try {
+                buf = s.records.get(recid);
+            }finally {
+                lock.unlock();
+            }
+            if(buf!=null && buf!=PREALLOC_RECORD)
+                callback.takeOne(recid, wrapRecord(buf));
+        }
+    }
+
+    @Override
+    public <R> Spliterator<R> spliterator(RecordMapper<R> mapper) {
+        return new RecidSpliterator<>(this::readRange, 1, recids.getMaxRecid()+1, mapper);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for(Segment s:segments){
+            Lock lock = s.lock.readLock();
+            lock.lock();
+            try {
+                if(!s.records.isEmpty())
+                    return false;
+            }finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    protected void lockAllWrite(){
+        for(Segment s:segments)
+            s.lock.writeLock().lock();
+    }
+
+    protected void unlockAllWrite(){
+        for(Segment s:segments)
+            s.lock.writeLock().unlock();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void commit() {
+    }
+
+    @Override
+    public void compact() {
+        for(Segment s:segments){
+            Lock lock = s.lock.writeLock();
+            lock.lock();
+            try {
+                s.records.compact();
+            }finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+}
@@ -0,0 +1,246 @@
+package org.mapdb.store;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.mapdb.DBException;
+import org.mapdb.ser.Serializer;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of deserialized record instances, keyed by recid. Repeated reads of cached record return the same instance,
+ * so it is only enabled for serializers of immutable records, see {@link #enable(Serializer)}.
+ *
+ * Store calls {@link #put(long, Serializer, Object)} after record was read under its read lock,
+ * and {@link #remove(long)} when record is modified under its write lock, so stale instance is never returned.
+ *
+ * Instances are in concurrent map, so {@link #get(long, Serializer)} does not lock.
+ * In {@link Mode#HARD_LRU} mode the LRU list has its own lock, read moves entry to end of list
+ * only if lock is free, so recency order is approximate under contention.
+ */
+public final class InstanceCache {
+
+    public enum Mode{
+        /** keeps strong references to least recently used instances, number of instances is bounded */
+        HARD_LRU,
+        /** instances are released by GC when it runs out of memory */
+        SOFT,
+        /** instances are released by GC when they are no longer used outside of cache */
+        WEAK
+    }
+
+    public static final int DEFAULT_SIZE = 2048;
+
+    private static final class Entry{
+        final long recid;
+        final Serializer<?> serializer;
+        final Object value;
+        Entry prev, next;
+
+        Entry(long recid, Serializer<?> serializer, Object value) {
+            this.recid = recid;
+            this.serializer = serializer;
+            this.value = value;
+        }
+    }
+
+    private static final class Ref extends SoftReference<Object>{
+        final long recid;
+        final Serializer<?> serializer;
+
+        Ref(long recid, Serializer<?> serializer, Object value, ReferenceQueue<Object> queue) {
+            super(value, queue);
+            this.recid = recid;
+            this.serializer = serializer;
+        }
+    }
+
+    private static final class WeakRef extends WeakReference<Object>{
+        final long recid;
+        final Serializer<?> serializer;
+
+        WeakRef(long recid, Serializer<?> serializer, Object value, ReferenceQueue<Object> queue) {
+            super(value, queue);
+            this.recid = recid;
+            this.serializer = serializer;
+        }
+    }
+
+    private final Mode mode;
+    private final int maxSize;
+
+    private final Set<Serializer<?>> serializers = Collections.newSetFromMap(new IdentityHashMap<>());
+    private volatile Serializer<?>[] enabled = new Serializer[0];
+
+    /** values are {@link Entry} in LRU mode, or references */
+    private final ConcurrentHashMap<Long,Object> map = new ConcurrentHashMap<>();
+    /** guards LRU list, in LRU mode map is also modified under this lock */
+    private final ReentrantLock lruLock = new ReentrantLock();
+    /** LRU list, head is least recently used */
+    private Entry head, tail;
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+    public InstanceCache(@NotNull Mode mode) {
+        this(mode, DEFAULT_SIZE);
+    }
+
+    /**
+     * @param mode how instances are referenced
+     * @param maxSize max number of instances in {@link Mode#HARD_LRU} mode
+     */
+    public InstanceCache(@NotNull Mode mode, int maxSize) {
+        if(maxSize<=0)
+            throw new DBException.WrongConfig("cache size must be positive");
+        this.mode = mode;
+        this.maxSize = maxSize;
+    }
+
+    /** enables caching of records read with given serializer, it must produce immutable instances */
+    public InstanceCache enable(@NotNull Serializer<?> serializer){
+        synchronized (serializers){
+            serializers.add(serializer);
+            enabled = serializers.toArray(new Serializer[0]);
+        }
+        return this;
+    }
+
+    public boolean isEnabled(@NotNull Serializer<?> serializer){
+        for(Serializer<?> s:enabled){
+            if(s==serializer)
+                return true;
+        }
+        return false;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /** returns cached instance, or null if recid is not cached, or was read with different serializer */
+    @Nullable
+    public <R> R get(long recid, @NotNull Serializer<R> serializer){
+        Object o = map.get(recid);
+        if(o==null)
+            return null;
+        Object value;
+        Serializer<?> ser;
+        if(o instanceof Entry){
+            Entry e = (Entry) o;
+            value = e.value;
+            ser = e.serializer;
+            //skip reordering if other thread holds the lock
+            if(lruLock.tryLock()){
+                try {
+                    if(map.get(recid)==e){
+                        unlink(e);
+                        link(e);
+                    }
+                }finally {
+                    lruLock.unlock();
+                }
+            }
+        }else if(o instanceof Ref){
+            value = ((Ref) o).get();
+            ser = ((Ref) o).serializer;
+        }else{
+            value = ((WeakRef) o).get();
+            ser = ((WeakRef) o).serializer;
+        }
+        return ser==serializer ? (R) value : null;
+    }
+
+    public <R> void put(long recid, @NotNull Serializer<R> serializer, @NotNull R value){
+        if(mode==Mode.HARD_LRU){
+            lruLock.lock();
+            try {
+                Entry e = new Entry(recid, serializer, value);
+                Object old = map.put(recid, e);
+                if(old!=null)
+                    unlink((Entry) old);
+                link(e);
+                while(map.size()>maxSize){
+                    Entry first = head;
+                    unlink(first);
+                    map.remove(first.recid);
+                }
+            }finally {
+                lruLock.unlock();
+            }
+        }else{
+            expunge();
+            map.put(recid, mode==Mode.SOFT ?
+                    new Ref(recid, serializer, value, queue) :
+                    new WeakRef(recid, serializer, value, queue));
+        }
+    }
+
+    public void remove(long recid){
+        if(mode==Mode.HARD_LRU){
+            lruLock.lock();
+            try {
+                Object old = map.remove(recid);
+                if(old!=null)
+                    unlink((Entry) old);
+            }finally {
+                lruLock.unlock();
+            }
+        }else{
+            map.remove(recid);
+        }
+    }
+
+    public void clear(){
+        lruLock.lock();
+        try {
+            map.clear();
+            head = null;
+            tail = null;
+        }finally {
+            lruLock.unlock();
+        }
+        expunge();
+    }
+
+    public int size(){
+        return map.size();
+    }
+
+    /** removes references which were cleared by GC */
+    private void expunge(){
+        for(Reference<?> r = queue.poll(); r!=null; r = queue.poll()){
+            long recid = r instanceof Ref ? ((Ref) r).recid : ((WeakRef) r).recid;
+            map.remove(recid, r);
+        }
+    }
+
+    private void link(Entry e){
+        e.prev = tail;
+        e.next = null;
+        if(tail==null)
+            head = e;
+        else
+            tail.next = e;
+        tail = e;
+    }
+
+    private void unlink(Entry e){
+        if(e.prev==null)
+            head = e.next;
+        else
+            e.prev.next = e.next;
+        if(e.next==null)
+            tail = e.prev;
+        else
+            e.next.prev = e.prev;
+        e.prev = null;
+        e.next = null;
+    }
+}
@@ -2,8 +2,15 @@ package org.mapdb.store;
 
 import org.jetbrains.annotations.NotNull;
 import org.mapdb.ser.Serializer;
+import org.mapdb.ser.Serializers;
 
 import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public interface ReadonlyStore extends Closeable {
 
@@ -28,6 +35,56 @@ public interface ReadonlyStore extends Closeable {
         void takeOne(long recid, @NotNull byte[] data);
     }
 
+    interface RecordReader<R>{
+        R read(@NotNull ByteBuffer record);
+    }
+
+    /**
+     * Passes stored bytes of existing record to reader, stores backed by {@link java.nio.ByteBuffer}s do not copy them.
+     * Buffer is read-only, positioned at start of record and limited at its end. It is only valid inside reader,
+     * use {@link org.mapdb.io.DataInput2ByteBuffer} to deserialize it.
+     *
+     * @return value returned by reader
+     */
+    default <R> R read(long recid, @NotNull RecordReader<R> reader) {
+        byte[] b = get(recid, Serializers.BYTE_ARRAY_NOSIZE);
+        return reader.read(ByteBuffer.wrap(b).asReadOnlyBuffer());
+    }
+
+    interface ReadAllCallback{
+        void takeOne(long recid, @NotNull ByteBuffer record);
+    }
+
+    /**
+     * Iterates over all records in store, same as {@link #getAll(GetAllCallback)}, but record bytes are
+     * not copied if possible. Buffer is only valid inside callback, see {@link #read(long, RecordReader)}.
+     */
+    default void readAll(@NotNull ReadAllCallback callback) {
+        getAll((recid, data) -> callback.takeOne(recid, ByteBuffer.wrap(data).asReadOnlyBuffer()));
+    }
+
+    interface RecordMapper<R>{
+        R map(long recid, @NotNull ByteBuffer record);
+    }
+
+    /**
+     * Returns spliterator over all records in store, ordered by recid. Mapper converts record into value,
+     * record buffer is only valid inside mapper, see {@link #read(long, RecordReader)}.
+     *
+     * Stores split it by recid ranges, so parallel stream reads store from all cores.
+     * Default implementation reads all records first.
+     */
+    default <R> Spliterator<R> spliterator(@NotNull RecordMapper<R> mapper) {
+        List<R> ret = new ArrayList<>();
+        readAll((recid, record) -> ret.add(mapper.map(recid, record)));
+        return ret.spliterator();
+    }
+
+    /** Returns stream over all records in store, see {@link #spliterator(RecordMapper)}. */
+    default <R> Stream<R> stream(@NotNull RecordMapper<R> mapper, boolean parallel) {
+        return StreamSupport.stream(spliterator(mapper), parallel);
+    }
+
     /**
      * Returns true if store does not contain any data and no recids were allocated yet.
      * Store is usually empty just after creation.
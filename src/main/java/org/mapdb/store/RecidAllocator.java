@@ -0,0 +1,281 @@
+package org.mapdb.store;
+
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.mapdb.DBException;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free allocator of recids, shared by Store implementations.
+ *
+ * New recids are taken from a global counter. Released recids are recycled; each thread keeps small cache of
+ * free recids and exchanges them with other threads in batches through a lock-free stack.
+ * Threads also reserve ranges of new recids in batches, so the global counter is not contended.
+ * When thread dies, its cache is garbage collected and cached recids are returned to shared pool.
+ *
+ * Reserved recids (up to {@link Recids#RECID_MAX_RESERVED}) are never batched,
+ * they are handed out one by one in sequential order.
+ *
+ * Allocator state can be exported with {@link #snapshot()} and restored with {@link #restore(long[])},
+ * so file based stores do not have to rebuild free recids by scanning all records.
+ */
+public final class RecidAllocator {
+
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    /** full batch of released recids, node of lock-free stack */
+    private static final class Batch{
+        final long[] recids;
+        final Batch next;
+
+        Batch(long[] recids, Batch next) {
+            this.recids = recids;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Per-thread cache, it is only modified by its owner thread.
+     * It is static and does not reference allocator, so thread locals do not keep allocator alive.
+     */
+    private static final class Cache{
+        int generation = -1;
+
+        /** released recids */
+        final long[] free;
+        int freeSize;
+
+        /** range of new recids reserved by this thread: `[freshNext, freshEnd)` */
+        long freshNext;
+        long freshEnd;
+
+        Cache(int batchSize) {
+            free = new long[batchSize*2];
+        }
+
+        void reset(int generation){
+            this.generation = generation;
+            freeSize = 0;
+            freshNext = 0;
+            freshEnd = 0;
+        }
+    }
+
+    /** thread local value, when it is garbage collected (thread died) recids from its cache are returned to shared pool */
+    private static final class Owner{
+        final Cache cache;
+        CacheRef ref;
+
+        Owner(Cache cache) {
+            this.cache = cache;
+        }
+    }
+
+    /** weak registry entry, keeps cache reachable after its owner is collected, so its recids can be reclaimed */
+    private static final class CacheRef extends WeakReference<Owner>{
+        final Cache cache;
+
+        CacheRef(Owner owner, ReferenceQueue<Owner> queue) {
+            super(owner, queue);
+            this.cache = owner.cache;
+        }
+    }
+
+    private final int batchSize;
+
+    private final AtomicLong maxRecid = new AtomicLong(0L);
+
+    private final AtomicReference<Batch> freeBatches = new AtomicReference<>();
+
+    /** caches are invalidated when this changes */
+    private volatile int generation = 0;
+
+    private final Set<CacheRef> allCaches = ConcurrentHashMap.newKeySet();
+
+    private final ReferenceQueue<Owner> deadCaches = new ReferenceQueue<>();
+
+    private final ThreadLocal<Owner> caches;
+
+    public RecidAllocator() {
+        this(DEFAULT_BATCH_SIZE);
+    }
+
+    public RecidAllocator(int batchSize) {
+        if(batchSize<=0)
+            throw new IllegalArgumentException("batchSize must be positive");
+        this.batchSize = batchSize;
+        this.caches = ThreadLocal.withInitial(() -> new Owner(new Cache(batchSize)));
+    }
+
+    private Cache cache(){
+        Owner owner = caches.get();
+        Cache c = owner.cache;
+        int gen = generation;
+        if(c.generation!=gen) {
+            c.reset(gen);
+            if(owner.ref==null)
+                owner.ref = new CacheRef(owner, deadCaches);
+            allCaches.add(owner.ref);
+            reclaimDeadCaches();
+        }
+        return c;
+    }
+
+    /** moves recids from caches of dead threads into shared pool */
+    private void reclaimDeadCaches(){
+        for(Reference<? extends Owner> ref = deadCaches.poll(); ref!=null; ref = deadCaches.poll()){
+            Cache c = ((CacheRef) ref).cache;
+            if(!allCaches.remove(ref) || c.generation!=generation)
+                continue;
+            long[] free = Arrays.copyOf(c.free, c.freeSize);
+            if(free.length>0)
+                pushBatch(free);
+            if(c.freshNext<c.freshEnd){
+                long[] fresh = new long[(int) (c.freshEnd-c.freshNext)];
+                for(int i=0; i<fresh.length; i++)
+                    fresh[i] = c.freshNext+i;
+                pushBatch(fresh);
+            }
+        }
+    }
+
+    /** returns new or recycled recid */
+    public long allocate(){
+        Cache c = cache();
+
+        if(c.freeSize>0)
+            return c.free[--c.freeSize];
+
+        reclaimDeadCaches();
+
+        //take batch released by other threads
+        for(Batch b = freeBatches.get(); b!=null; b = freeBatches.get()){
+            if(freeBatches.compareAndSet(b, b.next)){
+                System.arraycopy(b.recids, 0, c.free, 0, b.recids.length);
+                c.freeSize = b.recids.length;
+                return c.free[--c.freeSize];
+            }
+        }
+
+        if(c.freshNext<c.freshEnd)
+            return c.freshNext++;
+
+        //reserve new range
+        for(;;) {
+            long max = maxRecid.get();
+            if (max < Recids.RECID_MAX_RESERVED) {
+                //reserved recids are allocated one by one, so they stay in sequential order
+                if (maxRecid.compareAndSet(max, max + 1))
+                    return max + 1;
+                continue;
+            }
+            long start = maxRecid.getAndAdd(batchSize)+1;
+            c.freshNext = start+1;
+            c.freshEnd = start+batchSize;
+            return start;
+        }
+    }
+
+    /** returns recid back to allocator, so it can be reused */
+    public void release(long recid){
+        if(recid<=0 || recid>maxRecid.get())
+            throw new DBException.RecordNotFound();
+        Cache c = cache();
+        c.free[c.freeSize++] = recid;
+        if(c.freeSize==c.free.length){
+            //cache is full, move half to other threads
+            c.freeSize -= batchSize;
+            long[] recids = new long[batchSize];
+            System.arraycopy(c.free, c.freeSize, recids, 0, batchSize);
+            pushBatch(recids);
+        }
+    }
+
+    private void pushBatch(long[] recids){
+        for(;;){
+            Batch head = freeBatches.get();
+            if(freeBatches.compareAndSet(head, new Batch(recids, head)))
+                return;
+        }
+    }
+
+    /** highest recid returned by this allocator, all recids ever allocated are smaller or equal */
+    public long getMaxRecid(){
+        return maxRecid.get();
+    }
+
+    /**
+     * Returns state of this allocator: first element is max recid, followed by free recids.
+     * Recids cached by threads are moved to shared pool.
+     *
+     * It must not be called concurrently with other methods.
+     */
+    public long[] snapshot(){
+        reclaimDeadCaches();
+        LongArrayList free = new LongArrayList();
+        for(CacheRef ref: allCaches){
+            Cache c = ref.cache;
+            if(c.generation!=generation)
+                continue;
+            for(int i=0; i<c.freeSize; i++)
+                free.add(c.free[i]);
+            for(long recid=c.freshNext; recid<c.freshEnd; recid++)
+                free.add(recid);
+        }
+        for(Batch b = freeBatches.get(); b!=null; b = b.next){
+            free.addAll(b.recids);
+        }
+
+        free.addAtIndex(0, maxRecid.get());
+        long[] ret = free.toArray();
+
+        restore(ret);
+        return ret;
+    }
+
+    /** replaces state of this allocator with data from {@link #snapshot()}. It must not be called concurrently with other methods. */
+    public void restore(long[] snapshot){
+        clear();
+        maxRecid.set(snapshot[0]);
+        for(int pos=1; pos<snapshot.length; pos+=batchSize){
+            int size = Math.min(batchSize, snapshot.length-pos);
+            long[] recids = new long[size];
+            System.arraycopy(snapshot, pos, recids, 0, size);
+            pushBatch(recids);
+        }
+    }
+
+    /** rebuilds state from max recid and list of used recids, all other recids are free */
+    public void restoreFromUsed(long maxRecid, long[] used){
+        used = used.clone();
+        Arrays.sort(used);
+        LongArrayList free = new LongArrayList();
+        free.add(maxRecid);
+        int pos = 0;
+        for(long recid = 1; recid<=maxRecid; recid++){
+            if(pos<used.length && used[pos]==recid) {
+                while(pos<used.length && used[pos]==recid)
+                    pos++;
+            }else {
+                free.add(recid);
+            }
+        }
+        restore(free.toArray());
+    }
+
+    /** forgets all allocated recids. It must not be called concurrently with other methods. */
+    public void clear(){
+        generation++;
+        allCaches.clear();
+        freeBatches.set(null);
+        maxRecid.set(0L);
+    }
+
+}
@@ -0,0 +1,91 @@
+package org.mapdb.store;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over records in recid range, used for parallel scan of store.
+ * Range is split in halves, so each worker reads disjoint recid range.
+ * Records are read ahead in batches of {@link #BATCH_SIZE} recids, store is usually locked only once for each batch.
+ */
+public final class RecidSpliterator<R> implements Spliterator<R> {
+
+    public static final int BATCH_SIZE = 1024;
+
+    /** reads records in store */
+    public interface RangeReader{
+        /**
+         * Passes existing records with recid in range {@code [from, until)} to callback, in ascending recid order.
+         * Preallocated and deleted recids are skipped.
+         */
+        void readRange(long from, long until, @NotNull ReadonlyStore.ReadAllCallback callback);
+    }
+
+    private final RangeReader reader;
+    private final ReadonlyStore.RecordMapper<R> mapper;
+    private long from;
+    private final long until;
+
+    private final ArrayDeque<R> buffer = new ArrayDeque<>();
+
+    /**
+     * @param reader reads records from store
+     * @param from first recid (inclusive)
+     * @param until last recid (exclusive)
+     * @param mapper converts record into value, it is called while record data are valid and must not return null
+     */
+    public RecidSpliterator(@NotNull RangeReader reader, long from, long until, @NotNull ReadonlyStore.RecordMapper<R> mapper) {
+        this.reader = reader;
+        this.mapper = mapper;
+        this.from = from;
+        this.until = until;
+    }
+
+    private boolean fill(){
+        while(buffer.isEmpty() && from<until){
+            long end = Math.min(until, from+BATCH_SIZE);
+            reader.readRange(from, end, (recid, data) -> buffer.add(mapper.map(recid, data)));
+            from = end;
+        }
+        return !buffer.isEmpty();
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super R> action) {
+        if(!fill())
+            return false;
+        action.accept(buffer.poll());
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super R> action) {
+        while(fill()){
+            for(R r = buffer.poll(); r!=null; r = buffer.poll())
+                action.accept(r);
+        }
+    }
+
+    @Override
+    public Spliterator<R> trySplit() {
+        if(!buffer.isEmpty() || until-from<=BATCH_SIZE)
+            return null;
+        long mid = from + (until-from)/2;
+        RecidSpliterator<R> prefix = new RecidSpliterator<>(reader, from, mid, mapper);
+        from = mid;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return until-from+buffer.size();
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+}
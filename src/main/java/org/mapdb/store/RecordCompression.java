@@ -0,0 +1,109 @@
+package org.mapdb.store;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.jetbrains.annotations.NotNull;
+import org.mapdb.DBException;
+import org.mapdb.io.DataIO;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * LZ4 compression of serialized records, used by stores between serialization and write.
+ *
+ * Stored record starts with packed int header. Zero means record is stored as is,
+ * otherwise header is size of record and LZ4 block follows. Records smaller than threshold,
+ * or records which do not get smaller, are not compressed.
+ */
+public final class RecordCompression {
+
+    public static final int DEFAULT_THRESHOLD = 64;
+
+    private static final LZ4Compressor COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+
+    private final int threshold;
+
+    public RecordCompression() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /** @param threshold records smaller than this are not compressed */
+    public RecordCompression(int threshold) {
+        if(threshold<0)
+            throw new DBException.WrongConfig("compression threshold can not be negative");
+        this.threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /** returns stored form of record */
+    @NotNull
+    public byte[] compress(@NotNull byte[] buf, int off, int len){
+        if(len>=threshold && len>0){
+            int headSize = DataIO.packLongSize(len);
+            byte[] ret = new byte[headSize+COMPRESSOR.maxCompressedLength(len)];
+            DataIO.packInt(ret, 0, len);
+            int compressed = COMPRESSOR.compress(buf, off, len, ret, headSize);
+            if(headSize+compressed<len+1)
+                return Arrays.copyOf(ret, headSize+compressed);
+        }
+        byte[] ret = new byte[len+1];
+        DataIO.packInt(ret, 0, 0);
+        System.arraycopy(buf, off, ret, 1, len);
+        return ret;
+    }
+
+    @NotNull
+    public byte[] compress(@NotNull byte[] buf){
+        return compress(buf, 0, buf.length);
+    }
+
+    /** returns record from its stored form */
+    @NotNull
+    public byte[] decompress(@NotNull byte[] stored){
+        int size = DataIO.unpackInt(stored, 0);
+        if(size==0)
+            return Arrays.copyOfRange(stored, 1, stored.length);
+        byte[] ret = new byte[size];
+        try {
+            DECOMPRESSOR.decompress(stored, DataIO.packLongSize(size), ret, 0, size);
+        }catch(LZ4Exception e){
+            throw new DBException.DataCorruption("could not decompress record: "+e.getMessage());
+        }
+        return ret;
+    }
+
+    /**
+     * Returns record from remaining bytes of its stored form, buffer position is not modified.
+     * Uncompressed record is returned as slice of buffer, without copy.
+     */
+    @NotNull
+    public ByteBuffer decompress(@NotNull ByteBuffer stored){
+        int pos = stored.position();
+        int size = 0;
+        byte v;
+        do{
+            v = stored.get(pos++);
+            size = (size<<7) | (v & 0x7F);
+        }while((v&0x80)==0);
+
+        if(size==0){
+            ByteBuffer ret = stored.duplicate();
+            ret.position(pos);
+            return ret.slice();
+        }
+        ByteBuffer ret = ByteBuffer.allocate(size);
+        try {
+            DECOMPRESSOR.decompress(stored, pos, ret, 0, size);
+        }catch(LZ4Exception e){
+            throw new DBException.DataCorruption("could not decompress record: "+e.getMessage());
+        }
+        return ret;
+    }
+}
@@ -1,8 +1,13 @@
 package org.mapdb.store;
 
 import org.jetbrains.annotations.NotNull;
+import org.mapdb.DBException;
 import org.mapdb.ser.Serializer;
 
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+
 public interface Store extends ReadonlyStore{
 
 
@@ -31,7 +36,27 @@ public interface Store extends ReadonlyStore{
 
     }
 
-    void verify();
+    /** checks store integrity, throws {@link DBException.DataCorruption} if store is corrupted */
+    default void verify() {
+        verifyIntegrity().throwIfFailed();
+    }
+
+    /**
+     * Scans all records in parallel and checks store integrity. Errors are collected in result, not thrown.
+     * Default implementation reads all records, stores also check their internal structures.
+     */
+    default VerifyResult verifyIntegrity() {
+        VerifyResult ret = new VerifyResult();
+        try {
+            stream((recid, record) -> {
+                ret.record(record.remaining());
+                return recid;
+            }, true).forEach(recid -> {});
+        }catch(DBException e){
+            ret.error(e.getMessage());
+        }
+        return ret;
+    }
 
     void commit();
 
@@ -79,4 +104,43 @@ public interface Store extends ReadonlyStore{
         return Integer.MAX_VALUE;
     }
 
+    /** inserts new records, returns their recids in the same order */
+    @NotNull default <R> long[] putAll(@NotNull Collection<? extends R> records, @NotNull Serializer<R> serializer) {
+        long[] ret = new long[records.size()];
+        int i = 0;
+        for(R record:records)
+            ret[i++] = put(record, serializer);
+        if(i!=ret.length)
+            throw new ConcurrentModificationException();
+        return ret;
+    }
+
+    /** reads existing records, record with `recids[i]` is placed into `into[i]` */
+    default <R> void getAll(@NotNull long[] recids, @NotNull Serializer<R> serializer, @NotNull Object[] into) {
+        for(int i=0;i<recids.length;i++)
+            into[i] = get(recids[i], serializer);
+    }
+
+    /** updates existing records, record with `recids[i]` gets `i`-th value from list */
+    default <R> void updateAll(@NotNull long[] recids, @NotNull Serializer<R> serializer, @NotNull List<? extends R> records) {
+        if(recids.length!=records.size())
+            throw new IllegalArgumentException("number of recids and records differs");
+        for(int i=0;i<recids.length;i++)
+            update(recids[i], serializer, records.get(i));
+    }
+
+    /** stores records into preallocated recids, record with `recids[i]` gets `i`-th value from list */
+    default <R> void preallocatePutAll(@NotNull long[] recids, @NotNull Serializer<R> serializer, @NotNull List<? extends R> records) {
+        if(recids.length!=records.size())
+            throw new IllegalArgumentException("number of recids and records differs");
+        for(int i=0;i<recids.length;i++)
+            preallocatePut(recids[i], serializer, records.get(i));
+    }
+
+    /** deletes existing records */
+    default <R> void deleteAll(@NotNull long[] recids, @NotNull Serializer<R> serializer) {
+        for(long recid:recids)
+            delete(recid, serializer);
+    }
+
 }
@@ -0,0 +1,98 @@
+package org.mapdb.store;
+
+import org.jetbrains.annotations.NotNull;
+import org.mapdb.DBException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Result of {@link Store#verifyIntegrity()}. It is filled concurrently by scanning threads.
+ */
+public final class VerifyResult {
+
+    /** only first errors are kept, so badly corrupted store does not run out of memory */
+    public static final int MAX_ERRORS = 1000;
+
+    private final AtomicLong recordCount = new AtomicLong();
+    private final AtomicLong recordBytes = new AtomicLong();
+    private final AtomicLong freeBytes = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final List<String> errors = new ArrayList<>();
+
+    /** record was found and checked */
+    public void record(long size){
+        recordCount.incrementAndGet();
+        recordBytes.addAndGet(size);
+    }
+
+    /** free space was found in store */
+    public void free(long size){
+        freeBytes.addAndGet(size);
+    }
+
+    public void error(@NotNull String error){
+        errorCount.incrementAndGet();
+        synchronized (errors){
+            if(errors.size()<MAX_ERRORS)
+                errors.add(error);
+        }
+    }
+
+    public void error(long recid, @NotNull String error){
+        error("recid "+recid+": "+error);
+    }
+
+    /** number of existing records, preallocated records are not counted */
+    public long getRecordCount() {
+        return recordCount.get();
+    }
+
+    /** total size of records in bytes, as they are stored (compressed, without checksums) */
+    public long getRecordBytes() {
+        return recordBytes.get();
+    }
+
+    /** free space tracked by store */
+    public long getFreeBytes() {
+        return freeBytes.get();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /** returns first {@link #MAX_ERRORS} errors */
+    public List<String> getErrors() {
+        synchronized (errors){
+            return Collections.unmodifiableList(new ArrayList<>(errors));
+        }
+    }
+
+    public boolean isOk(){
+        return errorCount.get()==0;
+    }
+
+    /** throws {@link DBException.DataCorruption} with first errors, if any error was found */
+    public void throwIfFailed(){
+        if(isOk())
+            return;
+        List<String> e = getErrors();
+        StringBuilder msg = new StringBuilder("store is corrupted, found "+getErrorCount()+" errors");
+        for(int i=0; i<Math.min(10, e.size()); i++)
+            msg.append("\n  ").append(e.get(i));
+        throw new DBException.DataCorruption(msg.toString());
+    }
+
+    @Override
+    public String toString() {
+        return "VerifyResult{" +
+                "recordCount=" + recordCount +
+                ", recordBytes=" + recordBytes +
+                ", freeBytes=" + freeBytes +
+                ", errorCount=" + errorCount +
+                '}';
+    }
+}
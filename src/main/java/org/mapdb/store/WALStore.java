@@ -0,0 +1,798 @@
+package org.mapdb.store;
+
+import org.eclipse.collections.api.LongIterable;
+import org.eclipse.collections.impl.factory.primitive.LongLists;
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+import org.jetbrains.annotations.NotNull;
+import org.mapdb.DBException;
+import org.mapdb.io.DataIO;
+import org.mapdb.io.DataInput2ByteArray;
+import org.mapdb.io.DataOutput2ByteArray;
+import org.mapdb.ser.Serializer;
+import org.mapdb.ser.Serializers;
+
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Transactional store with write-ahead-log. It wraps other {@link Store}, which holds checkpointed data.
+ *
+ * Modifications are kept in memory until {@link #commit()}. Commit appends all modifications as single frame
+ * into sequential log file and syncs it. Concurrent commits are grouped, single fsync makes durable all frames
+ * written until that point.
+ *
+ * Committed data are copied into wrapped store by checkpoint, it runs in background thread or when log
+ * gets too large. Checkpoint starts new log file, and old log file is deleted after wrapped store is committed.
+ * Log files are replayed into wrapped store when {@link WALStore} is opened.
+ *
+ * Wrapped store must be consistent after its commit, and it must eventually return any free recid from
+ * {@link Store#preallocate()}, so recids allocated after last checkpoint can be restored on replay.
+ *
+ * New recids are preallocated in wrapped store, but wrapped store is committed only by checkpoint.
+ * Checkpoint logs recids which are preallocated but hold no committed data into new log file,
+ * and replay returns those recids back to wrapped store. So recids from rolled back or unfinished transactions do not leak.
+ * Recids preallocated while checkpoint commits wrapped store are logged into new log file right away.
+ */
+public class WALStore implements StoreTx {
+
+    public static final long DEFAULT_CHECKPOINT_SIZE = 16*1024*1024;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 1000;
+
+    protected static final byte[] TOMBSTONE = new byte[0];
+    protected static final byte[] PREALLOC = new byte[0];
+    protected static final byte[] ALLOCATED = new byte[0];
+
+    protected static final byte FRAME_PUT = 1;
+    protected static final byte FRAME_PREALLOC = 2;
+    protected static final byte FRAME_DELETE = 3;
+    /** recid preallocated in wrapped store without committed data */
+    protected static final byte FRAME_ALLOCATED = 4;
+
+    /** frame starts with payload size and its checksum */
+    protected static final int FRAME_HEAD = 4+8;
+
+    /** maximal number of recids preallocated in wrapped store, while it is searched for free recid */
+    protected static final long RECLAIM_LIMIT = 1<<20;
+
+    protected final Store store;
+    protected final File file;
+    protected final long checkpointSize;
+
+    protected final ReentrantLock lock = new ReentrantLock();
+
+    /** modified in current transaction, not committed yet */
+    protected LongObjectHashMap<byte[]> dirty = new LongObjectHashMap<>();
+
+    /** committed, but not yet written into wrapped store */
+    protected LongObjectHashMap<byte[]> committed = new LongObjectHashMap<>();
+
+    /** recids free in this store, those are still allocated in wrapped store */
+    protected final LongHashSet freeRecids = new LongHashSet();
+
+    /** recids preallocated in wrapped store by this store, which do not hold committed data yet */
+    protected final LongHashSet walPrealloc = new LongHashSet();
+
+    /** recids allocated in current transaction, those were free before */
+    protected final LongHashSet txAllocated = new LongHashSet();
+    /** recids deleted in current transaction, those were used before */
+    protected final LongHashSet txFreed = new LongHashSet();
+
+    protected volatile FileChannel log;
+    protected long logNumber;
+    protected volatile long logSize;
+
+    /** wrapped store is committed by checkpoint outside of lock, recids preallocated meanwhile are logged immediately */
+    protected boolean checkpointCommit = false;
+
+    protected final Object syncLock = new Object();
+    protected final Object checkpointLock = new Object();
+
+    /** number of frames written into log, and number of frames which were synced */
+    protected volatile long framesWritten = 0;
+    protected volatile long framesSynced = 0;
+
+    protected final Thread checkpointer;
+    protected volatile boolean closed = false;
+
+    public WALStore(Store store, File file) {
+        this(store, file, DEFAULT_CHECKPOINT_SIZE, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * @param store wrapped store, which holds checkpointed data
+     * @param file log files are named after this file with numeric suffix
+     * @param checkpointSize checkpoint is triggered when log file gets larger
+     * @param checkpointInterval interval in milliseconds between background checkpoints,
+     *                           zero disables background thread and checkpoint runs in {@link #commit()}
+     */
+    public WALStore(Store store, File file, long checkpointSize, long checkpointInterval) {
+        this.store = store;
+        this.file = file;
+        this.checkpointSize = checkpointSize;
+
+        lock.lock();
+        try {
+            replay();
+        }finally {
+            lock.unlock();
+        }
+
+        if(checkpointInterval>0) {
+            checkpointer = new Thread(() -> {
+                while(!closed){
+                    synchronized (checkpointLock){
+                        try {
+                            checkpointLock.wait(checkpointInterval);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if(!closed && logSize>0)
+                        checkpoint();
+                }
+            }, "MapDB WAL checkpoint");
+            checkpointer.setDaemon(true);
+            checkpointer.start();
+        }else{
+            checkpointer = null;
+        }
+    }
+
+    protected File logFile(long number){
+        return new File(file.getPath()+"."+number);
+    }
+
+    /** numbers of existing log files, sorted */
+    protected long[] logNumbers(){
+        File dir = file.getAbsoluteFile().getParentFile();
+        String prefix = file.getName()+".";
+        LongArrayList ret = new LongArrayList();
+        String[] names = dir.list();
+        if(names!=null) {
+            for (String name : names) {
+                if (!name.startsWith(prefix))
+                    continue;
+                try {
+                    ret.add(Long.parseLong(name.substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    //not log file
+                }
+            }
+        }
+        return ret.sortThis().toArray();
+    }
+
+    protected void openLog(long number){
+        try {
+            logNumber = number;
+            logSize = 0;
+            log = FileChannel.open(logFile(number).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+        syncDir();
+    }
+
+    /** new log file must be durable in directory before wrapped store is committed and old log is deleted */
+    protected void syncDir(){
+        File dir = file.getAbsoluteFile().getParentFile();
+        try(FileChannel c = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            c.force(true);
+        } catch (IOException e) {
+            //some platforms (Windows) can not open or sync directory
+        }
+    }
+
+    /** applies existing log files into wrapped store, and starts new log file */
+    protected void replay(){
+        long[] numbers = logNumbers();
+        for(long number:numbers){
+            try {
+                byte[] b = Files.readAllBytes(logFile(number).toPath());
+                int pos = 0;
+                while(pos+FRAME_HEAD<=b.length){
+                    int size = DataIO.getInt(b, pos);
+                    long checksum = DataIO.getLong(b, pos+4);
+                    if(size<0 || pos+FRAME_HEAD+size>b.length || checksum!=checksum(b, pos+FRAME_HEAD, size))
+                        break; //incomplete frame, it was not committed
+                    LongObjectHashMap<byte[]> frame = readFrame(b, pos+FRAME_HEAD, size);
+                    apply(frame, true);
+                    pos += FRAME_HEAD+size;
+                }
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        }
+        if(numbers.length>0) {
+            releasePreallocated();
+            store.commit();
+        }
+
+        openLog(numbers.length==0 ? 0 : numbers[numbers.length-1]+1);
+        for(long number:numbers)
+            logFile(number).delete();
+    }
+
+    protected static long checksum(byte[] b, int pos, int size){
+        CRC32 crc = new CRC32();
+        crc.update(b, pos, size);
+        return crc.getValue();
+    }
+
+    protected static byte[] writeFrame(LongObjectHashMap<byte[]> modified){
+        DataOutput2ByteArray out = new DataOutput2ByteArray();
+        out.writeInt(0);
+        out.writeLong(0L);
+        modified.forEachKeyValue((recid, data) -> {
+            if(data==TOMBSTONE){
+                out.writeByte(FRAME_DELETE);
+                out.writeLong(recid);
+            }else if(data==PREALLOC){
+                out.writeByte(FRAME_PREALLOC);
+                out.writeLong(recid);
+            }else if(data==ALLOCATED){
+                out.writeByte(FRAME_ALLOCATED);
+                out.writeLong(recid);
+            }else{
+                out.writeByte(FRAME_PUT);
+                out.writeLong(recid);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+        });
+        byte[] b = out.copyBytes();
+        int size = b.length-FRAME_HEAD;
+        DataIO.putInt(b, 0, size);
+        DataIO.putLong(b, 4, checksum(b, FRAME_HEAD, size));
+        return b;
+    }
+
+    protected static LongObjectHashMap<byte[]> readFrame(byte[] b, int pos, int size){
+        LongObjectHashMap<byte[]> ret = new LongObjectHashMap<>();
+        DataInput2ByteArray in = new DataInput2ByteArray(b, pos);
+        while(in.getPos()<pos+size){
+            byte type = in.readByte();
+            long recid = in.readLong();
+            if(type==FRAME_DELETE){
+                ret.put(recid, TOMBSTONE);
+            }else if(type==FRAME_PREALLOC){
+                ret.put(recid, PREALLOC);
+            }else if(type==FRAME_ALLOCATED){
+                ret.put(recid, ALLOCATED);
+            }else if(type==FRAME_PUT){
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                ret.put(recid, data);
+            }else {
+                throw new DBException.DataCorruption("unknown frame type in log");
+            }
+        }
+        return ret;
+    }
+
+    /** writes committed modifications into wrapped store */
+    protected void apply(LongObjectHashMap<byte[]> modified, boolean replay){
+        modified.forEachKeyValue((recid, data) -> {
+            if(data==ALLOCATED){
+                walPrealloc.add(recid);
+                return;
+            }
+            if(data==TOMBSTONE){
+                //recid could be reused already, in that case newer value is applied latter
+                if(!replay && !freeRecids.contains(recid))
+                    return;
+                try {
+                    store.delete(recid, Serializers.BYTE_ARRAY_NOSIZE);
+                    freeRecids.remove(recid);
+                    walPrealloc.remove(recid);
+                }catch(DBException.RecordNotFound e){
+                    freeRecids.remove(recid);
+                    walPrealloc.remove(recid);
+                }catch(DBException.PreallocRecordAccess e){
+                    //preallocated record can not be deleted, keep it for reuse
+                    freeRecids.add(recid);
+                    walPrealloc.add(recid);
+                }
+                return;
+            }
+
+            if(replay)
+                freeRecids.remove(recid);
+            walPrealloc.remove(recid);
+
+            if(data==PREALLOC){
+                try {
+                    store.get(recid, Serializers.BYTE_ARRAY_NOSIZE);
+                    store.delete(recid, Serializers.BYTE_ARRAY_NOSIZE);
+                    reclaim(recid);
+                }catch(DBException.PreallocRecordAccess e){
+                    //already preallocated
+                }catch(DBException.RecordNotFound e){
+                    reclaim(recid);
+                }
+                return;
+            }
+
+            try {
+                store.update(recid, Serializers.BYTE_ARRAY_NOSIZE, data);
+            }catch(DBException.PreallocRecordAccess e){
+                store.preallocatePut(recid, Serializers.BYTE_ARRAY_NOSIZE, data);
+            }catch(DBException.RecordNotFound e){
+                reclaim(recid);
+                store.preallocatePut(recid, Serializers.BYTE_ARRAY_NOSIZE, data);
+            }
+        });
+    }
+
+    /** preallocates given recid in wrapped store, other preallocated recids become free */
+    protected void reclaim(long recid){
+        for(long i=0; i<RECLAIM_LIMIT+recid; i++){
+            long recid2 = store.preallocate();
+            if(recid2==recid)
+                return;
+            freeRecids.add(recid2);
+            walPrealloc.add(recid2);
+        }
+        throw new DBException.DataCorruption("Wrapped store did not return free recid: "+recid);
+    }
+
+    /** returns recids preallocated by this store without committed data back to wrapped store */
+    protected void releasePreallocated(){
+        walPrealloc.forEach(recid -> {
+            try {
+                store.preallocatePut(recid, Serializers.BYTE_ARRAY_NOSIZE, TOMBSTONE);
+                store.delete(recid, Serializers.BYTE_ARRAY_NOSIZE);
+            }catch(DBException.RecordNotPreallocated e){
+                //preallocation was not committed in wrapped store
+            }
+        });
+        freeRecids.removeAll(walPrealloc);
+        walPrealloc.clear();
+    }
+
+    /** logs recids preallocated in wrapped store, so they can be released on replay, if wrapped store is committed */
+    protected void logPreallocated(LongIterable recids) throws IOException {
+        if(recids.isEmpty())
+            return;
+        LongObjectHashMap<byte[]> frame = new LongObjectHashMap<>();
+        recids.forEach(recid -> frame.put(recid, ALLOCATED));
+        ByteBuffer b = ByteBuffer.wrap(writeFrame(frame));
+        while(b.remaining()>0)
+            logSize += log.write(b, logSize);
+        log.force(false);
+    }
+
+    /** copies committed data into wrapped store, and deletes old log file */
+    public void checkpoint(){
+        synchronized (checkpointLock){
+            FileChannel oldLog;
+            long oldNumber;
+            lock.lock();
+            try{
+                if(closed && log==null)
+                    return;
+                //make old log durable, so it does not have to be synced after new log starts
+                synchronized (syncLock){
+                    log.force(false);
+                    framesSynced = framesWritten;
+                }
+                apply(committed, false);
+                committed = new LongObjectHashMap<>();
+                oldLog = log;
+                oldNumber = logNumber;
+                openLog(logNumber+1);
+                //must be durable before wrapped store is committed
+                logPreallocated(walPrealloc);
+                if(!store.isThreadSafe())
+                    store.commit();
+                else
+                    checkpointCommit = true;
+            } catch (IOException e) {
+                throw new IOError(e);
+            } finally {
+                lock.unlock();
+            }
+
+            if(store.isThreadSafe()) {
+                try {
+                    store.commit();
+                }finally {
+                    lock.lock();
+                    checkpointCommit = false;
+                    lock.unlock();
+                }
+            }
+            try {
+                oldLog.close();
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+            logFile(oldNumber).delete();
+        }
+    }
+
+    @Override
+    public void commit() {
+        long frame;
+        lock.lock();
+        try{
+            if(closed)
+                throw new DBException.StoreClosed();
+            if(!dirty.isEmpty()) {
+                ByteBuffer b = ByteBuffer.wrap(writeFrame(dirty));
+                while(b.remaining()>0)
+                    logSize += log.write(b, logSize);
+                frame = ++framesWritten;
+                committed.putAll(dirty);
+                dirty = new LongObjectHashMap<>();
+            }else{
+                frame = framesWritten;
+            }
+            txAllocated.clear();
+            txFreed.clear();
+        } catch (IOException e) {
+            throw new IOError(e);
+        } finally {
+            lock.unlock();
+        }
+
+        sync(frame);
+
+        if(logSize>checkpointSize){
+            if(checkpointer==null) {
+                checkpoint();
+            }else synchronized (checkpointLock){
+                checkpointLock.notifyAll();
+            }
+        }
+    }
+
+    /** makes given frame durable, concurrent commits share single fsync */
+    protected void sync(long frame){
+        if(framesSynced>=frame)
+            return;
+        synchronized (syncLock){
+            if(framesSynced>=frame)
+                return;
+            long written = framesWritten;
+            FileChannel log = this.log;
+            if(log==null)
+                throw new DBException.StoreClosed();
+            try {
+                log.force(false);
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+            framesSynced = written;
+        }
+    }
+
+    @Override
+    public void rollback() {
+        lock.lock();
+        try{
+            dirty.clear();
+            freeRecids.addAll(txAllocated);
+            freeRecids.removeAll(txFreed);
+            txAllocated.clear();
+            txFreed.clear();
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /** returns record data, or null if record does not exist */
+    protected byte[] lookup(long recid){
+        byte[] b = dirty.get(recid);
+        if(b==null)
+            b = committed.get(recid);
+        if(b!=null)
+            return b==TOMBSTONE ? null : b;
+        if(recid<=0 || freeRecids.contains(recid))
+            return null;
+        try{
+            return store.get(recid, Serializers.BYTE_ARRAY_NOSIZE);
+        }catch(DBException.PreallocRecordAccess e){
+            return PREALLOC;
+        }catch(DBException.RecordNotFound e){
+            return null;
+        }
+    }
+
+    protected byte[] checkExists(long recid){
+        byte[] b = lookup(recid);
+        if(b==null)
+            throw new DBException.RecordNotFound();
+        if(b==PREALLOC)
+            throw new DBException.PreallocRecordAccess();
+        return b;
+    }
+
+    protected long allocRecid(){
+        if(!freeRecids.isEmpty()){
+            long recid = freeRecids.longIterator().next();
+            freeRecids.remove(recid);
+            if(!txFreed.remove(recid))
+                txAllocated.add(recid);
+            return recid;
+        }
+        long recid = store.preallocate();
+        walPrealloc.add(recid);
+        txAllocated.add(recid);
+        if(checkpointCommit){
+            //preallocation could be committed in wrapped store, before it is logged by next checkpoint
+            try {
+                logPreallocated(LongLists.immutable.with(recid));
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        }
+        return recid;
+    }
+
+    protected void delete2(long recid){
+        dirty.put(recid, TOMBSTONE);
+        freeRecids.add(recid);
+        if(!txAllocated.remove(recid))
+            txFreed.add(recid);
+    }
+
+    protected static <R> byte[] serialize(Serializer<R> serializer, R record){
+        if(record == null)
+            throw new NullPointerException();
+        return Serializers.serializeToByteArray(record, serializer);
+    }
+
+    protected static <R> R deser(Serializer<R> serializer, byte[] data){
+        return serializer.deserialize(new DataInput2ByteArray(data));
+    }
+
+    @Override
+    public long preallocate() {
+        lock.lock();
+        try{
+            long recid = allocRecid();
+            dirty.put(recid, PREALLOC);
+            return recid;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> void preallocatePut(long recid, @NotNull Serializer<R> serializer, @NotNull R record) {
+        byte[] data = serialize(serializer, record);
+        lock.lock();
+        try{
+            if(lookup(recid)!=PREALLOC)
+                throw new DBException.RecordNotPreallocated();
+            dirty.put(recid, data);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> @NotNull long put(@NotNull R record, @NotNull Serializer<R> serializer) {
+        byte[] data = serialize(serializer, record);
+        lock.lock();
+        try{
+            long recid = allocRecid();
+            dirty.put(recid, data);
+            return recid;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> void update(long recid, @NotNull Serializer<R> serializer, @NotNull R updatedRecord) {
+        byte[] data = serialize(serializer, updatedRecord);
+        lock.lock();
+        try{
+            checkExists(recid);
+            dirty.put(recid, data);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> @NotNull R getAndUpdate(long recid, @NotNull Serializer<R> serializer, @NotNull R updatedRecord) {
+        byte[] data = serialize(serializer, updatedRecord);
+        byte[] old;
+        lock.lock();
+        try{
+            old = checkExists(recid);
+            dirty.put(recid, data);
+        }finally {
+            lock.unlock();
+        }
+        return deser(serializer, old);
+    }
+
+    @Override
+    public <R> @NotNull R updateAndGet(long recid, @NotNull Serializer<R> serializer, @NotNull Transform<R> t) {
+        lock.lock();
+        try{
+            R rec = t.transform(deser(serializer, checkExists(recid)));
+            dirty.put(recid, serialize(serializer, rec));
+            return rec;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> @NotNull R getAndUpdateAtomic(long recid, @NotNull Serializer<R> serializer, @NotNull Transform<R> t) {
+        lock.lock();
+        try{
+            R old = deser(serializer, checkExists(recid));
+            dirty.put(recid, serialize(serializer, t.transform(old)));
+            return old;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> void updateAtomic(long recid, @NotNull Serializer<R> serializer, @NotNull Transform<R> r) {
+        updateAndGet(recid, serializer, r);
+    }
+
+    @Override
+    public <R> boolean compareAndUpdate(long recid, @NotNull Serializer<R> serializer, @NotNull R expectedOldRecord, @NotNull R updatedRecord) {
+        lock.lock();
+        try{
+            R old = deser(serializer, checkExists(recid));
+            if(!serializer.equals(old, expectedOldRecord))
+                return false;
+            dirty.put(recid, serialize(serializer, updatedRecord));
+            return true;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> boolean compareAndDelete(long recid, @NotNull Serializer<R> serializer, @NotNull R expectedOldRecord) {
+        lock.lock();
+        try{
+            R old = deser(serializer, checkExists(recid));
+            if(!serializer.equals(old, expectedOldRecord))
+                return false;
+            delete2(recid);
+            return true;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> void delete(long recid, @NotNull Serializer<R> serializer) {
+        lock.lock();
+        try{
+            checkExists(recid);
+            delete2(recid);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> @NotNull R getAndDelete(long recid, @NotNull Serializer<R> serializer) {
+        byte[] old;
+        lock.lock();
+        try{
+            old = checkExists(recid);
+            delete2(recid);
+        }finally {
+            lock.unlock();
+        }
+        return deser(serializer, old);
+    }
+
+    @Override
+    public <K> @NotNull K get(long recid, @NotNull Serializer<K> ser) {
+        byte[] data;
+        lock.lock();
+        try{
+            data = checkExists(recid);
+        }finally {
+            lock.unlock();
+        }
+        return deser(ser, data);
+    }
+
+    @Override
+    public void getAll(@NotNull GetAllCallback callback) {
+        LongObjectHashMap<byte[]> all = new LongObjectHashMap<>();
+        lock.lock();
+        try{
+            store.getAll((recid, data) -> {
+                if(!freeRecids.contains(recid))
+                    all.put(recid, data);
+            });
+            all.putAll(committed);
+            all.putAll(dirty);
+        }finally {
+            lock.unlock();
+        }
+        long[] recids = all.keySet().toSortedArray();
+        for(long recid:recids){
+            byte[] data = all.get(recid);
+            if(data!=TOMBSTONE && data!=PREALLOC)
+                callback.takeOne(recid, data);
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        lock.lock();
+        try{
+            return dirty.isEmpty() && committed.isEmpty() && store.isEmpty();
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void verify() {
+        store.verify();
+    }
+
+    @Override
+    public void compact() {
+        checkpoint();
+        store.compact();
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    /** closes store, uncommitted data are discarded */
+    @Override
+    public void close() {
+        if(closed)
+            return;
+        closed = true;
+        if(checkpointer!=null) {
+            synchronized (checkpointLock) {
+                checkpointLock.notifyAll();
+            }
+            try {
+                checkpointer.join();
+            } catch (InterruptedException e) {
+                throw new DBException.Interrupted(e);
+            }
+        }
+        rollback();
+        checkpoint();
+
+        lock.lock();
+        try{
+            releasePreallocated();
+            store.commit();
+            log.close();
+            log = null;
+            logFile(logNumber).delete();
+        } catch (IOException e) {
+            throw new IOError(e);
+        } finally {
+            lock.unlock();
+        }
+        store.close();
+    }
+}
@@ -0,0 +1,614 @@
+package org.mapdb.store;
+
+import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+import org.jetbrains.annotations.NotNull;
+import org.mapdb.DBException;
+import org.mapdb.io.DataInput2ByteArray;
+import org.mapdb.ser.Serializer;
+import org.mapdb.ser.Serializers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Store which defers writes into wrapped {@link Store}. Modifications are serialized in caller thread and placed
+ * into in-memory write queue, repeated updates of the same recid are merged into single write.
+ * Background thread drains the queue in recid order into wrapped store. Reads are served from queue
+ * if record is pending, otherwise from wrapped store.
+ *
+ * Writers are blocked if the queue grows over its size limit, until the queue is drained.
+ * {@link #commit()} drains the queue and commits wrapped store.
+ *
+ * Recids are allocated by wrapped store with {@link Store#preallocate()} in caller thread under lock.
+ * If wrapped store is not thread safe, drain locks this store while writing, one batch of records at a time.
+ * If it is thread safe, wrapped store is read and written without holding lock.
+ *
+ * If drain fails, records which were not written return into queue and are written by next drain
+ * or {@link #commit()}.
+ */
+public class WriteBehindStore implements Store {
+
+    public static final long DEFAULT_DELAY = 100;
+    public static final long DEFAULT_MAX_PENDING_SIZE = 16*1024*1024;
+    /** max number of records written into wrapped store while lock is held, if wrapped store is not thread safe */
+    protected static final int DRAIN_BATCH_SIZE = 1024;
+
+    protected static final byte[] TOMBSTONE = new byte[0];
+    protected static final byte[] PREALLOC = new byte[0];
+
+    protected final Store store;
+    /** wrapped store is thread safe, it is accessed without lock */
+    protected final boolean threadSafe;
+    protected final long delay;
+    protected final long maxPendingSize;
+
+    protected final ReentrantLock lock = new ReentrantLock();
+    /** signals drain thread that queue should be drained */
+    protected final Condition drainRequested = lock.newCondition();
+    /** signals blocked writers that queue was drained */
+    protected final Condition drained = lock.newCondition();
+    /** only one drain runs at time, this lock is held for entire drain */
+    protected final ReentrantLock drainLock = new ReentrantLock();
+
+    /** modified records waiting for drain, TOMBSTONE for deleted record */
+    protected LongObjectHashMap<byte[]> pending = new LongObjectHashMap<>();
+    /** records which are being written into wrapped store */
+    protected LongObjectHashMap<byte[]> draining = new LongObjectHashMap<>();
+
+    /** pending recids which are preallocated in wrapped store, those are written with `preallocatePut` */
+    protected LongHashSet pendingPrealloc = new LongHashSet();
+    /** pending recids with TOMBSTONE, those can be reused until they are deleted from wrapped store */
+    protected final LongHashSet pendingFree = new LongHashSet();
+
+    /** size of data in pending queue */
+    protected long pendingSize = 0;
+    /** incremented when pending records are moved into `draining`, access requires lock */
+    protected long drainGeneration = 0;
+
+    protected final Thread drainer;
+    protected volatile boolean closed = false;
+    /** exception thrown by last background drain, it is rethrown to caller until drain succeeds */
+    protected volatile RuntimeException drainException = null;
+
+    public WriteBehindStore(Store store) {
+        this(store, DEFAULT_DELAY, DEFAULT_MAX_PENDING_SIZE);
+    }
+
+    /**
+     * @param store wrapped store
+     * @param delay max time in milliseconds record stays in queue, before it is written into wrapped store
+     * @param maxPendingSize writers are blocked if queue holds more bytes than this
+     */
+    public WriteBehindStore(Store store, long delay, long maxPendingSize) {
+        if(delay<=0 || maxPendingSize<=0)
+            throw new DBException.WrongConfig("delay and queue size must be positive");
+        this.store = store;
+        this.threadSafe = store.isThreadSafe();
+        this.delay = delay;
+        this.maxPendingSize = maxPendingSize;
+
+        drainer = new Thread(() -> {
+            while(!closed){
+                lock.lock();
+                try{
+                    if(pendingSize<maxPendingSize/2)
+                        drainRequested.await(delay, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }finally {
+                    lock.unlock();
+                }
+                if(closed)
+                    return;
+                try {
+                    drain();
+                }catch(RuntimeException e){
+                    drainException = e;
+                    lock.lock();
+                    try{
+                        drained.signalAll();
+                        //retry after delay
+                        drainRequested.await(delay, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e2) {
+                        return;
+                    }finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        }, "MapDB write behind");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /** writes all pending records into wrapped store, in recid order */
+    public void drain(){
+        drainLock.lock();
+        try{
+            LongObjectHashMap<byte[]> toDrain;
+            LongHashSet prealloc;
+            lock.lock();
+            try {
+                if(pending.isEmpty())
+                    return;
+                toDrain = pending;
+                prealloc = pendingPrealloc;
+                draining = pending;
+                drainGeneration++;
+                pending = new LongObjectHashMap<>();
+                pendingPrealloc = new LongHashSet();
+                //deleted recids are released to wrapped store by this drain
+                pendingFree.clear();
+                pendingSize = 0;
+                drained.signalAll();
+            }finally {
+                lock.unlock();
+            }
+
+            final long[] recids = toDrain.keySet().toSortedArray();
+            //number of records written into wrapped store
+            int done = 0;
+            try{
+                for(int from=0; from<recids.length; from+=DRAIN_BATCH_SIZE){
+                    //readers and writers proceed between batches, they see drained records in `draining`
+                    if(!threadSafe)
+                        lock.lock();
+                    try {
+                        for(int i=from; i<Math.min(recids.length, from+DRAIN_BATCH_SIZE); i++){
+                            final long recid = recids[i];
+                            byte[] data = toDrain.get(recid);
+                            if(prealloc.contains(recid)){
+                                store.preallocatePut(recid, Serializers.BYTE_ARRAY_NOSIZE, data==TOMBSTONE ? new byte[0] : data);
+                                //if delete fails, retry should not preallocate again
+                                prealloc.remove(recid);
+                                if(data==TOMBSTONE)
+                                    store.delete(recid, Serializers.BYTE_ARRAY_NOSIZE);
+                            }else if(data==TOMBSTONE){
+                                store.delete(recid, Serializers.BYTE_ARRAY_NOSIZE);
+                            }else{
+                                store.update(recid, Serializers.BYTE_ARRAY_NOSIZE, data);
+                            }
+                            done = i+1;
+                        }
+                    }finally {
+                        if(!threadSafe)
+                            lock.unlock();
+                    }
+                }
+            }catch(RuntimeException e){
+                //return records which were not written into queue, newer pending versions are kept
+                lock.lock();
+                try{
+                    for(int i=done; i<recids.length; i++){
+                        final long recid = recids[i];
+                        if(!pending.containsKey(recid)){
+                            byte[] data = toDrain.get(recid);
+                            pending.put(recid, data);
+                            pendingSize+=data.length;
+                        }
+                        if(prealloc.contains(recid))
+                            pendingPrealloc.add(recid);
+                    }
+                    draining = new LongObjectHashMap<>();
+                }finally {
+                    lock.unlock();
+                }
+                throw e;
+            }
+
+            lock.lock();
+            try{
+                draining = new LongObjectHashMap<>();
+            }finally {
+                lock.unlock();
+            }
+            drainException = null;
+        }finally {
+            drainLock.unlock();
+        }
+    }
+
+    protected void checkDrainException(){
+        RuntimeException e = drainException;
+        if(e!=null)
+            throw e;
+    }
+
+    /** adds record into queue, replaces older pending version of the same record */
+    protected void pendingPut(long recid, byte[] data){
+        assert(lock.isHeldByCurrentThread());
+        byte[] old = pending.put(recid, data);
+        if(old!=null)
+            pendingSize-=old.length;
+        pendingSize+=data.length;
+        if(data==TOMBSTONE)
+            pendingFree.add(recid);
+        else
+            pendingFree.remove(recid);
+    }
+
+    /** waits until there is space in the queue, must be called before lock is acquired */
+    protected void awaitSpace(){
+        checkDrainException();
+        lock.lock();
+        try{
+            while(pendingSize>=maxPendingSize && !closed){
+                drainRequested.signalAll();
+                drained.await();
+                checkDrainException();
+            }
+        } catch (InterruptedException e) {
+            throw new DBException.Interrupted(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns record data, or null if record does not exist. Must hold lock.
+     * If record is not in queue and wrapped store is thread safe, lock is released while wrapped store is read.
+     * Read is repeated if drain started in meantime, so returned data are current once lock is reacquired.
+     */
+    protected byte[] lookup(long recid){
+        assert(lock.isHeldByCurrentThread());
+        while(true){
+            byte[] b = pending.get(recid);
+            if(b==null)
+                b = draining.get(recid);
+            if(b!=null)
+                return b==TOMBSTONE ? null : b;
+            if(recid<=0)
+                return null;
+            if(!threadSafe || lock.getHoldCount()>1)
+                return storeGet(recid);
+
+            final long generation = drainGeneration;
+            byte[] ret;
+            lock.unlock();
+            try{
+                ret = storeGet(recid);
+            }finally {
+                lock.lock();
+            }
+            if(generation==drainGeneration && !pending.containsKey(recid))
+                return ret;
+        }
+    }
+
+    protected byte[] storeGet(long recid){
+        try{
+            return store.get(recid, Serializers.BYTE_ARRAY_NOSIZE);
+        }catch(DBException.PreallocRecordAccess e){
+            return PREALLOC;
+        }catch(DBException.RecordNotFound e){
+            return null;
+        }
+    }
+
+    protected byte[] checkExists(long recid){
+        byte[] b = lookup(recid);
+        if(b==null)
+            throw new DBException.RecordNotFound();
+        if(b==PREALLOC)
+            throw new DBException.PreallocRecordAccess();
+        return b;
+    }
+
+    protected long allocRecid(){
+        assert(lock.isHeldByCurrentThread());
+        if(!pendingFree.isEmpty()){
+            //reuse deleted recid, wrapped store still holds its old record
+            long recid = pendingFree.longIterator().next();
+            pendingFree.remove(recid);
+            return recid;
+        }
+        long recid = store.preallocate();
+        pendingPrealloc.add(recid);
+        return recid;
+    }
+
+    protected static <R> byte[] serialize(Serializer<R> serializer, R record){
+        if(record == null)
+            throw new NullPointerException();
+        return Serializers.serializeToByteArray(record, serializer);
+    }
+
+    protected static <R> R deser(Serializer<R> serializer, byte[] data){
+        return serializer.deserialize(new DataInput2ByteArray(data));
+    }
+
+    @Override
+    public long preallocate() {
+        checkDrainException();
+        lock.lock();
+        try{
+            //record stays preallocated in wrapped store until `preallocatePut`
+            return store.preallocate();
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> void preallocatePut(long recid, @NotNull Serializer<R> serializer, @NotNull R record) {
+        byte[] data = serialize(serializer, record);
+        awaitSpace();
+        lock.lock();
+        try{
+            if(lookup(recid)!=PREALLOC)
+                throw new DBException.RecordNotPreallocated();
+            pendingPut(recid, data);
+            pendingPrealloc.add(recid);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> @NotNull long put(@NotNull R record, @NotNull Serializer<R> serializer) {
+        byte[] data = serialize(serializer, record);
+        awaitSpace();
+        lock.lock();
+        try{
+            long recid = allocRecid();
+            pendingPut(recid, data);
+            return recid;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> void update(long recid, @NotNull Serializer<R> serializer, @NotNull R updatedRecord) {
+        byte[] data = serialize(serializer, updatedRecord);
+        awaitSpace();
+        lock.lock();
+        try{
+            checkExists(recid);
+            pendingPut(recid, data);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> @NotNull R getAndUpdate(long recid, @NotNull Serializer<R> serializer, @NotNull R updatedRecord) {
+        byte[] data = serialize(serializer, updatedRecord);
+        byte[] old;
+        awaitSpace();
+        lock.lock();
+        try{
+            old = checkExists(recid);
+            pendingPut(recid, data);
+        }finally {
+            lock.unlock();
+        }
+        return deser(serializer, old);
+    }
+
+    @Override
+    public <R> @NotNull R updateAndGet(long recid, @NotNull Serializer<R> serializer, @NotNull Transform<R> t) {
+        awaitSpace();
+        lock.lock();
+        try{
+            R rec = t.transform(deser(serializer, checkExists(recid)));
+            pendingPut(recid, serialize(serializer, rec));
+            return rec;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> @NotNull R getAndUpdateAtomic(long recid, @NotNull Serializer<R> serializer, @NotNull Transform<R> t) {
+        awaitSpace();
+        lock.lock();
+        try{
+            R old = deser(serializer, checkExists(recid));
+            pendingPut(recid, serialize(serializer, t.transform(old)));
+            return old;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> void updateAtomic(long recid, @NotNull Serializer<R> serializer, @NotNull Transform<R> r) {
+        updateAndGet(recid, serializer, r);
+    }
+
+    @Override
+    public <R> boolean compareAndUpdate(long recid, @NotNull Serializer<R> serializer, @NotNull R expectedOldRecord, @NotNull R updatedRecord) {
+        awaitSpace();
+        lock.lock();
+        try{
+            R old = deser(serializer, checkExists(recid));
+            if(!serializer.equals(old, expectedOldRecord))
+                return false;
+            pendingPut(recid, serialize(serializer, updatedRecord));
+            return true;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> boolean compareAndDelete(long recid, @NotNull Serializer<R> serializer, @NotNull R expectedOldRecord) {
+        awaitSpace();
+        lock.lock();
+        try{
+            R old = deser(serializer, checkExists(recid));
+            if(!serializer.equals(old, expectedOldRecord))
+                return false;
+            pendingPut(recid, TOMBSTONE);
+            return true;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> void delete(long recid, @NotNull Serializer<R> serializer) {
+        awaitSpace();
+        lock.lock();
+        try{
+            checkExists(recid);
+            pendingPut(recid, TOMBSTONE);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> @NotNull R getAndDelete(long recid, @NotNull Serializer<R> serializer) {
+        byte[] old;
+        awaitSpace();
+        lock.lock();
+        try{
+            old = checkExists(recid);
+            pendingPut(recid, TOMBSTONE);
+        }finally {
+            lock.unlock();
+        }
+        return deser(serializer, old);
+    }
+
+    @Override
+    public <K> @NotNull K get(long recid, @NotNull Serializer<K> ser) {
+        byte[] data;
+        lock.lock();
+        try{
+            data = checkExists(recid);
+        }finally {
+            lock.unlock();
+        }
+        return deser(ser, data);
+    }
+
+    /**
+     * If wrapped store is thread safe, it is scanned without lock. Queued records are taken before and after scan,
+     * so each returned record is at least as recent as it was when this method was called.
+     */
+    @Override
+    public void getAll(@NotNull GetAllCallback callback) {
+        LongObjectHashMap<byte[]> all = new LongObjectHashMap<>();
+        lock.lock();
+        try{
+            if(threadSafe){
+                LongObjectHashMap<byte[]> queued = new LongObjectHashMap<>(draining);
+                queued.putAll(pending);
+                lock.unlock();
+                try{
+                    store.getAll(all::put);
+                }finally {
+                    lock.lock();
+                }
+                all.putAll(queued);
+            }else{
+                store.getAll(all::put);
+            }
+            all.putAll(draining);
+            all.putAll(pending);
+        }finally {
+            lock.unlock();
+        }
+        long[] recids = all.keySet().toSortedArray();
+        for(long recid:recids){
+            byte[] data = all.get(recid);
+            if(data!=TOMBSTONE)
+                callback.takeOne(recid, data);
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        final LongHashSet deleted = new LongHashSet();
+        lock.lock();
+        try{
+            for(byte[] b:pending.values())
+                if(b!=TOMBSTONE)
+                    return false;
+            for(byte[] b:draining.values())
+                if(b!=TOMBSTONE)
+                    return false;
+            deleted.addAll(pending.keySet());
+            deleted.addAll(draining.keySet());
+            if(!threadSafe)
+                return storeIsEmpty(deleted);
+        }finally {
+            lock.unlock();
+        }
+        return storeIsEmpty(deleted);
+    }
+
+    /** returns true if wrapped store has no records, except those which are deleted in queue */
+    protected boolean storeIsEmpty(LongHashSet deleted){
+        if(deleted.isEmpty())
+            return store.isEmpty();
+        final boolean[] live = new boolean[1];
+        store.getAll((recid, data) -> {
+            if(!deleted.contains(recid))
+                live[0] = true;
+        });
+        return !live[0];
+    }
+
+    @Override
+    public void verify() {
+        drain();
+        store.verify();
+    }
+
+    @Override
+    public VerifyResult verifyIntegrity() {
+        drain();
+        return store.verifyIntegrity();
+    }
+
+    /** drains write queue and commits wrapped store */
+    @Override
+    public void commit() {
+        drain();
+        store.commit();
+    }
+
+    @Override
+    public void compact() {
+        drain();
+        store.compact();
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public int maxRecordSize() {
+        return store.maxRecordSize();
+    }
+
+    /** drains write queue and closes wrapped store */
+    @Override
+    public void close() {
+        if(closed)
+            return;
+        closed = true;
+        lock.lock();
+        try{
+            drainRequested.signalAll();
+            drained.signalAll();
+        }finally {
+            lock.unlock();
+        }
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            throw new DBException.Interrupted(e);
+        }
+        drain();
+        store.close();
+    }
+}
@@ -16,12 +16,17 @@
 package org.mapdb.store.legacy;
 
 import org.mapdb.CC;
+import org.mapdb.DBException;
 import org.mapdb.io.DataOutput2ByteArray;
 import org.mapdb.ser.Serializer;
 import org.mapdb.ser.Serializers;
+import org.mapdb.store.RecordCompression;
 import org.mapdb.store.Store;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -31,6 +36,7 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
+import java.util.zip.Checksum;
 
 /**
  * Low level record store.
@@ -51,6 +57,32 @@ public abstract class Store2 implements Store {
 
     protected static final int CHUNK_SIZE_MOD_MASK = CHUNK_SIZE -1;
 
+    /** each record has CRC32C checksum appended, it is verified on every read */
+    protected final boolean checksum;
+
+    /** compresses records before they are written, null if compression is disabled */
+    protected final RecordCompression compression;
+
+    /** constructor of {@code java.util.zip.CRC32C}, it is loaded reflectively so code runs on Java 8; null if not available */
+    private static final MethodHandle CRC32C_NEW = crc32cConstructor();
+
+    private static MethodHandle crc32cConstructor(){
+        try {
+            return MethodHandles.publicLookup()
+                    .findConstructor(Class.forName("java.util.zip.CRC32C"), MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    protected Store2(boolean checksum, boolean compress) {
+        if(checksum && CRC32C_NEW==null)
+            throw new DBException.WrongConfig("record checksums require CRC32C from Java 9 or newer");
+        this.checksum = checksum;
+        this.compression = compress ? new RecordCompression() : null;
+    }
+
     public abstract long getMaxRecid();
     public abstract ByteBuffer getRaw(long recid);
     public abstract Iterator<Long> getFreeRecids();
@@ -99,6 +131,17 @@ public abstract class Store2 implements Store {
 
         serializer.serialize(out,value);
 
+        if(compression!=null){
+            byte[] b = compression.compress(out.buf, 0, out.pos);
+            out = newDataOut2();
+            out.write(b, 0, b.length);
+        }
+
+        if(checksum){
+            int crc = checksum(ByteBuffer.wrap(out.buf, 0, out.pos));
+            out.writeInt(crc);
+        }
+
         if(out.pos>0){
 
             if(CC.PARANOID)try{
@@ -130,6 +173,23 @@ public abstract class Store2 implements Store {
     protected <A> A deserialize(Serializer<A> serializer, int size, DataInput2Exposed di) throws IOException {
 
         int start = di.pos;
+        if(checksum){
+            ByteBuffer bb = di.buf.duplicate();
+            bb.limit(start+size);
+            bb.position(start);
+            //serializer must not see checksum at end of record
+            di = new DataInput2Exposed(checksumCheck(bb));
+            start = 0;
+            size-=4;
+        }
+        if(compression!=null){
+            ByteBuffer bb = di.buf.duplicate();
+            bb.limit(start+size);
+            bb.position(start);
+            di = new DataInput2Exposed(compression.decompress(bb));
+            start = 0;
+            size = di.buf.remaining();
+        }
 
         A ret = serializer.deserialize(di);
         if(size+start>di.pos)
@@ -140,7 +200,45 @@ public abstract class Store2 implements Store {
     }
 
     protected int expectedMasks(){
-        return 0;
+        return (checksum ? CHECKSUM_FLAG_MASK : 0) | (compression!=null ? COMPRESS_FLAG_MASK : 0);
+    }
+
+    /** CRC32C of remaining bytes, buffer position is not modified */
+    protected static int checksum(ByteBuffer buf){
+        Checksum crc;
+        try {
+            crc = (Checksum) CRC32C_NEW.invokeExact();
+        } catch (Throwable e) {
+            throw new DBException.WrongConfig("record checksums require CRC32C from Java 9 or newer");
+        }
+        if(buf.hasArray()){
+            crc.update(buf.array(), buf.arrayOffset()+buf.position(), buf.remaining());
+        }else{
+            //direct or mapped buffer, copy in small steps
+            ByteBuffer b = buf.duplicate();
+            byte[] tmp = new byte[Math.min(b.remaining(), 4096)];
+            while(b.hasRemaining()){
+                int len = Math.min(tmp.length, b.remaining());
+                b.get(tmp, 0, len);
+                crc.update(tmp, 0, len);
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Checks checksum at end of record, returns record data without checksum.
+     * @throws DBException.DataCorruption if checksum does not match
+     */
+    protected static ByteBuffer checksumCheck(ByteBuffer record){
+        int size = record.remaining()-4;
+        if(size<0)
+            throw new DBException.DataCorruption("record is too small to contain checksum");
+        ByteBuffer data = record.duplicate();
+        data.limit(data.position()+size);
+        if(checksum(data) != record.getInt(record.position()+size))
+            throw new DBException.DataCorruption("record checksum does not match");
+        return data.slice();
     }
 
     List<Runnable> closeListeners = new CopyOnWriteArrayList<Runnable>();
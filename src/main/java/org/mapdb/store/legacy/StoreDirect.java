@@ -15,6 +15,7 @@
  */
 package org.mapdb.store.legacy;
 
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.mapdb.CC;
@@ -22,6 +23,10 @@ import org.mapdb.DBException;
 import org.mapdb.io.DataOutput2ByteArray;
 import org.mapdb.ser.Serializer;
 import org.mapdb.ser.Serializers;
+import org.mapdb.store.InstanceCache;
+import org.mapdb.store.RecidSpliterator;
+import org.mapdb.store.RecordCompression;
+import org.mapdb.store.VerifyResult;
 
 import java.io.File;
 import java.io.IOError;
@@ -29,8 +34,17 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.stream.LongStream;
 
 /**
  * Storage Engine which saves record directly into file.
@@ -62,7 +76,8 @@ import java.util.concurrent.locks.Lock;
  *  2           | {@link StoreDirect#IO_PHYS_SIZE}  | Allocated file size of physical file in bytes.
  *  3           | {@link StoreDirect#IO_FREE_SIZE}  | Space occupied by free records in physical file in bytes.
  *  4           | {@link StoreDirect#IO_INDEX_SUM}  | Checksum of all Index file headers. Checks if store was closed correctly
- *  5..9        |                                   | Reserved for future use
+ *  5           | {@link StoreDirect#IO_FREE_LOG}   | Offset of free space log in Index file, zero if long stacks are not being rebuilt
+ *  6..9        |                                   | Reserved for future use
  *  10..14      |                                   | For usage by user
  *  15          | {@link StoreDirect#IO_FREE_RECID} |Long Stack of deleted recids, those will be reused and returned by {@code Engine#put(Object, Serializer)}
  *  16..4111    |                                   |Long Stack of free physical records. This contains free space released by record update or delete. Each slots corresponds to free record size. TODO check 4111 is right
@@ -154,6 +169,9 @@ public class StoreDirect extends Store2 {
     /** checksum of all index file headers. Used to verify store was closed correctly */
     protected static final int IO_INDEX_SUM = 4*8;
 
+    /** index file offset where location of free space log is stored, non zero only while long stacks are rebuilt */
+    protected static final int IO_FREE_LOG = 5*8;
+
     /** index file offset where reference to longstack of free recid is stored*/
     protected static final int IO_FREE_RECID = 15*8;
 
@@ -183,6 +201,36 @@ public class StoreDirect extends Store2 {
     protected final boolean readOnly;
     protected final boolean syncOnCommitDisabled;
 
+    /** how commit is made durable */
+    public enum Durability{
+        /** every commit is followed by fsync, {@link #commit()} returns once data are on disk */
+        SYNC,
+        /** commits arriving within commit window are coalesced into single fsync, {@link #commit()} blocks until that fsync finishes */
+        GROUP,
+        /** background thread fsyncs at most one commit window after commit, {@link #commit()} does not wait */
+        ASYNC
+    }
+
+    protected final Durability durability;
+    /** max time between first commit in group and its fsync */
+    protected final long commitWindowNanos;
+    /** fsync is triggered early once this many bytes were written since last fsync */
+    protected final long commitWindowBytes;
+
+    /** bytes written into store since last fsync */
+    protected final AtomicLong unsyncedBytes = new AtomicLong();
+
+    /** guards {@link #pendingCommits} and {@link #flusherClosing} */
+    protected final Object syncLock = new Object();
+    /** commits waiting for next fsync, access requires `syncLock` */
+    protected List<CompletableFuture<Void>> pendingCommits = new ArrayList<>();
+    protected boolean flusherClosing = false;
+    /** background thread which fsyncs commits in GROUP and ASYNC mode, null otherwise */
+    protected final Thread flusher;
+
+    /** cache of deserialized instances, null if disabled. Entries are removed under write lock */
+    protected volatile InstanceCache instanceCache = null;
+
     protected final boolean spaceReclaimReuse;
     protected final boolean spaceReclaimSplit;
     protected final boolean spaceReclaimTrack;
@@ -192,14 +240,61 @@ public class StoreDirect extends Store2 {
     /** maximal non zero slot in free phys record, access requires `structuralLock`*/
     protected long maxUsedIoList = 0;
 
+    /** only one {@link #compactIncremental(long, CompactionProgress)} runs at a time */
+    protected final Object compactIncrementalLock = new Object();
+    /**
+     * records are relocated bellow this offset while {@link #compactIncremental(long, CompactionProgress)} runs, zero otherwise.
+     * Space freed above it is withheld in {@link #compactWithheld}. Access requires `structuralLock`
+     */
+    protected long compactLimit = 0;
+    /** free space above {@link #compactLimit}, it is not reused until compaction finishes. Access requires `structuralLock` */
+    protected final LongArrayList compactWithheld = new LongArrayList();
+    /** end of space allocated for records since compaction started, access requires `structuralLock` */
+    protected long compactAllocEnd = 0;
+    /** end of records visited by compaction, access only from compacting thread */
+    protected long compactLiveEnd = 0;
+
 
 
     public StoreDirect(Volume.Factory volFac, boolean readOnly, boolean deleteFilesAfterClose,
                        int spaceReclaimMode, boolean syncOnCommitDisabled, long sizeLimit) {
+        this(volFac, readOnly, deleteFilesAfterClose, spaceReclaimMode, syncOnCommitDisabled, sizeLimit,
+                Durability.SYNC, 0L, 0L);
+    }
+
+    /**
+     * @param durability how commits are made durable
+     * @param commitWindowMicros in GROUP mode max time commit waits for other commits to share its fsync,
+     *                           in ASYNC mode max lag between commit and its fsync
+     * @param commitWindowBytes fsync starts before commit window expires, once this many bytes were written
+     */
+    public StoreDirect(Volume.Factory volFac, boolean readOnly, boolean deleteFilesAfterClose,
+                       int spaceReclaimMode, boolean syncOnCommitDisabled, long sizeLimit,
+                       Durability durability, long commitWindowMicros, long commitWindowBytes) {
+        this(volFac, readOnly, deleteFilesAfterClose, spaceReclaimMode, syncOnCommitDisabled, sizeLimit,
+                durability, commitWindowMicros, commitWindowBytes, false, false);
+    }
+
+    /**
+     * @param checksum append CRC32C checksum to each record and verify it on read
+     * @param compress compress records with LZ4, see {@link RecordCompression}
+     */
+    public StoreDirect(Volume.Factory volFac, boolean readOnly, boolean deleteFilesAfterClose,
+                       int spaceReclaimMode, boolean syncOnCommitDisabled, long sizeLimit,
+                       Durability durability, long commitWindowMicros, long commitWindowBytes,
+                       boolean checksum, boolean compress) {
+        super(checksum, compress);
         this.readOnly = readOnly;
         this.deleteFilesAfterClose = deleteFilesAfterClose;
         this.syncOnCommitDisabled = syncOnCommitDisabled;
         this.sizeLimit = sizeLimit;
+        if(durability==null)
+            throw new NullPointerException();
+        if(commitWindowMicros<0 || commitWindowBytes<0)
+            throw new DBException.WrongConfig("commit window can not be negative");
+        this.durability = durability;
+        this.commitWindowNanos = TimeUnit.MICROSECONDS.toNanos(commitWindowMicros);
+        this.commitWindowBytes = commitWindowBytes==0 ? Long.MAX_VALUE : commitWindowBytes;
 
         this.spaceReclaimSplit = spaceReclaimMode>4;
         this.spaceReclaimReuse = spaceReclaimMode>2;
@@ -221,9 +316,19 @@ public class StoreDirect extends Store2 {
                 maxUsedIoList=IO_USER_START-8;
                 while(index.getLong(maxUsedIoList)!=0 && maxUsedIoList>IO_FREE_RECID)
                     maxUsedIoList-=8;
+
+                if(index.getLong(IO_FREE_LOG)!=0)
+                    freeListLogReplay();
             }
             allGood = true;
         }finally{
+            if(allGood && durability!=Durability.SYNC && !readOnly && !syncOnCommitDisabled){
+                flusher = new Thread(this::flusherRun, "MapDB group commit");
+                flusher.setDaemon(true);
+                flusher.start();
+            }else{
+                flusher = null;
+            }
             if(!allGood){
                 //exception was thrown, try to unlock files
                 //We have to wrap everything in try finally blocks as we must try to unlock as many files
@@ -279,10 +384,16 @@ public class StoreDirect extends Store2 {
 
 
         long checksum = index.getLong(IO_INDEX_SUM);
-        if(checksum!=indexHeaderChecksum())
+        //if rebuild of long stacks was interrupted, header is restored from free space log
+        if(checksum!=indexHeaderChecksum() && index.getLong(IO_FREE_LOG)==0)
             throw new IOError(new IOException("Wrong index checksum, store was not closed properly and could be corrupted."));
     }
 
+    @Override
+    protected int expectedMasks() {
+        return super.expectedMasks() | (index instanceof Volume.EncryptedFileVol ? ENCRYPT_FLAG_MASK : 0);
+    }
+
     protected void createStructure() {
         indexSize = IO_USER_START+ 0*8+8;
         assert(indexSize>IO_USER_START);
@@ -428,8 +539,57 @@ public class StoreDirect extends Store2 {
         return recid;
     }
 
+    @Override
+    public <A> long[] putAll(Collection<? extends A> values, Serializer<A> serializer) {
+        DataOutput2ByteArray[] outs = new DataOutput2ByteArray[values.size()];
+        int n = 0;
+        for(A value:values){
+            assert(value!=null);
+            outs[n++] = serialize(value, serializer);
+        }
+        if(n!=outs.length)
+            throw new ConcurrentModificationException();
+
+        final long[] ioRecids = new long[n];
+        final long[][] indexVals = new long[n][];
+        newRecidLock.readLock().lock();
+        try{
+            //allocate recids and space for all records in single pass
+            structuralLock.lock();
+            try{
+                for(int i=0;i<n;i++){
+                    ioRecids[i] = freeIoRecidTake(true);
+                    indexVals[i] = physAllocate(outs[i].pos,true,false);
+                }
+            }finally {
+                structuralLock.unlock();
+            }
+            final Lock lock  = locks.writeLock();
+            lock.lock();
+            try{
+                for(int i=0;i<n;i++)
+                    put2(outs[i], ioRecids[i], indexVals[i]);
+            }finally {
+                lock.unlock();
+            }
+        }finally {
+            newRecidLock.readLock().unlock();
+        }
+
+        long[] ret = new long[n];
+        for(int i=0;i<n;i++){
+            ret[i] = (ioRecids[i]-IO_USER_START)/8;
+            assert(ret[i]>0);
+        }
+        if(CC.LOG_STORE)
+            LOG.finest("Put recids="+Arrays.toString(ret)+" ser="+serializer);
+        return ret;
+    }
+
     protected void put2(DataOutput2ByteArray out, long ioRecid, long[] indexVals) {
         assert(locks.writeLock().isHeldByCurrentThread());
+        if(flusher!=null)
+            unsyncedBytes.addAndGet(out.pos);
         if(out.pos==0){
             index.putLong(ioRecid, INDEX_VAL_ZERO_SIZE);
             return;
@@ -466,14 +626,40 @@ public class StoreDirect extends Store2 {
     }
 
 
+    /**
+     * Sets cache of deserialized instances, it is used for records read with serializers enabled in cache.
+     * Null disables instance cache.
+     */
+    public void setInstanceCache(@Nullable InstanceCache instanceCache){
+        final Lock lock  = locks.writeLock();
+        lock.lock();
+        try{
+            if(instanceCache!=null)
+                instanceCache.clear();
+            this.instanceCache = instanceCache;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    public InstanceCache getInstanceCache() {
+        return instanceCache;
+    }
+
+    protected void instanceCacheRemove(long ioRecid){
+        assert(locks.writeLock().isHeldByCurrentThread());
+        InstanceCache c = instanceCache;
+        if(c!=null)
+            c.remove((ioRecid-IO_USER_START)/8);
+    }
+
     @Override
     public <A> A get(long recid, Serializer<A> serializer) {
         assert(recid>0);
-        final long ioRecid = IO_USER_START + recid*8;
         final Lock lock  = locks.readLock();
         lock.lock();
         try{
-            return get2(ioRecid,serializer);
+            return getCached(recid, serializer);
         }catch(IOException e){
             throw new IOError(e);
         }finally{
@@ -481,6 +667,37 @@ public class StoreDirect extends Store2 {
         }
     }
 
+    @Override
+    public <A> void getAll(long[] recids, Serializer<A> serializer, Object[] into) {
+        final Lock lock  = locks.readLock();
+        lock.lock();
+        try{
+            for(int i=0;i<recids.length;i++){
+                assert(recids[i]>0);
+                into[i] = getCached(recids[i], serializer);
+            }
+        }catch(IOException e){
+            throw new IOError(e);
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    protected <A> A getCached(long recid, Serializer<A> serializer) throws IOException {
+        final long ioRecid = IO_USER_START + recid*8;
+        InstanceCache c = instanceCache;
+        if(c!=null && c.isEnabled(serializer)){
+            A ret = c.get(recid, serializer);
+            if(ret==null) {
+                //modifications hold write lock, so instance can not become stale before it is cached
+                ret = get2(ioRecid, serializer);
+                c.put(recid, serializer, ret);
+            }
+            return ret;
+        }
+        return get2(ioRecid,serializer);
+    }
+
     protected <A> A get2(long ioRecid,Serializer<A> serializer) throws IOException {
         assert(locks.getWriteHoldCount()==0||
                 locks.writeLock().isHeldByCurrentThread());
@@ -528,6 +745,87 @@ public class StoreDirect extends Store2 {
         return deserialize(serializer, size, di);
     }
 
+    @Override
+    public <R> R read(long recid, RecordReader<R> reader) {
+        assert(recid>0);
+        final Lock lock  = locks.readLock();
+        lock.lock();
+        try{
+            //buffer may be a view of volume, so reader runs under lock
+            return reader.read(recordBuffer(IO_USER_START + recid*8));
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void readAll(ReadAllCallback callback) {
+        readRange(1, getMaxRecid(), callback);
+    }
+
+    protected void readRange(long from, long until, ReadAllCallback callback) {
+        final Lock lock  = locks.readLock();
+        lock.lock();
+        try{
+            until = Math.min(until, getMaxRecid());
+            for(long recid=from; recid<until; recid++){
+                final long ioRecid = IO_USER_START + recid*8;
+                final long indexVal = index.getLong(ioRecid);
+                //skip deleted and preallocated records, corrupted record fails
+                if((indexVal&MASK_PREALLOC)!=0 || (indexVal&MASK_OFFSET)==0)
+                    continue;
+                callback.takeOne(recid, recordBuffer(ioRecid));
+            }
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> Spliterator<R> spliterator(RecordMapper<R> mapper) {
+        return new RecidSpliterator<>(this::readRange, 1, getMaxRecid(), mapper);
+    }
+
+    /** returns read-only record data, single part records are not copied */
+    protected ByteBuffer recordBuffer(long ioRecid){
+        long indexVal = index.getLong(ioRecid);
+        checkNotDeleted(indexVal);
+        if(indexVal == MASK_PREALLOC) throw new DBException.PreallocRecordAccess();
+        if(indexVal == INDEX_VAL_ZERO_SIZE)
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+        int size = (int) (indexVal>>>48);
+        long offset = indexVal&MASK_OFFSET;
+        if((indexVal& MASK_LINKED)==0)
+            return recordData(phys.getByteBuffer(offset, size));
+
+        //linked record is assembled into single array
+        int pos = 0;
+        int c = 8;
+        byte[] buf = new byte[64];
+        for(;;){
+            if(buf.length<pos+size-c)
+                buf = Arrays.copyOf(buf,Math.max(pos+size-c,buf.length*2));
+            phys.getDataInput(offset + c, size-c).readFully(buf,pos,size-c);
+            pos+=size-c;
+            if(c==0) break;
+            long next = phys.getLong(offset);
+            offset = next&MASK_OFFSET;
+            size = (int) (next>>>48);
+            c =  ((next& MASK_LINKED)==0)? 0 : 8;
+        }
+        return recordData(ByteBuffer.wrap(buf, 0, pos).slice().asReadOnlyBuffer());
+    }
+
+    /** checks checksum and decompresses stored record */
+    protected ByteBuffer recordData(ByteBuffer stored){
+        if(checksum)
+            stored = checksumCheck(stored);
+        if(compression!=null)
+            stored = compression.decompress(stored).asReadOnlyBuffer();
+        return stored;
+    }
+
 
 
     @Override
@@ -549,6 +847,29 @@ public class StoreDirect extends Store2 {
             LOG.finest("Update recid="+recid+", "+" size="+out.pos+", "+" val="+value+" ser="+serializer );
     }
 
+    @Override
+    public <A> void updateAll(long[] recids, Serializer<A> serializer, List<? extends A> values) {
+        if(recids.length!=values.size())
+            throw new IllegalArgumentException("number of recids and records differs");
+        DataOutput2ByteArray[] outs = new DataOutput2ByteArray[recids.length];
+        for(int i=0;i<recids.length;i++){
+            assert(values.get(i)!=null);
+            assert(recids[i]>0);
+            outs[i] = serialize(values.get(i), serializer);
+        }
+
+        final Lock lock  = locks.writeLock();
+        lock.lock();
+        try{
+            for(long recid:recids)
+                checkNotDeleted(index.getLong(IO_USER_START + recid*8));
+            for(int i=0;i<recids.length;i++)
+                update2(outs[i], IO_USER_START + recids[i]*8, false);
+        }finally{
+            lock.unlock();
+        }
+    }
+
     @Override
     public <R> void updateAtomic(long recid, Serializer<R> serializer, Transform<R> r) {
         assert(recid>0);
@@ -581,6 +902,7 @@ public class StoreDirect extends Store2 {
         else if(indexVal != MASK_PREALLOC){
             throw new DBException.RecordNotPreallocated();
         }
+        instanceCacheRemove(ioRecid);
 
         if((prealoc || size==0) && out.pos==0){
             index.putLong(ioRecid, INDEX_VAL_ZERO_SIZE);
@@ -592,6 +914,8 @@ public class StoreDirect extends Store2 {
             index.putLong(ioRecid, (((long)out.pos)<<48)|offset|MASK_ARCHIVE);
 
             phys.putData(offset, out.buf, 0, out.pos);
+            if(flusher!=null)
+                unsyncedBytes.addAndGet(out.pos);
         }else{
 
             long[] indexVals = spaceReclaimTrack ? getLinkedRecordsIndexVals(indexVal) : null;
@@ -659,9 +983,113 @@ public class StoreDirect extends Store2 {
         return true;
     }
 
+    /**
+     * Checks all index values in parallel. Records must be inside physical file and have valid checksum.
+     * Long Stacks of free recids and free records are checked as well. Store is locked while it is verified.
+     */
     @Override
-    public void verify() {
-        //TODO verify
+    public VerifyResult verifyIntegrity() {
+        VerifyResult ret = new VerifyResult();
+        lockAllWrite();
+        try{
+            //scanning threads only read volumes, all writers are blocked
+            LongStream.range(1, getMaxRecid()).parallel().forEach(recid -> verifyRecord(recid, ret));
+            verifyLongStacks(ret);
+        }finally {
+            unlockAllWrite();
+        }
+        return ret;
+    }
+
+    protected void verifyRecord(long recid, VerifyResult ret){
+        final long ioRecid = IO_USER_START + recid*8;
+        long indexVal = index.getLong(ioRecid);
+        if((indexVal&MASK_PREALLOC)!=0 || (indexVal&MASK_OFFSET)==0)
+            return; //preallocated or deleted
+        if(indexVal==INDEX_VAL_ZERO_SIZE){
+            ret.record(0);
+            return;
+        }
+
+        long size = indexVal>>>48;
+        long offset = indexVal&MASK_OFFSET;
+        boolean linked = (indexVal&MASK_LINKED)!=0;
+        long total = 0;
+        for(long parts=0;;parts++){
+            if(size==0 || offset<16 || offset+size>physSize){
+                ret.error(recid, "record is outside of physical file, offset="+offset+", size="+size);
+                return;
+            }
+            if((offset&CHUNK_SIZE_MOD_MASK)+size>CHUNK_SIZE){
+                ret.error(recid, "record crosses chunk boundary, offset="+offset+", size="+size);
+                return;
+            }
+            if(parts>physSize/16){
+                ret.error(recid, "linked record has cycle");
+                return;
+            }
+            if(!linked){
+                total+=size;
+                break;
+            }
+            total+=size-8;
+            long next = phys.getLong(offset);
+            offset = next&MASK_OFFSET;
+            size = next>>>48;
+            linked = (next&MASK_LINKED)!=0;
+        }
+
+        if(checksum || compression!=null){
+            try{
+                recordBuffer(ioRecid);
+            }catch(DBException e){
+                ret.error(recid, e.getMessage());
+                return;
+            }
+            if(checksum)
+                total-=4;
+        }
+        ret.record(total);
+    }
+
+    protected void verifyLongStacks(VerifyResult ret){
+        long free = 0;
+        for(long ioList=IO_FREE_RECID; ioList<IO_USER_START; ioList+=8){
+            final boolean recids = ioList==IO_FREE_RECID;
+            //size of free records in this list, see size2ListIoRecid()
+            final long slotSize = (ioList-IO_FREE_RECID)/8*16;
+            long head = index.getLong(ioList);
+            long pos = head>>>48;
+            long page = head&MASK_OFFSET;
+            for(long pages=0; page!=0; pages++){
+                long header = page+8<=physSize ? phys.getLong(page) : 0;
+                long pageSize = header>>>48;
+                if((pageSize!=LONG_STACK_PREF_SIZE && pageSize!=LONG_STACK_PREF_SIZE_ALTER) ||
+                        page+pageSize>physSize || pos<8 || pos+6>pageSize || pages>physSize/LONG_STACK_PREF_SIZE){
+                    ret.error("Long Stack "+ioList+" is broken at offset "+page);
+                    break;
+                }
+                for(long p=8; p<=pos; p+=6){
+                    long val = phys.getSixLong(page+p);
+                    if(recids){
+                        if(val<=IO_USER_START || val>=indexSize || (val-IO_USER_START)%8!=0)
+                            ret.error("Long Stack of free recids has wrong value "+val);
+                        else if((index.getLong(val)&MASK_OFFSET)!=0)
+                            ret.error((val-IO_USER_START)/8, "recid is used, but it is in Long Stack of free recids");
+                    }else{
+                        if(val<16 || (val&~MASK_OFFSET)!=0 || val+slotSize>physSize)
+                            ret.error("Long Stack "+ioList+" has free record outside of physical file, offset "+val);
+                        free+=slotSize;
+                    }
+                }
+                page = header&MASK_OFFSET;
+                //previous pages are full
+                pos = pageSize-6;
+            }
+        }
+        ret.free(free);
+        if(free!=freeSize)
+            ret.error("free size is "+freeSize+", but Long Stacks have "+free+" bytes of free records");
     }
 
     @Override
@@ -681,6 +1109,7 @@ public class StoreDirect extends Store2 {
             checkNotDeleted(indexVal);
 
             index.putLong(ioRecid,0L|MASK_ARCHIVE);
+            instanceCacheRemove(ioRecid);
 
             if(!spaceReclaimTrack || indexVal==INDEX_VAL_ZERO_SIZE) return; //free space is not tracked, so do not mark stuff as free
 
@@ -710,6 +1139,20 @@ public class StoreDirect extends Store2 {
         }
     }
 
+    @Override
+    public <A> void deleteAll(long[] recids, Serializer<A> serializer) {
+        final Lock lock  = locks.writeLock();
+        lock.lock();
+        try{
+            for(long recid:recids)
+                checkNotDeleted(index.getLong(IO_USER_START + recid*8));
+            for(long recid:recids)
+                delete(recid, serializer);
+        }finally{
+            lock.unlock();
+        }
+    }
+
     @Override
     public <R> R getAndDelete(long recid, Serializer<R> serializer) {
         final long ioRecid = IO_USER_START + recid*8;
@@ -779,6 +1222,8 @@ public class StoreDirect extends Store2 {
         if(size<MAX_REC_SIZE){
             long indexVal = freePhysTake(size,ensureAvail,recursive);
             indexVal |= ((long)size)<<48;
+            if(compactLimit!=0)
+                compactAllocEnd = Math.max(compactAllocEnd, (indexVal&MASK_OFFSET)+roundTo16(size));
             return new long[]{indexVal};
         }else{
             long[] ret = new long[2];
@@ -795,6 +1240,8 @@ public class StoreDirect extends Store2 {
                 indexVal |= (((long)allocSize)<<48);
                 if(c!=0) indexVal|= MASK_LINKED;
                 ret[retPos++] = indexVal;
+                if(compactLimit!=0)
+                    compactAllocEnd = Math.max(compactAllocEnd, (indexVal&MASK_OFFSET)+roundTo16(allocSize));
 
                 c = size<=MAX_REC_SIZE ? 0 : 8;
             }
@@ -815,9 +1262,12 @@ public class StoreDirect extends Store2 {
         for(Runnable closeListener:closeListeners)
             closeListener.run();
 
+        stopFlusher();
 
         lockAllWrite();
         try{
+            if(instanceCache!=null)
+                instanceCache.clear();
             try {
                 if(!readOnly){
                     index.putLong(IO_PHYS_SIZE,physSize);
@@ -857,17 +1307,126 @@ public class StoreDirect extends Store2 {
 
     @Override
     public void commit() {
-        if(!readOnly){
+        CompletableFuture<Void> f = commitAsync();
+        if(durability!=Durability.ASYNC)
+            awaitCommit(f);
+    }
 
-            index.putLong(IO_PHYS_SIZE,physSize);
-            index.putLong(IO_INDEX_SIZE,indexSize);
-            index.putLong(IO_FREE_SIZE,freeSize);
+    /** waits until commit becomes durable, rethrows exception from fsync */
+    protected void awaitCommit(CompletableFuture<Void> f) {
+        try {
+            f.join();
+        }catch(CompletionException e){
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if(cause instanceof Error)
+                throw (Error) cause;
+            throw new DBException((Exception) cause);
+        }
+    }
+
+    /**
+     * Writes commit and schedules fsync according to {@link Durability} level.
+     * Returned future completes once commit is durable.
+     */
+    public CompletableFuture<Void> commitAsync() {
+        if(!readOnly){
+            structuralLock.lock();
+            try {
+                index.putLong(IO_PHYS_SIZE, physSize);
+                index.putLong(IO_INDEX_SIZE, indexSize);
+                index.putLong(IO_FREE_SIZE, freeSize);
 
-            index.putLong(IO_INDEX_SUM, indexHeaderChecksum());
+                index.putLong(IO_INDEX_SUM, indexHeaderChecksum());
+            }finally {
+                structuralLock.unlock();
+            }
         }
-        if(!syncOnCommitDisabled){
+        if(syncOnCommitDisabled)
+            return CompletableFuture.completedFuture(null);
+        if(flusher==null){
             index.sync();
             phys.sync();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Void> f = new CompletableFuture<>();
+        synchronized (syncLock){
+            if(flusherClosing)
+                throw new DBException.StoreClosed();
+            pendingCommits.add(f);
+            syncLock.notifyAll();
+        }
+        return f;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /** fsyncs pending commits, coalesces commits which arrive within commit window */
+    protected void flusherRun(){
+        while(true){
+            List<CompletableFuture<Void>> group;
+            synchronized (syncLock){
+                try {
+                    while (pendingCommits.isEmpty() && !flusherClosing)
+                        syncLock.wait();
+                    if(pendingCommits.isEmpty())
+                        return; //closing and nothing left to sync
+
+                    //commit window opens with first commit in group
+                    long deadline = System.nanoTime() + commitWindowNanos;
+                    long remaining;
+                    while (!flusherClosing && unsyncedBytes.get() < commitWindowBytes
+                            && (remaining = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(syncLock, remaining);
+                    }
+                }catch(InterruptedException e){
+                    flusherClosing = true;
+                    for(CompletableFuture<Void> f:pendingCommits)
+                        f.completeExceptionally(new DBException.Interrupted(e));
+                    pendingCommits.clear();
+                    return;
+                }
+                group = pendingCommits;
+                pendingCommits = new ArrayList<>();
+            }
+
+            //bytes written from now on will be covered by next fsync
+            unsyncedBytes.set(0);
+            //prevents compaction or close from replacing volumes while syncing, writers are not blocked
+            newRecidLock.readLock().lock();
+            try{
+                if(index!=null) {
+                    index.sync();
+                    phys.sync();
+                }
+            }catch(Throwable e){
+                for(CompletableFuture<Void> f:group)
+                    f.completeExceptionally(e);
+                continue;
+            }finally {
+                newRecidLock.readLock().unlock();
+            }
+            for(CompletableFuture<Void> f:group)
+                f.complete(null);
+        }
+    }
+
+    /** syncs pending commits and waits until flusher thread finishes */
+    protected void stopFlusher(){
+        if(flusher==null)
+            return;
+        synchronized (syncLock){
+            flusherClosing = true;
+            syncLock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            throw new DBException.Interrupted(e);
         }
     }
 
@@ -899,10 +1458,14 @@ public class StoreDirect extends Store2 {
             File f1del = null;
             final File compactedFile = new File((indexFile!=null?indexFile:(f1del=File.createTempFile("mapdb","compact")))+".compact");
             boolean asyncWriteEnabled = index instanceof Volume.ByteBufferVol && ((Volume.ByteBufferVol)index).asyncWriteEnabled;
-            Volume.Factory fab = Volume.fileFactory(compactedFile,rafMode,false,sizeLimit,  VOLUME_CHUNK_SHIFT,0,
-                    new File(compactedFile.getPath() + StoreDirect.DATA_FILE_EXT),
-                    asyncWriteEnabled);
-            StoreDirect store2 = new StoreDirect(fab,false,false,5,false,0L);
+            final byte[] encryptionKey = index instanceof Volume.EncryptedFileVol ? ((Volume.EncryptedFileVol)index).key : null;
+            Volume.Factory fab = encryptionKey!=null ?
+                    Volume.encryptedFileFactory(compactedFile, encryptionKey, false, sizeLimit, VOLUME_CHUNK_SHIFT) :
+                    Volume.fileFactory(compactedFile,rafMode,false,sizeLimit,  VOLUME_CHUNK_SHIFT,0,
+                        new File(compactedFile.getPath() + StoreDirect.DATA_FILE_EXT),
+                        asyncWriteEnabled);
+            StoreDirect store2 = new StoreDirect(fab,false,false,5,false,0L,
+                    Durability.SYNC, 0L, 0L, checksum, compression!=null);
 
             compactPreUnderLock();
 
@@ -966,9 +1529,11 @@ public class StoreDirect extends Store2 {
                 if(!physFile2.renameTo(physFile))
                     throw new AssertionError("could not rename file");
 
-                final Volume.Factory fac2 = Volume.fileFactory(indexFile,rafMode, false, sizeLimit, VOLUME_CHUNK_SHIFT,0,
-                        new File(indexFile.getPath() + StoreDirect.DATA_FILE_EXT),
-                        asyncWriteEnabled);
+                final Volume.Factory fac2 = encryptionKey!=null ?
+                        Volume.encryptedFileFactory(indexFile, encryptionKey, false, sizeLimit, VOLUME_CHUNK_SHIFT) :
+                        Volume.fileFactory(indexFile,rafMode, false, sizeLimit, VOLUME_CHUNK_SHIFT,0,
+                            new File(indexFile.getPath() + StoreDirect.DATA_FILE_EXT),
+                            asyncWriteEnabled);
                 index = fac2.createIndexVolume();
                 phys = fac2.createPhysVolume();
 
@@ -1020,6 +1585,471 @@ public class StoreDirect extends Store2 {
 
     }
 
+    /** receives progress of {@link #compactIncremental(long, CompactionProgress)} */
+    public interface CompactionProgress{
+        /**
+         * Called after each batch of relocated records was committed.
+         *
+         * @param recidsScanned number of recids already processed
+         * @param recidsTotal number of recids which will be processed
+         * @param bytesMoved number of bytes relocated so far
+         */
+        void progress(long recidsScanned, long recidsTotal, long bytesMoved);
+    }
+
+    /** number of recids scanned between two progress reports if no records were moved */
+    protected static final int COMPACT_RECIDS_PER_BATCH = 4096;
+
+    /**
+     * Compacts store while it stays online. Unlike {@link #compact()} it does not rewrite store into new files.
+     * Records located in tail of physical file are relocated one by one into free space bellow the size
+     * of live data. Each relocation holds write lock only for single record, so readers and writers proceed
+     * in between. Records are moved one chunk (1MB) at a time, each chunk is committed before the space
+     * it vacated can be reused, so committed data are never overwritten by relocation.
+     * <p>
+     * This store has no write-ahead log, moved part and pointer to it are written separately. Crash in middle of
+     * relocation can leave record pointing to partially written data, same as crash in middle of any other
+     * update.
+     * <p>
+     * Free space lists are rebuilt and sorted at start. At end those are rebuilt again and space after live data
+     * is dropped. Each rebuild holds only structural lock and takes time proportional to number of free space
+     * entries, index is not scanned. Rebuild is logged, so crash in its middle does not corrupt free space lists,
+     * rebuild is finished when store is reopened. Only truncation of physical file locks entire store.
+     *
+     * @param ioBudget maximal number of relocated bytes per second, zero for unlimited
+     * @param progress receives progress after each chunk, can be null
+     * @return number of bytes by which physical file shrunk
+     */
+    public long compactIncremental(long ioBudget, @Nullable CompactionProgress progress) {
+        if(readOnly) throw new IllegalAccessError();
+        if(ioBudget<0)
+            throw new DBException.WrongConfig("I/O budget can not be negative");
+
+        synchronized (compactIncrementalLock){
+            final long limit;
+            final long sizeBefore;
+            final long indexEnd;
+            lockAllWrite();
+            try{
+                if(index==null)
+                    throw new DBException.StoreClosed();
+                sizeBefore = physSize;
+                limit = roundTo16(Math.max(16, physSize - freeSize));
+                indexEnd = indexSize;
+                //from now on space allocated for records is tracked and space freed above limit is withheld
+                compactLimit = limit;
+                compactAllocEnd = 0;
+                compactLiveEnd = 0;
+            }finally {
+                unlockAllWrite();
+            }
+
+            boolean complete = false;
+            try{
+                //sorts free space, so space with lowest offset is on top of long stacks
+                newRecidLock.readLock().lock();
+                structuralLock.lock();
+                try{
+                    if(index==null)
+                        throw new DBException.StoreClosed();
+                    freeListsRebuild(physSize);
+                }finally {
+                    structuralLock.unlock();
+                    newRecidLock.readLock().unlock();
+                }
+
+                compactRelocateAll(ioBudget, progress, limit, indexEnd);
+                complete = true;
+            }finally {
+                newRecidLock.readLock().lock();
+                structuralLock.lock();
+                try{
+                    compactLimit = 0;
+                    if(index!=null)
+                        compactFinish(complete);
+                    compactWithheld.clear();
+                }finally {
+                    structuralLock.unlock();
+                    newRecidLock.readLock().unlock();
+                }
+            }
+
+            final long sizeAfter;
+            lockAllWrite();
+            try{
+                if(index==null)
+                    throw new DBException.StoreClosed();
+                phys.truncate(physSize);
+                index.putLong(IO_PHYS_SIZE,physSize);
+                index.putLong(IO_FREE_SIZE,freeSize);
+                sizeAfter = physSize;
+            }finally {
+                unlockAllWrite();
+            }
+            awaitCommit(commitAsync());
+            return Math.max(0, sizeBefore-sizeAfter);
+        }
+    }
+
+    /** relocates records with recid bellow `indexEnd` into space bellow `limit`, updates {@link #compactLiveEnd} */
+    protected void compactRelocateAll(long ioBudget, @Nullable CompactionProgress progress, long limit, long indexEnd) {
+        final long recidsTotal = (indexEnd-IO_USER_START)/8 - 1;
+
+        final long startTime = System.nanoTime();
+        long moved = 0;
+        final LongArrayList freed = new LongArrayList();
+
+        long ioRecid = IO_USER_START+8;
+        while(ioRecid<indexEnd){
+            long batchMoved = 0;
+            newRecidLock.readLock().lock();
+            try{
+                if(index==null)
+                    throw new DBException.StoreClosed();
+                for(int i=0; i<COMPACT_RECIDS_PER_BATCH && ioRecid<indexEnd && batchMoved<CHUNK_SIZE; i++){
+                    batchMoved += compactRelocate(ioRecid, limit, freed);
+                    ioRecid+=8;
+                }
+            }finally {
+                newRecidLock.readLock().unlock();
+            }
+
+            if(!freed.isEmpty()){
+                //new locations must be durable before old locations can be overwritten
+                awaitCommit(commitAsync());
+                newRecidLock.readLock().lock();
+                structuralLock.lock();
+                try{
+                    if(index==null)
+                        throw new DBException.StoreClosed();
+                    for(int i=0;i<freed.size();i++)
+                        freePhysPut(freed.get(i), false);
+                }finally {
+                    structuralLock.unlock();
+                    newRecidLock.readLock().unlock();
+                }
+                freed.clear();
+            }
+            moved+=batchMoved;
+
+            if(progress!=null)
+                progress.progress((ioRecid-IO_USER_START)/8 - 1, recidsTotal, moved);
+
+            if(ioBudget>0){
+                //sleep until I/O falls bellow budget
+                long ahead = moved*1000000000L/ioBudget - (System.nanoTime()-startTime);
+                if(ahead>0){
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(ahead);
+                    } catch (InterruptedException e) {
+                        throw new DBException.Interrupted(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves parts of record which are above limit into free space bellow limit.
+     * Old locations of relocated parts are added into `freed`,
+     * caller must release those once new locations were committed.
+     *
+     * @return number of relocated bytes
+     */
+    protected long compactRelocate(long ioRecid, long limit, LongArrayList freed) {
+        final Lock lock  = locks.writeLock();
+        lock.lock();
+        try{
+            long indexVal = index.getLong(ioRecid);
+            if((indexVal&MASK_PREALLOC)!=0 || (indexVal&MASK_OFFSET)==0 || indexVal==INDEX_VAL_ZERO_SIZE)
+                return 0;
+
+            long moved = 0;
+            //offset where pointer to current part is stored, zero if it is stored in index
+            long prevOffset = 0;
+            long val = indexVal;
+            while(true){
+                final int size = (int) (val>>>48);
+                long offset = val&MASK_OFFSET;
+                final long next = (val&MASK_LINKED)!=0 ? phys.getLong(offset) : 0L;
+
+                if(offset+roundTo16(size)>limit){
+                    long newOffset;
+                    structuralLock.lock();
+                    try{
+                        newOffset = freePhysTakeBellow(size, limit);
+                    }finally {
+                        structuralLock.unlock();
+                    }
+                    if(newOffset!=0){
+                        byte[] b = new byte[size];
+                        phys.getDataInput(offset, size).readFully(b);
+                        phys.putData(newOffset, b, 0, size);
+                        final long newVal = (val&~MASK_OFFSET)|newOffset;
+                        if(prevOffset==0)
+                            index.putLong(ioRecid, newVal);
+                        else
+                            phys.putLong(prevOffset, newVal);
+                        if(flusher!=null)
+                            unsyncedBytes.addAndGet(size);
+
+                        freed.add(val);
+                        moved+=size;
+                        offset = newOffset;
+                    }
+                }
+                compactLiveEnd = Math.max(compactLiveEnd, offset+roundTo16(size));
+                if((val&MASK_LINKED)==0)
+                    break;
+                prevOffset = offset;
+                val = next;
+            }
+            return moved;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /** takes free space for record of given size, but only if it ends bellow limit. Returns zero if no such space is available */
+    protected long freePhysTakeBellow(int size, long limit){
+        assert(structuralLock.isHeldByCurrentThread());
+        final long size16 = roundTo16(size);
+        for(long s = size16; s<=roundTo16(MAX_REC_SIZE); s+=16){
+            final long ioList = size2ListIoRecid(s);
+            if(ioList>maxUsedIoList) break;
+            final long head = index.getLong(ioList);
+            if(head==0)
+                continue;
+            //long stack can only be peeked from top
+            final long offset = phys.getSixLong((head&MASK_OFFSET)+(head>>>48));
+            if(offset+s>limit)
+                continue;
+            final long ret = longStackTake(ioList, false);
+            assert(ret==offset);
+            freeSize-=s;
+            if(s>size16){
+                //split, return remaining part into free space
+                freePhysPut(((s-size16)<<48) | (offset+size16), false);
+            }
+            return offset;
+        }
+        return 0L;
+    }
+
+    /**
+     * Finishes {@link #compactIncremental(long, CompactionProgress)}. If relocation completed, long stacks
+     * are rebuilt together with withheld space and space after end of live data is dropped.
+     * End of live data is known from relocation and from records allocated during compaction, index is not scanned.
+     * Otherwise withheld space is only returned into long stacks.
+     * Physical file is not truncated here.
+     */
+    protected void compactFinish(boolean complete) {
+        assert(structuralLock.isHeldByCurrentThread());
+        assert(compactLimit==0);
+
+        if(!complete){
+            for(int i=0; i<compactWithheld.size(); i++)
+                freePhysPut(compactWithheld.get(i), false);
+            return;
+        }
+
+        //nothing was allocated after end of live data, except long stack pages which are released by rebuild
+        final long end = Math.min(physSize, roundTo16(Math.max(16, Math.max(compactLiveEnd, compactAllocEnd))));
+        freeListsRebuild(end);
+    }
+
+    /**
+     * Rebuilds all long stacks together with withheld space. Space with lowest offset is put on top and is reused first,
+     * adjacent free space is merged and space after `end` is dropped. Pages of long stacks are reallocated.
+     * <p>
+     * Long stacks are rewritten in place. Their new content is first written into log after end of index file
+     * and log location is committed in index header. If rebuild is interrupted, it is redone from log
+     * when store is reopened, see {@link #freeListLogReplay()}.
+     */
+    protected void freeListsRebuild(long end) {
+        assert(structuralLock.isHeldByCurrentThread());
+
+        //collect free recids in order they would be taken
+        long[] recids = new long[16];
+        int recidsSize = 0;
+        //collect free space, each entry is `offset<<9 | size/16` (size/16 takes 13 bits), so it sorts by offset
+        long[] free = new long[16 + compactWithheld.size()];
+        int freeSize2 = 0;
+
+        for(int i=0; i<compactWithheld.size(); i++){
+            final long v = compactWithheld.get(i);
+            free[freeSize2++] = ((v&MASK_OFFSET)<<9) | (roundTo16(v>>>48)>>>4);
+        }
+        compactWithheld.clear();
+
+        for(long ioList=IO_FREE_RECID; ioList<IO_USER_START; ioList+=8){
+            final long head = index.getLong(ioList);
+            long page = head&MASK_OFFSET;
+            long pos = head>>>48;
+            while(page!=0){
+                for(long p=pos; p>=8; p-=6){
+                    final long v = phys.getSixLong(page+p);
+                    if(ioList==IO_FREE_RECID){
+                        if(recidsSize==recids.length)
+                            recids = Arrays.copyOf(recids, recids.length*2);
+                        recids[recidsSize++] = v;
+                    }else{
+                        if(freeSize2==free.length)
+                            free = Arrays.copyOf(free, free.length*2);
+                        free[freeSize2++] = (v<<9) | ((ioList-IO_FREE_RECID)/8);
+                    }
+                }
+                //page itself becomes free space
+                final long header = phys.getLong(page);
+                if(freeSize2==free.length)
+                    free = Arrays.copyOf(free, free.length*2);
+                free[freeSize2++] = (page<<9) | (roundTo16(header>>>48)>>>4);
+
+                page = header&MASK_OFFSET;
+                if(page!=0)
+                    pos = phys.getUnsignedShort(page)-6;
+            }
+        }
+
+        Arrays.sort(free, 0, freeSize2);
+
+        //merge adjacent free space, merged size must fit into 16 bits of index value and can not cross volume chunk
+        //or compaction limit
+        int merged = 0;
+        for(int i=0; i<freeSize2; i++){
+            final long offset = (free[i]>>>9)&MASK_OFFSET;
+            final long size = (free[i]&0x1FFF)<<4;
+            if(merged>0){
+                final long prevOffset = (free[merged-1]>>>9)&MASK_OFFSET;
+                final long prevSize = (free[merged-1]&0x1FFF)<<4;
+                if(prevOffset+prevSize==offset && prevSize+size<=MAX_REC_SIZE
+                        && (prevOffset>>>VOLUME_CHUNK_SHIFT)==((offset+size-1)>>>VOLUME_CHUNK_SHIFT)
+                        && (compactLimit==0 || offset+size<=compactLimit || prevOffset>=compactLimit)){
+                    free[merged-1] = (prevOffset<<9) | ((prevSize+size)>>>4);
+                    continue;
+                }
+            }
+            free[merged++] = free[i];
+        }
+
+        //drop space after end of live data, convert entries into `size<<48 | offset`
+        freeSize2 = 0;
+        for(int i=0; i<merged; i++){
+            final long offset = (free[i]>>>9)&MASK_OFFSET;
+            if(offset>=end)
+                continue;
+            final long size = Math.min((free[i]&0x1FFF)<<4, end-offset);
+            free[freeSize2++] = (size<<48)|offset;
+        }
+
+        freeListLogWrite(end, recids, recidsSize, free, freeSize2);
+        freeListsApply(end, recids, recidsSize, free, freeSize2);
+        freeListLogClear();
+    }
+
+    /** replaces content of all long stacks, free space entries are `size<<48 | offset` sorted by offset */
+    protected void freeListsApply(long end, long[] recids, int recidsSize, long[] free, int freeCount) {
+        assert(structuralLock.isHeldByCurrentThread());
+        for(long ioList=IO_FREE_RECID; ioList<IO_USER_START; ioList+=8)
+            index.putLong(ioList, 0L);
+
+        physSize = end;
+        freeSize = 0;
+        maxUsedIoList = IO_FREE_RECID;
+
+        for(int i=recidsSize-1; i>=0; i--)
+            longStackPut(IO_FREE_RECID, recids[i], false);
+
+        //put lowest offsets on top of stacks, so those are reused first
+        for(int i=freeCount-1; i>=0; i--)
+            freePhysPut(free[i], false);
+    }
+
+    /**
+     * Writes new content of long stacks into log after end of index file and commits its location.
+     * Log is sequence of longs: checksum, end of physical file, number of free recids, number of free space entries,
+     * free recids and free space entries.
+     */
+    protected void freeListLogWrite(long end, long[] recids, int recidsSize, long[] free, int freeCount) {
+        final long log = indexSize;
+        index.ensureAvailable(log + 32 + 8L*(recidsSize+freeCount));
+        index.putLong(log+8, end);
+        index.putLong(log+16, recidsSize);
+        index.putLong(log+24, freeCount);
+        long offset = log+32;
+        for(int i=0; i<recidsSize; i++, offset+=8)
+            index.putLong(offset, recids[i]);
+        for(int i=0; i<freeCount; i++, offset+=8)
+            index.putLong(offset, free[i]);
+        index.putLong(log, freeListLogChecksum(log));
+        if(!syncOnCommitDisabled)
+            index.sync();
+
+        //log is valid from now on, commit its location together with rest of header
+        index.putLong(IO_FREE_LOG, log);
+        index.putLong(IO_PHYS_SIZE, physSize);
+        index.putLong(IO_INDEX_SIZE, indexSize);
+        index.putLong(IO_FREE_SIZE, freeSize);
+        index.putLong(IO_INDEX_SUM, indexHeaderChecksum());
+        if(!syncOnCommitDisabled){
+            phys.sync();
+            index.sync();
+        }
+    }
+
+    /** commits rebuilt long stacks and discards log, space occupied by log is reused by new recids */
+    protected void freeListLogClear() {
+        if(!syncOnCommitDisabled)
+            phys.sync();
+        index.putLong(IO_FREE_LOG, 0L);
+        index.putLong(IO_PHYS_SIZE, physSize);
+        index.putLong(IO_INDEX_SIZE, indexSize);
+        index.putLong(IO_FREE_SIZE, freeSize);
+        index.putLong(IO_INDEX_SUM, indexHeaderChecksum());
+        if(!syncOnCommitDisabled)
+            index.sync();
+    }
+
+    protected long freeListLogChecksum(long log) {
+        final long logEnd = log + 32 + 8*(index.getLong(log+16)+index.getLong(log+24));
+        long ret = 0;
+        for(long offset=log+8; offset<logEnd; offset+=8)
+            ret = ret*0x9E3779B97F4A7C15L + index.getLong(offset);
+        return ret;
+    }
+
+    /** redoes rebuild of long stacks which was interrupted before its log was discarded */
+    protected void freeListLogReplay() {
+        if(readOnly)
+            throw new IOError(new IOException("Rebuild of free space was interrupted, open store in read-write mode to recover it."));
+        final long log = index.getLong(IO_FREE_LOG);
+        if(log<IO_USER_START || log>indexSize)
+            throw new DBException.DataCorruption("Wrong location of free space log");
+        final long end = index.getLong(log+8);
+        final long recidsSize = index.getLong(log+16);
+        final long freeCount = index.getLong(log+24);
+        if(end<16 || end>physSize || recidsSize<0 || recidsSize>(indexSize-IO_USER_START)/8
+                || freeCount<0 || freeCount>end/16
+                || index.getLong(log)!=freeListLogChecksum(log))
+            throw new DBException.DataCorruption("Free space log is corrupted");
+
+        final long[] recids = new long[(int) recidsSize];
+        final long[] free = new long[(int) freeCount];
+        long offset = log+32;
+        for(int i=0; i<recids.length; i++, offset+=8)
+            recids[i] = index.getLong(offset);
+        for(int i=0; i<free.length; i++, offset+=8)
+            free[i] = index.getLong(offset);
+
+        structuralLock.lock();
+        try{
+            freeListsApply(end, recids, recids.length, free, free.length);
+            freeListLogClear();
+        }finally {
+            structuralLock.unlock();
+        }
+    }
+
     @Override
     public boolean isThreadSafe() {
         return true;
@@ -1175,6 +2205,11 @@ public class StoreDirect extends Store2 {
             physSize = indexVal;
             return;
         }
+        if(compactLimit!=0 && indexVal+roundTo16(size)>compactLimit){
+            //above compaction limit, keep it out of long stacks so it is not reused
+            compactWithheld.add((size<<48)|indexVal);
+            return;
+        }
 
         freeSize+=roundTo16(size);
         longStackPut(size2ListIoRecid(size), indexVal,recursive);
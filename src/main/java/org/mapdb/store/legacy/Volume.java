@@ -16,11 +16,24 @@
 
 package org.mapdb.store.legacy;
 
+import org.mapdb.DBException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -86,6 +99,16 @@ public abstract class Volume {
 
     abstract public DataInput2Exposed getDataInput(final long offset, final int size);
 
+    /**
+     * Returns read-only buffer with given data, positioned at zero. Sliced volumes return view without copying data,
+     * it is only valid until volume is modified. Data must not cross chunk boundary.
+     */
+    public ByteBuffer getByteBuffer(final long offset, final int size){
+        byte[] b = new byte[size];
+        getDataInput(offset, size).readFully(b, 0, size);
+        return ByteBuffer.wrap(b).asReadOnlyBuffer();
+    }
+
     abstract public void close();
 
     abstract public void sync();
@@ -290,6 +313,27 @@ public abstract class Volume {
     }
 
 
+    /**
+     * Factory for encrypted files, see {@link EncryptedFileVol}. Data are in second file with `.p` suffix.
+     *
+     * @param key AES key, it must have 16, 24 or 32 bytes
+     */
+    public static Factory encryptedFileFactory(final File indexFile, final byte[] key, final boolean readOnly,
+                                               final long sizeLimit, final int chunkShift) {
+        final File physFile = new File(indexFile.getPath() + StoreDirect.DATA_FILE_EXT);
+        return new Factory() {
+            @Override
+            public Volume createIndexVolume() {
+                return new EncryptedFileVol(indexFile, key, readOnly, sizeLimit, chunkShift);
+            }
+
+            @Override
+            public Volume createPhysVolume() {
+                return new EncryptedFileVol(physFile, key, readOnly, sizeLimit, chunkShift);
+            }
+        };
+    }
+
     /**
      * Abstract Volume over bunch of ByteBuffers
      * It leaves ByteBufferVol details (allocation, disposal) on subclasses.
@@ -309,6 +353,12 @@ public abstract class Volume {
         protected volatile ByteBuffer[] chunks = new ByteBuffer[0];
         protected final boolean readOnly;
 
+        /**
+         * chunks which were exposed by {@link #getByteBuffer(long, int)}, view might outlive the store call,
+         * so those are never unmapped explicitly and are released by GC. Modified under grow lock.
+         */
+        protected volatile boolean[] exposed = new boolean[0];
+
         /**
          * if Async Write is enabled, do not use unmap hack see
          * https://github.com/jankotek/MapDB/issues/442
@@ -421,6 +471,18 @@ public abstract class Volume {
             return new DataInput2Exposed(buf, pos);
         }
 
+        @Override
+        public final ByteBuffer getByteBuffer(long offset, int size) {
+            int chunkPos = (int)(offset >>> chunkShift);
+            //mark before chunk is read, so concurrent truncate does not unmap it
+            markExposed(chunkPos);
+            ByteBuffer buf = chunks[chunkPos].asReadOnlyBuffer();
+            int pos = (int) (offset&chunkSizeModMask);
+            buf.limit(pos+size);
+            buf.position(pos);
+            return buf.slice();
+        }
+
         @Override
         public boolean isEmpty() {
             return chunks.length==0;
@@ -433,42 +495,90 @@ public abstract class Volume {
 
 
 
+        protected final void markExposed(int chunkPos){
+            boolean[] e = exposed;
+            if(chunkPos<e.length && e[chunkPos])
+                return;
+            growLock.lock();
+            try{
+                e = exposed;
+                if(chunkPos>=e.length)
+                    e = Arrays.copyOf(e, Math.max(chunkPos+1, chunks.length));
+                e[chunkPos] = true;
+                exposed = e;
+            }finally {
+                growLock.unlock();
+            }
+        }
+
+        /**
+         * Unmaps chunk, unless it was exposed as zero-copy view or unmapping is disabled. Must hold grow lock.
+         * <p/>
+         * Caller must make sure no other thread accesses chunk, {@link StoreDirect} holds its structural write lock
+         * on close and truncate. Access to unmapped buffer would crash JVM, not throw an exception.
+         */
+        protected final void unmapChunk(ByteBuffer[] chunks, int chunkPos){
+            ByteBuffer b = chunks[chunkPos];
+            if(cleanerHackDisabled || !(b instanceof MappedByteBuffer))
+                return;
+            boolean[] e = exposed;
+            if(chunkPos<e.length && e[chunkPos])
+                return;
+            unmap((MappedByteBuffer) b);
+        }
+
         /**
          * Hack to unmap MappedByteBuffer.
          * Unmap is necessary on Windows, otherwise file is locked until JVM exits or BB is GCed.
-         * There is no public JVM API to unmap buffer, so this tries to use SUN proprietary API for unmap.
-         * Any error is silently ignored (for example SUN API does not exist on Android).
+         * It also releases address space right away, so truncated or compacted files do not leak mappings.
+         * There is no public JVM API to unmap buffer, so this uses {@code Unsafe.invokeCleaner()} on Java 9+
+         * and {@code DirectBuffer.cleaner()} on Java 8.
+         * If JVM does not link the cleaner API (for example SUN API does not exist on Android), unmap is disabled
+         * and buffers are released by GC. Other errors are rethrown.
+         * <p/>
+         * Buffer (and its slices) must not be accessed after unmap, it would crash JVM.
          */
         protected void unmap(MappedByteBuffer b){
-//            try{
-//                if(unmapHackSupported && !asyncWriteEnabled){
-//
-//                    // need to dispose old direct buffer, see bug
-//                    // http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4724038
-//                    Method cleanerMethod = b.getClass().getMethod("cleaner", new Class[0]);
-//                    cleanerMethod.setAccessible(true);
-//                    if(cleanerMethod!=null){
-//                        Object cleaner = cleanerMethod.invoke(b);
-//                        if(cleaner!=null){
-//                            Method clearMethod = cleaner.getClass().getMethod("clean", new Class[0]);
-//                            if(clearMethod!=null) {
-//                                clearMethod.invoke(cleaner);
-//                            }
-//                        }else{
-//                            //cleaner is null, try fallback method for readonly buffers
-//                            Method attMethod = b.getClass().getMethod("attachment", new Class[0]);
-//                            attMethod.setAccessible(true);
-//                            Object att = attMethod.invoke(b);
-//                            if(att instanceof MappedByteBuffer)
-//                                unmap((MappedByteBuffer) att);
-//                        }
-//                    }
-//                }
-//            }catch(Exception e){
-//                unmapHackSupported = false;
-//                //TODO exception handling
-//                //Utils.LOG.log(Level.WARNING, "ByteBufferVol Unmap failed", e);
-//            }
+            if(!unmapHackSupported || asyncWriteEnabled || UNMAP==null)
+                return;
+            try{
+                UNMAP.invokeExact((ByteBuffer) b);
+            }catch(LinkageError | UnsupportedOperationException e){
+                unmapHackSupported = false;
+            }catch(IllegalArgumentException e){
+                //slice or duplicate can not be released, it is released by GC
+            }catch(RuntimeException | Error e){
+                throw e;
+            }catch(Throwable e){
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static volatile boolean unmapHackSupported = true;
+
+        /** releases direct buffer, null if JVM does not support it */
+        private static final MethodHandle UNMAP = unmapHandle();
+
+        private static MethodHandle unmapHandle(){
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            try{
+                //Java 9+
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                return lookup.unreflect(invokeCleaner).bindTo(theUnsafe.get(null));
+            }catch(Exception e){
+                //Java 8
+                try{
+                    Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                    Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                    return MethodHandles.filterReturnValue(lookup.unreflect(cleaner), lookup.unreflect(clean))
+                            .asType(MethodType.methodType(void.class, ByteBuffer.class));
+                }catch(Exception e2){
+                    return null;
+                }
+            }
         }
 
         // Workaround for https://github.com/jankotek/MapDB/issues/326
@@ -532,13 +642,9 @@ public abstract class Volume {
 //                if(!readOnly)
 //                    sync();
 
-                if(!cleanerHackDisabled) {
-                    for (ByteBuffer b : chunks) {
-                        if (b != null && (b instanceof MappedByteBuffer)) {
-                            unmap((MappedByteBuffer) b);
-                        }
-                    }
-                }
+                ByteBuffer[] old = chunks;
+                for(int i=0; old!=null && i<old.length; i++)
+                    unmapChunk(old, i);
 
                 chunks = null;
 
@@ -639,20 +745,18 @@ public abstract class Volume {
 
                 //unmap remaining buffers
                 for(int i=maxSize;i<old.length;i++){
-                    if(!cleanerHackDisabled) {
-                        unmap((MappedByteBuffer) old[i]);
-                    }
+                    unmapChunk(old, i);
                     old[i] = null;
                 }
 
                 if (ByteBufferVol.windowsWorkaround) {
                     for(int i=0;i<maxSize;i++){
-                        if(!cleanerHackDisabled) {
-                            unmap((MappedByteBuffer) old[i]);
-                        }
+                        unmapChunk(old, i);
                         old[i] = null;
                     }
                 }
+                //chunks are remapped, so those are not exposed anymore
+                exposed = ByteBufferVol.windowsWorkaround ? new boolean[0] : Arrays.copyOf(exposed, Math.min(exposed.length, maxSize));
 
                 try {
                     fileChannel.truncate(1L * chunkSize *maxSize);
@@ -712,10 +816,10 @@ public abstract class Volume {
 
                 //unmap remaining buffers
                 for(int i=maxSize;i<old.length;i++){
-                    if(!cleanerHackDisabled && old[i] instanceof  MappedByteBuffer)
-                        unmap((MappedByteBuffer) old[i]);
+                    unmapChunk(old, i);
                     old[i] = null;
                 }
+                exposed = Arrays.copyOf(exposed, Math.min(exposed.length, maxSize));
 
             }finally {
                 growLock.unlock();
@@ -726,13 +830,9 @@ public abstract class Volume {
             growLock.lock();
             try{
                 closed = true;
-                if(!cleanerHackDisabled) {
-                    for (ByteBuffer b : chunks) {
-                        if (b != null && (b instanceof MappedByteBuffer)) {
-                            unmap((MappedByteBuffer) b);
-                        }
-                    }
-                }
+                ByteBuffer[] old = chunks;
+                for(int i=0; old!=null && i<old.length; i++)
+                    unmapChunk(old, i);
                 chunks = null;
             }finally{
                 growLock.unlock();
@@ -1038,6 +1138,528 @@ public abstract class Volume {
         }
     }
 
+    /**
+     * Volume encrypted with AES-GCM. Encryption works on whole chunks, not on records.
+     * Decrypted chunks are cached on heap, so reads and writes do not pay for crypto.
+     * Cache is bounded, least recently used chunks are evicted and written into file if modified.
+     * Other modified chunks are encrypted and written into file on {@link #sync()} and {@link #close()}.
+     * <p/>
+     * Each chunk has two slots in file, and is written into them alternately.
+     * Slot starts with random IV and generation number, followed by ciphertext and authentication tag.
+     * Torn write only damages the older slot, the newer slot which fails authentication is ignored on load.
+     * Chunk number and generation are authenticated as well, so chunks can not be swapped or rolled back
+     * to older slot.
+     */
+    public static final class EncryptedFileVol extends Volume {
+
+        protected static final int IV_SIZE = 12;
+        protected static final int TAG_SIZE = 16;
+        /** IV followed by generation, so ciphertext is aligned */
+        protected static final int CHUNK_HEAD = 16;
+
+        /** default number of decrypted chunks kept on heap */
+        public static final int CACHE_CHUNKS = 64;
+
+        /** chunk was never written into file, it is loaded as zeroes */
+        private static final int GEN_EMPTY = 0;
+        /** chunk was in file when volume was opened, its generation is read on load */
+        private static final int GEN_UNKNOWN = -1;
+
+        private static final SecureRandom RANDOM = new SecureRandom();
+
+        /** decrypted chunk, it is encrypted again on sync or eviction if modified */
+        protected static final class Chunk{
+            protected final ByteBuffer buf;
+            /** modified since last write into file, it is set after data are written */
+            protected volatile boolean dirty;
+            /** accessed since last eviction sweep */
+            protected volatile boolean used = true;
+
+            protected Chunk(ByteBuffer buf, boolean dirty) {
+                this.buf = buf;
+                this.dirty = dirty;
+            }
+        }
+
+        protected final File file;
+        protected final RandomAccessFile raf;
+        protected final FileChannel fileChannel;
+        protected final boolean readOnly;
+        protected final long sizeLimit;
+        protected final boolean hasLimit;
+        protected final int chunkShift;
+        protected final int chunkSize;
+        protected final int chunkSizeModMask;
+        protected final long slotSize;
+        protected final long storedChunkSize;
+        protected final int cacheChunks;
+
+        protected final byte[] key;
+        protected final SecretKeySpec keySpec;
+
+        protected final ReentrantLock growLock = new ReentrantLock();
+
+        /** chunks which are not cached are null, array elements are modified under grow lock */
+        protected volatile Chunk[] chunks;
+
+        /** generation of last write of each chunk, {@link #GEN_EMPTY} or {@link #GEN_UNKNOWN}, guarded by grow lock */
+        private int[] generations;
+
+        /** chunks written since last fsync, those can not be written again before fsync, guarded by grow lock */
+        private final BitSet writtenSinceSync = new BitSet();
+
+        /** number of cached chunks and position of eviction sweep, guarded by grow lock */
+        private int cached = 0;
+        private int clockHand = 0;
+
+        /** buffer for encrypted chunk, used under grow lock */
+        private ByteBuffer syncBuf;
+
+        /**
+         * @param key AES key, it must have 16, 24 or 32 bytes
+         */
+        public EncryptedFileVol(File file, byte[] key, boolean readOnly, long sizeLimit, int chunkShift) {
+            this(file, key, readOnly, sizeLimit, chunkShift, CACHE_CHUNKS);
+        }
+
+        /**
+         * @param key AES key, it must have 16, 24 or 32 bytes
+         * @param cacheChunks maximal number of decrypted chunks kept on heap
+         */
+        public EncryptedFileVol(File file, byte[] key, boolean readOnly, long sizeLimit, int chunkShift, int cacheChunks) {
+            if(key.length!=16 && key.length!=24 && key.length!=32)
+                throw new DBException.WrongConfig("AES key must have 16, 24 or 32 bytes");
+            if(cacheChunks<1)
+                throw new DBException.WrongConfig("Cache must hold at least one chunk");
+            this.file = file;
+            this.key = key.clone();
+            this.keySpec = new SecretKeySpec(this.key, "AES");
+            this.readOnly = readOnly;
+            this.sizeLimit = sizeLimit;
+            this.hasLimit = sizeLimit>0;
+            this.chunkShift = chunkShift;
+            this.chunkSize = 1<<chunkShift;
+            this.chunkSizeModMask = chunkSize-1;
+            this.slotSize = CHUNK_HEAD+chunkSize+TAG_SIZE;
+            this.storedChunkSize = 2*slotSize;
+            this.cacheChunks = cacheChunks;
+            //fail fast if AES/GCM is not available
+            newCipher();
+            try {
+                FileChannelVol.checkFolder(file, readOnly);
+                this.raf = new RandomAccessFile(file, readOnly?"r":"rw");
+                this.fileChannel = raf.getChannel();
+                int count = (int) ((fileChannel.size()+storedChunkSize-1)/storedChunkSize);
+                chunks = new Chunk[count];
+                generations = new int[count];
+                Arrays.fill(generations, GEN_UNKNOWN);
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        }
+
+        /** new Cipher for each chunk, its cost is small compared to chunk encryption and key is not retained elsewhere */
+        private static Cipher newCipher() {
+            try {
+                return Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new DBException.WrongConfig("AES/GCM is not supported: "+e.getMessage());
+            }
+        }
+
+        private Cipher cipher(int mode, byte[] iv, int chunkPos, int gen) throws GeneralSecurityException {
+            Cipher cipher = newCipher();
+            cipher.init(mode, keySpec, new GCMParameterSpec(TAG_SIZE*8, iv));
+            cipher.updateAAD(ByteBuffer.allocate(8).putInt(0, chunkPos).putInt(4, gen).array());
+            return cipher;
+        }
+
+        /** generation alternates between two slots, first write goes into first slot */
+        private long slotOffset(int chunkPos, int gen){
+            return chunkPos*storedChunkSize + ((gen-1)&1)*slotSize;
+        }
+
+        protected Chunk chunk(long offset){
+            int chunkPos = (int) (offset >>> chunkShift);
+            Chunk c = chunks[chunkPos];
+            if(c==null)
+                return load(chunkPos);
+            if(!c.used)
+                c.used = true;
+            return c;
+        }
+
+        /** true if chunk was evicted while it was modified, in that case modification must be repeated */
+        private boolean evicted(long offset, Chunk c){
+            //dirty flag was set before this volatile read, eviction checks dirty flag after it removes chunk
+            return chunks[(int) (offset >>> chunkShift)]!=c;
+        }
+
+        private Chunk load(int chunkPos) {
+            while(true) {
+                int gen;
+                growLock.lock();
+                try {
+                    Chunk c = chunks[chunkPos];
+                    if (c != null)
+                        return c;
+                    gen = generations[chunkPos];
+                } finally {
+                    growLock.unlock();
+                }
+
+                //decrypt outside of lock, so more chunks can be loaded in parallel
+                int[] loadedGen = new int[1];
+                Chunk c = gen == GEN_EMPTY ?
+                        new Chunk(ByteBuffer.allocate(chunkSize), true) :
+                        new Chunk(decrypt(chunkPos, loadedGen), false);
+
+                growLock.lock();
+                try {
+                    Chunk[] chunks2 = chunks;
+                    if (chunks2[chunkPos] != null)
+                        return chunks2[chunkPos];
+                    if (generations[chunkPos] != gen)
+                        continue; //chunk was written while it was decrypted, load it again
+                    if (gen == GEN_UNKNOWN)
+                        generations[chunkPos] = loadedGen[0];
+                    chunks2[chunkPos] = c;
+                    //volatile write, so other threads see loaded chunk
+                    chunks = chunks2;
+                    if (++cached > cacheChunks)
+                        evict();
+                    return c;
+                } catch (IOException e) {
+                    throw new IOError(e);
+                } catch (GeneralSecurityException e) {
+                    throw new DBException.WrongConfig("could not encrypt chunk: " + e.getMessage());
+                } finally {
+                    growLock.unlock();
+                }
+            }
+        }
+
+        /** removes one chunk from cache, chunks used since last sweep get second chance */
+        private void evict() throws IOException, GeneralSecurityException {
+            Chunk[] chunks2 = chunks;
+            for(int i=0; i<2*chunks2.length; i++){
+                int pos = clockHand;
+                clockHand = pos+1<chunks2.length ? pos+1 : 0;
+                Chunk c = chunks2[pos];
+                if(c==null)
+                    continue;
+                if(c.used){
+                    c.used = false;
+                    continue;
+                }
+                if(c.dirty){
+                    //clear flag before encryption, so concurrent write is not lost
+                    c.dirty = false;
+                    encrypt(pos, c.buf);
+                }
+                chunks2[pos] = null;
+                chunks = chunks2;
+                if(c.dirty){
+                    //modified during write, writer might not see it was evicted
+                    chunks2[pos] = c;
+                    chunks = chunks2;
+                    continue;
+                }
+                cached--;
+                return;
+            }
+        }
+
+        /** reads newest slot which passes authentication */
+        private ByteBuffer decrypt(int chunkPos, int[] loadedGen) {
+            try {
+                ByteBuffer stored = ByteBuffer.allocate((int) storedChunkSize);
+                long offset = chunkPos*storedChunkSize;
+                while(stored.hasRemaining()){
+                    if(fileChannel.read(stored, offset+stored.position())<0)
+                        break;
+                }
+                int filled = stored.position();
+                int gen0 = filled>=slotSize ? stored.getInt(IV_SIZE) : GEN_EMPTY;
+                int gen1 = filled==storedChunkSize ? stored.getInt((int) slotSize+IV_SIZE) : GEN_EMPTY;
+                //newest slot first, older slot is valid if newest write was torn
+                int[] slots = gen1>gen0 ? new int[]{1,0} : new int[]{0,1};
+                int[] gens = {gen0, gen1};
+                for(int slot:slots){
+                    int gen = gens[slot];
+                    if(gen<=GEN_EMPTY || ((gen-1)&1)!=slot)
+                        continue;
+                    ByteBuffer buf = decryptSlot(chunkPos, gen, stored, (int) (slot*slotSize));
+                    if(buf!=null){
+                        loadedGen[0] = gen;
+                        return buf;
+                    }
+                }
+                throw new DBException.DataCorruption("could not decrypt chunk "+chunkPos+", wrong key or corrupted file: "+file);
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        }
+
+        private ByteBuffer decryptSlot(int chunkPos, int gen, ByteBuffer stored, int slotOffset){
+            try {
+                byte[] iv = new byte[IV_SIZE];
+                ByteBuffer src = stored.duplicate();
+                src.position(slotOffset);
+                src.get(iv);
+                src.position(slotOffset+CHUNK_HEAD);
+                src.limit((int) (slotOffset+slotSize));
+
+                ByteBuffer buf = ByteBuffer.allocate(chunkSize);
+                cipher(Cipher.DECRYPT_MODE, iv, chunkPos, gen).doFinal(src, buf);
+                buf.clear();
+                return buf;
+            } catch (GeneralSecurityException e) {
+                return null;
+            }
+        }
+
+        /** writes chunk into slot which does not hold its last generation, called under grow lock */
+        private void encrypt(int chunkPos, ByteBuffer buf) throws IOException, GeneralSecurityException {
+            if(writtenSinceSync.get(chunkPos)){
+                //target slot would overwrite generation which is not durable yet
+                fileChannel.force(false);
+                writtenSinceSync.clear();
+            }
+            int gen = Math.max(generations[chunkPos], GEN_EMPTY)+1;
+
+            if(syncBuf==null)
+                syncBuf = ByteBuffer.allocate((int) slotSize);
+            byte[] iv = new byte[IV_SIZE];
+            RANDOM.nextBytes(iv);
+            syncBuf.clear();
+            syncBuf.put(iv);
+            syncBuf.putInt(gen);
+            ByteBuffer src = buf.duplicate();
+            src.clear();
+            cipher(Cipher.ENCRYPT_MODE, iv, chunkPos, gen).doFinal(src, syncBuf);
+            syncBuf.flip();
+
+            long offset = slotOffset(chunkPos, gen);
+            while(syncBuf.hasRemaining())
+                fileChannel.write(syncBuf, offset+syncBuf.position());
+            generations[chunkPos] = gen;
+            writtenSinceSync.set(chunkPos);
+        }
+
+        @Override
+        public boolean tryAvailable(long offset) {
+            if (hasLimit && offset > sizeLimit) return false;
+
+            int chunkPos = (int) (offset >>> chunkShift);
+            if (chunkPos < chunks.length)
+                return true;
+
+            growLock.lock();
+            try{
+                if(chunkPos < chunks.length)
+                    return true;
+                //new chunks are not in file yet, those are loaded as zeroes and written on sync
+                generations = Arrays.copyOf(generations, chunkPos+1);
+                chunks = Arrays.copyOf(chunks, chunkPos+1);
+            }finally{
+                growLock.unlock();
+            }
+            return true;
+        }
+
+        @Override
+        public void truncate(long size) {
+            final int maxSize = 1+(int) (size >>> chunkShift);
+            if(maxSize==chunks.length)
+                return;
+            if(maxSize>chunks.length) {
+                ensureAvailable(size);
+                return;
+            }
+            growLock.lock();
+            try{
+                if(maxSize>=chunks.length)
+                    return;
+                Chunk[] chunks2 = chunks;
+                for(int pos=maxSize; pos<chunks2.length; pos++){
+                    if(chunks2[pos]!=null)
+                        cached--;
+                }
+                writtenSinceSync.clear(maxSize, chunks2.length);
+                generations = Arrays.copyOf(generations, maxSize);
+                chunks = Arrays.copyOf(chunks2, maxSize);
+                if(clockHand>=maxSize)
+                    clockHand = 0;
+                fileChannel.truncate(maxSize*storedChunkSize);
+            } catch (IOException e) {
+                throw new IOError(e);
+            }finally {
+                growLock.unlock();
+            }
+        }
+
+        @Override public void putLong(long offset, long value) {
+            Chunk c;
+            do{
+                c = chunk(offset);
+                c.buf.putLong((int) (offset & chunkSizeModMask), value);
+                c.dirty = true;
+            }while(evicted(offset, c));
+        }
+
+        @Override public void putInt(long offset, int value) {
+            Chunk c;
+            do{
+                c = chunk(offset);
+                c.buf.putInt((int) (offset & chunkSizeModMask), value);
+                c.dirty = true;
+            }while(evicted(offset, c));
+        }
+
+        @Override public void putByte(long offset, byte value) {
+            Chunk c;
+            do{
+                c = chunk(offset);
+                c.buf.put((int) (offset & chunkSizeModMask), value);
+                c.dirty = true;
+            }while(evicted(offset, c));
+        }
+
+        @Override public void putData(long offset, byte[] src, int srcPos, int srcSize) {
+            Chunk c;
+            do{
+                c = chunk(offset);
+                ByteBuffer b1 = c.buf.duplicate();
+                b1.position((int) (offset & chunkSizeModMask));
+                b1.put(src, srcPos, srcSize);
+                c.dirty = true;
+            }while(evicted(offset, c));
+        }
+
+        @Override public void putData(long offset, ByteBuffer buf) {
+            Chunk c;
+            do{
+                c = chunk(offset);
+                ByteBuffer b1 = c.buf.duplicate();
+                b1.position((int) (offset & chunkSizeModMask));
+                b1.put(buf.duplicate());
+                c.dirty = true;
+            }while(evicted(offset, c));
+            buf.position(buf.limit());
+        }
+
+        @Override public long getLong(long offset) {
+            return chunk(offset).buf.getLong((int) (offset & chunkSizeModMask));
+        }
+
+        @Override public int getInt(long offset) {
+            return chunk(offset).buf.getInt((int) (offset & chunkSizeModMask));
+        }
+
+        @Override public byte getByte(long offset) {
+            return chunk(offset).buf.get((int) (offset & chunkSizeModMask));
+        }
+
+        @Override
+        public DataInput2Exposed getDataInput(long offset, int size) {
+            ByteBuffer buf = chunk(offset).buf.duplicate();
+            int pos = (int) (offset&chunkSizeModMask);
+            buf.limit(pos+size);
+            return new DataInput2Exposed(buf, pos);
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer(long offset, int size) {
+            ByteBuffer buf = chunk(offset).buf.asReadOnlyBuffer();
+            int pos = (int) (offset&chunkSizeModMask);
+            buf.limit(pos+size);
+            buf.position(pos);
+            return buf.slice();
+        }
+
+        /** encrypts and writes modified chunks, and new chunks which were never loaded */
+        private void flush() throws IOException, GeneralSecurityException {
+            Chunk[] chunks2 = chunks;
+            ByteBuffer empty = null;
+            for(int pos=0; pos<chunks2.length; pos++){
+                Chunk c = chunks2[pos];
+                if(c==null){
+                    if(generations[pos]!=GEN_EMPTY)
+                        continue;
+                    if(empty==null)
+                        empty = ByteBuffer.allocate(chunkSize);
+                    encrypt(pos, empty);
+                    continue;
+                }
+                if(!c.dirty)
+                    continue;
+                //clear flag before encryption, so concurrent write is not lost
+                c.dirty = false;
+                encrypt(pos, c.buf);
+            }
+        }
+
+        @Override
+        public void sync() {
+            if(readOnly) return;
+            growLock.lock();
+            try{
+                flush();
+                fileChannel.force(true);
+                writtenSinceSync.clear();
+            } catch (IOException e) {
+                throw new IOError(e);
+            } catch (GeneralSecurityException e) {
+                throw new DBException.WrongConfig("could not encrypt chunk: "+e.getMessage());
+            }finally{
+                growLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            growLock.lock();
+            try{
+                if(closed)
+                    return;
+                closed = true;
+                //unlike mapped file, data are only on heap, so those must be written
+                if(!readOnly)
+                    flush();
+                fileChannel.close();
+                raf.close();
+                chunks = null;
+            } catch (IOException e) {
+                throw new IOError(e);
+            } catch (GeneralSecurityException e) {
+                throw new DBException.WrongConfig("could not encrypt chunk: "+e.getMessage());
+            }finally{
+                growLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return chunks.length==0;
+        }
+
+        @Override
+        public void deleteFile() {
+            file.delete();
+        }
+
+        @Override
+        public boolean isSliced() {
+            return true;
+        }
+
+        @Override
+        public File getFile() {
+            return file;
+        }
+    }
+
     /** transfer data from one volume to second. Second volume will be expanded if needed*/
     public static void volumeTransfer(long size, Volume from, Volume to){
         int bufSize = 1024*64;
@@ -1,122 +1,601 @@
 package org.mapdb.store.li;
 
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.mapdb.DBException;
-import org.mapdb.io.DataInput2;
+import org.mapdb.io.DataInput2ByteArray;
 import org.mapdb.io.DataInput2ByteBuffer;
-import org.mapdb.io.DataOutput2;
 import org.mapdb.io.DataOutput2ByteArray;
 import org.mapdb.ser.Serializer;
+import org.mapdb.store.RecidAllocator;
+import org.mapdb.store.RecidSpliterator;
+import org.mapdb.store.RecordCompression;
+import org.mapdb.store.VerifyResult;
 import org.mapdb.store.Store;
+import org.mapdb.store.legacy.Store2;
+import org.mapdb.store.legacy.Volume;
 
+import java.io.File;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.LongStream;
 
 import static org.mapdb.store.li.LiUtil.*;
 
+/**
+ * Paged store. Index with record pointers and record data are kept in two {@link Volume}s,
+ * those grow on demand and can be memory mapped files or direct buffers.
+ *
+ * Small records are stored in slab pages. Each page is split into slots of single power-of-two size class,
+ * used slots are tracked in bitmap for each page. Bitmaps are not stored, they are rebuilt from index on reopen.
+ * Records larger than page are stored in linked list of pages.
+ */
 public class LiStore implements Store {
 
-    private final static int PAGE_SIZE = 1024;
+    private final static int PAGE_SHIFT = 10;
+    private final static int PAGE_SIZE = 1<<PAGE_SHIFT;
 
-    private final long[] index = new long[100_000];
+    /** smallest slot has 16 bytes */
+    private final static int MIN_SLOT_SHIFT = 4;
+    private final static int SIZE_CLASS_COUNT = PAGE_SHIFT-MIN_SLOT_SHIFT+1;
 
-    private final Queue<Integer> freeRecids = new LinkedList<>();
-    private int recidTail = 1;
+    /** pages of linked records have single slot */
+    private final static int LINKED_CLASS = SIZE_CLASS_COUNT-1;
 
-    private final Queue<Long> freePages = new LinkedList<>();
-    private long pageTail = PAGE_SIZE;
+    /** linked page starts with number of next page, first page also has total size of record */
+    private final static int LINKED_HEAD = 8;
+    private final static int LINKED_FIRST_HEAD = LINKED_HEAD+4;
 
-    private final ByteBuffer data = ByteBuffer.allocate(64*1024*1024);
+    /** header at start of index volume */
+    private final static long HEAD_MAGIC = 0x4C6953746F726532L;
+    private final static long HEAD_MAX_RECID = 8;
+    private final static long HEAD_DATA_TAIL = 16;
+    private final static long HEAD_FEATURES = 24;
+    private final static long INDEX_START = 128;
 
+    protected final Volume index;
+    protected final Volume data;
 
+    /** compresses stored records, null if compression is disabled */
+    protected final RecordCompression compression;
+
+    private final RecidAllocator recids = new RecidAllocator();
+    private long recordCount = 0;
+
+    /** bitmap of used slots for each page, page has at most 64 slots */
+    private long[] pageBitmaps = new long[64];
+
+    /** size class of each page plus one, zero means page is free */
+    private byte[] pageClasses = new byte[64];
+
+    /** pages with at least one free slot for each size class, it might contain stale entries */
+    private final IntArrayList[] partialPages = new IntArrayList[SIZE_CLASS_COUNT];
+
+    /** empty pages below data tail */
+    private final IntArrayList freePages = new IntArrayList();
+
+    /** end of allocated data, new pages are taken from here. Page 0 is never used */
+    private long dataTail = PAGE_SIZE;
+
+    /** in-memory store backed by direct buffers */
+    public LiStore() {
+        this(Volume.memoryFactory(true, 0L, Store2.VOLUME_CHUNK_SHIFT));
+    }
+
+    /** store backed by memory mapped file, data are in second file with `.p` suffix */
+    public LiStore(File file) {
+        this(Volume.fileFactory(file, 0, false, 0L, Store2.VOLUME_CHUNK_SHIFT, 0));
+    }
+
+    public LiStore(Volume.Factory volumeFactory) {
+        this(volumeFactory, null);
+    }
+
+    public LiStore(Volume.Factory volumeFactory, @Nullable RecordCompression compression) {
+        this.compression = compression;
+        index = volumeFactory.createIndexVolume();
+        data = volumeFactory.createPhysVolume();
+        for(int i=0;i<SIZE_CLASS_COUNT;i++)
+            partialPages[i] = new IntArrayList();
+
+        if(index.isEmpty()){
+            index.ensureAvailable(INDEX_START);
+            index.putLong(0L, HEAD_MAGIC);
+            index.putLong(HEAD_FEATURES, features());
+            data.ensureAvailable(dataTail);
+            writeHeader();
+        }else{
+            load();
+        }
+    }
+
+    private void load() {
+        if(index.getLong(0L)!=HEAD_MAGIC)
+            throw new DBException.DataCorruption("wrong header in index file");
+        if(index.getLong(HEAD_FEATURES)!=features())
+            throw new DBException.WrongConfig("store was created with different compression or encryption settings");
+
+        long maxRecid = index.getLong(HEAD_MAX_RECID);
+        dataTail = index.getLong(HEAD_DATA_TAIL);
+        growPages(pageCount());
+
+        //free recids and page bitmaps are not stored, rebuild them from index
+        LongArrayList snapshot = new LongArrayList();
+        snapshot.add(maxRecid);
+        for(long recid=1; recid<=maxRecid; recid++){
+            long indexVal = index.getLong(indexValOffset(recid));
+            if(indexVal==R_VOID) {
+                snapshot.add(recid);
+                continue;
+            }
+            recordCount++;
+            int recType = decompIndexValType(indexVal);
+            if(recType == R_SMALL) {
+                int page = (int) decompIndexValPage(indexVal);
+                pageClasses[page] = (byte) (sizeClass(decompIndexValSize(indexVal))+1);
+                pageBitmaps[page] |= 1L<<decompIndexValSlot(indexVal);
+            }else if(recType == R_LINKED) {
+                for(long page=decompIndexValPage(indexVal); page!=0; page=data.getLong(page<<PAGE_SHIFT)){
+                    pageClasses[(int) page] = LINKED_CLASS+1;
+                    pageBitmaps[(int) page] = 1L;
+                }
+            }
+        }
+        recids.restore(snapshot.toArray());
+
+        for(int page=1; page<pageCount(); page++){
+            int sizeClass = pageClasses[page]-1;
+            if(sizeClass<0)
+                freePages.add(page);
+            else if(pageBitmaps[page]!=fullBitmap(sizeClass))
+                partialPages[sizeClass].add(page);
+        }
+    }
+
+    /** bit flags of features which change format of stored records */
+    private long features() {
+        return (compression==null ? 0L : 1L) |
+                (index instanceof Volume.EncryptedFileVol ? 2L : 0L);
+    }
+
+    private void writeHeader() {
+        index.putLong(HEAD_MAX_RECID, recids.getMaxRecid());
+        index.putLong(HEAD_DATA_TAIL, dataTail);
+    }
+
+    private static long indexValOffset(long recid) {
+        return INDEX_START + recid*8;
+    }
+
+    private long indexVal(long recid) {
+        if(recid<=0 || recid>recids.getMaxRecid())
+            throw new DBException.RecordNotFound();
+        return index.getLong(indexValOffset(recid));
+    }
+
+    private long checkExists(long recid) {
+        long indexVal = indexVal(recid);
+        if(indexVal == R_VOID)
+            throw new DBException.RecordNotFound();
+        if(decompIndexValType(indexVal) == R_PREALLOC)
+            throw new DBException.PreallocRecordAccess();
+        return indexVal;
+    }
+
+    private long allocRecid(long indexVal) {
+        long recid = recids.allocate();
+        ensureIndex();
+        index.putLong(indexValOffset(recid), indexVal);
+        recordCount++;
+        return recid;
+    }
+
+    private static int sizeClass(int size) {
+        int shift = size<=(1<<MIN_SLOT_SHIFT) ?
+                MIN_SLOT_SHIFT :
+                32-Integer.numberOfLeadingZeros(size-1);
+        return shift-MIN_SLOT_SHIFT;
+    }
+
+    /** bitmap with all slots used */
+    private static long fullBitmap(int sizeClass) {
+        int slots = 1<<(PAGE_SHIFT-MIN_SLOT_SHIFT-sizeClass);
+        return slots==64 ? -1L : (1L<<slots)-1;
+    }
+
+    private static long slotOffset(long page, int slot, int sizeClass) {
+        return (page<<PAGE_SHIFT) + ((long)slot<<(sizeClass+MIN_SLOT_SHIFT));
+    }
+
+    private static long smallOffset(long indexVal) {
+        return slotOffset(decompIndexValPage(indexVal), decompIndexValSlot(indexVal), sizeClass(decompIndexValSize(indexVal)));
+    }
+
+    private int pageCount() {
+        return (int) (dataTail>>>PAGE_SHIFT);
+    }
+
+    private void growPages(int pageCount) {
+        if(pageCount<=pageBitmaps.length)
+            return;
+        int newSize = Math.max(pageCount, pageBitmaps.length*2);
+        pageBitmaps = Arrays.copyOf(pageBitmaps, newSize);
+        pageClasses = Arrays.copyOf(pageClasses, newSize);
+    }
+
+    private int allocPage() {
+        if(!freePages.isEmpty())
+            return freePages.removeAtIndex(freePages.size()-1);
+        int page = pageCount();
+        dataTail += PAGE_SIZE;
+        data.ensureAvailable(dataTail);
+        growPages(page+1);
+        return page;
+    }
+
+    /** allocates slot, returns page and slot packed the same way as in index value */
+    private long allocSlot(int sizeClass) {
+        long full = fullBitmap(sizeClass);
+        IntArrayList partial = partialPages[sizeClass];
+        while(!partial.isEmpty()){
+            int page = partial.get(partial.size()-1);
+            long bitmap = pageBitmaps[page];
+            if(pageClasses[page]!=sizeClass+1 || bitmap==full){
+                partial.removeAtIndex(partial.size()-1);
+                continue;
+            }
+            int slot = Long.numberOfTrailingZeros(~bitmap);
+            bitmap |= 1L<<slot;
+            pageBitmaps[page] = bitmap;
+            if(bitmap==full)
+                partial.removeAtIndex(partial.size()-1);
+            return ((long)page<<SLOT_BITS) | slot;
+        }
+
+        int page = allocPage();
+        pageClasses[page] = (byte) (sizeClass+1);
+        pageBitmaps[page] = 1L;
+        if(full!=1L)
+            partial.add(page);
+        return (long)page<<SLOT_BITS;
+    }
+
+    private void freeSlot(int sizeClass, long page, int slot) {
+        long bitmap = pageBitmaps[(int) page];
+        boolean wasFull = bitmap==fullBitmap(sizeClass);
+        bitmap &= ~(1L<<slot);
+        pageBitmaps[(int) page] = bitmap;
+        if(bitmap==0){
+            //page is empty, zero it out in bulk and reuse it for any size class
+            zeroOut(data, page<<PAGE_SHIFT, PAGE_SIZE);
+            pageClasses[(int) page] = 0;
+            freePages.add((int) page);
+        }else if(wasFull){
+            partialPages[sizeClass].add((int) page);
+        }
+    }
+
+    /** releases space used by record */
+    private void free(long indexVal) {
+        int recType = decompIndexValType(indexVal);
+        long page = decompIndexValPage(indexVal);
+        if(recType == R_SMALL) {
+            freeSlot(sizeClass(decompIndexValSize(indexVal)), page, decompIndexValSlot(indexVal));
+        }else if(recType == R_LINKED) {
+            while(page!=0){
+                long next = data.getLong(page<<PAGE_SHIFT);
+                freeSlot(LINKED_CLASS, page, 0);
+                page = next;
+            }
+        }
+    }
+
+    private static <R> DataOutput2ByteArray serialize(@NotNull R record, @NotNull Serializer<R> serializer) {
+        if(record == null)
+            throw new NullPointerException();
+        DataOutput2ByteArray out = new DataOutput2ByteArray();
+        serializer.serialize(out, record);
+        return out;
+    }
+
+    /** writes serialized record, reuses old slot if possible and returns new index value */
+    private long write(DataOutput2ByteArray out, long oldIndexVal) {
+        byte[] buf = out.buf;
+        int size = out.pos;
+        if(compression!=null){
+            buf = compression.compress(buf, 0, size);
+            size = buf.length;
+        }
+        if(size<=PAGE_SIZE){
+            int sizeClass = sizeClass(size);
+            long page;
+            int slot;
+            if(decompIndexValType(oldIndexVal) == R_SMALL &&
+                    sizeClass(decompIndexValSize(oldIndexVal)) == sizeClass) {
+                page = decompIndexValPage(oldIndexVal);
+                slot = decompIndexValSlot(oldIndexVal);
+            }else{
+                free(oldIndexVal);
+                long pageSlot = allocSlot(sizeClass);
+                page = pageSlot>>>SLOT_BITS;
+                slot = (int) (pageSlot & SLOT_MASK);
+            }
+            data.putData(slotOffset(page, slot, sizeClass), buf, 0, size);
+            return composeIndexValSmall(size, page, slot);
+        }
+
+        free(oldIndexVal);
+
+        //large record is written backwards, so each page knows its successor
+        int firstPageSize = PAGE_SIZE - LINKED_FIRST_HEAD;
+        int pageSize = PAGE_SIZE - LINKED_HEAD;
+        int pageCount = (size - firstPageSize + pageSize - 1) / pageSize;
+        long next = 0;
+        for(int i=pageCount-1; i>=0; i--){
+            int pos = firstPageSize + i*pageSize;
+            long page = allocSlot(LINKED_CLASS)>>>SLOT_BITS;
+            long offset = page<<PAGE_SHIFT;
+            data.putLong(offset, next);
+            data.putData(offset+LINKED_HEAD, buf, pos, Math.min(pageSize, size-pos));
+            next = page;
+        }
+        long page = allocSlot(LINKED_CLASS)>>>SLOT_BITS;
+        long offset = page<<PAGE_SHIFT;
+        data.putLong(offset, next);
+        data.putInt(offset+LINKED_HEAD, size);
+        data.putData(offset+LINKED_FIRST_HEAD, buf, 0, firstPageSize);
+        return composeIndexValLinked(page);
+    }
+
+    private byte[] readLinked(long page) {
+        long offset = page<<PAGE_SHIFT;
+        int size = data.getInt(offset+LINKED_HEAD);
+        byte[] b = new byte[size];
+        int len = Math.min(size, PAGE_SIZE-LINKED_FIRST_HEAD);
+        data.getDataInput(offset+LINKED_FIRST_HEAD, len).readFully(b, 0, len);
+        int pos = len;
+        for(long next=data.getLong(offset); next!=0; next=data.getLong(next<<PAGE_SHIFT)){
+            len = Math.min(size-pos, PAGE_SIZE-LINKED_HEAD);
+            data.getDataInput((next<<PAGE_SHIFT)+LINKED_HEAD, len).readFully(b, pos, len);
+            pos += len;
+        }
+        return b;
+    }
+
+    private byte[] readBytes(long indexVal) {
+        byte[] b;
+        if(decompIndexValType(indexVal) == R_LINKED) {
+            b = readLinked(decompIndexValPage(indexVal));
+        }else {
+            int size = decompIndexValSize(indexVal);
+            b = new byte[size];
+            data.getDataInput(smallOffset(indexVal), size).readFully(b, 0, size);
+        }
+        return compression==null ? b : compression.decompress(b);
+    }
+
+    /** small uncompressed records are returned as view of data volume */
+    private ByteBuffer readBuffer(long indexVal) {
+        ByteBuffer b = decompIndexValType(indexVal) == R_LINKED ?
+                ByteBuffer.wrap(readLinked(decompIndexValPage(indexVal))).asReadOnlyBuffer() :
+                data.getByteBuffer(smallOffset(indexVal), decompIndexValSize(indexVal));
+        return compression==null ? b : compression.decompress(b).asReadOnlyBuffer();
+    }
 
     @Override
     public long preallocate() {
-        int recid = allocRecid();
-        index[recid] = composeRecordType(R_PREALLOC);
-        return recid;
+        return allocRecid(composeRecordType(R_PREALLOC));
     }
 
     @Override
     public <R> void preallocatePut(long recid, @NotNull Serializer<R> serializer, @NotNull R record) {
-        long indexVal = index[(int) recid];
+        checkPreallocated(recid);
+        DataOutput2ByteArray out = serialize(record, serializer);
+        index.putLong(indexValOffset(recid), write(out, R_VOID));
+    }
+
+    private void checkPreallocated(long recid) {
+        if(recid<=0 || recid>recids.getMaxRecid())
+            throw new DBException.RecordNotPreallocated();
+        long indexVal = index.getLong(indexValOffset(recid));
         if(indexVal == R_VOID)
             throw new DBException.RecordNotPreallocated();
         int recType = decompIndexValType(indexVal);
         if(recType != R_PREALLOC)
             throw new DBException.RecordNotPreallocated();
-
-        long page = allocPage();
-        int size = serializeToPage(record, serializer, (int) page);
-        index[(int) recid] = composeIndexValSmall(size, page);
     }
 
     @Override
     public <R> @NotNull long put(@NotNull R record, @NotNull Serializer<R> serializer) {
-        long page = allocPage();
-        int size = serializeToPage(record, serializer, (int) page);
-
-        int recid = allocRecid();
-
-        index[recid] = composeIndexValSmall(size, page);
-        return recid;
+        DataOutput2ByteArray out = serialize(record, serializer);
+        return allocRecid(write(out, R_VOID));
     }
 
+    @Override
+    public void preallocate(long[] ids) {
+        long indexVal = composeRecordType(R_PREALLOC);
+        for(int i=0;i<ids.length;i++)
+            ids[i] = recids.allocate();
+        ensureIndex();
+        for(long recid:ids)
+            index.putLong(indexValOffset(recid), indexVal);
+        recordCount+=ids.length;
+    }
 
-    protected <R> int serializeToPage(@NotNull R record, @NotNull Serializer<R> serializer, long page) {
-        DataOutput2 out = new DataOutput2ByteArray();
-        serializer.serialize(out, record);
-        byte[] b = out.copyBytes();
-        if(b.length>PAGE_SIZE)
-            throw new RuntimeException();
-
-        ByteBuffer bb = data.duplicate();
-        bb.position((int) page);
-        bb.put(b);
-        return b.length;
+    @Override
+    public <R> long[] putAll(@NotNull Collection<? extends R> records, @NotNull Serializer<R> serializer) {
+        long[] ret = new long[records.size()];
+        for(int i=0;i<ret.length;i++)
+            ret[i] = recids.allocate();
+        ensureIndex();
+        //single output buffer is reused for all records
+        DataOutput2ByteArray out = new DataOutput2ByteArray();
+        int i = 0;
+        for(R record:records){
+            if(record == null)
+                throw new NullPointerException();
+            out.pos = 0;
+            serializer.serialize(out, record);
+            index.putLong(indexValOffset(ret[i++]), write(out, R_VOID));
+            recordCount++;
+        }
+        if(i!=ret.length)
+            throw new ConcurrentModificationException();
+        return ret;
     }
 
-    private int allocRecid() {
-        Integer recid = freeRecids.poll();
-        if(recid == null)
-            return recidTail++;
-        return recid;
+    @Override
+    public <R> void updateAll(@NotNull long[] ids, @NotNull Serializer<R> serializer, @NotNull List<? extends R> records) {
+        if(ids.length!=records.size())
+            throw new IllegalArgumentException("number of recids and records differs");
+        for(long recid:ids)
+            checkExists(recid);
+        DataOutput2ByteArray out = new DataOutput2ByteArray();
+        for(int i=0;i<ids.length;i++){
+            R record = records.get(i);
+            if(record == null)
+                throw new NullPointerException();
+            out.pos = 0;
+            serializer.serialize(out, record);
+            long offset = indexValOffset(ids[i]);
+            index.putLong(offset, write(out, index.getLong(offset)));
+        }
     }
 
-    private long allocPage() {
-        Long ret = freePages.poll();
-        if(ret==null) {
-            ret = pageTail;
-            pageTail+=PAGE_SIZE;
+    @Override
+    public <R> void preallocatePutAll(@NotNull long[] ids, @NotNull Serializer<R> serializer, @NotNull List<? extends R> records) {
+        if(ids.length!=records.size())
+            throw new IllegalArgumentException("number of recids and records differs");
+        for(long recid:ids)
+            checkPreallocated(recid);
+        //single output buffer is reused for all records
+        DataOutput2ByteArray out = new DataOutput2ByteArray();
+        for(int i=0;i<ids.length;i++){
+            R record = records.get(i);
+            if(record == null)
+                throw new NullPointerException();
+            out.pos = 0;
+            serializer.serialize(out, record);
+            index.putLong(indexValOffset(ids[i]), write(out, R_VOID));
         }
-        return ret;
     }
 
     @Override
-    public <R> void update(long recid, @NotNull Serializer<R> serializer, @NotNull R updatedRecord) {
-        long indexVal = index[(int) recid];
-        if(indexVal== R_VOID)
-            throw new DBException.RecordNotFound();
-        int recType = decompIndexValType(indexVal);
-        if(recType == R_PREALLOC)
-            throw new DBException.PreallocRecordAccess();
-        int size = decompIndexValSize(indexVal);
-        long page = decompIndexValPage(indexVal);
+    public <R> void deleteAll(@NotNull long[] ids, @NotNull Serializer<R> serializer) {
+        for(long recid:ids)
+            checkExists(recid);
+        for(long recid:ids)
+            delete(recid, serializer);
+    }
 
+    /** allocator reserves recids in batches, make sure all of them are readable */
+    private void ensureIndex() {
+        index.ensureAvailable(indexValOffset(recids.getMaxRecid())+8);
+    }
 
-        int newSize = serializeToPage(updatedRecord, serializer, page);
-        index[(int) recid] = composeIndexValSmall(newSize, page);
+    @Override
+    public <R> void update(long recid, @NotNull Serializer<R> serializer, @NotNull R updatedRecord) {
+        long indexVal = checkExists(recid);
+        DataOutput2ByteArray out = serialize(updatedRecord, serializer);
+        index.putLong(indexValOffset(recid), write(out, indexVal));
     }
 
+    /**
+     * Checks index values in parallel, each used slot must be referenced by exactly one record
+     * and linked records must have expected number of pages.
+     */
     @Override
-    public void verify() {
+    public VerifyResult verifyIntegrity() {
+        VerifyResult ret = new VerifyResult();
+        int pageCount = pageCount();
+        AtomicLongArray used = new AtomicLongArray(pageCount);
+        AtomicLong count = new AtomicLong();
+        LongStream.rangeClosed(1, recids.getMaxRecid()).parallel().forEach(recid -> {
+            long indexVal = index.getLong(indexValOffset(recid));
+            if(indexVal==R_VOID)
+                return;
+            count.incrementAndGet();
+            int recType = decompIndexValType(indexVal);
+            long page = decompIndexValPage(indexVal);
+            if(recType == R_PREALLOC)
+                return;
+            if(recType == R_SMALL){
+                int size = decompIndexValSize(indexVal);
+                int sizeClass = sizeClass(size);
+                int slot = decompIndexValSlot(indexVal);
+                if(page<=0 || page>=pageCount || size>PAGE_SIZE) {
+                    ret.error(recid, "wrong index value "+Long.toHexString(indexVal));
+                }else if(pageClasses[(int) page]!=sizeClass+1 || (fullBitmap(sizeClass) & (1L<<slot))==0){
+                    ret.error(recid, "slot does not match size class of page "+page);
+                }else if(!claim(used, (int) page, 1L<<slot)){
+                    ret.error(recid, "slot is used by other record, page "+page+" slot "+slot);
+                }else{
+                    ret.record(size);
+                }
+            }else if(recType == R_LINKED){
+                if(page<=0 || page>=pageCount) {
+                    ret.error(recid, "wrong index value "+Long.toHexString(indexVal));
+                    return;
+                }
+                long size = data.getInt((page<<PAGE_SHIFT)+LINKED_HEAD);
+                long expectedPages = size<=PAGE_SIZE-LINKED_FIRST_HEAD ? 1 :
+                        1 + (size - (PAGE_SIZE-LINKED_FIRST_HEAD) + PAGE_SIZE-LINKED_HEAD - 1) / (PAGE_SIZE-LINKED_HEAD);
+                long pages = 0;
+                for(long p=page; p!=0; p=data.getLong(p<<PAGE_SHIFT)){
+                    if(p<0 || p>=pageCount || pages>=expectedPages) {
+                        ret.error(recid, "broken linked record at page "+p);
+                        return;
+                    }
+                    if(pageClasses[(int) p]!=LINKED_CLASS+1 || !claim(used, (int) p, 1L)){
+                        ret.error(recid, "linked record page "+p+" is not marked as linked or is used by other record");
+                        return;
+                    }
+                    pages++;
+                }
+                if(pages!=expectedPages)
+                    ret.error(recid, "linked record has "+pages+" pages, expected "+expectedPages);
+                else
+                    ret.record(size);
+            }else{
+                ret.error(recid, "unknown record type "+recType);
+            }
+        });
+
+        if(count.get()!=recordCount)
+            ret.error("record count is "+recordCount+", but index has "+count.get()+" records");
+        for(int page=1; page<pageCount; page++){
+            if(used.get(page)!=pageBitmaps[page])
+                ret.error("page "+page+" bitmap of used slots does not match records");
+            if(pageClasses[page]==0)
+                ret.free(PAGE_SIZE);
+        }
+        return ret;
+    }
 
+    /** marks slot as used, returns false if it was already used */
+    private static boolean claim(AtomicLongArray used, int page, long bit){
+        for(;;){
+            long v = used.get(page);
+            if((v & bit)!=0)
+                return false;
+            if(used.compareAndSet(page, v, v|bit))
+                return true;
+        }
     }
 
     @Override
     public void commit() {
-
+        writeHeader();
+        index.sync();
+        data.sync();
     }
 
     @Override
@@ -156,19 +635,11 @@ public class LiStore implements Store {
 
     @Override
     public <R> void delete(long recid, @NotNull Serializer<R> serializer) {
-        long indexVal = index[(int) recid];
-        if(indexVal==R_VOID)
-            throw new DBException.RecordNotFound();
-        int recType = decompIndexValType(indexVal);
-        if(recType == R_PREALLOC)
-            throw new DBException.PreallocRecordAccess();
-        int size = decompIndexValSize(indexVal);
-        long page = decompIndexValPage(indexVal);
-
-        index[(int) recid] = R_VOID;
-        freeRecids.add((int) recid);
-        zeroOut(data, page, PAGE_SIZE);
-        freePages.add(page);
+        long indexVal = checkExists(recid);
+        free(indexVal);
+        index.putLong(indexValOffset(recid), R_VOID);
+        recids.release(recid);
+        recordCount--;
     }
 
     @Override
@@ -180,54 +651,64 @@ public class LiStore implements Store {
 
     @Override
     public <K> @NotNull K get(long recid, @NotNull Serializer<K> ser) {
-        long indexVal = index[(int) recid];
-        if(indexVal==R_VOID)
-            throw new DBException.RecordNotFound();
-        int recType = decompIndexValType(indexVal);
-        if(recType == R_PREALLOC)
-            throw new DBException.PreallocRecordAccess();
-        int size = decompIndexValSize(indexVal);
-        long page = decompIndexValPage(indexVal);
+        long indexVal = checkExists(recid);
+        if(compression!=null)
+            return ser.deserialize(new DataInput2ByteBuffer(readBuffer(indexVal)));
+        if(decompIndexValType(indexVal) == R_LINKED)
+            return ser.deserialize(new DataInput2ByteArray(readLinked(decompIndexValPage(indexVal))));
 
-        ByteBuffer bb = data.duplicate();
-        bb.position((int) page);
-        bb.limit((int) (page+size));
-        DataInput2 input = new DataInput2ByteBuffer(bb);
-        return ser.deserialize(input);
+        return ser.deserialize(data.getDataInput(smallOffset(indexVal), decompIndexValSize(indexVal)));
     }
 
     @Override
-    public void close() {
+    public <R> R read(long recid, @NotNull RecordReader<R> reader) {
+        return reader.read(readBuffer(checkExists(recid)));
+    }
 
+    @Override
+    public void close() {
+        commit();
+        index.close();
+        data.close();
     }
 
     @Override
     public void getAll(@NotNull GetAllCallback callback) {
-        ByteBuffer bb = data.duplicate();
-        for(int recid = 1; recid<recidTail; recid++){
-            long indexVal = index[recid];
+        long maxRecid = recids.getMaxRecid();
+        for(long recid = 1; recid<=maxRecid; recid++){
+            long indexVal = index.getLong(indexValOffset(recid));
             if(indexVal==R_VOID)
                 continue;
-            int recType = decompIndexValType(indexVal);
-            if(recType == R_PREALLOC)
+            if(decompIndexValType(indexVal) == R_PREALLOC)
                 continue;
-            int size = decompIndexValSize(indexVal);
-            long page = decompIndexValPage(indexVal);
-            byte[] b = new  byte[size];
-            bb.position((int) page);
-            bb.get(b);
-            callback.takeOne(recid, b);
+            callback.takeOne(recid, readBytes(indexVal));
         }
+    }
+
+    @Override
+    public void readAll(@NotNull ReadAllCallback callback) {
+        readRange(1, recids.getMaxRecid()+1, callback);
+    }
 
+    private void readRange(long from, long until, ReadAllCallback callback) {
+        for(long recid = from; recid<until; recid++){
+            long indexVal = index.getLong(indexValOffset(recid));
+            if(indexVal==R_VOID)
+                continue;
+            if(decompIndexValType(indexVal) == R_PREALLOC)
+                continue;
+            callback.takeOne(recid, readBuffer(indexVal));
+        }
     }
 
     @Override
-    public boolean isEmpty() {
-        return freeRecids.size() == recidTail-1;
+    public <R> @NotNull Spliterator<R> spliterator(@NotNull RecordMapper<R> mapper) {
+        return new RecidSpliterator<>(this::readRange, 1, recids.getMaxRecid()+1, mapper);
     }
 
     @Override
-    public int maxRecordSize() {
-        return PAGE_SIZE;
+    public boolean isEmpty() {
+        return recordCount == 0;
     }
+
 }
@@ -1,6 +1,6 @@
 package org.mapdb.store.li;
 
-import java.nio.ByteBuffer;
+import org.mapdb.store.legacy.Volume;
 
 public final class LiUtil {
 
@@ -12,16 +12,28 @@ public final class LiUtil {
     public static final long R_LINKED = 3;
 
 
-    public static void zeroOut(ByteBuffer data, long offset, int size) {
-        int end = (int) (offset+size);
-        for(int i = (int) offset; i<end; i++){
-            data.put(i, (byte) 0);
+    private static final byte[] ZEROS = new byte[4096];
+
+    public static void zeroOut(Volume data, long offset, int size) {
+        while(size>0){
+            int len = Math.min(size, ZEROS.length);
+            data.putData(offset, ZEROS, 0, len);
+            offset+=len;
+            size-=len;
         }
     }
 
 
+    /** low 40 bits of index value are page number and slot within page */
+    public static final int SLOT_BITS = 6;
+    public static final int SLOT_MASK = (1<<SLOT_BITS)-1;
+
     public static long decompIndexValPage(long indexVal) {
-        return indexVal & 0xFFFFFFFFFFL;
+        return (indexVal & 0xFFFFFFFFFFL) >>> SLOT_BITS;
+    }
+
+    public static int decompIndexValSlot(long indexVal) {
+        return (int) (indexVal & SLOT_MASK);
     }
 
     public static int decompIndexValSize(long indexVal) {
@@ -33,10 +45,15 @@ public final class LiUtil {
     }
 
 
-    public static long composeIndexValSmall(int size, long page) {
+    public static long composeIndexValSmall(int size, long page, int slot) {
         return  (R_SMALL<< (7*8)) |
                 (((long)size)<<(5*8)) |
-                page;
+                (page<<SLOT_BITS) |
+                slot;
+    }
+
+    public static long composeIndexValLinked(long page) {
+        return  (R_LINKED<< (7*8)) | (page<<SLOT_BITS);
     }
 
     public static final long composeRecordType(long recType){
@@ -0,0 +1,1534 @@
+package org.mapdb.tree;
+
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.mapdb.DBException;
+import org.mapdb.io.DataInput2;
+import org.mapdb.io.DataOutput2;
+import org.mapdb.ser.DefaultGroupSerializer;
+import org.mapdb.ser.GroupSerializer;
+import org.mapdb.ser.Serializer;
+import org.mapdb.ser.Serializers;
+import org.mapdb.store.Store;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.function.BiFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Persistent concurrent sorted map. It is B-link tree (Lehman and Yao), each node is single record in {@link Store}
+ * and has link to its right sibling.
+ *
+ * Reads do not lock. Each node is read as consistent snapshot, if it was split in meantime,
+ * reader follows link to right sibling. Updates replace node with
+ * {@link Store#compareAndUpdate(long, Serializer, Object, Object)} and retry if node was modified by other thread.
+ * Nodes are never merged, so empty leaf nodes might remain after removals.
+ *
+ * Map record holds recid of root node, it is only updated when tree grows.
+ * Iterators are weakly consistent, {@link #size()} traverses all leaf nodes.
+ */
+public class BTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavigableMap<K,V> {
+
+    public static final int DEFAULT_MAX_NODE_SIZE = 32;
+    public static final double DEFAULT_FILL_FACTOR = 0.75;
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
+    public static class Maker<K,V> {
+        private final Store store;
+        private final long recid;
+        private final Serializer<K> keySer;
+        private final Serializer<V> valSer;
+        private int maxNodeSize = DEFAULT_MAX_NODE_SIZE;
+
+        public Maker(Store store, long recid, Serializer<K> keySer, Serializer<V> valSer) {
+            this.store = store;
+            this.recid = recid;
+            this.keySer = keySer;
+            this.valSer = valSer;
+        }
+
+        public static <K,V> Maker<K,V> newMap(Store store, Serializer<K> keySer, Serializer<V> valSer) {
+            GroupSerializer k = groupSerializer(keySer);
+            GroupSerializer v = groupSerializer(valSer);
+            BTreeNode root = new BTreeNode(0, k.valueArrayEmpty(), v.valueArrayEmpty(), null, 0L, 0L);
+            long rootRecid = store.put(root, new BTreeNode.Ser(k, v));
+            long recid = store.put(rootRecid, Serializers.LONG);
+            return new Maker<>(store, recid, keySer, valSer);
+        }
+
+        /** nodes with more keys are split, it is not persisted and might change on reopen */
+        public Maker<K,V> maxNodeSize(int maxNodeSize){
+            if(maxNodeSize<4)
+                throw new DBException.WrongConfig("max node size must be at least 4");
+            this.maxNodeSize = maxNodeSize;
+            return this;
+        }
+
+        public BTreeMap<K,V> make(){
+            return new BTreeMap<>(store, recid, keySer, valSer, maxNodeSize);
+        }
+    }
+
+    /**
+     * Creates new map from entries sorted by key. Tree is built bottom up in single pass,
+     * each node is filled up to fill factor and written once. Only one node per level is kept in memory,
+     * plus batch of leaf nodes. Recids for batch are preallocated with single call and whole batch is written together.
+     */
+    public static class BulkMaker<K,V> {
+        private final Store store;
+        private final Serializer<K> keySer;
+        private final Serializer<V> valSer;
+        private int maxNodeSize = DEFAULT_MAX_NODE_SIZE;
+        private double fillFactor = DEFAULT_FILL_FACTOR;
+        private int batchSize = DEFAULT_BATCH_SIZE;
+        private boolean parallel = false;
+
+        public BulkMaker(Store store, Serializer<K> keySer, Serializer<V> valSer) {
+            this.store = store;
+            this.keySer = keySer;
+            this.valSer = valSer;
+        }
+
+        public BulkMaker<K,V> maxNodeSize(int maxNodeSize){
+            if(maxNodeSize<4)
+                throw new DBException.WrongConfig("max node size must be at least 4");
+            this.maxNodeSize = maxNodeSize;
+            return this;
+        }
+
+        /** nodes are filled up to this fraction of max node size, rest is left for later inserts */
+        public BulkMaker<K,V> fillFactor(double fillFactor){
+            if(fillFactor<=0 || fillFactor>1)
+                throw new DBException.WrongConfig("fill factor must be between 0 and 1");
+            this.fillFactor = fillFactor;
+            return this;
+        }
+
+        /** number of leaf nodes which are written together */
+        public BulkMaker<K,V> batchSize(int batchSize){
+            if(batchSize<1)
+                throw new DBException.WrongConfig("batch size must be positive");
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /** leaf nodes in batch are constructed in parallel */
+        public BulkMaker<K,V> parallel(boolean parallel){
+            this.parallel = parallel;
+            return this;
+        }
+
+        public BTreeMap<K,V> make(Stream<? extends Map.Entry<K,V>> entries){
+            return make(entries.iterator());
+        }
+
+        /** creates map from entries, keys must be in ascending order without duplicates */
+        public BTreeMap<K,V> make(Iterator<? extends Map.Entry<K,V>> entries){
+            Loader loader = new Loader();
+            while(entries.hasNext()){
+                Map.Entry<K,V> e = entries.next();
+                loader.add(e.getKey(), e.getValue());
+            }
+            long rootRecid = loader.finish();
+            long recid = store.put(rootRecid, Serializers.LONG);
+            return new Maker<>(store, recid, keySer, valSer).maxNodeSize(maxNodeSize).make();
+        }
+
+        /** node which is being filled on one level of tree */
+        private static final class Level {
+            /** preallocated recid of node */
+            long recid;
+            final ArrayList<Object> keys = new ArrayList<>();
+            /** values for leaf node, child recids for dir node */
+            final ArrayList<Object> values = new ArrayList<>();
+
+            Level(long recid) {
+                this.recid = recid;
+            }
+        }
+
+        private final class Loader {
+            final GroupSerializer k = groupSerializer(keySer);
+            final GroupSerializer v = groupSerializer(valSer);
+            final BTreeNode.Ser nodeSer = new BTreeNode.Ser(k, v);
+            final int nodeSize = Math.max(2, (int) (maxNodeSize*fillFactor));
+
+            /** index is level, zero is leaf */
+            final List<Level> levels = new ArrayList<>();
+
+            /** finished leaf nodes, their keys and values are not converted to group arrays yet, recid and link are set by flush */
+            final List<BTreeNode> pending = new ArrayList<>();
+
+            Object lastKey = null;
+
+            Loader() {
+                levels.add(new Level(store.preallocate()));
+            }
+
+            void add(K key, V value){
+                if(key==null || value==null)
+                    throw new NullPointerException();
+                if(lastKey!=null && k.compare(lastKey, key)>=0)
+                    throw new IllegalArgumentException("keys are not sorted");
+                lastKey = key;
+
+                Level leaf = levels.get(0);
+                if(leaf.keys.size()==nodeSize){
+                    pending.add(new BTreeNode(0, leaf.keys.toArray(), leaf.values.toArray(), key, 0L, 0L));
+                    leaf.keys.clear();
+                    leaf.values.clear();
+                    if(pending.size()>=batchSize)
+                        flush(false);
+                }
+                leaf.keys.add(key);
+                leaf.values.add(value);
+            }
+
+            /** adds link to new node into parent level, root level is created if needed */
+            void addChild(int level, Object separator, long left, long right){
+                if(levels.size()==level){
+                    Level l = new Level(store.preallocate());
+                    l.values.add(left);
+                    levels.add(l);
+                }
+                Level l = levels.get(level);
+                if(l.keys.size()==nodeSize){
+                    //separator becomes high key, new node starts with single child
+                    long next = store.preallocate();
+                    writeDir(l, level, separator, next);
+                    addChild(level+1, separator, l.recid, next);
+                    l.recid = next;
+                    l.keys.clear();
+                    l.values.clear();
+                }else{
+                    l.keys.add(separator);
+                }
+                l.values.add(right);
+            }
+
+            /**
+             * writes pending leaf nodes. First one already has recid, others and the leaf which is being filled
+             * get recids preallocated together. Last leaf in tree has no right sibling.
+             */
+            void flush(boolean last){
+                final int size = pending.size();
+                long[] recids = new long[last ? size : size+1];
+                recids[0] = levels.get(0).recid;
+                long[] fresh = new long[recids.length-1];
+                store.preallocate(fresh);
+                System.arraycopy(fresh, 0, recids, 1, fresh.length);
+
+                for(int i=0; i+1<recids.length; i++)
+                    addChild(1, pending.get(i).highKey, recids[i], recids[i+1]);
+                if(!last)
+                    levels.get(0).recid = recids[size];
+
+                BTreeNode[] nodes = new BTreeNode[size];
+                IntStream range = IntStream.range(0, size);
+                if(parallel)
+                    range = range.parallel();
+                range.forEach(i->{
+                    BTreeNode n = pending.get(i);
+                    nodes[i] = new BTreeNode(0, k.valueArrayFromArray((Object[]) n.keys),
+                            v.valueArrayFromArray((Object[]) n.values), n.highKey,
+                            i+1<recids.length ? recids[i+1] : 0L, 0L);
+                });
+                store.preallocatePutAll(size==recids.length ? recids : Arrays.copyOf(recids, size), nodeSer, Arrays.asList(nodes));
+                pending.clear();
+            }
+
+            void writeDir(Level l, int level, @Nullable Object highKey, long link){
+                long[] children = new long[l.values.size()];
+                for(int i=0; i<children.length; i++)
+                    children[i] = (Long) l.values.get(i);
+                BTreeNode dir = new BTreeNode(level, k.valueArrayFromArray(l.keys.toArray()), children, highKey, link, 0L);
+                store.preallocatePut(l.recid, nodeSer, dir);
+            }
+
+            /** writes last node on each level, returns recid of root */
+            long finish(){
+                Level leaf = levels.get(0);
+                pending.add(new BTreeNode(0, leaf.keys.toArray(), leaf.values.toArray(), null, 0L, 0L));
+                flush(true);
+                for(int level=1; level<levels.size(); level++)
+                    writeDir(levels.get(level), level, null, 0L);
+                return levels.get(levels.size()-1).recid;
+            }
+        }
+    }
+
+    /** relations for {@link #findNear(Object, int)} */
+    static final int GT = 0, EQ = 1, LT = 2;
+
+    private final Store store;
+    /** record with recid of root node */
+    private final long recid;
+    private final GroupSerializer keySer;
+    private final GroupSerializer valSer;
+    private final BTreeNode.Ser nodeSer;
+    private final int maxNodeSize;
+
+    /** root might be stale, that is fine for B-link tree, old root is leftmost node on its level */
+    private volatile long rootRecid;
+
+    /** view of whole map, navigation methods are delegated to it */
+    private final SubMap<K,V> all;
+
+    public BTreeMap(Store store, long recid, Serializer<K> keySer, Serializer<V> valSer, int maxNodeSize) {
+        this.store = store;
+        this.recid = recid;
+        this.keySer = groupSerializer(keySer);
+        this.valSer = groupSerializer(valSer);
+        this.nodeSer = new BTreeNode.Ser(this.keySer, this.valSer);
+        this.maxNodeSize = maxNodeSize;
+        this.rootRecid = store.get(recid, Serializers.LONG);
+        this.all = new SubMap<>(this, null, false, null, false, false);
+    }
+
+    /** nodes store keys and values in group arrays, serializers which do not support that are wrapped */
+    static GroupSerializer groupSerializer(final Serializer ser){
+        if(ser instanceof GroupSerializer)
+            return (GroupSerializer) ser;
+        return new DefaultGroupSerializer() {
+            @Override
+            public void serialize(@NotNull DataOutput2 out, @NotNull Object o) {
+                ser.serialize(out, o);
+            }
+
+            @Override
+            public Object deserialize(@NotNull DataInput2 input) {
+                return ser.deserialize(input);
+            }
+
+            @Override
+            public @Nullable Class serializedType() {
+                return ser.serializedType();
+            }
+
+            @Override
+            public int compare(Object o1, Object o2) {
+                return ser.compare(o1, o2);
+            }
+
+            @Override
+            public boolean equals(@Nullable Object o1, @Nullable Object o2) {
+                return ser.equals(o1, o2);
+            }
+        };
+    }
+
+    /** recid of record which identifies this map, it is used to reopen map */
+    public long getRecid() {
+        return recid;
+    }
+
+    private BTreeNode node(long recid){
+        return store.get(recid, nodeSer);
+    }
+
+    private boolean cas(long recid, BTreeNode expected, BTreeNode updated){
+        return store.compareAndUpdate(recid, nodeSer, expected, updated);
+    }
+
+    int compare(Object k1, Object k2){
+        return keySer.compare(k1, k2);
+    }
+
+    private int size(BTreeNode n){
+        return keySer.valueArraySize(n.keys);
+    }
+
+    private K key(BTreeNode n, int pos){
+        return (K) keySer.valueArrayGet(n.keys, pos);
+    }
+
+    private V value(BTreeNode n, int pos){
+        return (V) valSer.valueArrayGet(n.values, pos);
+    }
+
+    private int search(BTreeNode n, Object key){
+        return keySer.valueArraySearch(n.keys, key);
+    }
+
+    /** true if key is in right sibling of this node */
+    private boolean beyondHighKey(BTreeNode n, Object key){
+        return n.highKey!=null && compare(key, n.highKey)>=0;
+    }
+
+    /** number of keys smaller than given key, or equal if inclusive. For dir node it is position of child */
+    private int lowerCount(BTreeNode n, Object key, boolean inclusive){
+        int pos = search(n, key);
+        return pos<0 ? -pos-1 : (inclusive ? pos+1 : pos);
+    }
+
+    /**
+     * Descends from root and returns recid of node on given level which covers the key.
+     * Node might be split in meantime, so caller must check its high key and follow links.
+     * Returns zero if tree does not have given level yet.
+     */
+    private long findRecid(Object key, int level){
+        long recid = rootRecid;
+        BTreeNode n = node(recid);
+        if(n.level<level){
+            recid = rootRecid = store.get(this.recid, Serializers.LONG);
+            n = node(recid);
+            if(n.level<level)
+                return 0L;
+        }
+        while(n.level>level){
+            while(beyondHighKey(n, key))
+                n = node(n.link);
+            recid = n.children()[lowerCount(n, key, true)];
+            if(n.level==level+1)
+                return recid;
+            n = node(recid);
+        }
+        return recid;
+    }
+
+    @Override
+    public V get(Object key) {
+        if(key==null)
+            throw new NullPointerException();
+        BTreeNode n = node(findRecid(key, 0));
+        while(beyondHighKey(n, key))
+            n = node(n.link);
+        int pos = search(n, key);
+        return pos<0 ? null : value(n, pos);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key)!=null;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return put2(key, value, true, true, null);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return put2(key, value, true, false, null);
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        return put2(key, value, false, true, null);
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        if(oldValue==null)
+            throw new NullPointerException();
+        V found = put2(key, newValue, false, true, oldValue);
+        return found!=null && valSer.equals(found, oldValue);
+    }
+
+    /**
+     * Inserts or updates value, returns previous value or null.
+     *
+     * @param insert insert key if it is not in map
+     * @param update update value if key is in map
+     * @param expectedValue if not null, value is only updated if it equals this
+     */
+    private V put2(K key, V value, boolean insert, boolean update, @Nullable V expectedValue){
+        if(key==null || value==null)
+            throw new NullPointerException();
+        long recid = findRecid(key, 0);
+        while(true){
+            BTreeNode n = node(recid);
+            if(beyondHighKey(n, key)){
+                recid = n.link;
+                continue;
+            }
+            int pos = search(n, key);
+            if(pos>=0){
+                V old = value(n, pos);
+                if(!update || (expectedValue!=null && !valSer.equals(old, expectedValue)))
+                    return old;
+                if(cas(recid, n, n.update(n.keys, valSer.valueArrayUpdateVal(n.values, pos, value))))
+                    return old;
+            }else{
+                if(!insert)
+                    return null;
+                pos = -pos-1;
+                if(insert(recid, n, keySer.valueArrayPut(n.keys, pos, key), valSer.valueArrayPut(n.values, pos, value)))
+                    return null;
+            }
+            //node was modified by other thread, read it again
+        }
+    }
+
+    /**
+     * Stores node with inserted key, node is split if it is too large.
+     * Returns false if node was modified by other thread.
+     */
+    private boolean insert(long recid, BTreeNode n, Object keys, Object values){
+        int size = keySer.valueArraySize(keys);
+        if(size<=maxNodeSize)
+            return cas(recid, n, n.update(keys, values));
+
+        int split = size/2;
+        Object separator = keySer.valueArrayGet(keys, split);
+        Object rightKeys, leftValues, rightValues;
+        if(n.isLeaf()){
+            rightKeys = keySer.valueArrayCopyOfRange(keys, split, size);
+            leftValues = valSer.valueArrayCopyOfRange(values, 0, split);
+            rightValues = valSer.valueArrayCopyOfRange(values, split, size);
+        }else{
+            //separator moves into parent
+            long[] children = (long[]) values;
+            rightKeys = keySer.valueArrayCopyOfRange(keys, split+1, size);
+            leftValues = Arrays.copyOfRange(children, 0, split+1);
+            rightValues = Arrays.copyOfRange(children, split+1, children.length);
+        }
+        Object leftKeys = keySer.valueArrayCopyOfRange(keys, 0, split);
+
+        //right node is not visible until left node links to it
+        long rightRecid = store.put(new BTreeNode(n.level, rightKeys, rightValues, n.highKey, n.link, 0L), nodeSer);
+        if(!cas(recid, n, new BTreeNode(n.level, leftKeys, leftValues, separator, rightRecid, n.version+1))){
+            store.delete(rightRecid, nodeSer);
+            return false;
+        }
+        insertSeparator(n.level+1, separator, rightRecid);
+        return true;
+    }
+
+    /** inserts new child into parent level, new root is created if tree is not high enough */
+    private void insertSeparator(int level, Object key, long child){
+        while(true){
+            long recid = findRecid(key, level);
+            if(recid==0L){
+                growRoot(level);
+                continue;
+            }
+            while(true){
+                BTreeNode n = node(recid);
+                if(beyondHighKey(n, key)){
+                    recid = n.link;
+                    continue;
+                }
+                int pos = search(n, key);
+                if(pos>=0)
+                    return; //already inserted by growRoot() in other thread
+                pos = -pos-1;
+                long[] children = n.children();
+                long[] children2 = new long[children.length+1];
+                System.arraycopy(children, 0, children2, 0, pos+1);
+                children2[pos+1] = child;
+                System.arraycopy(children, pos+1, children2, pos+2, children.length-pos-1);
+                if(insert(recid, n, keySer.valueArrayPut(n.keys, pos, key), children2))
+                    return;
+            }
+        }
+    }
+
+    /** creates root on given level, all nodes from current root level become its children */
+    private void growRoot(int level){
+        long oldRoot = store.get(recid, Serializers.LONG);
+        BTreeNode n = node(oldRoot);
+        if(n.level>=level){
+            rootRecid = oldRoot;
+            return;
+        }
+        Object keys = keySer.valueArrayEmpty();
+        LongArrayList children = new LongArrayList();
+        children.add(oldRoot);
+        for(; n.link!=0L; n = node(n.link)){
+            keys = keySer.valueArrayPut(keys, keySer.valueArraySize(keys), n.highKey);
+            children.add(n.link);
+        }
+        long newRoot = store.put(new BTreeNode(level, keys, children.toArray(), null, 0L, 0L), nodeSer);
+        if(store.compareAndUpdate(recid, Serializers.LONG, oldRoot, newRoot))
+            rootRecid = newRoot;
+        else
+            store.delete(newRoot, nodeSer);
+    }
+
+    @Override
+    public V remove(Object key) {
+        return remove2(key, null);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if(key==null)
+            throw new NullPointerException();
+        return value!=null && remove2(key, value)!=null;
+    }
+
+    /** removes key and returns its value, if expected value is not null, key is only removed if value equals */
+    private V remove2(Object key, @Nullable Object expectedValue){
+        if(key==null)
+            throw new NullPointerException();
+        long recid = findRecid(key, 0);
+        while(true){
+            BTreeNode n = node(recid);
+            if(beyondHighKey(n, key)){
+                recid = n.link;
+                continue;
+            }
+            int pos = search(n, key);
+            if(pos<0)
+                return null;
+            V old = value(n, pos);
+            if(expectedValue!=null && !valSer.equals(old, expectedValue))
+                return null;
+            //delete methods in group serializers take position plus one
+            if(cas(recid, n, n.update(keySer.valueArrayDeleteValue(n.keys, pos+1), valSer.valueArrayDeleteValue(n.values, pos+1))))
+                return old;
+        }
+    }
+
+    /**
+     * Returns entry closest to given key in relation, or null. Null key means there is no bound,
+     * so it returns first or last entry.
+     */
+    Map.Entry<K,V> findNear(@Nullable K key, int rel){
+        BTreeIter<Map.Entry<K,V>> iter = (rel & LT)==0 ?
+                new AscendingIter<>(key, (rel & EQ)!=0, null, false, SimpleImmutableEntry::new) :
+                new DescendingIter<>(null, false, key, (rel & EQ)!=0, SimpleImmutableEntry::new);
+        return iter.peek();
+    }
+
+    /** iterator which reads one leaf node at time */
+    abstract class BTreeIter<E> implements Iterator<E> {
+        final K lo;
+        final boolean loInclusive;
+        final K hi;
+        final boolean hiInclusive;
+        final BiFunction<K,V,E> make;
+
+        /** current leaf, null if iteration has finished */
+        BTreeNode leaf;
+        int pos;
+
+        K nextKey;
+        V nextValue;
+        K lastReturned;
+
+        BTreeIter(K lo, boolean loInclusive, K hi, boolean hiInclusive, BiFunction<K,V,E> make) {
+            this.lo = lo;
+            this.loInclusive = loInclusive;
+            this.hi = hi;
+            this.hiInclusive = hiInclusive;
+            this.make = make;
+        }
+
+        /** finds next entry after current position */
+        abstract void advance();
+
+        E peek(){
+            return nextKey==null ? null : make.apply(nextKey, nextValue);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextKey!=null;
+        }
+
+        @Override
+        public E next() {
+            if(nextKey==null)
+                throw new NoSuchElementException();
+            E ret = make.apply(nextKey, nextValue);
+            lastReturned = nextKey;
+            advance();
+            return ret;
+        }
+
+        @Override
+        public void remove() {
+            if(lastReturned==null)
+                throw new IllegalStateException();
+            BTreeMap.this.remove(lastReturned);
+            lastReturned = null;
+        }
+    }
+
+    final class AscendingIter<E> extends BTreeIter<E> {
+
+        AscendingIter(K lo, boolean loInclusive, K hi, boolean hiInclusive, BiFunction<K,V,E> make) {
+            super(lo, loInclusive, hi, hiInclusive, make);
+            if(lo==null){
+                leaf = node(rootRecid);
+                while(!leaf.isLeaf())
+                    leaf = node(leaf.children()[0]);
+                pos = 0;
+            }else{
+                leaf = node(findRecid(lo, 0));
+                while(beyondHighKey(leaf, lo))
+                    leaf = node(leaf.link);
+                pos = lowerCount(leaf, lo, !loInclusive);
+            }
+            advance();
+        }
+
+        @Override
+        void advance() {
+            K prev = nextKey;
+            nextKey = null;
+            nextValue = null;
+            while(leaf!=null){
+                if(pos>=size(leaf)){
+                    leaf = leaf.link==0L ? null : node(leaf.link);
+                    pos = 0;
+                    continue;
+                }
+                K key = key(leaf, pos);
+                if(prev!=null && compare(key, prev)<=0){
+                    //leaf was split while iterating, skip keys which were already returned
+                    pos++;
+                    continue;
+                }
+                if(hi!=null){
+                    int c = compare(key, hi);
+                    if(c>0 || (c==0 && !hiInclusive)){
+                        leaf = null;
+                        return;
+                    }
+                }
+                nextKey = key;
+                nextValue = value(leaf, pos++);
+                return;
+            }
+        }
+    }
+
+    /**
+     * There are no links to left siblings, so iterator descends from root to find previous leaf.
+     * That happens once for each leaf.
+     */
+    final class DescendingIter<E> extends BTreeIter<E> {
+
+        /** all keys in current leaf are greater or equal, null for leftmost leaf */
+        Object leafLow;
+
+        DescendingIter(K lo, boolean loInclusive, K hi, boolean hiInclusive, BiFunction<K,V,E> make) {
+            super(lo, loInclusive, hi, hiInclusive, make);
+            load(hi, hiInclusive);
+            advance();
+        }
+
+        /** loads leaf with greatest key smaller than given key (or equal if inclusive), null key means no bound */
+        private void load(Object key, boolean inclusive){
+            while(true){
+                BTreeNode n = node(rootRecid);
+                Object low = null;
+                while(true){
+                    while(n.highKey!=null && (key==null || compare(key, n.highKey) >= (inclusive ? 0 : 1))){
+                        low = n.highKey;
+                        n = node(n.link);
+                    }
+                    if(n.isLeaf())
+                        break;
+                    int childPos = key==null ? size(n) : lowerCount(n, key, inclusive);
+                    if(childPos>0)
+                        low = keySer.valueArrayGet(n.keys, childPos-1);
+                    n = node(n.children()[childPos]);
+                }
+                int p = (key==null ? size(n) : lowerCount(n, key, inclusive)) - 1;
+                if(p>=0){
+                    leaf = n;
+                    pos = p;
+                    leafLow = low;
+                    return;
+                }
+                if(low==null){
+                    leaf = null;
+                    return;
+                }
+                //empty leaf, continue with previous one
+                key = low;
+                inclusive = false;
+            }
+        }
+
+        @Override
+        void advance() {
+            K prev = nextKey;
+            nextKey = null;
+            nextValue = null;
+            while(leaf!=null){
+                if(pos<0){
+                    if(leafLow==null){
+                        leaf = null;
+                        return;
+                    }
+                    load(leafLow, false);
+                    continue;
+                }
+                K key = key(leaf, pos);
+                if(prev!=null && compare(key, prev)>=0){
+                    pos--;
+                    continue;
+                }
+                if(lo!=null){
+                    int c = compare(key, lo);
+                    if(c<0 || (c==0 && !loInclusive)){
+                        leaf = null;
+                        return;
+                    }
+                }
+                nextKey = key;
+                nextValue = value(leaf, pos--);
+                return;
+            }
+        }
+    }
+
+    /** entry returned by iterators, {@link #setValue(Object)} writes into map */
+    static final class IterEntry<K,V> extends AbstractMap.SimpleEntry<K,V> {
+        private final BTreeMap<K,V> m;
+
+        IterEntry(BTreeMap<K,V> m, K key, V value) {
+            super(key, value);
+            this.m = m;
+        }
+
+        @Override
+        public V setValue(V value) {
+            if(value==null)
+                throw new NullPointerException();
+            V old = m.put(getKey(), value);
+            super.setValue(value);
+            return old;
+        }
+    }
+
+    @Override
+    public int size() {
+        return all.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return all.isEmpty();
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return all.containsValue(value);
+    }
+
+    @Override
+    public void clear() {
+        all.clear();
+    }
+
+    @Override
+    public NavigableSet<K> keySet() {
+        return all.keySet();
+    }
+
+    @Override
+    public Collection<V> values() {
+        return all.values();
+    }
+
+    @Override
+    public Set<Map.Entry<K,V>> entrySet() {
+        return all.entrySet();
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+        return keySer;
+    }
+
+    @Override
+    public K firstKey() {
+        return all.firstKey();
+    }
+
+    @Override
+    public K lastKey() {
+        return all.lastKey();
+    }
+
+    @Override
+    public Map.Entry<K,V> lowerEntry(K key) {
+        return all.lowerEntry(key);
+    }
+
+    @Override
+    public K lowerKey(K key) {
+        return all.lowerKey(key);
+    }
+
+    @Override
+    public Map.Entry<K,V> floorEntry(K key) {
+        return all.floorEntry(key);
+    }
+
+    @Override
+    public K floorKey(K key) {
+        return all.floorKey(key);
+    }
+
+    @Override
+    public Map.Entry<K,V> ceilingEntry(K key) {
+        return all.ceilingEntry(key);
+    }
+
+    @Override
+    public K ceilingKey(K key) {
+        return all.ceilingKey(key);
+    }
+
+    @Override
+    public Map.Entry<K,V> higherEntry(K key) {
+        return all.higherEntry(key);
+    }
+
+    @Override
+    public K higherKey(K key) {
+        return all.higherKey(key);
+    }
+
+    @Override
+    public Map.Entry<K,V> firstEntry() {
+        return all.firstEntry();
+    }
+
+    @Override
+    public Map.Entry<K,V> lastEntry() {
+        return all.lastEntry();
+    }
+
+    @Override
+    public Map.Entry<K,V> pollFirstEntry() {
+        return all.pollFirstEntry();
+    }
+
+    @Override
+    public Map.Entry<K,V> pollLastEntry() {
+        return all.pollLastEntry();
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> descendingMap() {
+        return all.descendingMap();
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+        return all.navigableKeySet();
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+        return all.descendingKeySet();
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return all.subMap(fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> headMap(K toKey, boolean inclusive) {
+        return all.headMap(toKey, inclusive);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> tailMap(K fromKey, boolean inclusive) {
+        return all.tailMap(fromKey, inclusive);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> subMap(K fromKey, K toKey) {
+        return all.subMap(fromKey, toKey);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> headMap(K toKey) {
+        return all.headMap(toKey);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> tailMap(K fromKey) {
+        return all.tailMap(fromKey);
+    }
+
+    /** view of key range, it is also used for descending view and for navigation in whole map */
+    static final class SubMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavigableMap<K,V> {
+
+        final BTreeMap<K,V> m;
+        /** lower bound, null if there is no bound */
+        final K lo;
+        final boolean loInclusive;
+        /** upper bound, null if there is no bound */
+        final K hi;
+        final boolean hiInclusive;
+        final boolean isDescending;
+
+        SubMap(BTreeMap<K,V> m, K lo, boolean loInclusive, K hi, boolean hiInclusive, boolean isDescending) {
+            if(lo!=null && hi!=null && m.compare(lo, hi)>0)
+                throw new IllegalArgumentException("inconsistent range");
+            this.m = m;
+            this.lo = lo;
+            this.loInclusive = loInclusive;
+            this.hi = hi;
+            this.hiInclusive = hiInclusive;
+            this.isDescending = isDescending;
+        }
+
+        private boolean tooLow(Object key){
+            if(lo==null)
+                return false;
+            int c = m.compare(key, lo);
+            return c<0 || (c==0 && !loInclusive);
+        }
+
+        private boolean tooHigh(Object key){
+            if(hi==null)
+                return false;
+            int c = m.compare(key, hi);
+            return c>0 || (c==0 && !hiInclusive);
+        }
+
+        private boolean inRange(Object key){
+            return !tooLow(key) && !tooHigh(key);
+        }
+
+        private void checkKeyBounds(K key){
+            if(key==null)
+                throw new NullPointerException();
+            if(!inRange(key))
+                throw new IllegalArgumentException("key out of range");
+        }
+
+        /** lowest entry in range, regardless of direction */
+        private Map.Entry<K,V> lowestEntry(){
+            Map.Entry<K,V> e = m.findNear(lo, loInclusive ? GT|EQ : GT);
+            return e==null || tooHigh(e.getKey()) ? null : e;
+        }
+
+        /** highest entry in range, regardless of direction */
+        private Map.Entry<K,V> highestEntry(){
+            Map.Entry<K,V> e = m.findNear(hi, hiInclusive ? LT|EQ : LT);
+            return e==null || tooLow(e.getKey()) ? null : e;
+        }
+
+        private Map.Entry<K,V> removeLowest(){
+            while(true){
+                Map.Entry<K,V> e = lowestEntry();
+                if(e==null || m.remove(e.getKey(), e.getValue()))
+                    return e;
+            }
+        }
+
+        private Map.Entry<K,V> removeHighest(){
+            while(true){
+                Map.Entry<K,V> e = highestEntry();
+                if(e==null || m.remove(e.getKey(), e.getValue()))
+                    return e;
+            }
+        }
+
+        private Map.Entry<K,V> getNearEntry(K key, int rel){
+            if(key==null)
+                throw new NullPointerException();
+            if(isDescending)
+                rel ^= LT;
+            if(tooLow(key))
+                return (rel & LT)!=0 ? null : lowestEntry();
+            if(tooHigh(key))
+                return (rel & LT)!=0 ? highestEntry() : null;
+            Map.Entry<K,V> e = m.findNear(key, rel);
+            return e==null || !inRange(e.getKey()) ? null : e;
+        }
+
+        private static <K> K key(Map.Entry<K,?> e){
+            return e==null ? null : e.getKey();
+        }
+
+        <E> BTreeMap<K,V>.BTreeIter<E> iterator(BiFunction<K,V,E> make){
+            return isDescending ?
+                    m.new DescendingIter<>(lo, loInclusive, hi, hiInclusive, make) :
+                    m.new AscendingIter<>(lo, loInclusive, hi, hiInclusive, make);
+        }
+
+        Iterator<K> keyIterator(){
+            return iterator((k,v)->k);
+        }
+
+        Iterator<V> valueIterator(){
+            return iterator((k,v)->v);
+        }
+
+        Iterator<Map.Entry<K,V>> entryIterator(){
+            return iterator((k,v)->new IterEntry<>(m, k, v));
+        }
+
+        @Override
+        public V get(Object key) {
+            if(key==null)
+                throw new NullPointerException();
+            return inRange(key) ? m.get(key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key)!=null;
+        }
+
+        @Override
+        public boolean containsValue(Object value) {
+            if(value==null)
+                throw new NullPointerException();
+            for(Iterator<V> iter = valueIterator(); iter.hasNext();){
+                if(m.valSer.equals(iter.next(), value))
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public V put(K key, V value) {
+            checkKeyBounds(key);
+            return m.put(key, value);
+        }
+
+        @Override
+        public V remove(Object key) {
+            if(key==null)
+                throw new NullPointerException();
+            return inRange(key) ? m.remove(key) : null;
+        }
+
+        @Override
+        public V putIfAbsent(K key, V value) {
+            checkKeyBounds(key);
+            return m.putIfAbsent(key, value);
+        }
+
+        @Override
+        public boolean remove(Object key, Object value) {
+            if(key==null)
+                throw new NullPointerException();
+            return inRange(key) && m.remove(key, value);
+        }
+
+        @Override
+        public boolean replace(K key, V oldValue, V newValue) {
+            checkKeyBounds(key);
+            return m.replace(key, oldValue, newValue);
+        }
+
+        @Override
+        public V replace(K key, V value) {
+            checkKeyBounds(key);
+            return m.replace(key, value);
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            for(Iterator<K> iter = keyIterator(); iter.hasNext(); iter.next())
+                size++;
+            return size;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return lowestEntry()==null;
+        }
+
+        @Override
+        public void clear() {
+            for(Iterator<K> iter = keyIterator(); iter.hasNext();){
+                iter.next();
+                iter.remove();
+            }
+        }
+
+        @Override
+        public Comparator<? super K> comparator() {
+            Comparator<? super K> cmp = m.comparator();
+            return isDescending ? Collections.reverseOrder(cmp) : cmp;
+        }
+
+        @Override
+        public Map.Entry<K,V> lowerEntry(K key) {
+            return getNearEntry(key, LT);
+        }
+
+        @Override
+        public K lowerKey(K key) {
+            return key(lowerEntry(key));
+        }
+
+        @Override
+        public Map.Entry<K,V> floorEntry(K key) {
+            return getNearEntry(key, LT|EQ);
+        }
+
+        @Override
+        public K floorKey(K key) {
+            return key(floorEntry(key));
+        }
+
+        @Override
+        public Map.Entry<K,V> ceilingEntry(K key) {
+            return getNearEntry(key, GT|EQ);
+        }
+
+        @Override
+        public K ceilingKey(K key) {
+            return key(ceilingEntry(key));
+        }
+
+        @Override
+        public Map.Entry<K,V> higherEntry(K key) {
+            return getNearEntry(key, GT);
+        }
+
+        @Override
+        public K higherKey(K key) {
+            return key(higherEntry(key));
+        }
+
+        @Override
+        public Map.Entry<K,V> firstEntry() {
+            return isDescending ? highestEntry() : lowestEntry();
+        }
+
+        @Override
+        public Map.Entry<K,V> lastEntry() {
+            return isDescending ? lowestEntry() : highestEntry();
+        }
+
+        @Override
+        public K firstKey() {
+            Map.Entry<K,V> e = firstEntry();
+            if(e==null)
+                throw new NoSuchElementException();
+            return e.getKey();
+        }
+
+        @Override
+        public K lastKey() {
+            Map.Entry<K,V> e = lastEntry();
+            if(e==null)
+                throw new NoSuchElementException();
+            return e.getKey();
+        }
+
+        @Override
+        public Map.Entry<K,V> pollFirstEntry() {
+            return isDescending ? removeHighest() : removeLowest();
+        }
+
+        @Override
+        public Map.Entry<K,V> pollLastEntry() {
+            return isDescending ? removeLowest() : removeHighest();
+        }
+
+        private SubMap<K,V> newSubMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive){
+            if(isDescending){
+                K k = fromKey;
+                fromKey = toKey;
+                toKey = k;
+                boolean i = fromInclusive;
+                fromInclusive = toInclusive;
+                toInclusive = i;
+            }
+            if(lo!=null){
+                if(fromKey==null){
+                    fromKey = lo;
+                    fromInclusive = loInclusive;
+                }else{
+                    int c = m.compare(fromKey, lo);
+                    if(c<0 || (c==0 && !loInclusive && fromInclusive))
+                        throw new IllegalArgumentException("key out of range");
+                }
+            }
+            if(hi!=null){
+                if(toKey==null){
+                    toKey = hi;
+                    toInclusive = hiInclusive;
+                }else{
+                    int c = m.compare(toKey, hi);
+                    if(c>0 || (c==0 && !hiInclusive && toInclusive))
+                        throw new IllegalArgumentException("key out of range");
+                }
+            }
+            return new SubMap<>(m, fromKey, fromInclusive, toKey, toInclusive, isDescending);
+        }
+
+        @Override
+        public SubMap<K,V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+            if(fromKey==null || toKey==null)
+                throw new NullPointerException();
+            return newSubMap(fromKey, fromInclusive, toKey, toInclusive);
+        }
+
+        @Override
+        public SubMap<K,V> headMap(K toKey, boolean inclusive) {
+            if(toKey==null)
+                throw new NullPointerException();
+            return newSubMap(null, false, toKey, inclusive);
+        }
+
+        @Override
+        public SubMap<K,V> tailMap(K fromKey, boolean inclusive) {
+            if(fromKey==null)
+                throw new NullPointerException();
+            return newSubMap(fromKey, inclusive, null, false);
+        }
+
+        @Override
+        public SubMap<K,V> subMap(K fromKey, K toKey) {
+            return subMap(fromKey, true, toKey, false);
+        }
+
+        @Override
+        public SubMap<K,V> headMap(K toKey) {
+            return headMap(toKey, false);
+        }
+
+        @Override
+        public SubMap<K,V> tailMap(K fromKey) {
+            return tailMap(fromKey, true);
+        }
+
+        @Override
+        public SubMap<K,V> descendingMap() {
+            return new SubMap<>(m, lo, loInclusive, hi, hiInclusive, !isDescending);
+        }
+
+        @Override
+        public NavigableSet<K> navigableKeySet() {
+            return new KeySet<>(this);
+        }
+
+        @Override
+        public NavigableSet<K> keySet() {
+            return new KeySet<>(this);
+        }
+
+        @Override
+        public NavigableSet<K> descendingKeySet() {
+            return new KeySet<>(descendingMap());
+        }
+
+        @Override
+        public Collection<V> values() {
+            return new Values<>(this);
+        }
+
+        @Override
+        public Set<Map.Entry<K,V>> entrySet() {
+            return new EntrySet<>(this);
+        }
+    }
+
+    static final class KeySet<K> extends AbstractSet<K> implements NavigableSet<K> {
+        final SubMap<K,?> m;
+
+        KeySet(SubMap<K,?> m) {
+            this.m = m;
+        }
+
+        @Override
+        public int size() {
+            return m.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return m.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return m.containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return m.remove(o)!=null;
+        }
+
+        @Override
+        public void clear() {
+            m.clear();
+        }
+
+        @Override
+        public Iterator<K> iterator() {
+            return m.keyIterator();
+        }
+
+        @Override
+        public Iterator<K> descendingIterator() {
+            return m.descendingMap().keyIterator();
+        }
+
+        @Override
+        public K lower(K k) {
+            return m.lowerKey(k);
+        }
+
+        @Override
+        public K floor(K k) {
+            return m.floorKey(k);
+        }
+
+        @Override
+        public K ceiling(K k) {
+            return m.ceilingKey(k);
+        }
+
+        @Override
+        public K higher(K k) {
+            return m.higherKey(k);
+        }
+
+        @Override
+        public K pollFirst() {
+            return SubMap.key(m.pollFirstEntry());
+        }
+
+        @Override
+        public K pollLast() {
+            return SubMap.key(m.pollLastEntry());
+        }
+
+        @Override
+        public Comparator<? super K> comparator() {
+            return m.comparator();
+        }
+
+        @Override
+        public K first() {
+            return m.firstKey();
+        }
+
+        @Override
+        public K last() {
+            return m.lastKey();
+        }
+
+        @Override
+        public NavigableSet<K> descendingSet() {
+            return new KeySet<>(m.descendingMap());
+        }
+
+        @Override
+        public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+            return new KeySet<>(m.subMap(fromElement, fromInclusive, toElement, toInclusive));
+        }
+
+        @Override
+        public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+            return new KeySet<>(m.headMap(toElement, inclusive));
+        }
+
+        @Override
+        public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+            return new KeySet<>(m.tailMap(fromElement, inclusive));
+        }
+
+        @Override
+        public NavigableSet<K> subSet(K fromElement, K toElement) {
+            return subSet(fromElement, true, toElement, false);
+        }
+
+        @Override
+        public NavigableSet<K> headSet(K toElement) {
+            return headSet(toElement, false);
+        }
+
+        @Override
+        public NavigableSet<K> tailSet(K fromElement) {
+            return tailSet(fromElement, true);
+        }
+    }
+
+    static final class Values<V> extends AbstractCollection<V> {
+        final SubMap<?,V> m;
+
+        Values(SubMap<?,V> m) {
+            this.m = m;
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return m.valueIterator();
+        }
+
+        @Override
+        public int size() {
+            return m.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return m.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return m.containsValue(o);
+        }
+
+        @Override
+        public void clear() {
+            m.clear();
+        }
+    }
+
+    static final class EntrySet<K,V> extends AbstractSet<Map.Entry<K,V>> {
+        final SubMap<K,V> m;
+
+        EntrySet(SubMap<K,V> m) {
+            this.m = m;
+        }
+
+        @Override
+        public Iterator<Map.Entry<K,V>> iterator() {
+            return m.entryIterator();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if(!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+            if(e.getKey()==null)
+                return false;
+            V v = m.get(e.getKey());
+            return v!=null && m.m.valSer.equals(v, e.getValue());
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if(!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+            return e.getKey()!=null && m.remove(e.getKey(), e.getValue());
+        }
+
+        @Override
+        public int size() {
+            return m.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return m.isEmpty();
+        }
+
+        @Override
+        public void clear() {
+            m.clear();
+        }
+    }
+}
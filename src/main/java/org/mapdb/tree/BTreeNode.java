@@ -0,0 +1,126 @@
+package org.mapdb.tree;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.mapdb.io.DataInput2;
+import org.mapdb.io.DataOutput2;
+import org.mapdb.ser.GroupSerializer;
+import org.mapdb.ser.Serializer;
+
+/**
+ * Node of {@link BTreeMap}. Node is immutable, modified node is stored as new instance.
+ *
+ * Keys are group array from key serializer. Leaf nodes have values as group array from value serializer,
+ * dir nodes have recids of children, child {@code i} holds keys between {@code keys[i-1]} (inclusive)
+ * and {@code keys[i]} (exclusive).
+ */
+final class BTreeNode {
+
+    /** zero for leaf nodes */
+    final int level;
+
+    /** sorted keys */
+    final Object keys;
+
+    /** group array of values for leaf node, {@code long[]} of child recids for dir node */
+    final Object values;
+
+    /** all keys in this node are smaller than high key, it is null for rightmost node on its level */
+    @Nullable final Object highKey;
+
+    /** recid of right sibling, zero for rightmost node */
+    final long link;
+
+    /**
+     * Incremented on every update of node. Two nodes are equal if they have the same version,
+     * so {@link org.mapdb.store.Store#compareAndUpdate(long, Serializer, Object, Object)} works without comparing content.
+     */
+    final long version;
+
+    BTreeNode(int level, Object keys, Object values, @Nullable Object highKey, long link, long version) {
+        this.level = level;
+        this.keys = keys;
+        this.values = values;
+        this.highKey = highKey;
+        this.link = link;
+        this.version = version;
+    }
+
+    boolean isLeaf(){
+        return level==0;
+    }
+
+    long[] children(){
+        return (long[]) values;
+    }
+
+    /** returns next version of this node with new content, high key and link are kept */
+    BTreeNode update(Object keys, Object values){
+        return new BTreeNode(level, keys, values, highKey, link, version+1);
+    }
+
+    static final class Ser implements Serializer<BTreeNode> {
+
+        private final GroupSerializer keySer;
+        private final GroupSerializer valSer;
+
+        Ser(GroupSerializer keySer, GroupSerializer valSer) {
+            this.keySer = keySer;
+            this.valSer = valSer;
+        }
+
+        @Override
+        public void serialize(@NotNull DataOutput2 out, @NotNull BTreeNode node) {
+            int size = keySer.valueArraySize(node.keys);
+            out.writePackedInt(node.level);
+            out.writePackedInt(size);
+            out.writePackedLong(node.version);
+            out.writePackedLong(node.link);
+            out.writeBoolean(node.highKey!=null);
+            if(node.highKey!=null)
+                keySer.serialize(out, node.highKey);
+            keySer.valueArraySerialize(out, node.keys);
+            if(node.isLeaf()) {
+                valSer.valueArraySerialize(out, node.values);
+            }else{
+                for(long child:node.children())
+                    out.writePackedLong(child);
+            }
+        }
+
+        @Override
+        public BTreeNode deserialize(@NotNull DataInput2 input) {
+            int level = input.readPackedInt();
+            int size = input.readPackedInt();
+            long version = input.readPackedLong();
+            long link = input.readPackedLong();
+            Object highKey = input.readBoolean() ? keySer.deserialize(input) : null;
+            Object keys = keySer.valueArrayDeserialize(input, size);
+            Object values;
+            if(level==0) {
+                values = valSer.valueArrayDeserialize(input, size);
+            }else{
+                long[] children = new long[size+1];
+                for(int i=0; i<children.length; i++)
+                    children[i] = input.readPackedLong();
+                values = children;
+            }
+            return new BTreeNode(level, keys, values, highKey, link, version);
+        }
+
+        @Override
+        public @Nullable Class serializedType() {
+            return BTreeNode.class;
+        }
+
+        @Override
+        public boolean equals(@Nullable BTreeNode n1, @Nullable BTreeNode n2) {
+            return n1==n2 || (n1!=null && n2!=null && n1.version==n2.version);
+        }
+
+        @Override
+        public int hashCode(@NotNull BTreeNode node) {
+            return Long.hashCode(node.version);
+        }
+    }
+}
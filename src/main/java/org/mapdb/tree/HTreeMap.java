@@ -0,0 +1,851 @@
+package org.mapdb.tree;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.mapdb.DBException;
+import org.mapdb.io.DataIO;
+import org.mapdb.io.DataInput2;
+import org.mapdb.io.DataOutput2;
+import org.mapdb.ser.Serializer;
+import org.mapdb.ser.Serializers;
+import org.mapdb.store.Store;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+
+/**
+ * Persistent concurrent hash map. Keys are split into segments by hash, each segment has its own lock
+ * and can be stored in separate {@link Store}. If segments do not share store, the store does not have
+ * to be thread safe.
+ *
+ * Each segment is fixed directory tree of {@code long[]} nodes, last level points to leaf records
+ * with entries of colliding hashes. Directory nodes are created on demand and are not removed,
+ * empty leaves are deleted.
+ *
+ * Entries can expire after write and map size can be limited. Expiration uses queue ordered by
+ * write time, oldest entries are removed on writes into the same segment or by {@link #expireEvict()}.
+ * Expired entries are not returned by reads, but are counted by {@link #size()} until they are removed.
+ * Expiration settings are not persisted, entries written without expiration are not tracked by queue.
+ */
+public class HTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,V> {
+
+    public static final int DEFAULT_SEGMENT_COUNT = 16;
+
+    /** number of hash bits used by each directory level */
+    static final int DIR_SHIFT = 4;
+    static final int DIR_SIZE = 1<<DIR_SHIFT;
+    static final int DIR_MASK = DIR_SIZE-1;
+    static final int LEVELS = 4;
+    static final int LEAF_COUNT = 1<<(DIR_SHIFT*LEVELS);
+
+    static final Serializer<long[]> DIR_SER = Serializers.LONG_ARRAY;
+
+    /** segment record is {@code long[]} with following fields */
+    static final int META_ROOT = 0, META_SIZE = 1, META_HEAD = 2, META_TAIL = 3, META_SEED = 4;
+
+    /** leaf entry is stored as key, value, expire time and recid of expiration queue node */
+    static final int STRIDE = 4;
+
+    private static final Object[] EMPTY_LEAF = new Object[0];
+
+    public static class Maker<K,V> {
+        private final Store[] stores;
+        private final long recid;
+        private final Serializer<K> keySer;
+        private final Serializer<V> valSer;
+        private long expireAfterWrite = 0L;
+        private long expireMaxSize = 0L;
+
+        /**
+         * @param stores store for each segment, in the same order as map was created with
+         * @param recid map record in first store
+         */
+        public Maker(Store[] stores, long recid, Serializer<K> keySer, Serializer<V> valSer) {
+            this.stores = stores.clone();
+            this.recid = recid;
+            this.keySer = keySer;
+            this.valSer = valSer;
+        }
+
+        public static <K,V> Maker<K,V> newMap(Store store, Serializer<K> keySer, Serializer<V> valSer){
+            return newMap(store, DEFAULT_SEGMENT_COUNT, keySer, valSer);
+        }
+
+        /** creates map with all segments in single store, store must be thread safe for concurrent access */
+        public static <K,V> Maker<K,V> newMap(Store store, int segmentCount, Serializer<K> keySer, Serializer<V> valSer){
+            Store[] stores = new Store[segmentCount];
+            Arrays.fill(stores, store);
+            return newMap(stores, keySer, valSer);
+        }
+
+        /** creates map with one segment in each store, number of stores must be power of two */
+        public static <K,V> Maker<K,V> newMap(Store[] stores, Serializer<K> keySer, Serializer<V> valSer){
+            if(stores.length==0 || Integer.bitCount(stores.length)!=1 || stores.length>1<<(32-DIR_SHIFT*LEVELS))
+                throw new DBException.WrongConfig("segment count must be power of two, not larger than "+(1<<(32-DIR_SHIFT*LEVELS)));
+            long seed = new Random().nextInt();
+            long[] segmentRecids = new long[stores.length];
+            for(int i=0; i<stores.length; i++){
+                long root = stores[i].put(new long[DIR_SIZE], DIR_SER);
+                segmentRecids[i] = stores[i].put(new long[]{root, 0L, 0L, 0L, seed}, Serializers.LONG_ARRAY);
+            }
+            long recid = stores[0].put(segmentRecids, Serializers.LONG_ARRAY);
+            return new Maker<>(stores, recid, keySer, valSer);
+        }
+
+        /** entries expire after given time since they were inserted or updated */
+        public Maker<K,V> expireAfterWrite(long ttl, TimeUnit unit){
+            if(ttl<=0)
+                throw new DBException.WrongConfig("expiration time must be positive");
+            this.expireAfterWrite = unit.toMillis(ttl);
+            return this;
+        }
+
+        /**
+         * Oldest entries are removed, if map grows beyond this size. Limit is divided between segments,
+         * so map might evict entries before total size reaches this limit.
+         */
+        public Maker<K,V> expireMaxSize(long maxSize){
+            if(maxSize<=0)
+                throw new DBException.WrongConfig("max size must be positive");
+            this.expireMaxSize = maxSize;
+            return this;
+        }
+
+        public HTreeMap<K,V> make(){
+            return new HTreeMap<>(stores, recid, keySer, valSer, expireAfterWrite, expireMaxSize);
+        }
+    }
+
+    private static final class Segment {
+        final Store store;
+        final long recid;
+        /** directory root is never replaced, so it is cached */
+        final long root;
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        Segment(Store store, long recid, long root) {
+            this.store = store;
+            this.recid = recid;
+            this.root = root;
+        }
+    }
+
+    /** node of expiration queue, it is doubly linked list ordered by write time */
+    private static final class ExpireNode {
+        final long prev;
+        final long next;
+        final long expireAt;
+        final Object key;
+
+        ExpireNode(long prev, long next, long expireAt, Object key) {
+            this.prev = prev;
+            this.next = next;
+            this.expireAt = expireAt;
+            this.key = key;
+        }
+    }
+
+    private final long recid;
+    private final Serializer<K> keySer;
+    private final Serializer<V> valSer;
+
+    private final Segment[] segments;
+    private final int segmentBits;
+    private final int hashSeed;
+
+    /** expiration in milliseconds, zero if disabled */
+    private final long expireAfterWrite;
+    /** max number of entries in single segment, zero if disabled */
+    private final long maxSegmentSize;
+    private final boolean expiration;
+
+    private final Serializer<Object[]> leafSer = new Serializer<Object[]>() {
+        @Override
+        public void serialize(@NotNull DataOutput2 out, @NotNull Object[] leaf) {
+            out.writePackedInt(leaf.length/STRIDE);
+            for(int i=0; i<leaf.length; i+=STRIDE){
+                keySer.serialize(out, (K) leaf[i]);
+                valSer.serialize(out, (V) leaf[i+1]);
+                out.writePackedLong((Long) leaf[i+2]);
+                out.writePackedLong((Long) leaf[i+3]);
+            }
+        }
+
+        @Override
+        public Object[] deserialize(@NotNull DataInput2 input) {
+            Object[] leaf = new Object[input.readPackedInt()*STRIDE];
+            for(int i=0; i<leaf.length; i+=STRIDE){
+                leaf[i] = keySer.deserialize(input);
+                leaf[i+1] = valSer.deserialize(input);
+                leaf[i+2] = input.readPackedLong();
+                leaf[i+3] = input.readPackedLong();
+            }
+            return leaf;
+        }
+
+        @Override
+        public @Nullable Class serializedType() {
+            return Object[].class;
+        }
+    };
+
+    private final Serializer<ExpireNode> expireSer = new Serializer<ExpireNode>() {
+        @Override
+        public void serialize(@NotNull DataOutput2 out, @NotNull ExpireNode node) {
+            out.writePackedLong(node.prev);
+            out.writePackedLong(node.next);
+            out.writePackedLong(node.expireAt);
+            keySer.serialize(out, (K) node.key);
+        }
+
+        @Override
+        public ExpireNode deserialize(@NotNull DataInput2 input) {
+            return new ExpireNode(input.readPackedLong(), input.readPackedLong(), input.readPackedLong(),
+                    keySer.deserialize(input));
+        }
+
+        @Override
+        public @Nullable Class serializedType() {
+            return ExpireNode.class;
+        }
+    };
+
+    public HTreeMap(Store[] stores, long recid, Serializer<K> keySer, Serializer<V> valSer,
+                    long expireAfterWrite, long expireMaxSize) {
+        this.recid = recid;
+        this.keySer = keySer;
+        this.valSer = valSer;
+
+        long[] segmentRecids = stores[0].get(recid, Serializers.LONG_ARRAY);
+        if(segmentRecids.length!=stores.length)
+            throw new DBException.WrongConfig("map has "+segmentRecids.length+" segments, but "+stores.length+" stores were given");
+        this.segments = new Segment[stores.length];
+        long seed = 0L;
+        for(int i=0; i<segments.length; i++){
+            long[] meta = stores[i].get(segmentRecids[i], Serializers.LONG_ARRAY);
+            segments[i] = new Segment(stores[i], segmentRecids[i], meta[META_ROOT]);
+            seed = meta[META_SEED];
+        }
+        this.segmentBits = Integer.numberOfTrailingZeros(segments.length);
+        this.hashSeed = (int) seed;
+
+        this.expireAfterWrite = expireAfterWrite;
+        this.maxSegmentSize = expireMaxSize<=0 ? 0L : Math.max(1L, expireMaxSize/segments.length);
+        this.expiration = expireAfterWrite>0 || expireMaxSize>0;
+    }
+
+    /** recid of map record in first store, it is used to reopen map */
+    public long getRecid() {
+        return recid;
+    }
+
+    private int hash(Object key){
+        return DataIO.intHash(keySer.hashCode((K) key, hashSeed));
+    }
+
+    private Segment segment(int hash){
+        return segments[hash & (segments.length-1)];
+    }
+
+    private int leafIndex(int hash){
+        return (hash>>>segmentBits) & (LEAF_COUNT-1);
+    }
+
+    private int leafPos(Object[] leaf, Object key){
+        for(int i=0; i<leaf.length; i+=STRIDE){
+            if(keySer.equals((K) leaf[i], (K) key))
+                return i;
+        }
+        return -1;
+    }
+
+    private static boolean expired(Object[] leaf, int pos, long now){
+        long expireAt = (Long) leaf[pos+2];
+        return expireAt!=0L && expireAt<=now;
+    }
+
+    private static long[] meta(Segment s){
+        //copy, so cached instance is not modified
+        return s.store.get(s.recid, Serializers.LONG_ARRAY).clone();
+    }
+
+    /** returns recid of directory node on last level which holds given leaf, zero if it does not exist */
+    private long lastDir(Segment s, int leafIndex, boolean create){
+        long recid = s.root;
+        for(int level=0; level<LEVELS-1; level++){
+            long[] dir = s.store.get(recid, DIR_SER);
+            int slot = (leafIndex >>> ((LEVELS-1-level)*DIR_SHIFT)) & DIR_MASK;
+            if(dir[slot]==0L){
+                if(!create)
+                    return 0L;
+                dir = dir.clone();
+                dir[slot] = s.store.put(new long[DIR_SIZE], DIR_SER);
+                s.store.update(recid, DIR_SER, dir);
+            }
+            recid = dir[slot];
+        }
+        return recid;
+    }
+
+    /** finds first leaf with index greater or equal, returns its index and recid, or -1 if there is no such leaf */
+    private int nextLeaf(Segment s, long dirRecid, int level, int from, long[] leafRecid){
+        long[] dir = s.store.get(dirRecid, DIR_SER);
+        int shift = (LEVELS-1-level)*DIR_SHIFT;
+        int prefix = from & ~((DIR_SIZE<<shift)-1);
+        for(int slot = (from>>>shift) & DIR_MASK; slot<DIR_SIZE; slot++){
+            if(dir[slot]==0L)
+                continue;
+            int start = Math.max(from, prefix | (slot<<shift));
+            if(level==LEVELS-1){
+                leafRecid[0] = dir[slot];
+                return start;
+            }
+            int ret = nextLeaf(s, dir[slot], level+1, start, leafRecid);
+            if(ret>=0)
+                return ret;
+        }
+        return -1;
+    }
+
+    @Override
+    public V get(Object key) {
+        if(key==null)
+            throw new NullPointerException();
+        int hash = hash(key);
+        Segment s = segment(hash);
+        int leafIndex = leafIndex(hash);
+        s.lock.readLock().lock();
+        try{
+            long dirRecid = lastDir(s, leafIndex, false);
+            if(dirRecid==0L)
+                return null;
+            long leafRecid = s.store.get(dirRecid, DIR_SER)[leafIndex & DIR_MASK];
+            if(leafRecid==0L)
+                return null;
+            Object[] leaf = s.store.get(leafRecid, leafSer);
+            int pos = leafPos(leaf, key);
+            if(pos<0 || expired(leaf, pos, System.currentTimeMillis()))
+                return null;
+            return (V) leaf[pos+1];
+        }finally {
+            s.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key)!=null;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return put2(key, value, true, true, null);
+    }
+
+    @Override
+    public V putIfAbsent(@NotNull K key, V value) {
+        return put2(key, value, true, false, null);
+    }
+
+    @Override
+    public V replace(@NotNull K key, @NotNull V value) {
+        return put2(key, value, false, true, null);
+    }
+
+    @Override
+    public boolean replace(@NotNull K key, @NotNull V oldValue, @NotNull V newValue) {
+        if(oldValue==null)
+            throw new NullPointerException();
+        V found = put2(key, newValue, false, true, oldValue);
+        return found!=null && valSer.equals(found, oldValue);
+    }
+
+    /**
+     * Inserts or updates value, returns previous value or null.
+     *
+     * @param insert insert key if it is not in map
+     * @param update update value if key is in map
+     * @param expectedValue if not null, value is only updated if it equals this
+     */
+    private V put2(K key, V value, boolean insert, boolean update, @Nullable V expectedValue){
+        if(key==null || value==null)
+            throw new NullPointerException();
+        int hash = hash(key);
+        Segment s = segment(hash);
+        int leafIndex = leafIndex(hash);
+        s.lock.writeLock().lock();
+        try{
+            long dirRecid = lastDir(s, leafIndex, insert);
+            if(dirRecid==0L)
+                return null;
+            long[] dir = s.store.get(dirRecid, DIR_SER);
+            int slot = leafIndex & DIR_MASK;
+            Object[] leaf = dir[slot]==0L ? EMPTY_LEAF : s.store.get(dir[slot], leafSer);
+            int pos = leafPos(leaf, key);
+            long now = System.currentTimeMillis();
+            V old = pos<0 || expired(leaf, pos, now) ? null : (V) leaf[pos+1];
+            if(old!=null ? !update || (expectedValue!=null && !valSer.equals(old, expectedValue)) : !insert)
+                return old;
+
+            long[] meta = meta(s);
+            long[] meta2 = meta.clone();
+            if(pos<0){
+                pos = leaf.length;
+                leaf = Arrays.copyOf(leaf, leaf.length+STRIDE);
+                leaf[pos] = key;
+                meta2[META_SIZE]++;
+            }else{
+                leaf = leaf.clone();
+                if((Long) leaf[pos+3]!=0L)
+                    unlink(s, meta2, (Long) leaf[pos+3]);
+            }
+            long expireAt = expireAfterWrite>0 ? now+expireAfterWrite : 0L;
+            leaf[pos+1] = value;
+            leaf[pos+2] = expireAt;
+            leaf[pos+3] = expiration ? enqueue(s, meta2, key, expireAt) : 0L;
+
+            if(dir[slot]==0L){
+                dir = dir.clone();
+                dir[slot] = s.store.put(leaf, leafSer);
+                s.store.update(dirRecid, DIR_SER, dir);
+            }else{
+                s.store.update(dir[slot], leafSer, leaf);
+            }
+            expire(s, meta2, now);
+            if(!Arrays.equals(meta, meta2))
+                s.store.update(s.recid, Serializers.LONG_ARRAY, meta2);
+            return old;
+        }finally {
+            s.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public V remove(Object key) {
+        return remove2(key, null);
+    }
+
+    @Override
+    public boolean remove(@NotNull Object key, Object value) {
+        if(key==null)
+            throw new NullPointerException();
+        return value!=null && remove2(key, value)!=null;
+    }
+
+    /** removes key and returns its value, if expected value is not null, key is only removed if value equals */
+    private V remove2(Object key, @Nullable Object expectedValue){
+        if(key==null)
+            throw new NullPointerException();
+        int hash = hash(key);
+        Segment s = segment(hash);
+        int leafIndex = leafIndex(hash);
+        s.lock.writeLock().lock();
+        try{
+            long dirRecid = lastDir(s, leafIndex, false);
+            if(dirRecid==0L)
+                return null;
+            long[] dir = s.store.get(dirRecid, DIR_SER);
+            int slot = leafIndex & DIR_MASK;
+            if(dir[slot]==0L)
+                return null;
+            Object[] leaf = s.store.get(dir[slot], leafSer);
+            int pos = leafPos(leaf, key);
+            long now = System.currentTimeMillis();
+            if(pos<0 || expired(leaf, pos, now))
+                return null;
+            V old = (V) leaf[pos+1];
+            if(expectedValue!=null && !valSer.equals(old, (V) expectedValue))
+                return null;
+
+            long[] meta = meta(s);
+            long[] meta2 = meta.clone();
+            removeEntry(s, meta2, dirRecid, dir, slot, leaf, pos);
+            expire(s, meta2, now);
+            if(!Arrays.equals(meta, meta2))
+                s.store.update(s.recid, Serializers.LONG_ARRAY, meta2);
+            return old;
+        }finally {
+            s.lock.writeLock().unlock();
+        }
+    }
+
+    /** removes entry from leaf and from expiration queue, leaf is deleted if it becomes empty */
+    private void removeEntry(Segment s, long[] meta, long dirRecid, long[] dir, int slot, Object[] leaf, int pos){
+        long expireRecid = (Long) leaf[pos+3];
+        if(expireRecid!=0L)
+            unlink(s, meta, expireRecid);
+        meta[META_SIZE]--;
+        if(leaf.length==STRIDE){
+            s.store.delete(dir[slot], leafSer);
+            dir = dir.clone();
+            dir[slot] = 0L;
+            s.store.update(dirRecid, DIR_SER, dir);
+        }else{
+            Object[] leaf2 = new Object[leaf.length-STRIDE];
+            System.arraycopy(leaf, 0, leaf2, 0, pos);
+            System.arraycopy(leaf, pos+STRIDE, leaf2, pos, leaf2.length-pos);
+            s.store.update(dir[slot], leafSer, leaf2);
+        }
+    }
+
+    /** adds node to end of expiration queue, returns its recid */
+    private long enqueue(Segment s, long[] meta, Object key, long expireAt){
+        long tail = meta[META_TAIL];
+        long recid = s.store.put(new ExpireNode(tail, 0L, expireAt, key), expireSer);
+        if(tail==0L){
+            meta[META_HEAD] = recid;
+        }else{
+            ExpireNode t = s.store.get(tail, expireSer);
+            s.store.update(tail, expireSer, new ExpireNode(t.prev, recid, t.expireAt, t.key));
+        }
+        meta[META_TAIL] = recid;
+        return recid;
+    }
+
+    /** removes node from expiration queue and deletes it */
+    private void unlink(Segment s, long[] meta, long recid){
+        ExpireNode n = s.store.get(recid, expireSer);
+        if(n.prev==0L){
+            meta[META_HEAD] = n.next;
+        }else{
+            ExpireNode p = s.store.get(n.prev, expireSer);
+            s.store.update(n.prev, expireSer, new ExpireNode(p.prev, n.next, p.expireAt, p.key));
+        }
+        if(n.next==0L){
+            meta[META_TAIL] = n.prev;
+        }else{
+            ExpireNode x = s.store.get(n.next, expireSer);
+            s.store.update(n.next, expireSer, new ExpireNode(n.prev, x.next, x.expireAt, x.key));
+        }
+        s.store.delete(recid, expireSer);
+    }
+
+    /** removes expired entries and oldest entries over size limit, from head of expiration queue */
+    private void expire(Segment s, long[] meta, long now){
+        while(meta[META_HEAD]!=0L){
+            ExpireNode n = s.store.get(meta[META_HEAD], expireSer);
+            boolean overSize = maxSegmentSize>0 && meta[META_SIZE]>maxSegmentSize;
+            if(!overSize && (n.expireAt==0L || n.expireAt>now))
+                return;
+
+            int hash = hash(n.key);
+            int leafIndex = leafIndex(hash);
+            long dirRecid = lastDir(s, leafIndex, false);
+            long[] dir = dirRecid==0L ? null : s.store.get(dirRecid, DIR_SER);
+            int slot = leafIndex & DIR_MASK;
+            Object[] leaf = dir==null || dir[slot]==0L ? EMPTY_LEAF : s.store.get(dir[slot], leafSer);
+            int pos = leafPos(leaf, n.key);
+            if(pos<0 || (Long) leaf[pos+3]!=meta[META_HEAD])
+                throw new DBException.DataCorruption("expiration queue refers to missing entry");
+            removeEntry(s, meta, dirRecid, dir, slot, leaf, pos);
+        }
+    }
+
+    /** removes expired entries from all segments, without waiting for next write */
+    public void expireEvict(){
+        long now = System.currentTimeMillis();
+        for(Segment s:segments){
+            s.lock.writeLock().lock();
+            try{
+                long[] meta = meta(s);
+                long[] meta2 = meta.clone();
+                expire(s, meta2, now);
+                if(!Arrays.equals(meta, meta2))
+                    s.store.update(s.recid, Serializers.LONG_ARRAY, meta2);
+            }finally {
+                s.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /** number of entries, expired entries are counted until they are removed */
+    public long sizeLong(){
+        long size = 0;
+        for(Segment s:segments){
+            s.lock.readLock().lock();
+            try{
+                size += s.store.get(s.recid, Serializers.LONG_ARRAY)[META_SIZE];
+            }finally {
+                s.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, sizeLong());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !entryIterator().hasNext();
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        if(value==null)
+            throw new NullPointerException();
+        for(Iterator<V> iter = new Iter<>((k,v)->v); iter.hasNext();){
+            if(valSer.equals(iter.next(), (V) value))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void clear() {
+        for(Segment s:segments){
+            s.lock.writeLock().lock();
+            try{
+                clearDir(s, s.root, 0);
+                s.store.update(s.root, DIR_SER, new long[DIR_SIZE]);
+                long[] meta = meta(s);
+                for(long recid=meta[META_HEAD]; recid!=0L; ){
+                    long next = s.store.get(recid, expireSer).next;
+                    s.store.delete(recid, expireSer);
+                    recid = next;
+                }
+                meta[META_SIZE] = 0L;
+                meta[META_HEAD] = 0L;
+                meta[META_TAIL] = 0L;
+                s.store.update(s.recid, Serializers.LONG_ARRAY, meta);
+            }finally {
+                s.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /** deletes all children of directory node, directory node itself is not modified */
+    private void clearDir(Segment s, long recid, int level){
+        for(long child:s.store.get(recid, DIR_SER)){
+            if(child==0L)
+                continue;
+            if(level<LEVELS-1){
+                clearDir(s, child, level+1);
+                s.store.delete(child, DIR_SER);
+            }else{
+                s.store.delete(child, leafSer);
+            }
+        }
+    }
+
+    Iterator<Map.Entry<K,V>> entryIterator(){
+        return new Iter<>((k,v)->new IterEntry<>(this, k, v));
+    }
+
+    /** iterates over segments and loads one leaf at time, it is weakly consistent */
+    private final class Iter<E> implements Iterator<E> {
+        final BiFunction<K,V,E> make;
+
+        int segment = 0;
+        /** index of next leaf to load in current segment */
+        int leafIndex = 0;
+        Object[] leaf = EMPTY_LEAF;
+        int pos = 0;
+
+        K nextKey;
+        V nextValue;
+        K lastReturned;
+
+        Iter(BiFunction<K,V,E> make) {
+            this.make = make;
+            advance();
+        }
+
+        private void advance(){
+            nextKey = null;
+            nextValue = null;
+            while(true){
+                long now = System.currentTimeMillis();
+                for(; pos<leaf.length; pos+=STRIDE){
+                    if(!expired(leaf, pos, now)){
+                        nextKey = (K) leaf[pos];
+                        nextValue = (V) leaf[pos+1];
+                        pos+=STRIDE;
+                        return;
+                    }
+                }
+                if(segment>=segments.length)
+                    return;
+                loadLeaf();
+            }
+        }
+
+        /** loads next non empty leaf in current segment, or moves to next segment */
+        private void loadLeaf(){
+            Segment s = segments[segment];
+            long[] leafRecid = new long[1];
+            s.lock.readLock().lock();
+            try{
+                int index = leafIndex<LEAF_COUNT ? nextLeaf(s, s.root, 0, leafIndex, leafRecid) : -1;
+                if(index<0){
+                    segment++;
+                    leafIndex = 0;
+                    leaf = EMPTY_LEAF;
+                }else{
+                    leaf = s.store.get(leafRecid[0], leafSer);
+                    leafIndex = index+1;
+                }
+                pos = 0;
+            }finally {
+                s.lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextKey!=null;
+        }
+
+        @Override
+        public E next() {
+            if(nextKey==null)
+                throw new NoSuchElementException();
+            E ret = make.apply(nextKey, nextValue);
+            lastReturned = nextKey;
+            advance();
+            return ret;
+        }
+
+        @Override
+        public void remove() {
+            if(lastReturned==null)
+                throw new IllegalStateException();
+            HTreeMap.this.remove(lastReturned);
+            lastReturned = null;
+        }
+    }
+
+    /** entry returned by iterators, {@link #setValue(Object)} writes into map */
+    static final class IterEntry<K,V> extends AbstractMap.SimpleEntry<K,V> {
+        private final HTreeMap<K,V> m;
+
+        IterEntry(HTreeMap<K,V> m, K key, V value) {
+            super(key, value);
+            this.m = m;
+        }
+
+        @Override
+        public V setValue(V value) {
+            if(value==null)
+                throw new NullPointerException();
+            V old = m.put(getKey(), value);
+            super.setValue(value);
+            return old;
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<K,V>> entrySet() {
+        return new AbstractSet<Map.Entry<K,V>>() {
+            @Override
+            public Iterator<Map.Entry<K,V>> iterator() {
+                return entryIterator();
+            }
+
+            @Override
+            public int size() {
+                return HTreeMap.this.size();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return HTreeMap.this.isEmpty();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if(!(o instanceof Map.Entry))
+                    return false;
+                Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+                if(e.getKey()==null)
+                    return false;
+                V v = get(e.getKey());
+                return v!=null && valSer.equals(v, (V) e.getValue());
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                if(!(o instanceof Map.Entry))
+                    return false;
+                Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+                return e.getKey()!=null && HTreeMap.this.remove(e.getKey(), e.getValue());
+            }
+
+            @Override
+            public void clear() {
+                HTreeMap.this.clear();
+            }
+        };
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return new AbstractSet<K>() {
+            @Override
+            public Iterator<K> iterator() {
+                return new Iter<>((k,v)->k);
+            }
+
+            @Override
+            public int size() {
+                return HTreeMap.this.size();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return HTreeMap.this.isEmpty();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                return HTreeMap.this.remove(o)!=null;
+            }
+
+            @Override
+            public void clear() {
+                HTreeMap.this.clear();
+            }
+        };
+    }
+
+    @Override
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new Iter<>((k,v)->v);
+            }
+
+            @Override
+            public int size() {
+                return HTreeMap.this.size();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return HTreeMap.this.isEmpty();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsValue(o);
+            }
+
+            @Override
+            public void clear() {
+                HTreeMap.this.clear();
+            }
+        };
+    }
+}
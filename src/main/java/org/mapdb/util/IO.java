@@ -1,5 +1,7 @@
 package org.mapdb.util;
 
+import org.mapdb.io.DataIO;
+
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -17,9 +19,7 @@ public class IO {
 
     public static byte[] readByteArray(InputStream is, int size) throws IOException {
         byte[] buf = new byte[size];
-        int read = is.read(buf, 0, size);
-        if(read!=size)
-            throw new IOException("not fully read"); //TODO read fully
+        DataIO.readFully(is, buf, 0, size);
         return buf;
     }
 
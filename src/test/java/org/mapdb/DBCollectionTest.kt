@@ -9,6 +9,7 @@ import org.mapdb.db.DB
 import org.mapdb.io.DataInput2
 import org.mapdb.io.DataInput2ByteArray
 import org.mapdb.io.DataOutput2ByteArray
+import org.mapdb.queue.LinkedFIFOQueue
 import org.mapdb.ser.Serializer
 import org.mapdb.ser.Serializers
 import org.mapdb.util.Exporter
@@ -149,7 +150,6 @@ class DBCollectionTest: DBWordSpec({
 
 
         fun adapters():List<Adapter<Any>>{
-/*
 
             val qAdapter = object: Adapter<LinkedFIFOQueue<Any>>() {
 
@@ -175,9 +175,8 @@ class DBCollectionTest: DBWordSpec({
                 override val name = "queue"
 
             }
-*/
 
-            return emptyList()
+            return listOf(qAdapter) as List<Adapter<Any>>
 
         }
     }
@@ -0,0 +1,146 @@
+package org.mapdb.db
+
+import io.kotlintest.shouldBe
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.mapdb.DBException
+import org.mapdb.TT
+import org.mapdb.cli.Export
+import org.mapdb.cli.Import
+import org.mapdb.io.DataInput2ByteArray
+import org.mapdb.io.DataOutput2ByteArray
+import org.mapdb.queue.LinkedFIFOQueue
+import org.mapdb.ser.Serializers
+
+class DBTest {
+
+    @Test fun queue_reopen(){
+        TT.withTempFile { f->
+            var db = DB.Maker.appendFile(f).make()
+            val q = db.queue("name", Serializers.INTEGER).make()
+            for(i in 1..100)
+                q.add(i)
+            q.poll() shouldBe 1
+            db.close()
+
+            db = DB.Maker.appendFile(f).make()
+            db.queue("name", Serializers.INTEGER).make().toList() shouldBe (2..100).toList()
+            db.close()
+        }
+    }
+
+    @Test fun catalog(){
+        TT.withTempFile { f->
+            var db = DB.Maker.appendFile(f).make()
+            assertNull(db.get("name"))
+            db.queue("name", Serializers.INTEGER).make().add(1)
+            db.queue("name2", Serializers.LONG).make().add(2L)
+            db.close()
+
+            db = DB.Maker.appendFile(f).make()
+            val q = db.get("name") as LinkedFIFOQueue<*>
+            q.toList() shouldBe listOf(1)
+            assertTrue(q === db.queue("name", Serializers.INTEGER).make())
+            (db.get("name2") as LinkedFIFOQueue<*>).toList() shouldBe listOf(2L)
+            assertNull(db.get("name3"))
+            db.close()
+        }
+    }
+
+    @Test fun wrong_serializer_fail_on_reopen(){
+        TT.withTempFile { f->
+            var db = DB.Maker.appendFile(f).make()
+            db.queue("name", Serializers.INTEGER).make()
+            db.close()
+
+            db = DB.Maker.appendFile(f).make()
+            TT.assertFailsWith(DBException.WrongSerializer::class) {
+                db.queue("name", Serializers.LONG).make()
+            }
+            db.close()
+        }
+    }
+
+    @Test fun use_the_same_instance(){
+        val db = DB.Maker.heapSer().make()
+        val q1 = db.queue("name", Serializers.INTEGER).make()
+        val q2 = db.queue("name", Serializers.INTEGER).make()
+        assertTrue(q1 === q2)
+        assertTrue(q1 === db.get("name"))
+    }
+
+    @Test fun import_fails_on_existing(){
+        TT.withTempFile { f->
+            var db = DB.Maker.appendFile(f).make()
+            db.queue("name", Serializers.INTEGER).make()
+            db.close()
+
+            db = DB.Maker.appendFile(f).make()
+            TT.assertFailsWith(DBException.WrongConfig::class) {
+                db.queue("name", Serializers.INTEGER)
+                        .importFromDataInput2(DataInput2ByteArray(ByteArray(0)))
+                        .make()
+            }
+            db.close()
+        }
+    }
+
+    @Test fun export_import(){
+        val db1 = DB.Maker.heapSer().make()
+        val q1 = db1.queue("aa", Serializers.INTEGER).make()
+        for(i in 1..100)
+            q1.add(i)
+
+        val output = DataOutput2ByteArray()
+        q1.exportToDataOutput2(output)
+
+        val db2 = DB.Maker.heapSer().make()
+        val q2 = db2.queue("aa", Serializers.INTEGER)
+                .importFromDataInput2(DataInput2ByteArray(output.copyBytes()))
+                .make()
+        q2.toList() shouldBe (1..100).toList()
+    }
+
+    @Test fun cli_export(){
+        TT.withTempFile { dbf ->
+            val db = DB.Maker.appendFile(dbf).make()
+            val q = db.queue("name", Serializers.INTEGER).make()
+            for(i in 1..100)
+                q.add(i)
+            db.close()
+
+            val outf = TT.tempNotExistFile()
+            Export.main(arrayOf("-d", dbf.path, "-o", outf.path, "-n", "name"))
+            assertTrue(outf.length()>0L)
+
+            val db2 = DB.Maker.heapSer().make()
+            val q2 = db2.queue("name2", Serializers.INTEGER)
+                    .importFromDataInput2(DataInput2ByteArray(outf.readBytes()))
+                    .make()
+            q2.toList() shouldBe (1..100).toList()
+            outf.delete()
+        }
+    }
+
+    @Test fun cli_import(){
+        TT.withTempFile { dbf ->
+            val db = DB.Maker.heapSer().make()
+            val q = db.queue("name", Serializers.INTEGER).make()
+            for(i in 1..100)
+                q.add(i)
+            val output = DataOutput2ByteArray()
+            q.exportToDataOutput2(output)
+
+            val inf = TT.tempFile()
+            inf.writeBytes(output.copyBytes())
+            Import.main(arrayOf("-d", dbf.path, "-i", inf.path, "-n", "name"))
+            assertTrue(dbf.length()>0L)
+
+            val db2 = DB.Maker.appendFile(dbf).make()
+            db2.queue("name", Serializers.INTEGER).make().toList() shouldBe (1..100).toList()
+            db2.close()
+            inf.delete()
+        }
+    }
+}
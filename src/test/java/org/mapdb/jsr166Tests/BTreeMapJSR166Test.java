@@ -0,0 +1,32 @@
+package org.mapdb.jsr166Tests;
+
+import org.jetbrains.annotations.NotNull;
+import org.mapdb.ser.Serializers;
+import org.mapdb.store.HeapBufStore;
+import org.mapdb.tree.BTreeMap;
+
+import java.util.NavigableMap;
+
+public class BTreeMapJSR166Test extends TreeMapTest {
+
+    @NotNull
+    @Override
+    NavigableMap emptyMap() {
+        return BTreeMap.Maker
+                .newMap(new HeapBufStore(), Serializers.JAVA, Serializers.JAVA)
+                .maxNodeSize(4)
+                .make();
+    }
+
+    @Override
+    NavigableMap fromSorted(NavigableMap map) {
+        return new BTreeMap.BulkMaker(new HeapBufStore(), Serializers.JAVA, Serializers.JAVA)
+                .maxNodeSize(4)
+                .make(map.entrySet().iterator());
+    }
+
+    @Override
+    public void testSerialization() throws Exception {
+        //map is stored in Store, it does not support java serialization
+    }
+}
@@ -0,0 +1,185 @@
+package org.mapdb.jsr166Tests;
+
+import org.mapdb.io.DataInput2;
+import org.mapdb.io.DataOutput2;
+import org.mapdb.queue.LinkedFIFOQueue;
+import org.mapdb.ser.Serializer;
+import org.mapdb.ser.Serializers;
+import org.mapdb.store.HeapBufStore;
+import org.mapdb.store.HeapBufStoreSegmented;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+public class LinkedFIFOQueueTest extends JSR166TestCase {
+
+    public static class Unbounded extends BlockingQueueTest {
+        protected BlockingQueue emptyCollection() {
+            return LinkedFIFOQueue.Maker.newQueue(new HeapBufStoreSegmented(), Serializers.JAVA).make();
+        }
+    }
+
+    public static class Bounded extends BlockingQueueTest {
+        protected BlockingQueue emptyCollection() {
+            return LinkedFIFOQueue.Maker.newQueue(new HeapBufStoreSegmented(), Serializers.JAVA).capacity(SIZE).make();
+        }
+    }
+
+    /** single lock is used if store is not thread safe */
+    public static class SingleLock extends BlockingQueueTest {
+        protected BlockingQueue emptyCollection() {
+            return LinkedFIFOQueue.Maker.newQueue(new HeapBufStore(), Serializers.JAVA).make();
+        }
+    }
+
+    private static LinkedFIFOQueue<Integer> populatedQueue(int n) {
+        LinkedFIFOQueue<Integer> q = LinkedFIFOQueue.Maker.newQueue(new HeapBufStoreSegmented(), Serializers.INTEGER).capacity(n).make();
+        for (int i = 0; i < n; i++)
+            assertTrue(q.offer(i));
+        assertEquals(0, q.remainingCapacity());
+        assertEquals(n, q.size());
+        assertEquals((Integer) 0, q.peek());
+        return q;
+    }
+
+    /**
+     * Constructor throws IllegalArgumentException if capacity argument nonpositive
+     */
+    public void testConstructor() {
+        try {
+            LinkedFIFOQueue.Maker.newQueue(new HeapBufStore(), Serializers.INTEGER).capacity(0);
+            shouldThrow();
+        } catch (IllegalArgumentException success) {}
+    }
+
+    /**
+     * addAll spanning several nodes keeps FIFO order
+     */
+    public void testAddAllManyNodes() {
+        LinkedFIFOQueue<Integer> q = LinkedFIFOQueue.Maker.newQueue(new HeapBufStoreSegmented(), Serializers.INTEGER).make();
+        List<Integer> l = new ArrayList<>();
+        for (int i = 0; i < LinkedFIFOQueue.MAX_NODE_SIZE * 5 + 3; i++)
+            l.add(i);
+        assertTrue(q.addAll(l));
+        assertEquals(l.size(), q.size());
+        for (Integer i : l)
+            assertEquals(i, q.poll());
+        assertNull(q.poll());
+    }
+
+    /**
+     * addAll adds elements which fit and throws IllegalStateException if queue is full
+     */
+    public void testAddAllOverCapacity() {
+        LinkedFIFOQueue<Integer> q = populatedQueue(SIZE);
+        q.poll();
+        try {
+            q.addAll(Arrays.asList(100, 101));
+            shouldThrow();
+        } catch (IllegalStateException success) {}
+        assertEquals(SIZE, q.size());
+        assertTrue(q.contains(100));
+        assertFalse(q.contains(101));
+    }
+
+    /**
+     * drainTo with partial node leaves remaining elements in order
+     */
+    public void testDrainToPartialNode() {
+        LinkedFIFOQueue<Integer> q = LinkedFIFOQueue.Maker.newQueue(new HeapBufStoreSegmented(), Serializers.INTEGER).make();
+        List<Integer> l = new ArrayList<>();
+        for (int i = 0; i < LinkedFIFOQueue.MAX_NODE_SIZE * 3; i++)
+            l.add(i);
+        q.addAll(l);
+        List<Integer> drained = new ArrayList<>();
+        int n = LinkedFIFOQueue.MAX_NODE_SIZE + 5;
+        assertEquals(n, q.drainTo(drained, n));
+        assertEquals(l.subList(0, n), drained);
+        assertEquals(l.subList(n, l.size()), new ArrayList<>(q));
+    }
+
+    /**
+     * poll, remove and drainTo on partially taken node keep order, also after reopen
+     */
+    public void testPartiallyTakenNode() {
+        HeapBufStoreSegmented store = new HeapBufStoreSegmented();
+        LinkedFIFOQueue<Integer> q = LinkedFIFOQueue.Maker.newQueue(store, Serializers.INTEGER).make();
+        List<Integer> l = new ArrayList<>();
+        for (int i = 0; i < LinkedFIFOQueue.MAX_NODE_SIZE * 2; i++)
+            l.add(i);
+        q.addAll(l);
+        assertEquals((Integer) 0, q.poll());
+        assertTrue(q.remove(2));
+        assertEquals((Integer) 1, q.poll());
+        assertEquals((Integer) 3, q.peek());
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(LinkedFIFOQueue.MAX_NODE_SIZE, q.drainTo(drained, LinkedFIFOQueue.MAX_NODE_SIZE));
+        assertEquals(l.subList(3, LinkedFIFOQueue.MAX_NODE_SIZE + 3), drained);
+        assertEquals((Integer) (LinkedFIFOQueue.MAX_NODE_SIZE + 3), q.poll());
+
+        LinkedFIFOQueue<Integer> q2 = new LinkedFIFOQueue.Maker<>(store, q.getHeadRecid(), q.getTailRecid(), Serializers.INTEGER).make();
+        assertEquals(l.subList(LinkedFIFOQueue.MAX_NODE_SIZE + 4, l.size()), new ArrayList<>(q2));
+    }
+
+    /**
+     * failed serialization in addAll leaves queue unchanged and usable
+     */
+    public void testAddAllSerializerFails() {
+        Serializer<Integer> ser = new Serializer<Integer>() {
+            @Override
+            public void serialize(DataOutput2 out, Integer value) {
+                if (value < 0)
+                    throw new IllegalArgumentException();
+                Serializers.INTEGER.serialize(out, value);
+            }
+
+            @Override
+            public Integer deserialize(DataInput2 input) {
+                return Serializers.INTEGER.deserialize(input);
+            }
+
+            @Override
+            public Class serializedType() {
+                return Integer.class;
+            }
+        };
+        HeapBufStoreSegmented store = new HeapBufStoreSegmented();
+        LinkedFIFOQueue<Integer> q = LinkedFIFOQueue.Maker.newQueue(store, ser).make();
+        q.add(1);
+        List<Integer> l = new ArrayList<>();
+        for (int i = 0; i < LinkedFIFOQueue.MAX_NODE_SIZE * 2; i++)
+            l.add(i);
+        l.set(LinkedFIFOQueue.MAX_NODE_SIZE + 1, -1);
+        try {
+            q.addAll(l);
+            shouldThrow();
+        } catch (IllegalArgumentException success) {}
+        assertEquals(1, q.size());
+        q.add(2);
+        assertEquals((Integer) 1, q.poll());
+        assertEquals((Integer) 2, q.poll());
+        assertNull(q.poll());
+
+        LinkedFIFOQueue<Integer> q2 = new LinkedFIFOQueue.Maker<>(store, q.getHeadRecid(), q.getTailRecid(), ser).make();
+        assertTrue(q2.isEmpty());
+    }
+
+    /**
+     * queue reopened from the same store has the same content
+     */
+    public void testReopen() {
+        HeapBufStoreSegmented store = new HeapBufStoreSegmented();
+        LinkedFIFOQueue<Integer> q = LinkedFIFOQueue.Maker.newQueue(store, Serializers.INTEGER).make();
+        q.addAll(Arrays.asList(1, 2, 3, 4));
+        q.poll();
+        q.remove(3);
+
+        LinkedFIFOQueue<Integer> q2 = new LinkedFIFOQueue.Maker<>(store, q.getHeadRecid(), q.getTailRecid(), Serializers.INTEGER).make();
+        assertEquals(2, q2.size());
+        assertEquals((Integer) 2, q2.poll());
+        assertEquals((Integer) 4, q2.poll());
+        assertNull(q2.poll());
+    }
+}
@@ -0,0 +1,23 @@
+package org.mapdb.list;
+
+import harmony.ArrayListTest;
+import org.mapdb.ser.Serializers;
+import org.mapdb.store.HeapBufStore;
+import org.mapdb.store.Store;
+
+import java.util.List;
+
+
+public class ChunkedKernelListHarmonyTest extends ArrayListTest {
+
+    @Override
+    public <E> List<E> newList() {
+        Store store = new HeapBufStore();
+        //small pages, so splits and merges are tested
+        return (List<E>) ChunkedKernelList.Maker
+                .newList(store, Serializers.JAVA, 4)
+                .entryStore(new HeapBufStore())
+                .make();
+    }
+
+}
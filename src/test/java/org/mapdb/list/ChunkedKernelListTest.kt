@@ -0,0 +1,72 @@
+package org.mapdb.list
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.mapdb.TT
+import org.mapdb.ser.Serializers
+import org.mapdb.store.HeapBufStore
+import java.util.*
+
+class ChunkedKernelListTest {
+
+    @Test fun random_ops(){
+        val store = HeapBufStore()
+        val list = ChunkedKernelList.Maker.newList(store, Serializers.INTEGER, 8).make()
+        val ref = ArrayList<Int>()
+        val r = Random(0)
+        for(i in 0 until 20000){
+            when(r.nextInt(6)){
+                0 -> assertEquals(ref.add(i), list.add(i))
+                1 -> { val idx = r.nextInt(ref.size+1); ref.add(idx, i); list.add(idx, i) }
+                2 -> if(ref.isNotEmpty()){ val idx = r.nextInt(ref.size); assertEquals(ref.removeAt(idx), list.removeAt(idx)) }
+                3 -> if(ref.isNotEmpty()){ val idx = r.nextInt(ref.size); assertEquals(ref.set(idx, i), list.set(idx, i)) }
+                4 -> { val c = (0 until r.nextInt(30)).map{i+it}; val idx = r.nextInt(ref.size+1); ref.addAll(idx, c); list.addAll(idx, c) }
+                5 -> if(ref.isNotEmpty()){ val idx = r.nextInt(ref.size); assertEquals(ref[idx], list[idx]) }
+            }
+            assertEquals(ref.size, list.size)
+        }
+        assertEquals(ref, ArrayList(list))
+
+        list.clear()
+        assertTrue(list.isEmpty())
+        list.add(1)
+        assertEquals(listOf(1), ArrayList(list))
+    }
+
+    @Test fun append_updates_tail_page_only(){
+        val store = HeapBufStore()
+        val list = ChunkedKernelList.Maker.newList(store, Serializers.INTEGER, 100).make()
+        for(i in 0 until 1000)
+            list.add(i)
+        list.addAll((1000 until 1250).toList())
+        assertEquals(1250, list.size)
+        for(i in 0 until 1250)
+            assertEquals(i, list[i])
+
+        //13 full pages, root has header, recid and end for each page, except tail page which has no end
+        val root = store.get(list.recid, ChunkedKernelList.ROOT_SER)
+        assertEquals(26, root.size)
+
+        val list2 = ChunkedKernelList.Maker(store, list.recid, Serializers.INTEGER).make()
+        assertEquals((0 until 1250).toList(), ArrayList(list2))
+    }
+
+    @Test fun page_limit(){
+        val store = HeapBufStore()
+        val recid = ChunkedKernelList.Maker.newList(store, Serializers.INTEGER, 2).make().recid
+        val list = object: ChunkedKernelList<Int>(store, store, recid, Serializers.INTEGER){
+            override fun maxPages() = 3
+        }
+        list.addAll(listOf(1,2,3,4,5))
+        list.add(6)
+        TT.assertFailsWith(IllegalStateException::class){ list.add(7) }
+        TT.assertFailsWith(IllegalStateException::class){ list.add(0, 7) }
+        TT.assertFailsWith(IllegalStateException::class){ list.addAll(listOf(7)) }
+        assertEquals(listOf(1,2,3,4,5,6), ArrayList(list))
+
+        list.removeAt(0)
+        list.add(0, 7)
+        assertEquals(listOf(7,2,3,4,5,6), ArrayList(list))
+    }
+}
@@ -0,0 +1,132 @@
+package org.mapdb.store
+
+import io.kotlintest.shouldBe
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet
+import org.junit.Test
+import org.mapdb.TT
+import java.lang.ref.WeakReference
+import java.util.concurrent.ConcurrentLinkedQueue
+
+class RecidAllocatorTest{
+
+    @Test fun reserved_sequential(){
+        val a = RecidAllocator()
+        for(i in 1L .. Recids.RECID_MAX_RESERVED){
+            a.allocate() shouldBe i
+        }
+        a.getMaxRecid() shouldBe Recids.RECID_MAX_RESERVED
+    }
+
+    @Test fun reuse(){
+        val a = RecidAllocator()
+        val recid = a.allocate()
+        a.allocate()
+        a.release(recid)
+        a.allocate() shouldBe recid
+    }
+
+    @Test fun unique(){
+        val a = RecidAllocator(16)
+        val set = LongHashSet()
+        for(i in 0 until 10000){
+            set.add(a.allocate()) shouldBe true
+        }
+        //release and allocate again, cache overflows into shared batches
+        for(recid in set.toArray())
+            a.release(recid)
+        val set2 = LongHashSet()
+        for(i in 0 until 10000){
+            set2.add(a.allocate()) shouldBe true
+        }
+        set2 shouldBe set
+    }
+
+    @Test fun snapshot_restore(){
+        val a = RecidAllocator()
+        val recids = LongArray(1000){a.allocate()}
+        for(i in 0 until recids.size step 3)
+            a.release(recids[i])
+
+        val snapshot = a.snapshot()
+        val b = RecidAllocator()
+        b.restore(snapshot)
+        b.getMaxRecid() shouldBe a.getMaxRecid()
+
+        //all free recids are reused before max recid grows
+        val free = LongHashSet()
+        for(i in 1 until snapshot.size)
+            free.add(b.allocate())
+        free shouldBe LongHashSet.newSetWith(*snapshot.copyOfRange(1, snapshot.size))
+        b.getMaxRecid() shouldBe a.getMaxRecid()
+        b.allocate() shouldBe a.getMaxRecid()+1
+    }
+
+    @Test fun restoreFromUsed(){
+        val a = RecidAllocator()
+        a.restoreFromUsed(10, longArrayOf(10,2,4,6,8))
+        val free = LongHashSet()
+        for(i in 0 until 5)
+            free.add(a.allocate())
+        free shouldBe LongHashSet.newSetWith(1,3,5,7,9)
+        a.allocate() shouldBe 11L
+    }
+
+    @Test fun concurrent(){
+        val a = RecidAllocator(8)
+        val all = ConcurrentLinkedQueue<LongArray>()
+        TT.fork(8){
+            val local = LongArray(10000){a.allocate()}
+            //release half and allocate again, recids migrate between threads
+            for(i in 0 until local.size step 2)
+                a.release(local[i])
+            for(i in 0 until local.size step 2)
+                local[i] = a.allocate()
+            all.add(local)
+        }
+        val set = LongHashSet()
+        for(local in all)
+            for(recid in local)
+                set.add(recid) shouldBe true
+        set.size() shouldBe 80000
+    }
+
+    @Test fun dead_thread_recids_reclaimed(){
+        val a = RecidAllocator(16)
+        for(i in 1L .. Recids.RECID_MAX_RESERVED)
+            a.allocate()
+        //thread reserves range of 16 recids, but uses only one
+        var t:Thread? = Thread{ a.allocate() }
+        t!!.start()
+        t.join()
+        val threadRef = WeakReference(t)
+        t = null
+        val max = a.getMaxRecid()
+        max shouldBe Recids.RECID_MAX_RESERVED+16
+
+        for(i in 0 until 100){
+            System.gc()
+            if(threadRef.get()==null)
+                break
+            Thread.sleep(10)
+        }
+        Thread.sleep(100)
+        //unused range of dead thread is reused
+        for(i in 0 until 15)
+            (a.allocate()<=max) shouldBe true
+        a.getMaxRecid() shouldBe max
+    }
+
+    @Test fun allocator_not_retained_by_thread_local(){
+        var a:RecidAllocator? = RecidAllocator()
+        a!!.release(a.allocate())
+        val ref = WeakReference(a)
+        a = null
+        for(i in 0 until 100){
+            System.gc()
+            if(ref.get()==null)
+                return
+            Thread.sleep(10)
+        }
+        throw AssertionError("allocator was not garbage collected")
+    }
+}
@@ -0,0 +1,49 @@
+package org.mapdb.store
+
+import org.junit.Test
+import org.mapdb.TT
+import org.mapdb.ser.Serializers
+import java.util.*
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Measures throughput of concurrent writers. Only runs with long tests enabled (`-Dmdbtest=1`).
+ */
+class StoreContentionBench {
+
+    val threadCount = Runtime.getRuntime().availableProcessors().coerceAtLeast(2)
+    val recordCount = 100_000
+
+    fun bench(name: String, store: Store) {
+        val recids = LongArray(recordCount) { store.put(it.toLong(), Serializers.LONG) }
+
+        val ops = AtomicLong()
+        val endTime = TT.nowPlusMinutes(0.1)
+        val start = System.currentTimeMillis()
+        TT.fork(threadCount) {
+            val r = Random()
+            var count = 0L
+            while (System.currentTimeMillis() < endTime) {
+                for (i in 0 until 1000) {
+                    val recid = recids[r.nextInt(recids.size)]
+                    store.update(recid, Serializers.LONG, r.nextLong())
+                    val recid2 = store.put(1L, Serializers.LONG)
+                    store.delete(recid2, Serializers.LONG)
+                }
+                count += 3000
+            }
+            ops.addAndGet(count)
+        }
+        val time = System.currentTimeMillis() - start
+        println("$name: threads=$threadCount, ops/sec=${ops.get() * 1000 / time}")
+        store.close()
+    }
+
+    @Test fun put_update_delete() {
+        if (TT.shortTest())
+            return
+        bench("HeapBufStoreRWLock", HeapBufStoreRWLock())
+        bench("HeapBufStoreSegmented", HeapBufStoreSegmented())
+        bench("HeapBufStoreSegmented(64)", HeapBufStoreSegmented(64))
+    }
+}
@@ -3,26 +3,827 @@ package org.mapdb.store
 import io.kotlintest.shouldBe
 import org.junit.Assert.assertEquals
 import org.junit.Assert.assertTrue
+import org.junit.Assume
 import org.junit.Test
+import org.mapdb.DBException
 import org.mapdb.TT
+import org.mapdb.list.KernelList
 import org.mapdb.ser.Serializers
 import org.mapdb.store.legacy.Store2
 import org.mapdb.store.legacy.StoreDirect
 import org.mapdb.store.legacy.Volume
+import org.mapdb.store.li.LiStore
 import java.io.File
+import java.io.RandomAccessFile
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
 
 
 class FileHeapBufStoreTest : StoreReopenTest() {
     override fun openStore(f:File) = FileHeapBufStore(f)
+
+    @Test fun crash_after_commit(){
+        TT.withTempFile { f->
+            val s = openStore(f)
+            val recid = s.put(1L, Serializers.LONG)
+            val recid2 = s.put(2L, Serializers.LONG)
+            s.commit()
+            s.update(recid, Serializers.LONG, 11L)
+            s.delete(recid2, Serializers.LONG)
+            //not committed, reopen without close
+            val s2 = openStore(f)
+            s2.get(recid, Serializers.LONG) shouldBe 1L
+            s2.get(recid2, Serializers.LONG) shouldBe 2L
+            s2.close()
+        }
+    }
+
+    @Test fun commit_appends_modified_only(){
+        TT.withTempFile { f->
+            val s = openStore(f)
+            val recids = (0 until 100).map{s.put(TT.randomByteArray(1000), Serializers.BYTE_ARRAY_NOSIZE)}
+            s.commit()
+            val end = s.logEnd
+            s.update(recids[10], Serializers.BYTE_ARRAY_NOSIZE, ByteArray(1000))
+            s.commit()
+            assertTrue(s.logEnd - end < 2000)
+            s.close()
+
+            val s2 = openStore(f)
+            s2.get(recids[10], Serializers.BYTE_ARRAY_NOSIZE) shouldBe ByteArray(1000)
+            s2.close()
+        }
+    }
+
+    @Test fun log_rewrite_bounds_size(){
+        TT.withTempFile { f->
+            val s = FileHeapBufStore(f, 1024*1024)
+            val recid = s.put(ByteArray(0), Serializers.BYTE_ARRAY_NOSIZE)
+            for(i in 0 until 1000){
+                s.update(recid, Serializers.BYTE_ARRAY_NOSIZE, TT.randomByteArray(10000))
+                s.commit()
+            }
+            assertTrue(s.logEnd <= 2*1024*1024+20000)
+            val b = s.get(recid, Serializers.BYTE_ARRAY_NOSIZE)
+            s.compact()
+            assertTrue(s.logEnd < 20000)
+            s.close()
+
+            val s2 = FileHeapBufStore(f, 1024*1024)
+            s2.get(recid, Serializers.BYTE_ARRAY_NOSIZE) shouldBe b
+            s2.close()
+        }
+    }
+
+    @Test fun checksum_covers_payload(){
+        TT.withTempFile { f->
+            val s = openStore(f)
+            val recid = s.put(1L, Serializers.LONG)
+            s.close()
+
+            //flip byte in record data
+            val offset = FileHeapBufStore.LOG_START + FileHeapBufStore.FRAME_HEAD + FileHeapBufStore.REC_HEAD
+            RandomAccessFile(f, "rw").use { raf ->
+                raf.seek(offset)
+                val b = raf.read()
+                raf.seek(offset)
+                raf.write(b xor 0xFF)
+            }
+
+            val s2 = openStore(f)
+            TT.assertFailsWith(DBException.RecordNotFound::class) {
+                s2.get(recid, Serializers.LONG)
+            }
+            s2.close()
+        }
+    }
+
+    @Test fun reserved_recids_reused_after_reopen(){
+        TT.withTempFile { f->
+            val s = openStore(f)
+            //past reserved recids, last put reserves range for this thread
+            val used = Recids.RECID_MAX_RESERVED+1
+            for(i in 0 until used)
+                s.put(1L, Serializers.LONG)
+            //other thread reserves its own range
+            var recid2 = 0L
+            val t = Thread{ recid2 = s.put(2L, Serializers.LONG) }
+            t.start()
+            t.join()
+            assertTrue(recid2>used+1)
+            s.close()
+
+            val s2 = openStore(f)
+            for(i in used+1 until recid2)
+                assertTrue(s2.put(3L, Serializers.LONG) < recid2)
+            s2.close()
+        }
+    }
+
+    @Test fun reopen_empty_file(){
+        TT.withTempFile { f->
+            //crash after log was mapped, but before magic header was written
+            RandomAccessFile(f, "rw").use { it.setLength(1024*1024) }
+            val s = openStore(f)
+            assertTrue(s.isEmpty)
+            val recid = s.put(1L, Serializers.LONG)
+            s.close()
+
+            val s2 = openStore(f)
+            s2.get(recid, Serializers.LONG) shouldBe 1L
+            s2.close()
+        }
+    }
+
+    @Test fun reopen_wrong_magic(){
+        TT.withTempFile { f->
+            f.writeBytes(TT.randomByteArray(1000))
+            TT.assertFailsWith(DBException.DataCorruption::class) {
+                openStore(f)
+            }
+            f.writeBytes(ByteArray(13).also{it[8]=1})
+            TT.assertFailsWith(DBException.DataCorruption::class) {
+                openStore(f)
+            }
+        }
+    }
 }
 
 class FileHeapBufStoreRWLockTest : StoreReopenTest() {
     override fun openStore(f:File) = FileHeapBufStoreRWLock(f)
 }
 
+class FileHeapBufStoreSegmentedTest : StoreReopenTest() {
+    override fun openStore(f:File) = FileHeapBufStoreSegmented(f)
+
+    @Test fun crash_after_commit(){
+        TT.withTempFile { f->
+            val s = openStore(f)
+            val recid = s.put(1L, Serializers.LONG)
+            val recid2 = s.put(2L, Serializers.LONG)
+            val recid3 = s.preallocate()
+            s.commit()
+            s.update(recid, Serializers.LONG, 11L)
+            s.delete(recid2, Serializers.LONG)
+            //not committed, reopen without close
+            val s2 = openStore(f)
+            s2.get(recid, Serializers.LONG) shouldBe 1L
+            s2.get(recid2, Serializers.LONG) shouldBe 2L
+            s2.preallocatePut(recid3, Serializers.LONG, 3L)
+            s2.close()
+        }
+    }
+
+    @Test fun commit_appends_modified_only(){
+        TT.withTempFile { f->
+            val s = openStore(f)
+            val recids = (0 until 100).map{s.put(TT.randomByteArray(1000), Serializers.BYTE_ARRAY_NOSIZE)}
+            s.commit()
+            val end = s.logEnd
+            s.update(recids[10], Serializers.BYTE_ARRAY_NOSIZE, ByteArray(1000))
+            s.commit()
+            assertTrue(s.logEnd - end < 2000)
+            s.close()
+
+            val s2 = openStore(f)
+            s2.get(recids[10], Serializers.BYTE_ARRAY_NOSIZE) shouldBe ByteArray(1000)
+            s2.close()
+        }
+    }
+
+    @Test fun log_rewrite_bounds_size(){
+        TT.withTempFile { f->
+            val s = FileHeapBufStoreSegmented(f, 16, 1024*1024)
+            val recid = s.put(ByteArray(0), Serializers.BYTE_ARRAY_NOSIZE)
+            for(i in 0 until 1000){
+                s.update(recid, Serializers.BYTE_ARRAY_NOSIZE, TT.randomByteArray(10000))
+                s.commit()
+            }
+            assertTrue(s.logEnd <= 2*1024*1024+20000)
+            val b = s.get(recid, Serializers.BYTE_ARRAY_NOSIZE)
+            s.compact()
+            assertTrue(s.logEnd < 20000)
+            s.close()
+
+            val s2 = FileHeapBufStoreSegmented(f, 16, 1024*1024)
+            s2.get(recid, Serializers.BYTE_ARRAY_NOSIZE) shouldBe b
+            s2.close()
+        }
+    }
+
+    @Test fun convert_snapshot(){
+        TT.withTempFile { f->
+            //single snapshot written by older version, 2 records and allocator state
+            val out = java.io.DataOutputStream(f.outputStream())
+            out.writeLong(2)
+            out.writeLong(1); out.writeInt(3); out.write(byteArrayOf(1,2,3))
+            out.writeLong(2); out.writeInt(-1)
+            out.write(1); out.writeInt(1); out.writeLong(2)
+            out.close()
+
+            val s = openStore(f)
+            s.get(1, Serializers.BYTE_ARRAY_NOSIZE) shouldBe byteArrayOf(1,2,3)
+            s.preallocatePut(2, Serializers.LONG, 2L)
+            s.close()
+            FileHeapBufStore.readMagic(f) shouldBe FileHeapBufStore.LOG_MAGIC
+
+            val s2 = openStore(f)
+            s2.get(2, Serializers.LONG) shouldBe 2L
+            s2.close()
+        }
+    }
+}
+
+class LiStoreReopenTest : StoreReopenTest() {
+    override fun openStore(f:File) = LiStore(f)
+}
+
+class WALStoreReopenTest : StoreReopenTest() {
+    override fun openStore(f:File) = WALStore(LiStore(f), File(f.path+".wal"))
+}
+
+class WriteBehindStoreReopenTest : StoreReopenTest() {
+    override fun openStore(f:File) = WriteBehindStore(LiStore(f))
+}
+
+class AppendStoreTest : StoreReopenTest() {
+    override fun openStore(f:File) = AppendStore(f)
+
+    @Test fun replay_log_after_snapshot(){
+        TT.withTempFile { f->
+            val s = AppendStore(f, 1024*1024, 1024*1024, 0, 0.5)
+            val recids = (0 until 100).map{s.put(it.toLong(), Serializers.LONG)}
+            s.snapshot()
+            for(recid in recids.take(50))
+                s.update(recid, Serializers.LONG, -1L)
+            s.delete(recids[99], Serializers.LONG)
+            s.commit()
+
+            //reopen without close, log tail is replayed
+            val s2 = AppendStore(f, 1024*1024, 1024*1024, 0, 0.5)
+            for(i in 0 until 99)
+                s2.get(recids[i], Serializers.LONG) shouldBe (if(i<50) -1L else i.toLong())
+            TT.assertFailsWith(DBException.RecordNotFound::class) {
+                s2.get(recids[99], Serializers.LONG)
+            }
+            s2.close()
+        }
+    }
+
+    @Test fun gc_deletes_segments(){
+        TT.withTempFile { f->
+            var s = AppendStore(f, 16*1024, 1024*1024, 0, 0.5)
+            val m = HashMap<Long, ByteArray>()
+            for(i in 0 until 100){
+                val b = TT.randomByteArray(1000)
+                m[s.put(b, Serializers.BYTE_ARRAY_NOSIZE)] = b
+            }
+            for(j in 0 until 10) for(recid in m.keys){
+                val b = TT.randomByteArray(1000)
+                s.update(recid, Serializers.BYTE_ARRAY_NOSIZE, b)
+                m[recid] = b
+            }
+            s.commit()
+            val segments = s.segments.size()
+            s.compact()
+            assertTrue(s.segments.size() < segments/5)
+            for((recid, b) in m)
+                s.get(recid, Serializers.BYTE_ARRAY_NOSIZE) shouldBe b
+            s.close()
+
+            s = AppendStore(f, 16*1024, 1024*1024, 0, 0.5)
+            for((recid, b) in m)
+                s.get(recid, Serializers.BYTE_ARRAY_NOSIZE) shouldBe b
+            s.close()
+        }
+    }
+
+    @Test fun orphan_segments_deleted(){
+        TT.withTempFile { f->
+            var s = AppendStore(f, 16*1024, 1024*1024, 0, 0.5)
+            val recids = (0 until 100).map{s.put(TT.randomByteArray(1000), Serializers.BYTE_ARRAY_NOSIZE)}
+            for(recid in recids)
+                s.update(recid, Serializers.BYTE_ARRAY_NOSIZE, ByteArray(10))
+            s.compact()
+            assertTrue(!s.segments.containsKey(1L))
+            s.close()
+
+            //crash after snapshot was saved, but before rewritten segment was deleted
+            val orphan = s.segmentFile(1L)
+            orphan.writeBytes(TT.randomByteArray(1000))
+            s = AppendStore(f, 16*1024, 1024*1024, 0, 0.5)
+            assertTrue(!orphan.exists())
+            for(recid in recids)
+                s.get(recid, Serializers.BYTE_ARRAY_NOSIZE) shouldBe ByteArray(10)
+            s.close()
+        }
+    }
+
+    @Test fun snapshot_concurrent_updates(){
+        TT.withTempFile { f->
+            val s = AppendStore(f, 1024*1024, 1024*1024, 0, 0.5)
+            val recids = (0 until 10000).map{s.put(0L, Serializers.LONG)}
+            TT.fork(2){ i ->
+                if(i==0){
+                    for(j in 0 until 10)
+                        s.snapshot()
+                }else{
+                    for(j in 1L..10L) for(recid in recids)
+                        s.update(recid, Serializers.LONG, j)
+                }
+            }
+            s.snapshot()
+            s.verifyIntegrity().isOk shouldBe true
+
+            //reopen without close
+            val s2 = AppendStore(f, 1024*1024, 1024*1024, 0, 0.5)
+            for(recid in recids)
+                s2.get(recid, Serializers.LONG) shouldBe 10L
+            s2.verifyIntegrity().isOk shouldBe true
+            s2.close()
+            s.close()
+        }
+    }
+}
+
 class LegacyStoreDirectTest : StoreReopenTest() {
     override fun openStore(f:File) = StoreDirect(Volume.fileFactory(f,1,false,0, Store2.VOLUME_CHUNK_SHIFT,1024))
+
+    @Test fun close_unmaps_file(){
+        val maps = File("/proc/self/maps")
+        Assume.assumeTrue(maps.exists())
+        TT.withTempFile { f->
+            val s = openStore(f)
+            s.put(1L, Serializers.LONG)
+            maps.readText().contains(f.canonicalPath) shouldBe true
+            s.close()
+            maps.readText().contains(f.canonicalPath) shouldBe false
+        }
+    }
+
+    @Test fun exposed_view_not_unmapped(){
+        TT.withTempFile { f->
+            //memory mapped files
+            val s = StoreDirect(Volume.fileFactory(f,0,false,0, Store2.VOLUME_CHUNK_SHIFT,1024))
+            val recid = s.put(1L, Serializers.LONG)
+            //view escapes callback, reading it after close must not crash JVM
+            val buf = s.read(recid){ it }
+            s.close()
+            buf.getLong(0) shouldBe 1L
+        }
+    }
+
+    @Test fun instance_cache(){
+        for(mode in InstanceCache.Mode.values()) TT.withTempFile { f->
+            val s = openStore(f)
+            s.instanceCache = InstanceCache(mode, 10).enable(Serializers.LONG_ARRAY)
+            val recid = s.put(longArrayOf(1,2), Serializers.LONG_ARRAY)
+            val a = s.get(recid, Serializers.LONG_ARRAY)
+            assertTrue(a === s.get(recid, Serializers.LONG_ARRAY))
+            //other serializers are not cached
+            val b = s.get(recid, Serializers.BYTE_ARRAY_NOSIZE)
+            assertTrue(b !== s.get(recid, Serializers.BYTE_ARRAY_NOSIZE))
+
+            s.update(recid, Serializers.LONG_ARRAY, longArrayOf(3))
+            s.get(recid, Serializers.LONG_ARRAY).toList() shouldBe listOf(3L)
+            s.updateAtomic(recid, Serializers.LONG_ARRAY){ longArrayOf(4) }
+            s.get(recid, Serializers.LONG_ARRAY).toList() shouldBe listOf(4L)
+            s.delete(recid, Serializers.LONG_ARRAY)
+            TT.assertFailsWith(DBException.RecordNotFound::class) {
+                s.get(recid, Serializers.LONG_ARRAY)
+            }
+            s.close()
+        }
+    }
+
+    @Test fun instance_cache_kernel_list(){
+        TT.withTempFile { f->
+            val s = openStore(f)
+            s.instanceCache = InstanceCache(InstanceCache.Mode.HARD_LRU).enable(KernelList.KERNEL_SER)
+            val list = KernelList.Maker.newList(s, Serializers.INTEGER).make()
+            for(i in 0 until 100)
+                list.add(i)
+            for(i in 0 until 100)
+                list[i] shouldBe i
+            list.removeAt(0)
+            list.size shouldBe 99
+            list[0] shouldBe 1
+            s.instanceCache.size() shouldBe 1
+            s.close()
+        }
+    }
+
+    @Test fun instance_cache_concurrent(){
+        for(mode in InstanceCache.Mode.values()){
+            val c = InstanceCache(mode, 100).enable(Serializers.LONG_ARRAY)
+            TT.fork(4){ i->
+                val r = Random(i.toLong())
+                for(j in 0 until 100000){
+                    val recid = r.nextInt(1000).toLong()
+                    //each thread modifies its own recids, all threads read
+                    if(recid%4==i.toLong()) {
+                        if(r.nextBoolean())
+                            c.put(recid, Serializers.LONG_ARRAY, longArrayOf(recid, j.toLong()))
+                        else
+                            c.remove(recid)
+                    }
+                    val a = c.get(recid, Serializers.LONG_ARRAY)
+                    if(a!=null)
+                        a[0] shouldBe recid
+                }
+            }
+            if(mode==InstanceCache.Mode.HARD_LRU)
+                assertTrue(c.size()<=100)
+            c.clear()
+            c.size() shouldBe 0
+        }
+    }
+
+    @Test fun compact_incremental(){
+        TT.withTempFile { f->
+            var s = openStore(f)
+            val r = Random(1)
+            val m = HashMap<Long, ByteArray>()
+            val large = TT.randomByteArray(200000)
+            m[s.put(large, Serializers.BYTE_ARRAY_NOSIZE)] = large
+            for(i in 0 until 3000){
+                val b = TT.randomByteArray(r.nextInt(2000))
+                m[s.put(b, Serializers.BYTE_ARRAY_NOSIZE)] = b
+            }
+            //free space at start of file
+            for(recid in m.keys.filter{it in 2..2000}){
+                s.delete(recid, Serializers.BYTE_ARRAY_NOSIZE)
+                m.remove(recid)
+            }
+            s.commit()
+
+            val sizeBefore = s.getCurrSize()
+            var lastScanned = 0L
+            var lastMoved = 0L
+            val reclaimed = s.compactIncremental(0){scanned, total, moved ->
+                assertTrue(scanned in lastScanned..total)
+                assertTrue(moved>=lastMoved)
+                lastScanned = scanned
+                lastMoved = moved
+            }
+            assertTrue(reclaimed>0)
+            assertTrue(lastMoved>0)
+            s.getCurrSize() shouldBe sizeBefore-reclaimed
+            for((recid, b) in m)
+                assertTrue(Arrays.equals(b, s.get(recid, Serializers.BYTE_ARRAY_NOSIZE)))
+            for(i in 0 until 1000){
+                val b = TT.randomByteArray(r.nextInt(2000))
+                m[s.put(b, Serializers.BYTE_ARRAY_NOSIZE)] = b
+            }
+            for((recid, b) in m)
+                assertTrue(Arrays.equals(b, s.get(recid, Serializers.BYTE_ARRAY_NOSIZE)))
+            s.close()
+
+            s = openStore(f)
+            for(i in 0 until 1000){
+                val b = TT.randomByteArray(r.nextInt(2000))
+                m[s.put(b, Serializers.BYTE_ARRAY_NOSIZE)] = b
+            }
+            for((recid, b) in m)
+                assertTrue(Arrays.equals(b, s.get(recid, Serializers.BYTE_ARRAY_NOSIZE)))
+            s.close()
+        }
+    }
+
+    @Test fun compact_incremental_crash(){
+        TT.withTempFile { f->
+            val snapshots = ArrayList<File>()
+            val s = object: StoreDirect(Volume.fileFactory(f,1,false,0, Store2.VOLUME_CHUNK_SHIFT,1024)){
+                var puts = 0
+                override fun longStackPut(ioList: Long, offset: Long, recursive: Boolean) {
+                    super.longStackPut(ioList, offset, recursive)
+                    if(index.getLong(IO_FREE_LOG.toLong())==0L){
+                        puts = 0
+                        return
+                    }
+                    //copy files in middle of free space rebuild, as if store crashed
+                    if(++puts % 1000 == 0){
+                        val f2 = File(f.path + "-crash" + snapshots.size)
+                        f.copyTo(f2)
+                        File(f.path + StoreDirect.DATA_FILE_EXT).copyTo(File(f2.path + StoreDirect.DATA_FILE_EXT))
+                        snapshots.add(f2)
+                    }
+                }
+            }
+            val r = Random(1)
+            val m = HashMap<Long, ByteArray>()
+            val recids = LongArray(6000){s.put(TT.randomByteArray(r.nextInt(1000)), Serializers.BYTE_ARRAY_NOSIZE)}
+            //free space which can not be merged
+            for(i in recids.indices){
+                if(i%2==0 && i<4000)
+                    s.delete(recids[i], Serializers.BYTE_ARRAY_NOSIZE)
+                else
+                    m[recids[i]] = s.get(recids[i], Serializers.BYTE_ARRAY_NOSIZE)
+            }
+            s.commit()
+            s.compactIncremental(0, null)
+            s.close()
+            assertTrue(snapshots.size>=2)
+
+            for(f2 in snapshots){
+                val s2 = openStore(f2)
+                for((recid, b) in m)
+                    assertTrue(Arrays.equals(b, s2.get(recid, Serializers.BYTE_ARRAY_NOSIZE)))
+                //reused free space must not overwrite live records
+                val m2 = HashMap(m)
+                for(i in 0 until 3000){
+                    val b = TT.randomByteArray(r.nextInt(1000))
+                    m2[s2.put(b, Serializers.BYTE_ARRAY_NOSIZE)] = b
+                }
+                m2.size shouldBe m.size+3000
+                for((recid, b) in m2)
+                    assertTrue(Arrays.equals(b, s2.get(recid, Serializers.BYTE_ARRAY_NOSIZE)))
+                s2.verifyIntegrity().isOk shouldBe true
+                s2.close()
+                f2.delete()
+                File(f2.path + StoreDirect.DATA_FILE_EXT).delete()
+            }
+        }
+    }
+
+    @Test fun compact_incremental_concurrent(){
+        TT.withTempFile { f->
+            val s = openStore(f)
+            val recids = LongArray(4000){s.put(TT.randomByteArray(100), Serializers.BYTE_ARRAY_NOSIZE)}
+            for(i in 0 until recids.size step 2)
+                s.delete(recids[i], Serializers.BYTE_ARRAY_NOSIZE)
+            val live = recids.filterIndexed{i, _ -> i%2==1}
+            val m = ConcurrentHashMap<Long, ByteArray>()
+            TT.fork(4){ i ->
+                if(i==0){
+                    s.compactIncremental(0, null)
+                }else{
+                    val r = Random(i.toLong())
+                    for(j in 0 until 2000){
+                        val recid = live[r.nextInt(live.size/3)*3 + i - 1]
+                        val b = TT.randomByteArray(r.nextInt(300))
+                        s.update(recid, Serializers.BYTE_ARRAY_NOSIZE, b)
+                        m[recid] = b
+                    }
+                }
+            }
+            for((recid, b) in m)
+                assertTrue(Arrays.equals(b, s.get(recid, Serializers.BYTE_ARRAY_NOSIZE)))
+            s.close()
+        }
+    }
+}
+
+class LegacyStoreDirectChecksumTest : StoreReopenTest() {
+    override fun openStore(f:File) = StoreDirect(Volume.fileFactory(f,1,false,0, Store2.VOLUME_CHUNK_SHIFT,1024),
+            false, false, 5, false, 0L, StoreDirect.Durability.SYNC, 0, 0, true, false)
+
+    @Test fun checksum_detects_corruption(){
+        TT.withTempFile { f->
+            var s = openStore(f)
+            val b = TT.randomByteArray(1000, seed=1)
+            val recid = s.put(b, Serializers.BYTE_ARRAY_NOSIZE)
+            val recid2 = s.put(2L, Serializers.LONG)
+            s.verifyIntegrity().isOk shouldBe true
+            s.close()
+
+            //flip single byte in the middle of record
+            val phys = File(f.path+StoreDirect.DATA_FILE_EXT)
+            val data = phys.readBytes()
+            val pos = Collections.indexOfSubList(data.toList(), b.toList())
+            assertTrue(pos>0)
+            data[pos+500] = (data[pos+500]+1).toByte()
+            phys.writeBytes(data)
+
+            s = openStore(f)
+            TT.assertFailsWith(DBException.DataCorruption::class) {
+                s.get(recid, Serializers.BYTE_ARRAY_NOSIZE)
+            }
+            s.get(recid2, Serializers.LONG) shouldBe 2L
+            val result = s.verifyIntegrity()
+            result.errorCount shouldBe 1L
+            result.recordCount shouldBe 1L
+            TT.assertFailsWith(DBException.DataCorruption::class) {
+                s.verify()
+            }
+            TT.assertFailsWith(DBException.DataCorruption::class) {
+                s.readAll{_, _ -> }
+            }
+            s.close()
+        }
+    }
+
+    @Test fun checksum_flag_must_match(){
+        TT.withTempFile { f->
+            openStore(f).close()
+            TT.assertFailsWith(IllegalArgumentException::class) {
+                StoreDirect(Volume.fileFactory(f,1,false,0, Store2.VOLUME_CHUNK_SHIFT,1024))
+            }
+        }
+    }
+}
+
+class LegacyStoreDirectCompressTest : StoreReopenTest() {
+    override fun openStore(f:File) = StoreDirect(Volume.fileFactory(f,1,false,0, Store2.VOLUME_CHUNK_SHIFT,1024),
+            false, false, 5, false, 0L, StoreDirect.Durability.SYNC, 0, 0, true, true)
+
+    @Test fun compressed_records_are_smaller(){
+        TT.withTempFile { f->
+            val s = openStore(f)
+            val b = ByteArray(10000){(it%10).toByte()}
+            val recid = s.put(b, Serializers.BYTE_ARRAY_NOSIZE)
+            s.commit()
+            assertTrue(s.getCurrSize() < b.size)
+            assertTrue(Arrays.equals(b, s.get(recid, Serializers.BYTE_ARRAY_NOSIZE)))
+            s.verifyIntegrity().isOk shouldBe true
+            s.close()
+        }
+    }
+
+    @Test fun compress_flag_must_match(){
+        TT.withTempFile { f->
+            openStore(f).close()
+            TT.assertFailsWith(IllegalArgumentException::class) {
+                StoreDirect(Volume.fileFactory(f,1,false,0, Store2.VOLUME_CHUNK_SHIFT,1024),
+                        false, false, 5, false, 0L, StoreDirect.Durability.SYNC, 0, 0, true, false)
+            }
+        }
+    }
+}
+
+class LiStoreCompressReopenTest : StoreReopenTest() {
+    override fun openStore(f:File) = LiStore(Volume.fileFactory(f, 0, false, 0L, Store2.VOLUME_CHUNK_SHIFT, 0), RecordCompression())
+
+    @Test fun compress_flag_must_match(){
+        TT.withTempFile { f->
+            openStore(f).close()
+            TT.assertFailsWith(DBException.WrongConfig::class) {
+                LiStore(f)
+            }
+        }
+    }
+}
+
+class LegacyStoreDirectEncryptedTest : StoreReopenTest() {
+    val key = TT.randomByteArray(16, seed=1)
+
+    override fun openStore(f:File) = StoreDirect(Volume.encryptedFileFactory(f, key, false, 0L, Store2.VOLUME_CHUNK_SHIFT))
+
+    @Test fun data_are_encrypted(){
+        TT.withTempFile { f->
+            val s = openStore(f)
+            val b = ByteArray(1000){(it%10).toByte()}
+            val recid = s.put(b, Serializers.BYTE_ARRAY_NOSIZE)
+            s.close()
+
+            val data = File(f.path+StoreDirect.DATA_FILE_EXT).readBytes()
+            Collections.indexOfSubList(data.toList(), b.copyOf(100).toList()) shouldBe -1
+
+            val s2 = openStore(f)
+            assertTrue(Arrays.equals(b, s2.get(recid, Serializers.BYTE_ARRAY_NOSIZE)))
+            s2.close()
+        }
+    }
+
+    @Test fun wrong_key(){
+        TT.withTempFile { f->
+            openStore(f).close()
+            TT.assertFailsWith(DBException.DataCorruption::class) {
+                StoreDirect(Volume.encryptedFileFactory(f, TT.randomByteArray(16, seed=2), false, 0L, Store2.VOLUME_CHUNK_SHIFT))
+            }
+        }
+    }
+
+    @Test fun corrupted_chunk(){
+        TT.withTempFile { f->
+            val s = openStore(f)
+            s.put(TT.randomByteArray(1000), Serializers.BYTE_ARRAY_NOSIZE)
+            s.close()
+
+            val phys = File(f.path+StoreDirect.DATA_FILE_EXT)
+            val data = phys.readBytes()
+            data[100] = (data[100]+1).toByte()
+            phys.writeBytes(data)
+            TT.assertFailsWith(DBException.DataCorruption::class) {
+                openStore(f)
+            }
+        }
+    }
+
+    @Test fun evicted_chunks_written_back(){
+        TT.withTempFile { f->
+            var v = Volume.EncryptedFileVol(f, key, false, 0L, 12, 2)
+            v.ensureAvailable(20L*4096)
+            for(i in 0L until 20L)
+                v.putLong(i*4096+8, i)
+            for(i in 0L until 20L)
+                v.getLong(i*4096+8) shouldBe i
+            v.close()
+
+            v = Volume.EncryptedFileVol(f, key, false, 0L, 12, 2)
+            for(i in 0L until 20L)
+                v.getLong(i*4096+8) shouldBe i
+            v.close()
+        }
+    }
+
+    @Test fun torn_write_falls_back_to_previous_slot(){
+        TT.withTempFile { f->
+            val v = Volume.EncryptedFileVol(f, key, false, 0L, 12)
+            v.ensureAvailable(4096)
+            v.putLong(8, 1L)
+            v.sync()
+            v.putLong(8, 2L)
+            v.close()
+
+            //damage second slot, which holds the newest write
+            RandomAccessFile(f, "rw").use { raf->
+                val pos = 16L+4096+16+100
+                raf.seek(pos)
+                val b = raf.read()
+                raf.seek(pos)
+                raf.write(b+1)
+            }
+            val v2 = Volume.EncryptedFileVol(f, key, false, 0L, 12)
+            v2.getLong(8) shouldBe 1L
+            v2.close()
+        }
+    }
+}
+
+class LiStoreEncryptedReopenTest : StoreReopenTest() {
+    override fun openStore(f:File) = LiStore(Volume.encryptedFileFactory(f, TT.randomByteArray(32, seed=1), false, 0L, Store2.VOLUME_CHUNK_SHIFT))
+}
+
+class LegacyStoreDirectGroupTest : StoreReopenTest() {
+    override fun openStore(f:File) = StoreDirect(Volume.fileFactory(f,1,false,0, Store2.VOLUME_CHUNK_SHIFT,1024),
+            false, false, 5, false, 0L, StoreDirect.Durability.GROUP, 1000, 1024*1024)
+
+    @Test fun concurrent_commits(){
+        TT.withTempFile { f->
+            var s = openStore(f)
+            val recids = ConcurrentHashMap<Long,Long>()
+            TT.fork(8){
+                for(i in 0L until 100L){
+                    recids[s.put(i, Serializers.LONG)] = i
+                    s.commit()
+                }
+            }
+            s.close()
+
+            s = openStore(f)
+            recids.size shouldBe 800
+            for((recid, v) in recids)
+                s.get(recid, Serializers.LONG) shouldBe v
+            s.close()
+        }
+    }
+
+    @Test fun commitAsync_completes(){
+        TT.withTempFile { f->
+            val s = openStore(f)
+            s.put(1L, Serializers.LONG)
+            val futures = (0 until 10).map{s.commitAsync()}
+            for(fut in futures)
+                fut.get(10, TimeUnit.SECONDS)
+            s.close()
+        }
+    }
+
+    @Test fun commit_window_bytes(){
+        TT.withTempFile { f->
+            //window is long, but byte limit triggers fsync early
+            val s = StoreDirect(Volume.fileFactory(f,1,false,0, Store2.VOLUME_CHUNK_SHIFT,1024),
+                    false, false, 5, false, 0L, StoreDirect.Durability.GROUP, 60L*1000*1000, 1000)
+            s.put(TT.randomByteArray(2000), Serializers.BYTE_ARRAY_NOSIZE)
+            s.commitAsync().get(10, TimeUnit.SECONDS)
+            s.close()
+        }
+    }
+}
+
+class LegacyStoreDirectAsyncTest : StoreReopenTest() {
+    override fun openStore(f:File) = StoreDirect(Volume.fileFactory(f,1,false,0, Store2.VOLUME_CHUNK_SHIFT,1024),
+            false, false, 5, false, 0L, StoreDirect.Durability.ASYNC, 1000, 1024*1024)
+
+    @Test fun commit_does_not_wait(){
+        TT.withTempFile { f->
+            //window is long, so sync would block commit for a minute
+            val s = StoreDirect(Volume.fileFactory(f,1,false,0, Store2.VOLUME_CHUNK_SHIFT,1024),
+                    false, false, 5, false, 0L, StoreDirect.Durability.ASYNC, 60L*1000*1000, 0)
+            val recid = s.put(1L, Serializers.LONG)
+            val time = System.currentTimeMillis()
+            s.commit()
+            assertTrue(System.currentTimeMillis()-time < 30*1000)
+            //close syncs pending commits
+            s.close()
+
+            val s2 = openStore(f)
+            s2.get(recid, Serializers.LONG) shouldBe 1L
+            s2.close()
+        }
+    }
 }
 
 abstract class StoreReopenTest(): StoreTest(){
@@ -138,6 +939,35 @@ abstract class StoreReopenTest(): StoreTest(){
 
 
 
+    @Test fun mixed_sizes_delete_reopen() {
+        TT.withTempFile { file ->
+            var e = openStore(file)
+            val r = Random(1)
+            val m = HashMap<Long, ByteArray>()
+            for(i in 0 until 2000){
+                val b = TT.randomByteArray(r.nextInt(3000))
+                m[e.put(b, Serializers.BYTE_ARRAY_NOSIZE)] = b
+            }
+            for(recid in m.keys.filter{it%3==0L}){
+                e.delete(recid, Serializers.BYTE_ARRAY_NOSIZE)
+                m.remove(recid)
+            }
+            e.commit()
+            e.close()
+
+            e = openStore(file)
+            for(i in 0 until 1000){
+                val b = TT.randomByteArray(r.nextInt(3000))
+                m[e.put(b, Serializers.BYTE_ARRAY_NOSIZE)] = b
+            }
+            for((recid, b) in m){
+                assertTrue(Arrays.equals(b, e.get(recid, Serializers.BYTE_ARRAY_NOSIZE)))
+            }
+            e.verify()
+            e.close()
+        }
+    }
+
     @Test fun test_store_reopen() {
         TT.withTempFile { file ->
             var e = openStore(file)
@@ -166,13 +996,15 @@ abstract class StoreReopenTest(): StoreTest(){
 //            e.close()
 //        }
 //    }
-// TODO missing test
-//    @Test fun empty_rollback2(){
-//        val e = openStore(file)
-//        if(e is StoreTx)
-//            e.rollback()
-//        e.close()
-//    }
+
+    @Test fun empty_rollback2(){
+        TT.withTempFile { file ->
+            val e = openStore(file)
+            if(e is StoreTx)
+                e.rollback()
+            e.close()
+        }
+    }
 
     @Test fun empty_commit2(){
         TT.withTempFile { file ->
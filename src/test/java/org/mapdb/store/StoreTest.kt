@@ -9,13 +9,18 @@ import org.mapdb.DBException
 import org.mapdb.TT
 import org.mapdb.io.DataIO
 import org.mapdb.io.DataInput2
+import org.mapdb.io.DataInput2ByteBuffer
 import org.mapdb.io.DataOutput2
 import org.mapdb.ser.Serializer
 import org.mapdb.ser.Serializers
 import org.mapdb.ser.Serializers.LONG
+import org.mapdb.store.legacy.Store2
+import org.mapdb.store.legacy.Volume
 import org.mapdb.store.li.LiStore
 import java.util.*
+import java.util.concurrent.CountDownLatch
 import java.util.concurrent.atomic.AtomicLong
+import java.util.stream.Collectors
 
 
 
@@ -26,21 +31,415 @@ class HeapBufStoreRWLockTest : StoreTest() {
     override fun openStore() = HeapBufStoreRWLock()
 }
 
+class HeapBufStoreSegmentedTest : StoreTest() {
+    override fun openStore() = HeapBufStoreSegmented()
+}
+
+class HeapBufStoreCompressTest : StoreTest() {
+    override fun openStore() = HeapBufStore(RecordCompression())
+}
+
+class HeapBufStoreSegmentedCompressTest : StoreTest() {
+    override fun openStore() = HeapBufStoreSegmented(16, RecordCompression(0))
+}
+
 
 
 class ConcMapStoreTest : StoreTest() {
     override fun openStore() = ConcMapStore()
+}
+
+class ConcMapStoreBinaryTest : StoreTest() {
+    override fun openStore() = ConcMapStoreBinary()
+
+    @Test fun serialize_on_write(){
+        val s = openStore()
+        val ser = Serializers.JAVA as Serializer<ArrayList<Int>>
+        val a = arrayListOf(1,2)
+        val recid = s.put(a, ser)
+        a.add(3)
+        s.get(recid, ser) shouldBe arrayListOf(1,2)
+        s.close()
+    }
+
+    @Test fun large_records_release_chunks(){
+        val s = openStore()
+        for(i in 0 until 100){
+            val recid = s.put(ByteArray(300_000), Serializers.BYTE_ARRAY_NOSIZE)
+            s.update(recid, Serializers.BYTE_ARRAY_NOSIZE, ByteArray(2_000_000))
+            s.delete(recid, Serializers.BYTE_ARRAY_NOSIZE)
+        }
+        s.isEmpty() shouldBe true
+        s.close()
+    }
+
+    @Test fun compact_releases_sparse_chunks(){
+        val s = openStore()
+        val ser = Serializers.BYTE_ARRAY_NOSIZE
+        val recids = LongArray(10_000){ s.put(ByteArray(1000){ b-> (it+b).toByte()}, ser) }
+        val sizeBefore = s.allocatedSize()
+        //single live record keeps each chunk allocated
+        for(i in recids.indices)
+            if(i%100!=0)
+                s.delete(recids[i], ser)
+        s.allocatedSize() shouldBe sizeBefore
+
+        s.compact()
+        assertTrue(s.allocatedSize() <= 1L shl 20)
+        for(i in recids.indices step 100)
+            assertArrayEquals(ByteArray(1000){ b-> (i+b).toByte()}, s.get(recids[i], ser))
+
+        for(i in recids.indices step 100)
+            s.delete(recids[i], ser)
+        s.isEmpty() shouldBe true
+        s.close()
+    }
+}
+
+class WALStoreTest : StoreTest() {
+    override fun openStore() = WALStore(HeapBufStore(), TT.tempFile())
+
+    @Test fun rollback(){
+        val s = openStore()
+        val recid = s.put(1L, LONG)
+        s.commit()
+        s.update(recid, LONG, 2L)
+        val recid2 = s.put(3L, LONG)
+        s.delete(recid, LONG)
+        s.rollback()
+
+        s.get(recid, LONG) shouldBe 1L
+        TT.assertFailsWith(DBException.RecordNotFound::class) {
+            s.get(recid2, LONG)
+        }
+        s.put(4L, LONG) shouldBe recid2
+        s.close()
+    }
+
+    @Test fun replay_after_crash(){
+        val f = TT.tempFile()
+        val s = WALStore(HeapBufStore(), f, Long.MAX_VALUE, 0)
+        val recid = s.put(1L, LONG)
+        val recid2 = s.put(2L, LONG)
+        s.commit()
+        s.delete(recid2, LONG)
+        s.update(recid, LONG, 3L)
+        s.commit()
+        s.update(recid, LONG, 4L)
+
+        //open second instance without closing first one, uncommitted data are lost
+        val s2 = WALStore(HeapBufStore(), f, Long.MAX_VALUE, 0)
+        s2.get(recid, LONG) shouldBe 3L
+        TT.assertFailsWith(DBException.RecordNotFound::class) {
+            s2.get(recid2, LONG)
+        }
+        s2.close()
+    }
+
+    @Test fun rolled_back_recids_released_on_replay(){
+        val f = TT.tempFile()
+        val store = HeapBufStore()
+        val s = WALStore(store, f, Long.MAX_VALUE, 0)
+        val recid = s.put(1L, LONG)
+        s.rollback()
+        val recid2 = s.put(2L, LONG)
+        //checkpoint commits wrapped store while transaction is not finished
+        s.checkpoint()
+        TT.assertFailsWith(DBException.PreallocRecordAccess::class) {
+            store.get(recid2, LONG)
+        }
+
+        //reopen without closing, preallocated recids are returned to wrapped store
+        val s2 = WALStore(store, f, Long.MAX_VALUE, 0)
+        for(r in listOf(recid, recid2)) {
+            TT.assertFailsWith(DBException.RecordNotFound::class) {
+                store.get(r, LONG)
+            }
+        }
+        store.isEmpty() shouldBe true
+        s2.close()
+    }
+
+    @Test fun recid_preallocated_during_checkpoint_released_on_replay(){
+        val f = TT.tempFile()
+        var s:WALStore? = null
+        var recid = 0L
+        val store = object: HeapBufStoreSegmented(){
+            override fun commit() {
+                //other transaction allocates recid, while checkpoint commits wrapped store
+                if(recid==0L)
+                    recid = s!!.put(1L, LONG)
+                super.commit()
+            }
+        }
+        s = WALStore(store, f, Long.MAX_VALUE, 0)
+        s.checkpoint()
+        TT.assertFailsWith(DBException.PreallocRecordAccess::class) {
+            store.get(recid, LONG)
+        }
+
+        //reopen without closing, preallocated recid is returned to wrapped store
+        val s2 = WALStore(store, f, Long.MAX_VALUE, 0)
+        TT.assertFailsWith(DBException.RecordNotFound::class) {
+            store.get(recid, LONG)
+        }
+        store.isEmpty() shouldBe true
+        s2.close()
+    }
 
-    override fun recid_getAll_sorted(){
-        //TODO support multiform store
+    @Test(timeout = 60000) fun reclaim_bounded(){
+        val f = TT.tempFile()
+        val s = WALStore(HeapBufStore(), f, Long.MAX_VALUE, 0)
+        val recid = s.put(1L, LONG)
+        s.commit()
+
+        //wrapped store never returns committed recid on replay
+        val store = object: HeapBufStore(){
+            override fun preallocate(): Long {
+                val r = super.preallocate()
+                return if(r==recid) super.preallocate() else r
+            }
+        }
+        TT.assertFailsWith(DBException.DataCorruption::class) {
+            WALStore(store, f, Long.MAX_VALUE, 0)
+        }
     }
 
+    @Test fun commit_after_close(){
+        val s = openStore()
+        s.put(1L, LONG)
+        s.close()
+        TT.assertFailsWith(DBException.StoreClosed::class) {
+            s.commit()
+        }
+    }
+
+    @Test fun checkpoint(){
+        val s = WALStore(HeapBufStore(), TT.tempFile(), 100, 0)
+        val recids = (0 until 1000).map{
+            val recid = s.put(it.toLong(), LONG)
+            s.commit()
+            recid
+        }
+        s.store.isEmpty() shouldBe false
+        for(i in 0 until 1000)
+            s.get(recids[i], LONG) shouldBe i.toLong()
+        s.close()
+    }
 }
 
 class LiStoreTest : StoreTest() {
     override fun openStore() = LiStore()
 }
 
+class LiStoreCompressTest : StoreTest() {
+    override fun openStore() = LiStore(Volume.memoryFactory(true, 0L, Store2.VOLUME_CHUNK_SHIFT), RecordCompression())
+}
+
+class WriteBehindStoreTest : StoreTest() {
+    override fun openStore() = WriteBehindStore(LiStore())
+
+    @Test fun merge_updates(){
+        val updates = AtomicLong()
+        val s = WriteBehindStore(object: HeapBufStore(){
+            override fun <R> update(recid: Long, serializer: Serializer<R>, updatedRecord: R) {
+                updates.incrementAndGet()
+                super.update(recid, serializer, updatedRecord)
+            }
+        }, 1000*60, 1024*1024)
+        val recid = s.put(0L, LONG)
+        s.drain()
+        for(i in 1L..1000L)
+            s.update(recid, LONG, i)
+        //pending record is served from queue
+        s.get(recid, LONG) shouldBe 1000L
+        s.commit()
+        updates.get() shouldBe 1L
+        s.get(recid, LONG) shouldBe 1000L
+        s.store.get(recid, LONG) shouldBe 1000L
+        s.close()
+    }
+
+    @Test fun full_queue_drains(){
+        val s = WriteBehindStore(LiStore(), 1000*60, 1000)
+        val recids = (0 until 10000).map{s.put(it.toLong(), LONG)}
+        for(i in 0 until 10000)
+            s.get(recids[i], LONG) shouldBe i.toLong()
+        s.close()
+    }
+
+    @Test fun delete_pending(){
+        val s = WriteBehindStore(HeapBufStore(), 1000*60, 1024*1024)
+        val recid = s.put(1L, LONG)
+        s.delete(recid, LONG)
+        s.drain()
+        TT.assertFailsWith(DBException.RecordNotFound::class) {
+            s.store.get(recid, LONG)
+        }
+        s.close()
+    }
+
+    @Test fun isEmpty_does_not_drain(){
+        val s = WriteBehindStore(HeapBufStore(), 1000*60, 1024*1024)
+        val recid = s.put(1L, LONG)
+        s.isEmpty() shouldBe false
+        TT.assertFailsWith(DBException.PreallocRecordAccess::class) {
+            s.store.get(recid, LONG)
+        }
+        s.delete(recid, LONG)
+        s.isEmpty() shouldBe true
+        s.drain()
+        s.isEmpty() shouldBe true
+
+        val recid2 = s.put(2L, LONG)
+        s.drain()
+        s.delete(recid2, LONG)
+        s.isEmpty() shouldBe true
+        s.store.get(recid2, LONG) shouldBe 2L
+        s.close()
+    }
+
+    @Test fun failed_drain_retried_by_commit(){
+        var fail = 0L
+        val s = WriteBehindStore(object: HeapBufStore(){
+            override fun <R> update(recid: Long, serializer: Serializer<R>, updatedRecord: R) {
+                if(recid==fail)
+                    throw DBException.DataCorruption("failed")
+                super.update(recid, serializer, updatedRecord)
+            }
+        }, 1000*60, 1024*1024)
+        val recids = (0 until 3).map{s.put(it.toLong(), LONG)}
+        s.commit()
+        for(recid in recids)
+            s.update(recid, LONG, recid+100)
+        fail = recids[1]
+        TT.assertFailsWith(DBException.DataCorruption::class) {
+            s.commit()
+        }
+        for(recid in recids)
+            s.get(recid, LONG) shouldBe recid+100
+        s.update(recids[2], LONG, 1000L)
+        fail = 0L
+        s.commit()
+        s.store.get(recids[0], LONG) shouldBe recids[0]+100
+        s.store.get(recids[1], LONG) shouldBe recids[1]+100
+        s.store.get(recids[2], LONG) shouldBe 1000L
+        s.close()
+    }
+
+    @Test(timeout = 60000) fun store_read_without_lock(){
+        val reading = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val s = WriteBehindStore(object: HeapBufStoreSegmented(){
+            override fun <K> get(recid: Long, ser: Serializer<K>): K {
+                if(release.count>0){
+                    reading.countDown()
+                    release.await()
+                }
+                return super.get(recid, ser)
+            }
+        }, 1000*60, 1024*1024)
+        val recid = s.put(1L, LONG)
+        s.drain()
+        val reader = TT.async{ s.get(recid, LONG) shouldBe 1L }
+        reading.await()
+        //writer is not blocked by reader of wrapped store
+        val recid2 = s.put(2L, LONG)
+        s.get(recid2, LONG) shouldBe 2L
+        release.countDown()
+        reader()
+        s.close()
+    }
+}
+
+class CachedStoreTest : StoreTest() {
+    override fun openStore() = CachedStore(LiStore())
+
+    @Test fun hit_rate(){
+        val s = CachedStore(LiStore())
+        val recid = s.put(1L, LONG)
+        for(i in 0 until 10)
+            s.get(recid, LONG) shouldBe 1L
+        s.missCount shouldBe 1L
+        s.hitCount shouldBe 9L
+        s.hitRate shouldBe 0.9
+        s.close()
+    }
+
+    @Test fun invalidate(){
+        val s = CachedStore(LiStore())
+        val recid = s.put(1L, LONG)
+        s.get(recid, LONG) shouldBe 1L
+        s.update(recid, LONG, 2L)
+        s.get(recid, LONG) shouldBe 2L
+        s.compareAndUpdate(recid, LONG, 2L, 3L) shouldBe true
+        s.get(recid, LONG) shouldBe 3L
+        s.delete(recid, LONG)
+        TT.assertFailsWith(DBException.RecordNotFound::class) {
+            s.get(recid, LONG)
+        }
+        s.close()
+    }
+
+    @Test fun size_bounded(){
+        for(offHeap in listOf(false, true)) {
+            val s = CachedStore(LiStore(), 100000, offHeap)
+            val recids = (0 until 1000).map { s.put(ByteArray(1000), Serializers.BYTE_ARRAY_NOSIZE) }
+            for(recid in recids)
+                s.get(recid, Serializers.BYTE_ARRAY_NOSIZE)
+            assertTrue(s.cacheSize <= 100000)
+            assertTrue(s.evictionCount > 0)
+            //frequently used record stays in cache
+            for(i in 0 until 100) {
+                s.get(recids[0], Serializers.BYTE_ARRAY_NOSIZE)
+                s.get(recids[i*10+1], Serializers.BYTE_ARRAY_NOSIZE)
+            }
+            val misses = s.missCount
+            s.get(recids[0], Serializers.BYTE_ARRAY_NOSIZE)
+            s.missCount shouldBe misses
+            s.close()
+        }
+    }
+
+    @Test fun off_heap_pages_bounded(){
+        val s = CachedStore(LiStore(), 2*1024*1024, true)
+        val r = Random(1)
+        val m = HashMap<Long, ByteArray>()
+        for(i in 0 until 5000){
+            val b = TT.randomByteArray(r.nextInt(if(i<2500) 100 else 20000))
+            m[s.put(b, Serializers.BYTE_ARRAY_NOSIZE)] = b
+        }
+        for(j in 0 until 2) for((recid, b) in m)
+            assertTrue(Arrays.equals(b, s.get(recid, Serializers.BYTE_ARRAY_NOSIZE)))
+        //pages emptied by small records were reused by large records
+        s.slab.allocated shouldBe 2
+        assertTrue(s.evictionCount > 0)
+        s.close()
+        assertTrue(s.slab.pages.all{it==null})
+    }
+
+    @Test fun concurrent_hits(){
+        for(offHeap in listOf(false, true)) {
+            val s = CachedStore(LiStore(), 100000, offHeap)
+            val recids = (0 until 1000).map { s.put(TT.randomByteArray(1000, seed=it), Serializers.BYTE_ARRAY_NOSIZE) }
+            TT.fork(8){ i->
+                val r = Random(i.toLong())
+                for(j in 0 until 20000){
+                    //frequent reads of few records, evictions caused by others
+                    val k = if(r.nextBoolean()) r.nextInt(10) else r.nextInt(recids.size)
+                    assertTrue(Arrays.equals(TT.randomByteArray(1000, seed=k), s.get(recids[k], Serializers.BYTE_ARRAY_NOSIZE)))
+                }
+            }
+            assertTrue(s.hitCount > 0)
+            assertTrue(s.cacheSize <= 100000)
+            s.close()
+        }
+    }
+}
+
+class CachedStoreOffHeapTest : StoreTest() {
+    override fun openStore() = CachedStore(LiStore(), 1024*1024, true)
+}
 
 
 /**
@@ -314,6 +713,107 @@ abstract class StoreTest {
         e.close()
     }
 
+    @Test fun batch_putAll_getAll_updateAll_deleteAll() {
+        val e = openStore()
+        val recids = e.putAll((0L until 1000L).toList(), LONG)
+        recids.toSet().size shouldBe 1000
+        val values = arrayOfNulls<Any>(1000)
+        e.getAll(recids, LONG, values)
+        for(i in 0 until 1000)
+            values[i] shouldBe i.toLong()
+
+        e.updateAll(recids, LONG, (0L until 1000L).map{-it})
+        for(i in 0 until 1000)
+            e.get(recids[i], LONG) shouldBe -i.toLong()
+
+        val deleted = recids.copyOfRange(0, 500)
+        e.deleteAll(deleted, LONG)
+        for(recid in deleted) TT.assertFailsWith(DBException.RecordNotFound::class) {
+            e.get(recid, LONG)
+        }
+        e.get(recids[500], LONG) shouldBe -500L
+        e.verify()
+        e.close()
+    }
+
+    @Test fun batch_preallocate() {
+        val e = openStore()
+        val recids = LongArray(100)
+        e.preallocate(recids)
+        recids.toSet().size shouldBe 100
+        for(recid in recids) TT.assertFailsWith(DBException.PreallocRecordAccess::class) {
+            e.get(recid, LONG)
+        }
+        e.preallocatePut(recids[0], LONG, 1L)
+        e.get(recids[0], LONG) shouldBe 1L
+        e.close()
+    }
+
+    open @Test fun read_zero_copy() {
+        val e = openStore()
+        val small = e.put(111L, LONG)
+        val big = TT.randomByteArray(100000)
+        val bigRecid = e.put(big, Serializers.BYTE_ARRAY_NOSIZE)
+        val prealloc = e.preallocate()
+
+        e.read(small) { buf ->
+            buf.isReadOnly shouldBe true
+            Serializers.LONG.deserialize(DataInput2ByteBuffer(buf))
+        } shouldBe 111L
+        e.read(bigRecid) { buf ->
+            val b = ByteArray(buf.remaining())
+            buf.get(b)
+            b
+        }.toList() shouldBe big.toList()
+        TT.assertFailsWith(DBException.PreallocRecordAccess::class) {
+            e.read(prealloc) { it }
+        }
+
+        val all = LongObjectHashMap<ByteArray>()
+        e.readAll { recid, buf ->
+            buf.isReadOnly shouldBe true
+            val b = ByteArray(buf.remaining())
+            buf.get(b)
+            all.put(recid, b)
+        }
+        all.keySet().toSortedArray().toList() shouldBe listOf(small, bigRecid).sorted()
+        all.get(bigRecid).toList() shouldBe big.toList()
+        e.close()
+    }
+
+    @Test fun verify_integrity() {
+        val e = openStore()
+        val recids = e.putAll((0L until 3000L).toList(), LONG)
+        e.put(TT.randomByteArray(100000), Serializers.BYTE_ARRAY_NOSIZE)
+        e.preallocate()
+        for(i in 0 until 1000)
+            e.delete(recids[i*2], LONG)
+        for(i in 0 until 100)
+            e.update(recids[i*2+1], Serializers.BYTE_ARRAY_NOSIZE, TT.randomByteArray(i*100))
+        val result = e.verifyIntegrity()
+        assertTrue(result.errors.toString(), result.isOk)
+        result.recordCount shouldBe 2001L
+        e.verify()
+        e.close()
+    }
+
+    open @Test fun stream_parallel() {
+        val e = openStore()
+        val recids = e.putAll((0L until 5000L).toList(), LONG)
+        e.preallocate()
+        e.delete(recids[100], LONG)
+        val expected = recids.indices.filter{it!=100}.map{Pair(recids[it], it.toLong())}
+
+        e.stream({ recid, buf -> Pair(recid, LONG.deserialize(DataInput2ByteBuffer(buf))) }, false)
+                .collect(Collectors.toList()) shouldBe expected.sortedBy { it.first }
+
+        val split = e.spliterator { recid, _ -> recid }
+        assertNotNull(split.trySplit())
+
+        e.stream({ recid, buf -> Pair(recid, LONG.deserialize(DataInput2ByteBuffer(buf))) }, true)
+                .collect(Collectors.toList()) shouldBe expected.sortedBy { it.first }
+        e.close()
+    }
 
     @Test fun not_preallocated() {
         val e = openStore()
@@ -444,14 +944,13 @@ abstract class StoreTest {
     }
 
 
-//TODO test
-//    @Test fun empty_rollback(){
-//        val e = openStore()
-//        if(e is StoreTx)
-//            e.rollback()
-//        e.verify()
-//        e.close()
-//    }
+    @Test fun empty_rollback(){
+        val e = openStore()
+        if(e is StoreTx)
+            e.rollback()
+        e.verify()
+        e.close()
+    }
 
     @Test fun empty_commit(){
         val e = openStore()
@@ -0,0 +1,40 @@
+package org.mapdb.tree;
+
+import org.mapdb.guavaTests.SortedMapInterfaceTest;
+import org.mapdb.ser.Serializers;
+import org.mapdb.store.HeapBufStore;
+
+import java.util.SortedMap;
+
+public class BTreeMapGuavaTest extends SortedMapInterfaceTest<Integer, String> {
+
+    public BTreeMapGuavaTest() {
+        super(false, false, true, true, true);
+    }
+
+    @Override
+    protected SortedMap<Integer, String> makeEmptyMap() {
+        return BTreeMap.Maker
+                .newMap(new HeapBufStore(), Serializers.INTEGER, Serializers.STRING)
+                .maxNodeSize(4)
+                .make();
+    }
+
+    @Override
+    protected SortedMap<Integer, String> makePopulatedMap() {
+        SortedMap<Integer, String> map = makeEmptyMap();
+        for(int i=0; i<100; i++)
+            map.put(i*2, "v"+i);
+        return map;
+    }
+
+    @Override
+    protected Integer getKeyNotInPopulatedMap() {
+        return -1;
+    }
+
+    @Override
+    protected String getValueNotInPopulatedMap() {
+        return "not in map";
+    }
+}
@@ -0,0 +1,180 @@
+package org.mapdb.tree
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.mapdb.TT
+import org.mapdb.ser.Serializer
+import org.mapdb.ser.Serializers
+import org.mapdb.store.FileHeapBufStore
+import org.mapdb.store.HeapBufStore
+import org.mapdb.store.HeapBufStoreSegmented
+import java.util.*
+import java.util.concurrent.ConcurrentSkipListMap
+
+class BTreeMapTest {
+
+    fun newMap(maxNodeSize:Int = 4) = BTreeMap.Maker
+            .newMap(HeapBufStoreSegmented(), Serializers.INTEGER, Serializers.INTEGER)
+            .maxNodeSize(maxNodeSize)
+            .make()
+
+    @Test fun random_ops(){
+        val m = newMap()
+        val ref = TreeMap<Int,Int>()
+        val r = Random(0)
+        for(i in 0 until 100000){
+            val k = r.nextInt(2000)
+            when(r.nextInt(3)){
+                0, 1 -> assertEquals(ref.put(k, i), m.put(k, i))
+                2 -> assertEquals(ref.remove(k), m.remove(k))
+            }
+        }
+        assertEquals(ref, m)
+        assertEquals(ref.keys.toList(), m.keys.toList())
+        assertEquals(ref.descendingMap().keys.toList(), m.descendingMap().keys.toList())
+        for(k in -1 .. 2001){
+            assertEquals(ref.floorKey(k), m.floorKey(k))
+            assertEquals(ref.lowerKey(k), m.lowerKey(k))
+            assertEquals(ref.ceilingKey(k), m.ceilingKey(k))
+            assertEquals(ref.higherKey(k), m.higherKey(k))
+        }
+        assertEquals(ref.subMap(100, true, 1500, false).descendingMap().keys.toList(),
+                m.subMap(100, true, 1500, false).descendingMap().keys.toList())
+    }
+
+    @Test fun descending_after_remove_all(){
+        val m = newMap()
+        for(i in 0 until 1000)
+            m.put(i, i)
+        for(i in 100 until 900)
+            m.remove(i)
+        assertEquals((0 until 100).toList() + (900 until 1000).toList(), m.keys.toList())
+        assertEquals(((0 until 100).toList() + (900 until 1000).toList()).reversed(), m.descendingKeySet().toList())
+        m.clear()
+        assertNull(m.firstEntry())
+        assertNull(m.lastEntry())
+    }
+
+    @Test fun concurrent_put(){
+        val m = newMap(8)
+        val threads = 8
+        val count = 10000 * TT.testScale().coerceAtLeast(1)
+        TT.fork(threads){ t->
+            for(i in 0 until count)
+                m.put(i*threads+t, t)
+        }
+        assertEquals(count*threads, m.size)
+        assertEquals((0 until count*threads).toList(), m.keys.toList())
+    }
+
+    @Test fun concurrent_update(){
+        val m = newMap(8)
+        val ref = ConcurrentSkipListMap<Int,Int>()
+        TT.fork(8){ t->
+            val r = Random(t.toLong())
+            for(i in 0 until 10000){
+                val k = r.nextInt(500)
+                //each key has single writer, so reference map can be updated separately
+                if(k%8 != t)
+                    continue
+                if(r.nextBoolean()){
+                    m.put(k, i)
+                    ref.put(k, i)
+                }else{
+                    m.remove(k)
+                    ref.remove(k)
+                }
+            }
+        }
+        assertEquals(ref, m)
+    }
+
+    @Test fun reopen(){
+        TT.withTempFile { f->
+            var store = FileHeapBufStore(f)
+            val m = BTreeMap.Maker.newMap(store, Serializers.INTEGER, Serializers.STRING).make()
+            for(i in 0 until 10000)
+                m.put(i, "v$i")
+            val recid = m.recid
+            store.commit()
+            store.close()
+
+            store = FileHeapBufStore(f)
+            val m2 = BTreeMap.Maker(store, recid, Serializers.INTEGER, Serializers.STRING).make()
+            assertEquals(10000, m2.size)
+            for(i in 0 until 10000)
+                assertEquals("v$i", m2[i])
+            store.close()
+        }
+    }
+
+    @Test fun bulk_load(){
+        for(fillFactor in listOf(0.5, 0.75, 1.0)) for(parallel in listOf(false, true)){
+            val ref = TreeMap<Int,Int>()
+            for(i in 0 until 100000)
+                ref.put(i*2, i)
+            val m = BTreeMap.BulkMaker(HeapBufStoreSegmented(), Serializers.INTEGER, Serializers.INTEGER)
+                    .maxNodeSize(8)
+                    .fillFactor(fillFactor)
+                    .batchSize(100)
+                    .parallel(parallel)
+                    .make(ref.entries.stream())
+            assertEquals(ref, m)
+            assertEquals(ref.descendingMap().keys.toList(), m.descendingMap().keys.toList())
+            for(k in listOf(-1, 0, 1, 5001, 199998, 199999))
+                assertEquals(ref.floorKey(k), m.floorKey(k))
+
+            //tree is usable for updates after bulk load
+            for(i in 0 until 10000){
+                m.put(i*2+1, i)
+                ref.put(i*2+1, i)
+            }
+            assertEquals(ref, m)
+        }
+    }
+
+    @Test fun bulk_load_empty(){
+        val m = BTreeMap.BulkMaker(HeapBufStore(), Serializers.INTEGER, Serializers.INTEGER)
+                .make(Collections.emptyIterator<Map.Entry<Int,Int>>())
+        assertTrue(m.isEmpty())
+        m.put(1, 1)
+        assertEquals(mapOf(1 to 1), m)
+    }
+
+    @Test fun bulk_load_batches(){
+        var preallocates = 0
+        var putAlls = 0
+        val store = object: HeapBufStore(){
+            override fun preallocate(): Long {
+                preallocates++
+                return super.preallocate()
+            }
+            override fun preallocate(ids: LongArray) {
+                preallocates++
+                super.preallocate(ids)
+            }
+            override fun <R> preallocatePutAll(ids: LongArray, serializer: Serializer<R>, values: List<R>) {
+                putAlls++
+                super.preallocatePutAll(ids, serializer, values)
+            }
+        }
+        val ref = (0 until 100000).associate { Pair(it, it) }
+        val m = BTreeMap.BulkMaker(store, Serializers.INTEGER, Serializers.INTEGER)
+                .maxNodeSize(32)
+                .fillFactor(1.0)
+                .batchSize(100)
+                .make(ref.entries.iterator())
+        assertEquals(ref, m)
+        //3125 leafs are written in 32 batches, dir nodes are preallocated one by one
+        assertEquals(32, putAlls)
+        assertTrue(preallocates < 32+110)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun bulk_load_unsorted(){
+        BTreeMap.BulkMaker(HeapBufStore(), Serializers.INTEGER, Serializers.INTEGER)
+                .make(mapOf(2 to 2, 1 to 1).entries.iterator())
+    }
+}
@@ -0,0 +1,48 @@
+package org.mapdb.tree;
+
+import org.mapdb.guavaTests.ConcurrentMapInterfaceTest;
+import org.mapdb.ser.Serializers;
+import org.mapdb.store.HeapBufStore;
+import org.mapdb.store.Store;
+
+import java.util.concurrent.ConcurrentMap;
+
+public class HTreeMapGuavaTest extends ConcurrentMapInterfaceTest<Integer, String> {
+
+    public HTreeMapGuavaTest() {
+        super(false, false, true, true, true, true);
+    }
+
+    @Override
+    protected ConcurrentMap<Integer, String> makeEmptyMap() {
+        Store[] stores = new Store[4];
+        for(int i=0; i<stores.length; i++)
+            stores[i] = new HeapBufStore();
+        return HTreeMap.Maker
+                .newMap(stores, Serializers.INTEGER, Serializers.STRING)
+                .make();
+    }
+
+    @Override
+    protected ConcurrentMap<Integer, String> makePopulatedMap() {
+        ConcurrentMap<Integer, String> map = makeEmptyMap();
+        for(int i=0; i<100; i++)
+            map.put(i*3, "v"+i);
+        return map;
+    }
+
+    @Override
+    protected Integer getKeyNotInPopulatedMap() {
+        return -1;
+    }
+
+    @Override
+    protected String getValueNotInPopulatedMap() {
+        return "not in map";
+    }
+
+    @Override
+    protected String getSecondValueNotInPopulatedMap() {
+        return "not in map either";
+    }
+}
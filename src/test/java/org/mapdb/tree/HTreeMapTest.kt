@@ -0,0 +1,135 @@
+package org.mapdb.tree
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.mapdb.TT
+import org.mapdb.ser.Serializers
+import org.mapdb.store.FileHeapBufStore
+import org.mapdb.store.HeapBufStore
+import org.mapdb.store.Store
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+class HTreeMapTest {
+
+    fun stores(count:Int) = Array<Store>(count){ HeapBufStore() }
+
+    @Test fun random_ops(){
+        val m = HTreeMap.Maker.newMap(stores(4), Serializers.INTEGER, Serializers.INTEGER).make()
+        val ref = HashMap<Int,Int>()
+        val r = Random(0)
+        for(i in 0 until 100000){
+            val k = r.nextInt(5000)
+            when(r.nextInt(3)){
+                0, 1 -> assertEquals(ref.put(k, i), m.put(k, i))
+                2 -> assertEquals(ref.remove(k), m.remove(k))
+            }
+        }
+        assertEquals(ref, m)
+        assertEquals(ref.size, m.keys.toList().size)
+        m.clear()
+        assertEquals(0, m.size)
+        assertTrue(m.isEmpty())
+    }
+
+    @Test fun hash_collisions(){
+        //all keys have the same hash, so they end up in single leaf
+        val ser = object: org.mapdb.ser.StringSerializer(){
+            override fun hashCode(k: String, hashSeed: Int) = 0
+        }
+        val m = HTreeMap.Maker.newMap(HeapBufStore(), 1, ser, Serializers.INTEGER).make()
+        for(i in 0 until 100)
+            m.put("k$i", i)
+        for(i in 0 until 100 step 2)
+            m.remove("k$i")
+        assertEquals((1 until 100 step 2).map{"k$it" to it}.toMap(), m)
+    }
+
+    @Test fun concurrent_segments(){
+        val segments = stores(8)
+        val m = HTreeMap.Maker.newMap(segments, Serializers.INTEGER, Serializers.INTEGER).make()
+        val ref = ConcurrentHashMap<Int,Int>()
+        TT.fork(8){ t->
+            val r = Random(t.toLong())
+            for(i in 0 until 20000){
+                val k = r.nextInt(10000)
+                //each key has single writer, so reference map can be updated separately
+                if(k%8 != t)
+                    continue
+                if(r.nextInt(4)!=0){
+                    m.put(k, i)
+                    ref.put(k, i)
+                }else{
+                    m.remove(k)
+                    ref.remove(k)
+                }
+            }
+        }
+        assertEquals(ref, m)
+        assertEquals(ref.size, m.size)
+    }
+
+    @Test fun expire_max_size(){
+        val m = HTreeMap.Maker.newMap(HeapBufStore(), 1, Serializers.INTEGER, Serializers.INTEGER)
+                .expireMaxSize(100)
+                .make()
+        for(i in 0 until 1000)
+            m.put(i, i)
+        assertEquals(100, m.size)
+        //oldest entries were evicted
+        assertEquals((900 until 1000).toSet(), m.keys.toSet())
+
+        //update moves entry to end of queue
+        m.put(900, -1)
+        m.put(1000, 1000)
+        assertEquals(-1, m[900])
+        assertNull(m[901])
+    }
+
+    @Test fun expire_after_write(){
+        val m = HTreeMap.Maker.newMap(HeapBufStore(), 4, Serializers.INTEGER, Serializers.INTEGER)
+                .expireAfterWrite(100, TimeUnit.MILLISECONDS)
+                .make()
+        for(i in 0 until 100)
+            m.put(i, i)
+        assertEquals(100, m.size)
+        Thread.sleep(200)
+        assertNull(m[1])
+        assertTrue(m.isEmpty())
+        m.expireEvict()
+        assertEquals(0, m.size)
+        m.put(1, 1)
+        assertEquals(1, m[1])
+    }
+
+    @Test fun reopen(){
+        TT.withTempFile { f->
+            var store = FileHeapBufStore(f)
+            val m = HTreeMap.Maker.newMap(store, Serializers.INTEGER, Serializers.STRING)
+                    .expireMaxSize(1000)
+                    .make()
+            for(i in 0 until 10000)
+                m.put(i, "v$i")
+            val recid = m.recid
+            store.commit()
+            store.close()
+
+            store = FileHeapBufStore(f)
+            val m2 = HTreeMap.Maker(Array(HTreeMap.DEFAULT_SEGMENT_COUNT){store}, recid, Serializers.INTEGER, Serializers.STRING)
+                    .expireMaxSize(1000)
+                    .make()
+            assertEquals(m2.size.toLong(), m2.keys.size.toLong())
+            assertTrue(m2.size<=1000)
+            for((k,v) in m2)
+                assertEquals("v$k", v)
+            //expiration queue survives reopen
+            for(i in 10000 until 20000)
+                m2.put(i, "v$i")
+            assertTrue(m2.size<=1000)
+            store.close()
+        }
+    }
+}